@@ -5,19 +5,40 @@ import okhttp3.OkHttpClient;
 import pl.allegro.tech.discovery.consul.recipes.datacenter.ConsulDatacenterReader;
 import pl.allegro.tech.discovery.consul.recipes.json.JsonDeserializer;
 import pl.allegro.tech.discovery.consul.recipes.json.JsonSerializer;
+import pl.allegro.tech.discovery.consul.recipes.kv.KeyValueMirror;
+import pl.allegro.tech.discovery.consul.recipes.kv.KeyValueWatcher;
+import pl.allegro.tech.discovery.consul.recipes.kv.KeyValueWriter;
+import pl.allegro.tech.discovery.consul.recipes.kv.KeysWatcher;
 import pl.allegro.tech.discovery.consul.recipes.leader.LeaderElector;
+import pl.allegro.tech.discovery.consul.recipes.leader.LeaderElectorGroup;
 import pl.allegro.tech.discovery.consul.recipes.locate.ConsulAgentLocator;
+import pl.allegro.tech.discovery.consul.recipes.lock.DistributedLock;
+import pl.allegro.tech.discovery.consul.recipes.partition.PartitionAssigner;
+import pl.allegro.tech.discovery.consul.recipes.registration.ServiceRegistry;
+import pl.allegro.tech.discovery.consul.recipes.semaphore.Semaphore;
 import pl.allegro.tech.discovery.consul.recipes.session.Session;
+import pl.allegro.tech.discovery.consul.recipes.session.SessionRenewalScheduler;
 import pl.allegro.tech.discovery.consul.recipes.watch.ConsulWatcher;
 import pl.allegro.tech.discovery.consul.recipes.watch.EndpointWatcher;
+import pl.allegro.tech.discovery.consul.recipes.watch.WatchAdmission;
+import pl.allegro.tech.discovery.consul.recipes.watch.catalog.IndexedServiceInstancesWatcher;
+import pl.allegro.tech.discovery.consul.recipes.watch.catalog.InstanceMetadataExtractor;
 import pl.allegro.tech.discovery.consul.recipes.watch.catalog.ServiceInstances;
+import pl.allegro.tech.discovery.consul.recipes.watch.catalog.ServiceInstancesDeltaWatcher;
 import pl.allegro.tech.discovery.consul.recipes.watch.catalog.ServiceInstancesWatcher;
 import pl.allegro.tech.discovery.consul.recipes.watch.catalog.Services;
+import pl.allegro.tech.discovery.consul.recipes.watch.catalog.ServicesDeltaWatcher;
 import pl.allegro.tech.discovery.consul.recipes.watch.catalog.ServicesWatcher;
+import pl.allegro.tech.discovery.consul.recipes.watch.health.HealthCheck;
+import pl.allegro.tech.discovery.consul.recipes.watch.health.HealthChecksWatcher;
+import pl.allegro.tech.discovery.consul.recipes.watch.health.HealthMirror;
 import pl.allegro.tech.discovery.consul.recipes.watch.health.HealthServiceInstancesWatcher;
+import pl.allegro.tech.discovery.consul.recipes.watch.health.MultiDatacenterServiceInstancesWatcher;
 
 import java.net.URI;
 import java.time.Duration;
+import java.util.Collection;
+import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.TimeUnit;
 
@@ -27,6 +48,10 @@ public class ConsulRecipes {
 
     private OkHttpClient watchesClient = null;
 
+    private SessionRenewalScheduler sessionRenewalScheduler = null;
+
+    private WatchAdmission watchAdmission = null;
+
     private final URI localAgentUri;
 
     private final JsonSerializer jsonSerializer;
@@ -55,7 +80,9 @@ public class ConsulRecipes {
                           OkHttpClient simpleClient,
                           OkHttpClient watchesClient,
                           long watchesReadTimeoutMillis,
-                          long watchesConnectionTimeoutMillis) {
+                          long watchesConnectionTimeoutMillis,
+                          SessionRenewalScheduler sessionRenewalScheduler,
+                          WatchAdmission watchAdmission) {
         this.localAgentUri = localAgentUri;
         this.jsonSerializer = jsonSerializer;
         this.jsonDeserializer = jsonDeserializer;
@@ -67,6 +94,8 @@ public class ConsulRecipes {
         this.watchesClient = watchesClient;
         this.watchesReadTimeoutMillis = watchesReadTimeoutMillis;
         this.watchesConnectionTimeoutMillis = watchesConnectionTimeoutMillis;
+        this.sessionRenewalScheduler = sessionRenewalScheduler;
+        this.watchAdmission = watchAdmission;
     }
 
     public static Builder consulRecipes() {
@@ -84,7 +113,16 @@ public class ConsulRecipes {
     }
 
     public ConsulWatcher.Builder consulWatcher(ExecutorService workerPool) {
-        return ConsulWatcher.consulWatcher(getWatchesClient(), workerPool).withAgentUri(localAgentUri);
+        return ConsulWatcher.consulWatcher(getWatchesClient(), workerPool)
+                .withAgentUri(localAgentUri)
+                .withAdmission(getWatchAdmission());
+    }
+
+    /**
+     * Admission shared by all watchers created with these recipes, e.g. to read its stats.
+     */
+    public WatchAdmission watchAdmission() {
+        return getWatchAdmission();
     }
 
     @SuppressWarnings("unchecked")
@@ -100,14 +138,118 @@ public class ConsulRecipes {
         return new HealthServiceInstancesWatcher(serviceName, watcher, jsonDeserializer);
     }
 
+    public EndpointWatcher<List<HealthCheck>> healthChecksWatcher(ConsulWatcher watcher) {
+        return new HealthChecksWatcher(watcher, jsonDeserializer);
+    }
+
+    /**
+     * Mirrors health of all services in the datacenter using two blocking queries in total.
+     */
+    public HealthMirror healthMirror(ConsulWatcher watcher) {
+        return new HealthMirror(catalogServicesWatcher(watcher), healthChecksWatcher(watcher));
+    }
+
+    /**
+     * Watches healthy service instances in all datacenters known to the local agent.
+     */
+    public MultiDatacenterServiceInstancesWatcher multiDatacenterHealthServiceInstancesWatcher(String serviceName, ConsulWatcher watcher) {
+        return multiDatacenterHealthServiceInstancesWatcher(serviceName, consulDatacenterReader().build().knownDatacenters(), watcher);
+    }
+
+    public MultiDatacenterServiceInstancesWatcher multiDatacenterHealthServiceInstancesWatcher(String serviceName,
+                                                                                               List<String> datacenters,
+                                                                                               ConsulWatcher watcher) {
+        return new MultiDatacenterServiceInstancesWatcher(serviceName, datacenters, watcher, jsonDeserializer);
+    }
+
+    public ServicesDeltaWatcher catalogServicesDeltaWatcher(ConsulWatcher watcher) {
+        return new ServicesDeltaWatcher(catalogServicesWatcher(watcher));
+    }
+
+    public ServiceInstancesDeltaWatcher catalogServiceInstancesDeltaWatcher(String serviceName, ConsulWatcher watcher) {
+        return new ServiceInstancesDeltaWatcher(catalogServiceInstancesWatcher(serviceName, watcher));
+    }
+
+    public ServiceInstancesDeltaWatcher healthServiceInstancesDeltaWatcher(String serviceName, ConsulWatcher watcher) {
+        return new ServiceInstancesDeltaWatcher(healthServiceInstancesWatcher(serviceName, watcher));
+    }
+
+    /**
+     * Watches healthy service instances stored in columns, which take a fraction of memory of a large service.
+     */
+    public EndpointWatcher<ServiceInstances> columnarHealthServiceInstancesWatcher(String serviceName, ConsulWatcher watcher) {
+        return HealthServiceInstancesWatcher.columnar(serviceName, watcher, jsonDeserializer);
+    }
+
+    /**
+     * Watches healthy service instances, indexed by tags and by metadata read with the extractor.
+     */
+    public IndexedServiceInstancesWatcher indexedHealthServiceInstancesWatcher(String serviceName,
+                                                                               InstanceMetadataExtractor extractor,
+                                                                               ConsulWatcher watcher) {
+        return new IndexedServiceInstancesWatcher(healthServiceInstancesWatcher(serviceName, watcher), extractor);
+    }
+
+    public KeyValueWatcher keyValueWatcher(String prefix, ConsulWatcher watcher) {
+        return new KeyValueWatcher(prefix, watcher, jsonDeserializer);
+    }
+
+    public KeysWatcher keysWatcher(String prefix, String separator, ConsulWatcher watcher) {
+        return new KeysWatcher(prefix, separator, watcher, jsonDeserializer);
+    }
+
+    public KeyValueMirror keyValueMirror(String prefix, ConsulWatcher watcher) {
+        return new KeyValueMirror(keyValueWatcher(prefix, watcher));
+    }
+
+    public KeyValueWriter.Builder keyValueWriter() {
+        return KeyValueWriter.keyValueWriter(getSimpleClient(), jsonSerializer, jsonDeserializer)
+                .withAgentUri(localAgentUri);
+    }
+
     public LeaderElector.Builder leaderElector(String serviceName) {
         return LeaderElector.forService(serviceName, getSimpleClient(), jsonSerializer, jsonDeserializer)
-                .withAgentUri(localAgentUri);
+                .withAgentUri(localAgentUri)
+                .withSessionRenewalScheduler(getSessionRenewalScheduler());
+    }
+
+    /**
+     * Elects leaders for many locks of a service using one session and one watch.
+     */
+    public LeaderElectorGroup.Builder leaderElectorGroup(String serviceName, Collection<String> lockNames) {
+        return LeaderElectorGroup.forService(serviceName, lockNames, getSimpleClient(), jsonSerializer, jsonDeserializer)
+                .withAgentUri(localAgentUri)
+                .withSessionRenewalScheduler(getSessionRenewalScheduler());
+    }
+
+    public PartitionAssigner.Builder partitionAssigner(String serviceName, int partitionCount) {
+        return PartitionAssigner.forService(serviceName, partitionCount, getSimpleClient(), jsonSerializer, jsonDeserializer)
+                .withAgentUri(localAgentUri)
+                .withSessionRenewalScheduler(getSessionRenewalScheduler());
+    }
+
+    public DistributedLock.Builder distributedLock(String key) {
+        return DistributedLock.forKey(key, getSimpleClient(), jsonSerializer, jsonDeserializer)
+                .withAgentUri(localAgentUri)
+                .withSessionRenewalScheduler(getSessionRenewalScheduler());
+    }
+
+    public Semaphore.Builder semaphore(String prefix, int limit) {
+        return Semaphore.forPrefix(prefix, limit, getSimpleClient(), jsonSerializer, jsonDeserializer)
+                .withAgentUri(localAgentUri)
+                .withSessionRenewalScheduler(getSessionRenewalScheduler());
     }
 
     public Session.Builder session(String serviceName) {
         return Session.forService(serviceName, getSimpleClient(), jsonSerializer, jsonDeserializer)
-                .withAgentUri(localAgentUri);
+                .withAgentUri(localAgentUri)
+                .withRenewalScheduler(getSessionRenewalScheduler());
+    }
+
+    public ServiceRegistry.Builder serviceRegistry() {
+        return ServiceRegistry.serviceRegistry(getSimpleClient(), jsonSerializer, jsonDeserializer)
+                .withAgentUri(localAgentUri)
+                .withScheduler(getSessionRenewalScheduler());
     }
 
     private OkHttpClient getSimpleClient() {
@@ -120,6 +262,22 @@ public class ConsulRecipes {
         return simpleClient;
     }
 
+    private synchronized SessionRenewalScheduler getSessionRenewalScheduler() {
+        if (sessionRenewalScheduler == null) {
+            this.sessionRenewalScheduler = SessionRenewalScheduler.sessionRenewalScheduler().build();
+        }
+        return sessionRenewalScheduler;
+    }
+
+    private synchronized WatchAdmission getWatchAdmission() {
+        if (watchAdmission == null) {
+            // all watches go to the same agent, so the per route limit of the client caps them as well
+            this.watchAdmission = WatchAdmission.watchAdmission(
+                    Math.min(watchesMaxConnectionsTotal, watchesMaxConnectionPerRoute)).build();
+        }
+        return watchAdmission;
+    }
+
     private OkHttpClient getWatchesClient() {
         if (watchesClient == null) {
             Dispatcher dispatcher = new Dispatcher();
@@ -144,6 +302,10 @@ public class ConsulRecipes {
 
         private OkHttpClient watchesClient;
 
+        private SessionRenewalScheduler sessionRenewalScheduler;
+
+        private WatchAdmission watchAdmission;
+
         private URI localAgentUri = URI.create("http://localhost:8500");
 
         private int watchesMaxConnectionPerRoute = 1000;
@@ -165,7 +327,7 @@ public class ConsulRecipes {
             return new ConsulRecipes(
                     localAgentUri, jsonSerializer, jsonDeserializer, watchesMaxConnectionPerRoute,
                     watchesMaxConnectionsTotal, simpleReadTimeout, simpleConnectionTimeout, simpleClient, watchesClient,
-                    watchesReadTimeout, watchesConnectionTimeout
+                    watchesReadTimeout, watchesConnectionTimeout, sessionRenewalScheduler, watchAdmission
             );
         }
 
@@ -184,11 +346,36 @@ public class ConsulRecipes {
             return this;
         }
 
+        /**
+         * Client used by watches instead of the one created from {@code withWatchesMaxConnections*} settings.
+         * The default watch admission is still sized from those settings, so a client with different limits needs
+         * a matching admission passed to {@link #withWatchAdmission(WatchAdmission)}.
+         */
         public Builder withWatchesHttpClient(OkHttpClient watchesClient) {
             this.watchesClient = watchesClient;
             return this;
         }
 
+        /**
+         * Scheduler shared by all sessions created with these recipes. By default one is created on first use.
+         */
+        public Builder withSessionRenewalScheduler(SessionRenewalScheduler sessionRenewalScheduler) {
+            this.sessionRenewalScheduler = sessionRenewalScheduler;
+            return this;
+        }
+
+        /**
+         * Admission of watches shared by all watchers created with these recipes. By default one with capacity of
+         * the lower of {@link #withWatchesMaxConnectionsTotal(int)} and
+         * {@link #withWatchesMaxConnectionsPerRoute(int)}, queueing watches over it, is created on first use.
+         * Its capacity should match the number of concurrent requests the watches client allows, also when it is
+         * passed to {@link #withWatchesHttpClient(OkHttpClient)}.
+         */
+        public Builder withWatchAdmission(WatchAdmission watchAdmission) {
+            this.watchAdmission = watchAdmission;
+            return this;
+        }
+
         public Builder withAgentUri(URI localAgentUri) {
             this.localAgentUri = localAgentUri;
             return this;
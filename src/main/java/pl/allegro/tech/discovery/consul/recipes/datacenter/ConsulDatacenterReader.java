@@ -1,16 +1,30 @@
 package pl.allegro.tech.discovery.consul.recipes.datacenter;
 
+import okhttp3.Call;
+import okhttp3.Callback;
 import okhttp3.HttpUrl;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.Response;
+import okhttp3.ResponseBody;
 import pl.allegro.tech.discovery.consul.recipes.json.JsonDeserializer;
 
 import java.io.IOException;
 import java.net.URI;
+import java.time.Clock;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
-
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Reads local and known datacenters from the local agent. Local datacenter does not change during agent lifetime,
+ * so it is read once and remembered. List of known datacenters is cached for datacenters cache TTL.
+ * Concurrent requests for the same information share a single call to the agent.
+ */
 public class ConsulDatacenterReader {
 
     private final HttpUrl agentUri;
@@ -19,10 +33,26 @@ public class ConsulDatacenterReader {
 
     private final OkHttpClient httpClient;
 
-    private ConsulDatacenterReader(URI agentUri, JsonDeserializer jsonDeserializer, OkHttpClient httpClient) {
+    private final Clock clock;
+
+    private final long datacentersCacheTtlMillis;
+
+    private final AtomicReference<CompletableFuture<String>> localDatacenter = new AtomicReference<>();
+
+    private final AtomicReference<CompletableFuture<List<String>>> knownDatacenters = new AtomicReference<>();
+
+    private volatile long knownDatacentersFetchedAtMillis;
+
+    private ConsulDatacenterReader(URI agentUri,
+                                   JsonDeserializer jsonDeserializer,
+                                   OkHttpClient httpClient,
+                                   Clock clock,
+                                   long datacentersCacheTtlMillis) {
         this.agentUri = HttpUrl.get(agentUri);
         this.jsonDeserializer = jsonDeserializer;
         this.httpClient = httpClient;
+        this.clock = clock;
+        this.datacentersCacheTtlMillis = datacentersCacheTtlMillis;
     }
 
     public static ConsulDatacenterReader.Builder consulDatacenterReader(JsonDeserializer jsonDeserializer, OkHttpClient httpClient) {
@@ -34,30 +64,101 @@ public class ConsulDatacenterReader {
     }
 
     public String localDatacenter() {
-        try {
-            String content = callEndpoint("v1/agent/self");
-            Map<String, Object> data = jsonDeserializer.deserializeMap(content);
+        return join(localDatacenterAsync());
+    }
+
+    public List<String> knownDatacenters() {
+        return join(knownDatacentersAsync());
+    }
 
+    /**
+     * Completes with name of the local datacenter or {@link FailedToRetrieveDatacenterException}. Successful result
+     * is remembered for the lifetime of the reader, failed one is retried on the next call.
+     */
+    public CompletableFuture<String> localDatacenterAsync() {
+        CompletableFuture<String> current = localDatacenter.get();
+        if (current != null && !current.isCompletedExceptionally()) {
+            return current;
+        }
+        CompletableFuture<String> created = new CompletableFuture<>();
+        if (!localDatacenter.compareAndSet(current, created)) {
+            return localDatacenterAsync();
+        }
+        callEndpoint("v1/agent/self", "Failed to read information about local datacenter", content -> {
+            Map<String, Object> data = jsonDeserializer.deserializeMap(content);
             return (String) ((Map) data.get("Config")).get("Datacenter");
-        } catch (IOException exception) {
-            throw new FailedToRetrieveDatacenterException("Failed to read information about local datacenter", exception);
+        }).whenComplete((datacenter, e) -> complete(created, datacenter, e));
+        return created;
+    }
+
+    /**
+     * Completes with names of datacenters known to the local agent or {@link FailedToRetrieveDatacenterException}.
+     */
+    public CompletableFuture<List<String>> knownDatacentersAsync() {
+        CompletableFuture<List<String>> current = knownDatacenters.get();
+        if (current != null && !current.isCompletedExceptionally()
+                && (!current.isDone() || clock.millis() - knownDatacentersFetchedAtMillis < datacentersCacheTtlMillis)) {
+            return current;
+        }
+        CompletableFuture<List<String>> created = new CompletableFuture<>();
+        if (!knownDatacenters.compareAndSet(current, created)) {
+            return knownDatacentersAsync();
         }
+        callEndpoint("v1/catalog/datacenters", "Failed to read information about known datacenters", content -> {
+            List<String> datacenters = jsonDeserializer.deserializeList(content);
+            return Collections.unmodifiableList(datacenters);
+        }).whenComplete((datacenters, e) -> {
+            knownDatacentersFetchedAtMillis = clock.millis();
+            complete(created, datacenters, e);
+        });
+        return created;
     }
 
-    public List<String> knownDatacenters() {
+    private static <T> void complete(CompletableFuture<T> future, T value, Throwable e) {
+        if (e != null) {
+            future.completeExceptionally(e);
+        } else {
+            future.complete(value);
+        }
+    }
+
+    private static <T> T join(CompletableFuture<T> future) {
         try {
-            String content = callEndpoint("v1/catalog/datacenters");
-            return jsonDeserializer.deserializeList(content);
-        } catch (IOException exception) {
-            throw new FailedToRetrieveDatacenterException("Failed to read information about known datacenters", exception);
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
         }
     }
 
-    private String callEndpoint(String endpoint) throws IOException {
+    private <T> CompletableFuture<T> callEndpoint(String endpoint, String failureMessage, ContentReader<T> reader) {
         HttpUrl url = agentUri.newBuilder(endpoint).build();
-        Response response = httpClient.newCall(new Request.Builder().get().url(url).build()).execute();
+        CompletableFuture<T> result = new CompletableFuture<>();
+        httpClient.newCall(new Request.Builder().get().url(url).build()).enqueue(new Callback() {
+            @Override
+            public void onFailure(Call call, IOException e) {
+                result.completeExceptionally(new FailedToRetrieveDatacenterException(failureMessage, e));
+            }
+
+            @Override
+            public void onResponse(Call call, Response response) {
+                try (ResponseBody body = response.body()) {
+                    if (!response.isSuccessful()) {
+                        throw new IOException("Received status code " + response.code() + " from " + endpoint);
+                    }
+                    result.complete(reader.read(body.string()));
+                } catch (Exception e) {
+                    result.completeExceptionally(new FailedToRetrieveDatacenterException(failureMessage, e));
+                }
+            }
+        });
+        return result;
+    }
 
-        return response.body().string();
+    private interface ContentReader<T> {
+        T read(String content) throws IOException;
     }
 
     public static class Builder {
@@ -68,18 +169,35 @@ public class ConsulDatacenterReader {
 
         private URI agentUri = URI.create("http://localhost:8500");
 
+        private Clock clock = Clock.systemDefaultZone();
+
+        private long datacentersCacheTtlMillis = TimeUnit.SECONDS.toMillis(30);
+
         private Builder(JsonDeserializer jsonDeserializer, OkHttpClient httpClient) {
             this.jsonDeserializer = jsonDeserializer;
             this.httpClient = httpClient;
         }
 
         public ConsulDatacenterReader build() {
-            return new ConsulDatacenterReader(agentUri, jsonDeserializer, httpClient);
+            return new ConsulDatacenterReader(agentUri, jsonDeserializer, httpClient, clock, datacentersCacheTtlMillis);
         }
 
         public Builder withAgentUri(URI localAgentUri) {
             this.agentUri = localAgentUri;
             return this;
         }
+
+        public Builder withClock(Clock clock) {
+            this.clock = clock;
+            return this;
+        }
+
+        /**
+         * How long the list of known datacenters is reused without asking the agent. Zero disables caching.
+         */
+        public Builder withDatacentersCacheTtlMillis(long datacentersCacheTtlMillis) {
+            this.datacentersCacheTtlMillis = datacentersCacheTtlMillis;
+            return this;
+        }
     }
 }
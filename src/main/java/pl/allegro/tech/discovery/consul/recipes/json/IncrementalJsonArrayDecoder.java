@@ -0,0 +1,73 @@
+package pl.allegro.tech.discovery.consul.recipes.json;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * Decodes a JSON array of objects reusing elements decoded previously for array elements whose JSON text
+ * did not change. Only new or changed elements are deserialized, so the cost of decoding is proportional
+ * to the number of changed elements rather than the size of the array. A blank input decodes to an empty list.
+ */
+public class IncrementalJsonArrayDecoder<T> implements JsonDecoder<List<T>> {
+
+    private final JsonDeserializer jsonDeserializer;
+    private final BiFunction<String, Map<String, Object>, T> elementReader;
+
+    private final AtomicReference<Map<String, T>> previousElements = new AtomicReference<>(Collections.emptyMap());
+
+    public IncrementalJsonArrayDecoder(JsonDeserializer jsonDeserializer, Function<Map<String, Object>, T> elementReader) {
+        this(jsonDeserializer, (json, props) -> elementReader.apply(props));
+    }
+
+    /**
+     * Creates a decoder whose reader gets also the JSON text of an element, e.g. to decode parts of it later.
+     */
+    public IncrementalJsonArrayDecoder(JsonDeserializer jsonDeserializer,
+                                       BiFunction<String, Map<String, Object>, T> elementReader) {
+        if (jsonDeserializer == null) {
+            throw new IllegalStateException("Configured JsonDeserializer required.");
+        }
+        this.jsonDeserializer = jsonDeserializer;
+        this.elementReader = elementReader;
+    }
+
+    @Override
+    public List<T> decode(String s) {
+        if (s.trim().isEmpty()) {
+            previousElements.set(Collections.emptyMap());
+            return new ArrayList<>();
+        }
+
+        List<String> elements = JsonArrayElements.split(s);
+        Map<String, T> previous = previousElements.get();
+        Map<String, T> current = new HashMap<>(Math.max(16, elements.size() * 4 / 3 + 1));
+        List<T> decoded = new ArrayList<>(elements.size());
+
+        for (String element : elements) {
+            T value = previous.get(element);
+            if (value == null) {
+                value = decodeElement(element);
+            }
+            current.put(element, value);
+            decoded.add(value);
+        }
+
+        previousElements.set(current);
+        return decoded;
+    }
+
+    private T decodeElement(String element) {
+        try {
+            return elementReader.apply(element, jsonDeserializer.deserializeMap(element));
+        } catch (IOException e) {
+            throw new JsonDecodeException("Cannot deserialize JSON", e);
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package pl.allegro.tech.discovery.consul.recipes.json;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splits a top-level JSON array into raw JSON texts of its elements without building any object model.
+ * Elements are returned exactly as they appear in the input (whitespace between elements trimmed),
+ * so equal elements of two consecutive responses yield equal strings.
+ */
+public final class JsonArrayElements {
+
+    private JsonArrayElements() {
+    }
+
+    public static List<String> split(String json) throws JsonDecoder.JsonDecodeException {
+        int position = skipWhitespace(json, 0);
+        if (position >= json.length() || json.charAt(position) != '[') {
+            throw new JsonDecoder.JsonDecodeException("Expected JSON array");
+        }
+        position = skipWhitespace(json, position + 1);
+
+        List<String> elements = new ArrayList<>();
+        if (position < json.length() && json.charAt(position) == ']') {
+            return elements;
+        }
+
+        while (position < json.length()) {
+            int end = elementEnd(json, position);
+            elements.add(json.substring(position, trimTrailingWhitespace(json, position, end)));
+
+            char separator = json.charAt(end);
+            if (separator == ']') {
+                return elements;
+            }
+            position = skipWhitespace(json, end + 1);
+        }
+        throw new JsonDecoder.JsonDecodeException("Unterminated JSON array");
+    }
+
+    private static int elementEnd(String json, int start) {
+        int depth = 0;
+        boolean inString = false;
+        for (int i = start; i < json.length(); i++) {
+            char c = json.charAt(i);
+            if (inString) {
+                if (c == '\\') {
+                    i++;
+                } else if (c == '"') {
+                    inString = false;
+                }
+            } else if (c == '"') {
+                inString = true;
+            } else if (c == '{' || c == '[') {
+                depth++;
+            } else if (c == '}' || c == ']') {
+                if (depth == 0) {
+                    if (c == ']') {
+                        return i;
+                    }
+                    throw new JsonDecoder.JsonDecodeException("Unbalanced JSON object at position " + i);
+                }
+                depth--;
+            } else if (c == ',' && depth == 0) {
+                return i;
+            }
+        }
+        throw new JsonDecoder.JsonDecodeException("Unterminated JSON array");
+    }
+
+    private static int skipWhitespace(String json, int position) {
+        while (position < json.length() && Character.isWhitespace(json.charAt(position))) {
+            position++;
+        }
+        return position;
+    }
+
+    private static int trimTrailingWhitespace(String json, int start, int end) {
+        while (end > start && Character.isWhitespace(json.charAt(end - 1))) {
+            end--;
+        }
+        return end;
+    }
+}
@@ -0,0 +1,98 @@
+package pl.allegro.tech.discovery.consul.recipes.kv;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Changes of KV entries between two consecutive watch results together with the current snapshot.
+ * An entry is considered modified when its {@code ModifyIndex} changed.
+ */
+public class KeyValueDelta {
+    private final KeyValueSnapshot snapshot;
+    private final Map<String, KeyValueEntry> added;
+    private final Map<String, KeyValueEntry> removed;
+    private final Map<String, KeyValueEntry> modified;
+
+    private KeyValueDelta(KeyValueSnapshot snapshot,
+                          Map<String, KeyValueEntry> added,
+                          Map<String, KeyValueEntry> removed,
+                          Map<String, KeyValueEntry> modified) {
+        this.snapshot = snapshot;
+        this.added = Collections.unmodifiableMap(added);
+        this.removed = Collections.unmodifiableMap(removed);
+        this.modified = Collections.unmodifiableMap(modified);
+    }
+
+    /**
+     * Computes changes between previous delta's snapshot and current snapshot.
+     *
+     * @param previous previous delta or {@code null} if there was none, in which case all entries are added
+     */
+    public static KeyValueDelta between(KeyValueDelta previous, KeyValueSnapshot current) {
+        KeyValueSnapshot previousSnapshot = previous != null ? previous.snapshot : KeyValueSnapshot.empty();
+        Map<String, KeyValueEntry> previousEntries = previousSnapshot.asMap();
+        Map<String, KeyValueEntry> added = new HashMap<>();
+        Map<String, KeyValueEntry> modified = new HashMap<>();
+
+        for (KeyValueEntry entry : current.entries()) {
+            KeyValueEntry previousEntry = previousEntries.get(entry.getKey());
+            if (previousEntry == null) {
+                added.put(entry.getKey(), entry);
+            } else if (previousEntry != entry && previousEntry.getModifyIndex() != entry.getModifyIndex()) {
+                modified.put(entry.getKey(), entry);
+            }
+        }
+
+        Map<String, KeyValueEntry> removed = new HashMap<>();
+        if (previousEntries.size() + added.size() != current.size()) {
+            previousEntries.forEach((key, entry) -> {
+                if (!current.containsKey(key)) {
+                    removed.put(key, entry);
+                }
+            });
+        }
+
+        return new KeyValueDelta(current, added, removed, modified);
+    }
+
+    public KeyValueSnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    public Map<String, KeyValueEntry> getAdded() {
+        return added;
+    }
+
+    /**
+     * Removed entries keyed by KV key, with their last known state.
+     */
+    public Map<String, KeyValueEntry> getRemoved() {
+        return removed;
+    }
+
+    public Map<String, KeyValueEntry> getModified() {
+        return modified;
+    }
+
+    public boolean isEmpty() {
+        return added.isEmpty() && removed.isEmpty() && modified.isEmpty();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        KeyValueDelta that = (KeyValueDelta) o;
+        return Objects.equals(snapshot, that.snapshot) &&
+                Objects.equals(added, that.added) &&
+                Objects.equals(removed, that.removed) &&
+                Objects.equals(modified, that.modified);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(snapshot, added, removed, modified);
+    }
+}
@@ -0,0 +1,126 @@
+package pl.allegro.tech.discovery.consul.recipes.kv;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+
+import static pl.allegro.tech.discovery.consul.recipes.json.JsonValueReader.nullableValue;
+import static pl.allegro.tech.discovery.consul.recipes.json.JsonValueReader.requiredValue;
+
+/**
+ * Single Consul KV entry. The value is kept base64-encoded as returned by Consul and is decoded on first access.
+ */
+public class KeyValueEntry {
+    private final String key;
+    private final long createIndex;
+    private final long modifyIndex;
+    private final long lockIndex;
+    private final long flags;
+    private final String session;
+    private final String encodedValue;
+
+    private volatile byte[] decodedValue;
+
+    public KeyValueEntry(String key, long createIndex, long modifyIndex, long lockIndex, long flags,
+                         String session, String encodedValue) {
+        this.key = key;
+        this.createIndex = createIndex;
+        this.modifyIndex = modifyIndex;
+        this.lockIndex = lockIndex;
+        this.flags = flags;
+        this.session = session;
+        this.encodedValue = encodedValue;
+    }
+
+    public static KeyValueEntry fromMap(Map<String, ?> props) {
+        return new KeyValueEntry(
+                requiredValue(props, "Key", String.class),
+                numberOrZero(props, "CreateIndex"),
+                numberOrZero(props, "ModifyIndex"),
+                numberOrZero(props, "LockIndex"),
+                numberOrZero(props, "Flags"),
+                nullableValue(props, "Session", String.class),
+                nullableValue(props, "Value", String.class)
+        );
+    }
+
+    private static long numberOrZero(Map<String, ?> props, String property) {
+        Number value = nullableValue(props, property, Number.class);
+        return value != null ? value.longValue() : 0;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public long getCreateIndex() {
+        return createIndex;
+    }
+
+    public long getModifyIndex() {
+        return modifyIndex;
+    }
+
+    public long getLockIndex() {
+        return lockIndex;
+    }
+
+    public long getFlags() {
+        return flags;
+    }
+
+    public Optional<String> getSession() {
+        return Optional.ofNullable(session).filter(s -> !s.isEmpty());
+    }
+
+    public boolean hasValue() {
+        return encodedValue != null;
+    }
+
+    /**
+     * Read-only view of the decoded value. The value is decoded once and shared between views.
+     */
+    public Optional<ByteBuffer> getValue() {
+        byte[] value = decodedValue();
+        return value != null ? Optional.of(ByteBuffer.wrap(value).asReadOnlyBuffer()) : Optional.empty();
+    }
+
+    public Optional<String> getValueAsString() {
+        byte[] value = decodedValue();
+        return value != null ? Optional.of(new String(value, StandardCharsets.UTF_8)) : Optional.empty();
+    }
+
+    private byte[] decodedValue() {
+        if (encodedValue == null) {
+            return null;
+        }
+        byte[] value = decodedValue;
+        if (value == null) {
+            value = Base64.getMimeDecoder().decode(encodedValue);
+            decodedValue = value;
+        }
+        return value;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        KeyValueEntry that = (KeyValueEntry) o;
+        return createIndex == that.createIndex &&
+                modifyIndex == that.modifyIndex &&
+                lockIndex == that.lockIndex &&
+                flags == that.flags &&
+                Objects.equals(key, that.key) &&
+                Objects.equals(session, that.session) &&
+                Objects.equals(encodedValue, that.encodedValue);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(key, modifyIndex, session);
+    }
+}
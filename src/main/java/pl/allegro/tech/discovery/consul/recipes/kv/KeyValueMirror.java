@@ -0,0 +1,79 @@
+package pl.allegro.tech.discovery.consul.recipes.kv;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import pl.allegro.tech.discovery.consul.recipes.watch.Canceller;
+import pl.allegro.tech.discovery.consul.recipes.watch.DeltaEndpointWatcher;
+import pl.allegro.tech.discovery.consul.recipes.watch.EndpointWatcher;
+import pl.allegro.tech.discovery.consul.recipes.watch.WatchResult;
+
+import java.io.Closeable;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * Keeps an in-memory replica of all KV entries under a prefix. Every update replaces the snapshot atomically,
+ * so {@link #snapshot()} always returns a consistent point-in-time view. Listeners receive only changed keys.
+ */
+public class KeyValueMirror implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(KeyValueMirror.class);
+
+    private final DeltaEndpointWatcher<KeyValueSnapshot, KeyValueDelta> watcher;
+    private final List<Consumer<KeyValueDelta>> listeners = new CopyOnWriteArrayList<>();
+
+    private volatile WatchResult<KeyValueSnapshot> current = new WatchResult<>(0, KeyValueSnapshot.empty());
+
+    private Canceller watchCanceller;
+
+    public KeyValueMirror(EndpointWatcher<KeyValueSnapshot> watcher) {
+        this.watcher = new DeltaEndpointWatcher<>(watcher, KeyValueDelta::between, KeyValueDelta::isEmpty);
+    }
+
+    public void start() {
+        watchCanceller = watcher.watch(this::update, this::watchException);
+    }
+
+    @Override
+    public void close() {
+        if (watchCanceller != null) {
+            watchCanceller.cancel();
+        }
+    }
+
+    public KeyValueSnapshot snapshot() {
+        return current.getBody();
+    }
+
+    /**
+     * Consul index of the current snapshot or 0 if nothing was received yet.
+     */
+    public long index() {
+        return current.getIndex();
+    }
+
+    public void registerListener(Consumer<KeyValueDelta> listener) {
+        listeners.add(listener);
+    }
+
+    public void unregisterListener(Consumer<KeyValueDelta> listener) {
+        listeners.remove(listener);
+    }
+
+    private void update(WatchResult<KeyValueDelta> result) {
+        KeyValueDelta delta = result.getBody();
+        this.current = new WatchResult<>(result.getIndex(), delta.getSnapshot());
+        for (Consumer<KeyValueDelta> listener : listeners) {
+            try {
+                listener.accept(delta);
+            } catch (Exception e) {
+                logger.warn("KV mirror listener failed on update of {}", watcher.endpoint(), e);
+            }
+        }
+    }
+
+    private void watchException(Exception exception) {
+        logger.warn("Got an exception while watching {}", watcher.endpoint(), exception);
+    }
+}
@@ -0,0 +1,79 @@
+package pl.allegro.tech.discovery.consul.recipes.kv;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Immutable, point-in-time view of KV entries under a prefix, sorted by key.
+ */
+public class KeyValueSnapshot {
+    private static final KeyValueSnapshot EMPTY = new KeyValueSnapshot(new TreeMap<>());
+
+    private final NavigableMap<String, KeyValueEntry> entries;
+
+    private KeyValueSnapshot(NavigableMap<String, KeyValueEntry> entries) {
+        this.entries = Collections.unmodifiableNavigableMap(entries);
+    }
+
+    public static KeyValueSnapshot empty() {
+        return EMPTY;
+    }
+
+    public static KeyValueSnapshot of(List<KeyValueEntry> entries) {
+        TreeMap<String, KeyValueEntry> byKey = new TreeMap<>();
+        for (KeyValueEntry entry : entries) {
+            byKey.put(entry.getKey(), entry);
+        }
+        return new KeyValueSnapshot(byKey);
+    }
+
+    public Optional<KeyValueEntry> get(String key) {
+        return Optional.ofNullable(entries.get(key));
+    }
+
+    public boolean containsKey(String key) {
+        return entries.containsKey(key);
+    }
+
+    public Collection<KeyValueEntry> entries() {
+        return entries.values();
+    }
+
+    public NavigableMap<String, KeyValueEntry> asMap() {
+        return entries;
+    }
+
+    /**
+     * Entries whose keys start with given prefix.
+     */
+    public SortedMap<String, KeyValueEntry> withPrefix(String prefix) {
+        return entries.subMap(prefix, true, prefix + Character.MAX_VALUE, false);
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        KeyValueSnapshot that = (KeyValueSnapshot) o;
+        return Objects.equals(entries, that.entries);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(entries);
+    }
+}
@@ -0,0 +1,25 @@
+package pl.allegro.tech.discovery.consul.recipes.kv;
+
+import pl.allegro.tech.discovery.consul.recipes.json.IncrementalJsonArrayDecoder;
+import pl.allegro.tech.discovery.consul.recipes.json.JsonDeserializer;
+import pl.allegro.tech.discovery.consul.recipes.watch.ConsulWatcher;
+import pl.allegro.tech.discovery.consul.recipes.watch.EndpointWatcher;
+
+/**
+ * Watches all KV entries under a prefix with a single recursive blocking query. Entries whose JSON did not change
+ * between consecutive results are not decoded again.
+ */
+public class KeyValueWatcher extends EndpointWatcher<KeyValueSnapshot> {
+
+    public KeyValueWatcher(String prefix, ConsulWatcher watcher, JsonDeserializer jsonDeserializer) {
+        this(prefix, watcher, new IncrementalJsonArrayDecoder<>(jsonDeserializer, KeyValueEntry::fromMap));
+    }
+
+    private KeyValueWatcher(String prefix, ConsulWatcher watcher, IncrementalJsonArrayDecoder<KeyValueEntry> decoder) {
+        super(kvEndpoint(prefix) + "?recurse", watcher, s -> KeyValueSnapshot.of(decoder.decode(s)));
+    }
+
+    static String kvEndpoint(String key) {
+        return "/v1/kv/" + (key.startsWith("/") ? key.substring(1) : key);
+    }
+}
@@ -0,0 +1,12 @@
+package pl.allegro.tech.discovery.consul.recipes.kv;
+
+public class KeyValueWriteException extends RuntimeException {
+
+    public KeyValueWriteException(String message) {
+        super(message);
+    }
+
+    public KeyValueWriteException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
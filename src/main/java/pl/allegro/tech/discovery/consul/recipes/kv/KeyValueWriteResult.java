@@ -0,0 +1,58 @@
+package pl.allegro.tech.discovery.consul.recipes.kv;
+
+import java.util.Objects;
+import java.util.Optional;
+
+/**
+ * Outcome of a single KV write operation. Unsuccessful result means that Consul rejected the operation
+ * (e.g. CAS with a stale index or lock held by another session) and the error contains Consul's explanation.
+ */
+public class KeyValueWriteResult {
+    private final boolean successful;
+    private final KeyValueEntry entry;
+    private final String error;
+
+    private KeyValueWriteResult(boolean successful, KeyValueEntry entry, String error) {
+        this.successful = successful;
+        this.entry = entry;
+        this.error = error;
+    }
+
+    static KeyValueWriteResult success(KeyValueEntry entry) {
+        return new KeyValueWriteResult(true, entry, null);
+    }
+
+    static KeyValueWriteResult failure(String error) {
+        return new KeyValueWriteResult(false, null, error);
+    }
+
+    public boolean isSuccessful() {
+        return successful;
+    }
+
+    /**
+     * Entry metadata after the write (without value). Empty for delete operations and failed writes.
+     */
+    public Optional<KeyValueEntry> getEntry() {
+        return Optional.ofNullable(entry);
+    }
+
+    public Optional<String> getError() {
+        return Optional.ofNullable(error);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        KeyValueWriteResult that = (KeyValueWriteResult) o;
+        return successful == that.successful &&
+                Objects.equals(entry, that.entry) &&
+                Objects.equals(error, that.error);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(successful, entry, error);
+    }
+}
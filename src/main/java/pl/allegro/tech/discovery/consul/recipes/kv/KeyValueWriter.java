@@ -0,0 +1,403 @@
+package pl.allegro.tech.discovery.consul.recipes.kv;
+
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import pl.allegro.tech.discovery.consul.recipes.internal.thread.ThreadFactoryBuilder;
+import pl.allegro.tech.discovery.consul.recipes.json.JsonDeserializer;
+import pl.allegro.tech.discovery.consul.recipes.json.JsonSerializer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static java.net.HttpURLConnection.HTTP_CONFLICT;
+import static pl.allegro.tech.discovery.consul.recipes.internal.http.BodyParser.readBodyOrFallback;
+import static pl.allegro.tech.discovery.consul.recipes.internal.http.MediaType.JSON_MEDIA_TYPE;
+
+/**
+ * Writes KV entries in batches using Consul's {@code /v1/txn} endpoint, so that many writes cost a single
+ * Raft round-trip. Operations are queued and sent when the batch reaches the maximum number of operations
+ * per transaction or when the flush delay passes since the first queued operation.
+ * <p>
+ * Consul transactions are atomic, so if any operation in a batch is rejected, none are applied. Rejected
+ * operations complete with an unsuccessful {@link KeyValueWriteResult} and the remaining ones are retried
+ * in the next batch, which gives every operation its own result as if it was sent separately.
+ */
+public class KeyValueWriter implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(KeyValueWriter.class);
+
+    private final OkHttpClient httpClient;
+    private final HttpUrl txnUrl;
+    private final String aclToken;
+    private final JsonSerializer jsonSerializer;
+    private final JsonDeserializer jsonDeserializer;
+    private final ScheduledExecutorService flushPool;
+    private final int maxOperationsPerTransaction;
+    private final long flushDelayMillis;
+
+    private final LinkedList<Operation> pending = new LinkedList<>();
+
+    private KeyValueWriter(URI agentUri,
+                           String aclToken,
+                           OkHttpClient httpClient,
+                           JsonSerializer jsonSerializer,
+                           JsonDeserializer jsonDeserializer,
+                           ScheduledExecutorService flushPool,
+                           int maxOperationsPerTransaction,
+                           long flushDelayMillis) {
+        this.txnUrl = HttpUrl.get(agentUri).newBuilder("/v1/txn").build();
+        this.aclToken = aclToken;
+        this.httpClient = httpClient;
+        this.jsonSerializer = jsonSerializer;
+        this.jsonDeserializer = jsonDeserializer;
+        this.flushPool = flushPool;
+        this.maxOperationsPerTransaction = maxOperationsPerTransaction;
+        this.flushDelayMillis = flushDelayMillis;
+    }
+
+    public static Builder keyValueWriter(OkHttpClient httpClient,
+                                         JsonSerializer jsonSerializer,
+                                         JsonDeserializer jsonDeserializer) {
+        if (jsonDeserializer == null) {
+            throw new IllegalStateException("Configured JsonDeserializer required.");
+        }
+        if (jsonSerializer == null) {
+            throw new IllegalStateException("Configured JsonSerializer required.");
+        }
+        return new Builder(httpClient, jsonSerializer, jsonDeserializer);
+    }
+
+    public CompletableFuture<KeyValueWriteResult> set(String key, byte[] value) {
+        return enqueue(new Operation("set", key, value, null, null));
+    }
+
+    public CompletableFuture<KeyValueWriteResult> set(String key, String value) {
+        return set(key, value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Sets the value only if entry's {@code ModifyIndex} equals given index. Index 0 means "only if key does not exist".
+     */
+    public CompletableFuture<KeyValueWriteResult> compareAndSet(String key, byte[] value, long modifyIndex) {
+        return enqueue(new Operation("cas", key, value, modifyIndex, null));
+    }
+
+    public CompletableFuture<KeyValueWriteResult> delete(String key) {
+        return enqueue(new Operation("delete", key, null, null, null));
+    }
+
+    public CompletableFuture<KeyValueWriteResult> compareAndDelete(String key, long modifyIndex) {
+        return enqueue(new Operation("delete-cas", key, null, modifyIndex, null));
+    }
+
+    public CompletableFuture<KeyValueWriteResult> lock(String key, byte[] value, String sessionId) {
+        return enqueue(new Operation("lock", key, value, null, sessionId));
+    }
+
+    public CompletableFuture<KeyValueWriteResult> unlock(String key, byte[] value, String sessionId) {
+        return enqueue(new Operation("unlock", key, value, null, sessionId));
+    }
+
+    /**
+     * Sends all queued operations without waiting for the flush delay.
+     */
+    public void flush() {
+        List<Operation> batch;
+        while (!(batch = nextBatch(0)).isEmpty()) {
+            send(batch);
+        }
+    }
+
+    @Override
+    public void close() {
+        flush();
+        flushPool.shutdown();
+        try {
+            flushPool.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private CompletableFuture<KeyValueWriteResult> enqueue(Operation operation) {
+        boolean firstInBatch;
+        synchronized (pending) {
+            firstInBatch = pending.isEmpty();
+            pending.add(operation);
+        }
+
+        List<Operation> fullBatch = nextBatch(maxOperationsPerTransaction);
+        if (!fullBatch.isEmpty()) {
+            send(fullBatch);
+        } else if (firstInBatch) {
+            flushPool.schedule(this::flush, flushDelayMillis, TimeUnit.MILLISECONDS);
+        }
+        return operation.result;
+    }
+
+    private void requeue(List<Operation> operations) {
+        synchronized (pending) {
+            pending.addAll(0, operations);
+        }
+        try {
+            flushPool.submit(this::flush);
+        } catch (RejectedExecutionException e) {
+            // closed while the transaction was in flight, so nothing would send them again
+            synchronized (pending) {
+                pending.removeAll(operations);
+            }
+            failAll(operations, e);
+        }
+    }
+
+    /**
+     * Takes up to {@code maxOperationsPerTransaction} queued operations if at least {@code minimumSize} are queued.
+     */
+    private List<Operation> nextBatch(int minimumSize) {
+        synchronized (pending) {
+            if (pending.isEmpty() || pending.size() < minimumSize) {
+                return new ArrayList<>();
+            }
+            List<Operation> batch = new ArrayList<>(Math.min(pending.size(), maxOperationsPerTransaction));
+            Iterator<Operation> iterator = pending.iterator();
+            while (iterator.hasNext() && batch.size() < maxOperationsPerTransaction) {
+                batch.add(iterator.next());
+                iterator.remove();
+            }
+            return batch;
+        }
+    }
+
+    private void send(List<Operation> batch) {
+        try {
+            StringBuilder operations = new StringBuilder("[");
+            for (Operation operation : batch) {
+                if (operations.length() > 1) {
+                    operations.append(',');
+                }
+                operations.append(jsonSerializer.serializeMap(operation.toTxnOperation()));
+            }
+            operations.append(']');
+
+            Request.Builder requestBuilder = new Request.Builder()
+                    .url(txnUrl)
+                    .put(RequestBody.create(JSON_MEDIA_TYPE, operations.toString()));
+            if (aclToken != null) {
+                requestBuilder.addHeader("X-Consul-Token", aclToken);
+            }
+
+            httpClient.newCall(requestBuilder.build()).enqueue(new TransactionCallback(batch));
+        } catch (Exception e) {
+            failAll(batch, e);
+        }
+    }
+
+    private static void failAll(List<Operation> batch, Throwable cause) {
+        KeyValueWriteException exception = new KeyValueWriteException("KV transaction failed", cause);
+        batch.forEach(operation -> operation.result.completeExceptionally(exception));
+    }
+
+    private class TransactionCallback implements Callback {
+        private final List<Operation> batch;
+
+        private TransactionCallback(List<Operation> batch) {
+            this.batch = batch;
+        }
+
+        @Override
+        public void onFailure(Call call, IOException e) {
+            logger.error("Failed HTTP call on KV transaction of {} operations", batch.size(), e);
+            failAll(batch, e);
+        }
+
+        @Override
+        public void onResponse(Call call, Response response) {
+            try (ResponseBody body = response.body()) {
+                if (response.isSuccessful()) {
+                    completeSuccessful(jsonDeserializer.deserializeMap(body.string()));
+                } else if (response.code() == HTTP_CONFLICT) {
+                    completeRolledBack(jsonDeserializer.deserializeMap(body.string()));
+                } else {
+                    String message = "Unsuccessful HTTP response on KV transaction. Code: " + response.code()
+                            + "; Body: " + readBodyOrFallback(response, "(couldn't parse)");
+                    logger.warn(message);
+                    failAll(batch, new KeyValueWriteException(message));
+                }
+            } catch (Exception e) {
+                logger.error("Couldn't process KV transaction response", e);
+                failAll(batch, e);
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private void completeSuccessful(Map<String, Object> response) {
+            List<Map<String, Object>> results = (List<Map<String, Object>>) response.get("Results");
+            Iterator<Map<String, Object>> resultIterator = results != null ? results.iterator() : null;
+            for (Operation operation : batch) {
+                KeyValueEntry entry = null;
+                if (operation.returnsEntry() && resultIterator != null && resultIterator.hasNext()) {
+                    Map<String, Object> kv = (Map<String, Object>) resultIterator.next().get("KV");
+                    entry = kv != null ? KeyValueEntry.fromMap(kv) : null;
+                }
+                operation.result.complete(KeyValueWriteResult.success(entry));
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private void completeRolledBack(Map<String, Object> response) {
+            List<Map<String, Object>> errors = (List<Map<String, Object>>) response.get("Errors");
+            Map<Integer, String> errorsByOperation = new HashMap<>();
+            List<String> unmatchedErrors = new ArrayList<>();
+            if (errors != null) {
+                for (Map<String, Object> error : errors) {
+                    Number opIndex = (Number) error.get("OpIndex");
+                    if (opIndex != null && opIndex.intValue() >= 0 && opIndex.intValue() < batch.size()) {
+                        errorsByOperation.put(opIndex.intValue(), (String) error.get("What"));
+                    } else {
+                        unmatchedErrors.add((String) error.get("What"));
+                    }
+                }
+            }
+            if (!unmatchedErrors.isEmpty()) {
+                // the rejected operation is unknown, so retrying the rest could loop forever
+                failAll(batch, new KeyValueWriteException("KV transaction rolled back with errors not matching "
+                        + "its operations: " + unmatchedErrors));
+                return;
+            }
+            if (errorsByOperation.isEmpty()) {
+                failAll(batch, new KeyValueWriteException("KV transaction rolled back without errors reported"));
+                return;
+            }
+
+            List<Operation> rolledBack = new ArrayList<>(batch.size());
+            for (int i = 0; i < batch.size(); i++) {
+                Operation operation = batch.get(i);
+                String error = errorsByOperation.get(i);
+                if (error != null) {
+                    operation.result.complete(KeyValueWriteResult.failure(error));
+                } else {
+                    rolledBack.add(operation);
+                }
+            }
+            if (!rolledBack.isEmpty()) {
+                logger.debug("Retrying {} KV operations rolled back by rejected ones", rolledBack.size());
+                requeue(rolledBack);
+            }
+        }
+    }
+
+    private static class Operation {
+        private final String verb;
+        private final String key;
+        private final byte[] value;
+        private final Long index;
+        private final String session;
+        private final CompletableFuture<KeyValueWriteResult> result = new CompletableFuture<>();
+
+        private Operation(String verb, String key, byte[] value, Long index, String session) {
+            this.verb = verb;
+            this.key = key;
+            this.value = value;
+            this.index = index;
+            this.session = session;
+        }
+
+        private boolean returnsEntry() {
+            return !verb.startsWith("delete");
+        }
+
+        private Map<String, Object> toTxnOperation() {
+            Map<String, Object> kv = new HashMap<>(8);
+            kv.put("Verb", verb);
+            kv.put("Key", key);
+            if (value != null) {
+                kv.put("Value", Base64.getEncoder().encodeToString(value));
+            }
+            if (index != null) {
+                kv.put("Index", index);
+            }
+            if (session != null) {
+                kv.put("Session", session);
+            }
+            Map<String, Object> operation = new HashMap<>(2);
+            operation.put("KV", kv);
+            return operation;
+        }
+    }
+
+    public static class Builder {
+        private final OkHttpClient httpClient;
+        private final JsonSerializer jsonSerializer;
+        private final JsonDeserializer jsonDeserializer;
+        private URI agentUri = URI.create("http://localhost:8500");
+        private String aclToken = null;
+        private ScheduledExecutorService flushPool = null;
+        private int maxOperationsPerTransaction = 64;
+        private long flushDelayMillis = 10;
+
+        private Builder(OkHttpClient httpClient, JsonSerializer jsonSerializer, JsonDeserializer jsonDeserializer) {
+            this.httpClient = httpClient;
+            this.jsonSerializer = jsonSerializer;
+            this.jsonDeserializer = jsonDeserializer;
+        }
+
+        public Builder withAgentUri(URI agentUri) {
+            this.agentUri = agentUri;
+            return this;
+        }
+
+        public Builder withAclToken(String aclToken) {
+            this.aclToken = aclToken;
+            return this;
+        }
+
+        public Builder withFlushPool(ScheduledExecutorService flushPool) {
+            this.flushPool = flushPool;
+            return this;
+        }
+
+        /**
+         * Consul rejects transactions with more than 64 operations by default.
+         */
+        public Builder withMaxOperationsPerTransaction(int maxOperationsPerTransaction) {
+            this.maxOperationsPerTransaction = maxOperationsPerTransaction;
+            return this;
+        }
+
+        public Builder withFlushDelayMillis(long flushDelayMillis) {
+            this.flushDelayMillis = flushDelayMillis;
+            return this;
+        }
+
+        public KeyValueWriter build() {
+            if (this.flushPool == null) {
+                this.flushPool = Executors.newSingleThreadScheduledExecutor(
+                        new ThreadFactoryBuilder("consul-recipes-kv-writer-%d").build());
+            }
+            return new KeyValueWriter(agentUri, aclToken, httpClient, jsonSerializer, jsonDeserializer,
+                    flushPool, maxOperationsPerTransaction, flushDelayMillis);
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package pl.allegro.tech.discovery.consul.recipes.kv;
+
+import pl.allegro.tech.discovery.consul.recipes.json.JsonDecoder;
+import pl.allegro.tech.discovery.consul.recipes.json.JsonDeserializer;
+import pl.allegro.tech.discovery.consul.recipes.watch.ConsulWatcher;
+import pl.allegro.tech.discovery.consul.recipes.watch.EndpointWatcher;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Watches only the keys under a prefix, without values. When separator is given, keys are listed only up to
+ * the first separator after the prefix, which makes it possible to list a single "directory" level.
+ */
+public class KeysWatcher extends EndpointWatcher<List<String>> {
+
+    public KeysWatcher(String prefix, String separator, ConsulWatcher watcher, JsonDeserializer jsonDeserializer) {
+        super(KeyValueWatcher.kvEndpoint(prefix) + "?keys" + (separator != null ? "&separator=" + separator : ""),
+                watcher, decoder(jsonDeserializer));
+    }
+
+    private static JsonDecoder<List<String>> decoder(JsonDeserializer jsonDeserializer) {
+        if (jsonDeserializer == null) {
+            throw new IllegalStateException("Configured JsonDeserializer required.");
+        }
+        return s -> {
+            if (s.trim().isEmpty()) {
+                return new ArrayList<>();
+            }
+            try {
+                return jsonDeserializer.deserializeList(s);
+            } catch (IOException e) {
+                throw new JsonDecoder.JsonDecodeException("Cannot deserialize JSON", e);
+            }
+        };
+    }
+}
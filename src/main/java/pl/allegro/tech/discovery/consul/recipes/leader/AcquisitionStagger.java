@@ -0,0 +1,21 @@
+package pl.allegro.tech.discovery.consul.recipes.leader;
+
+/**
+ * How candidates spread their lock acquisition attempts after the lock is freed, so that one of them acquires it
+ * before others send their requests.
+ */
+public enum AcquisitionStagger {
+    /**
+     * All candidates try at the same moment.
+     */
+    NONE,
+    /**
+     * Every candidate delays its attempt by a random time up to the stagger.
+     */
+    RANDOM,
+    /**
+     * Candidates are ranked by creation order of their sessions and each one delays its attempt by rank times
+     * the stagger, so the oldest candidate tries first.
+     */
+    RANKED
+}
@@ -0,0 +1,6 @@
+package pl.allegro.tech.discovery.consul.recipes.leader;
+
+public interface GroupLeadershipObserver {
+    void leadershipAcquired(String lockName);
+    void leadershipLost(String lockName);
+}
@@ -14,7 +14,9 @@ import pl.allegro.tech.discovery.consul.recipes.ConsulRecipes;
 import pl.allegro.tech.discovery.consul.recipes.internal.thread.ThreadFactoryBuilder;
 import pl.allegro.tech.discovery.consul.recipes.json.JsonDeserializer;
 import pl.allegro.tech.discovery.consul.recipes.json.JsonSerializer;
+import pl.allegro.tech.discovery.consul.recipes.kv.KeyValueEntry;
 import pl.allegro.tech.discovery.consul.recipes.session.Session;
+import pl.allegro.tech.discovery.consul.recipes.session.SessionRenewalScheduler;
 import pl.allegro.tech.discovery.consul.recipes.watch.Canceller;
 import pl.allegro.tech.discovery.consul.recipes.watch.ConsulWatcher;
 import pl.allegro.tech.discovery.consul.recipes.watch.WatchResult;
@@ -22,25 +24,45 @@ import pl.allegro.tech.discovery.consul.recipes.watch.WatchResult;
 import java.io.Closeable;
 import java.io.IOException;
 import java.net.URI;
-import java.nio.charset.Charset;
 import java.time.Duration;
-import java.util.Base64;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
 
 import static pl.allegro.tech.discovery.consul.recipes.internal.http.BodyParser.readBodyOrFallback;
 import static pl.allegro.tech.discovery.consul.recipes.internal.http.MediaType.JSON_MEDIA_TYPE;
 
+/**
+ * Elects a leader among nodes of a service using a lock on {@code service/<serviceName>/leader} key.
+ * <p>
+ * By default, a node tries to acquire the lock {@code lockDelaySeconds} after observing it free and additionally
+ * every {@code lockRescueDelaySeconds}. In fast failover mode, it tries immediately after observing the lock free
+ * (which succeeds when the lock was released explicitly), then as soon as the lock delay of the previous holder's
+ * session expires, read from the session itself, and then retries in short intervals until any holder is observed.
+ * <p>
+ * With many candidates, attempts can be staggered (see {@link AcquisitionStagger}). Pending attempts are cancelled
+ * as soon as a new holder is observed, so usually only the first candidate writes to Consul.
+ */
 public class LeaderElector implements Closeable {
 
     private static final Logger logger = LoggerFactory.getLogger(LeaderElector.class);
+    private static final long LOCK_DELAY_MARGIN_MILLIS = 100;
+    private static final int FALLBACK_RANKS = 8;
 
     private final String serviceName;
     private final String nodeId;
@@ -55,6 +77,12 @@ public class LeaderElector implements Closeable {
     private final int lockDelaySeconds;
     private final int lockRescueDelaySeconds;
     private final LockAcquirer lockAcquirer;
+    private final boolean fastFailover;
+    private final int fastFailoverRetries;
+    private final long fastFailoverRetryMillis;
+    private final AcquisitionStagger acquisitionStagger;
+    private final long staggerMillis;
+    private final LeaderElectorStats stats = new LeaderElectorStats();
 
     private Canceller watchCanceller;
 
@@ -70,7 +98,12 @@ public class LeaderElector implements Closeable {
                           ConsulWatcher consulWatcher,
                           JsonDeserializer jsonDeserializer,
                           int lockDelaySeconds,
-                          int lockRescueDelaySeconds
+                          int lockRescueDelaySeconds,
+                          boolean fastFailover,
+                          int fastFailoverRetries,
+                          long fastFailoverRetryMillis,
+                          AcquisitionStagger acquisitionStagger,
+                          long staggerMillis
     ) {
         this.serviceName = serviceName;
         this.nodeId = nodeId;
@@ -83,6 +116,11 @@ public class LeaderElector implements Closeable {
         this.jsonDeserializer = jsonDeserializer;
         this.lockDelaySeconds = lockDelaySeconds;
         this.lockRescueDelaySeconds = lockRescueDelaySeconds;
+        this.fastFailover = fastFailover;
+        this.fastFailoverRetries = fastFailoverRetries;
+        this.fastFailoverRetryMillis = fastFailoverRetryMillis;
+        this.acquisitionStagger = acquisitionStagger;
+        this.staggerMillis = staggerMillis;
         this.lockAcquirer = new LockAcquirer(lockUrl(serviceName));
     }
 
@@ -119,6 +157,10 @@ public class LeaderElector implements Closeable {
         return isLeader;
     }
 
+    public LeaderElectorStats stats() {
+        return stats;
+    }
+
     public void registerObserver(LeadershipObserver observer) {
         observers.add(observer);
     }
@@ -141,6 +183,7 @@ public class LeaderElector implements Closeable {
         this.isLeader = true;
         if (!wasLeader) {
             logger.info("Node({}) became a leader", nodeId);
+            stats.leadershipAcquired(System.currentTimeMillis());
             observers.forEach(LeadershipObserver::leadershipAcquired);
         }
     }
@@ -164,6 +207,12 @@ public class LeaderElector implements Closeable {
 
     private class LockAcquirer implements Closeable {
         private final HttpUrl lockUrl;
+        private final AtomicBoolean failoverInProgress = new AtomicBoolean(false);
+        private final Set<ScheduledFuture<?>> pendingAttempts = ConcurrentHashMap.newKeySet();
+
+        private volatile String holderSession = null;
+        private volatile String previousHolderSession = null;
+        private volatile long holderLockDelayMillis = -1;
 
         private LockAcquirer(HttpUrl lockUrl) {
             this.lockUrl = lockUrl;
@@ -179,38 +228,42 @@ public class LeaderElector implements Closeable {
                 boolean shouldAcquireLock = false;
 
                 String nodeBody = watchResult.getBody();
-                List<Map<String, Object>> nodeValue = jsonDeserializer.deserializeMapList(nodeBody);
+                List<Map<String, Object>> nodeValue = nodeBody.trim().isEmpty() ?
+                        null : jsonDeserializer.deserializeMapList(nodeBody);
 
                 if (nodeValue == null || nodeValue.size() < 1) {
                     logger.warn("Empty leader node value");
                     shouldAcquireLock = true;
+                    lockObservedFree();
                 } else {
-                    Map<String, Object> leaderInfo = nodeValue.get(0);
+                    KeyValueEntry leaderInfo = KeyValueEntry.fromMap(nodeValue.get(0));
 
-                    String currentLeaderSession = (String) leaderInfo.get("Session");
-                    String currentLeaderValue = (String) leaderInfo.get("Value");
-                    String currentLeader =
-                            Optional.ofNullable(currentLeaderValue)
-                                    .map(leader -> new String(
-                                            Base64.getMimeDecoder().decode(leader),
-                                            Charset.forName("UTF-8")
-                                    ))
-                                    .orElse("");
+                    Optional<String> currentLeaderSession = leaderInfo.getSession();
+                    String currentLeader = leaderInfo.getValueAsString().orElse("");
 
-                    logger.debug("Leader session changed to {}", currentLeaderSession);
+                    logger.debug("Leader session changed to {}", currentLeaderSession.orElse(null));
 
                     if (!nodeId.equals(currentLeader)) {
                         logger.info("This node({}) is not a leader. Current leader is {}.",
                                 nodeId, currentLeader);
                         notALeader();
                     }
-                    if (currentLeaderSession == null || currentLeaderSession.equals("")) {
+                    if (!currentLeaderSession.isPresent()) {
                         shouldAcquireLock = true;
+                        lockObservedFree();
+                    } else {
+                        lockObservedHeld(currentLeaderSession.get());
                     }
                 }
 
                 if (shouldAcquireLock) {
-                    acquirementPool.schedule(this::acquireLock, lockDelaySeconds, TimeUnit.SECONDS);
+                    if (fastFailover) {
+                        startFailover();
+                    } else {
+                        long lockDelayMillis = TimeUnit.SECONDS.toMillis(lockDelaySeconds);
+                        staggerMillis().thenAccept(stagger ->
+                                scheduleAttempt(lockDelayMillis + stagger, this::acquireLockIfFree));
+                    }
                 }
             } catch (IOException e) {
                 logger.error("Couldn't deserialize lock body", e);
@@ -219,7 +272,183 @@ public class LeaderElector implements Closeable {
             }
         }
 
+        private void lockObservedFree() {
+            if (holderSession != null) {
+                previousHolderSession = holderSession;
+            }
+            holderSession = null;
+            stats.lockObservedFree(System.currentTimeMillis());
+        }
+
+        private void lockObservedHeld(String session) {
+            stats.lockObservedHeld(System.currentTimeMillis());
+            failoverInProgress.set(false);
+            cancelPendingAttempts();
+            if (!session.equals(holderSession)) {
+                holderSession = session;
+                holderLockDelayMillis = -1;
+                if (fastFailover) {
+                    readHolderLockDelay(session);
+                }
+            }
+        }
+
+        /**
+         * Consul blocks acquisition of a lock for the lock delay of the session that held it, counted from session
+         * invalidation. Lock released explicitly can be acquired immediately.
+         */
+        private void startFailover() {
+            if (!failoverInProgress.compareAndSet(false, true)) {
+                return;
+            }
+            long lockDelayMillis = holderLockDelayMillis >= 0 ?
+                    holderLockDelayMillis : TimeUnit.SECONDS.toMillis(lockDelaySeconds);
+            staggerMillis().thenAccept(stagger -> {
+                scheduleAttempt(stagger, this::acquireLockIfFree);
+                scheduleAttempt(lockDelayMillis + LOCK_DELAY_MARGIN_MILLIS + stagger,
+                        () -> retryAcquisition(fastFailoverRetries));
+            });
+        }
+
+        private void retryAcquisition(int remainingAttempts) {
+            if (!failoverInProgress.get()) {
+                return;
+            }
+            if (remainingAttempts <= 0) {
+                failoverInProgress.set(false);
+                return;
+            }
+            acquireLockIfFree();
+            scheduleAttempt(fastFailoverRetryMillis, () -> retryAcquisition(remainingAttempts - 1));
+        }
+
+        private void scheduleAttempt(long delayMillis, Runnable attempt) {
+            pendingAttempts.removeIf(Future::isDone);
+            pendingAttempts.add(acquirementPool.schedule(attempt, delayMillis, TimeUnit.MILLISECONDS));
+        }
+
+        private void cancelPendingAttempts() {
+            for (ScheduledFuture<?> attempt : pendingAttempts) {
+                if (attempt.cancel(false)) {
+                    stats.attemptCancelled();
+                }
+            }
+            pendingAttempts.clear();
+        }
+
+        private CompletableFuture<Long> staggerMillis() {
+            switch (acquisitionStagger) {
+                case RANDOM:
+                    return CompletableFuture.completedFuture(ThreadLocalRandom.current().nextLong(staggerMillis + 1));
+                case RANKED:
+                    return candidateRank().thenApply(rank -> rank * staggerMillis);
+                default:
+                    return CompletableFuture.completedFuture(0L);
+            }
+        }
+
+        /**
+         * Position of this candidate's session among live sessions with the same name, ordered by creation.
+         * Session of the previous holder is skipped, as it may not be removed yet.
+         */
+        private CompletableFuture<Long> candidateRank() {
+            CompletableFuture<Long> rank = new CompletableFuture<>();
+            try {
+                String ownSession = session.currentId();
+                String excludedSession = previousHolderSession;
+                Request.Builder requestBuilder = new Request.Builder()
+                        .url(baseUrl.newBuilder("/v1/session/list").addQueryParameter("stale", null).build())
+                        .get();
+                if (aclToken != null) {
+                    requestBuilder.addHeader("X-Consul-Token", aclToken);
+                }
+                httpClient.newCall(requestBuilder.build()).enqueue(new Callback() {
+                    @Override
+                    public void onFailure(Call call, IOException e) {
+                        rank.completeExceptionally(e);
+                    }
+
+                    @Override
+                    public void onResponse(Call call, Response response) {
+                        try (ResponseBody body = response.body()) {
+                            if (!response.isSuccessful()) {
+                                throw new IOException("Received status code " + response.code());
+                            }
+                            List<Map<String, Object>> sessions = jsonDeserializer.deserializeMapList(body.string());
+                            rank.complete(rankOf(ownSession, excludedSession, sessions));
+                        } catch (Exception e) {
+                            rank.completeExceptionally(e);
+                        }
+                    }
+                });
+            } catch (Exception e) {
+                rank.completeExceptionally(e);
+            }
+            return rank.exceptionally(e -> {
+                logger.debug("Couldn't rank lock candidates, using random rank", e);
+                return (long) ThreadLocalRandom.current().nextInt(FALLBACK_RANKS);
+            });
+        }
+
+        private long rankOf(String ownSession, String excludedSession, List<Map<String, Object>> sessions) {
+            Object ownName = sessions.stream()
+                    .filter(it -> ownSession.equals(it.get("ID")))
+                    .map(it -> it.get("Name"))
+                    .findFirst()
+                    .orElse(null);
+            List<Map<String, Object>> candidates = sessions.stream()
+                    .filter(it -> ownName != null && ownName.equals(it.get("Name")))
+                    .filter(it -> !it.get("ID").equals(excludedSession))
+                    .sorted(Comparator.comparingLong((Map<String, Object> it) -> ((Number) it.get("CreateIndex")).longValue())
+                            .thenComparing(it -> (String) it.get("ID")))
+                    .collect(Collectors.toList());
+            for (int i = 0; i < candidates.size(); i++) {
+                if (ownSession.equals(candidates.get(i).get("ID"))) {
+                    return i;
+                }
+            }
+            return ThreadLocalRandom.current().nextInt(FALLBACK_RANKS);
+        }
+
+        private void acquireLockIfFree() {
+            if (holderSession == null) {
+                acquireLock();
+            }
+        }
+
+        private void readHolderLockDelay(String session) {
+            Request.Builder requestBuilder = new Request.Builder()
+                    .url(baseUrl.newBuilder("/v1/session/info/" + session).build())
+                    .get();
+            if (aclToken != null) {
+                requestBuilder.addHeader("X-Consul-Token", aclToken);
+            }
+            httpClient.newCall(requestBuilder.build()).enqueue(new Callback() {
+                @Override
+                public void onFailure(Call call, IOException e) {
+                    logger.debug("Couldn't read lock delay of session {}", session, e);
+                }
+
+                @Override
+                public void onResponse(Call call, Response response) {
+                    try (ResponseBody body = response.body()) {
+                        String content = response.isSuccessful() ? body.string() : "";
+                        List<Map<String, Object>> sessions = content.trim().isEmpty() ?
+                                null : jsonDeserializer.deserializeMapList(content);
+                        if (sessions != null && !sessions.isEmpty() && sessions.get(0).get("LockDelay") instanceof Number
+                                && session.equals(holderSession)) {
+                            long lockDelayNanos = ((Number) sessions.get(0).get("LockDelay")).longValue();
+                            holderLockDelayMillis = TimeUnit.NANOSECONDS.toMillis(lockDelayNanos);
+                        }
+                    } catch (Exception e) {
+                        logger.debug("Couldn't read lock delay of session {}", session, e);
+                    }
+                }
+            });
+        }
+
         private void acquireLock() {
+            stats.acquireAttempted();
             try {
                 String body = nodeId;
 
@@ -291,11 +520,17 @@ public class LeaderElector implements Closeable {
         private ConsulWatcher consulWatcher = null;
         private ScheduledExecutorService lockAcquirementPool = null;
         private Session session = null;
+        private SessionRenewalScheduler sessionRenewalScheduler = null;
         private URI agentUri = URI.create("http://localhost:8500");
         private String aclToken = null;
         private String nodeId = UUID.randomUUID().toString();
         private int lockDelaySeconds = 16;
         private int lockRescueDelaySeconds = (int) Duration.ofMinutes(5).getSeconds();
+        private boolean fastFailover = false;
+        private int fastFailoverRetries = 5;
+        private long fastFailoverRetryMillis = 500;
+        private AcquisitionStagger acquisitionStagger = AcquisitionStagger.NONE;
+        private long staggerMillis = 0;
 
         private Builder(String serviceName,
                         OkHttpClient httpClient,
@@ -328,6 +563,7 @@ public class LeaderElector implements Closeable {
             if (this.session == null) {
                 this.session = Session.forService(serviceName, httpClient, jsonSerializer, jsonDeserializer)
                         .withAgentUri(agentUri)
+                        .withRenewalScheduler(sessionRenewalScheduler)
                         .build();
             }
 
@@ -342,7 +578,12 @@ public class LeaderElector implements Closeable {
                     consulWatcher,
                     jsonDeserializer,
                     lockDelaySeconds,
-                    lockRescueDelaySeconds
+                    lockRescueDelaySeconds,
+                    fastFailover,
+                    fastFailoverRetries,
+                    fastFailoverRetryMillis,
+                    acquisitionStagger,
+                    staggerMillis
             );
         }
 
@@ -376,6 +617,34 @@ public class LeaderElector implements Closeable {
             return this;
         }
 
+        /**
+         * Acquires the lock as soon as Consul allows it after previous leader is gone, instead of after fixed
+         * {@code lockDelaySeconds}, which is then used only when lock delay of the previous holder is unknown.
+         */
+        public Builder withFastFailover(boolean fastFailover) {
+            this.fastFailover = fastFailover;
+            return this;
+        }
+
+        /**
+         * Number of attempts after the lock delay expires and interval between them, in fast failover mode.
+         */
+        public Builder withFastFailoverRetries(int retries, long retryMillis) {
+            this.fastFailoverRetries = retries;
+            this.fastFailoverRetryMillis = retryMillis;
+            return this;
+        }
+
+        /**
+         * Spreads acquisition attempts of many candidates after the lock is freed. For {@link AcquisitionStagger#RANDOM}
+         * the stagger is the maximum delay, for {@link AcquisitionStagger#RANKED} it is the delay between ranks.
+         */
+        public Builder withAcquisitionStagger(AcquisitionStagger acquisitionStagger, long staggerMillis) {
+            this.acquisitionStagger = acquisitionStagger;
+            this.staggerMillis = staggerMillis;
+            return this;
+        }
+
         public Builder withLockAcquirementPool(ScheduledExecutorService lockAcquirementPool) {
             this.lockAcquirementPool = lockAcquirementPool;
             return this;
@@ -385,5 +654,13 @@ public class LeaderElector implements Closeable {
             this.session = session;
             return this;
         }
+
+        /**
+         * Scheduler renewing the session created by the elector. Ignored when session is provided.
+         */
+        public Builder withSessionRenewalScheduler(SessionRenewalScheduler sessionRenewalScheduler) {
+            this.sessionRenewalScheduler = sessionRenewalScheduler;
+            return this;
+        }
     }
 }
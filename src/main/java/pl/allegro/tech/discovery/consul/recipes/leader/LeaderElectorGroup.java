@@ -0,0 +1,381 @@
+package pl.allegro.tech.discovery.consul.recipes.leader;
+
+import okhttp3.OkHttpClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import pl.allegro.tech.discovery.consul.recipes.ConsulRecipes;
+import pl.allegro.tech.discovery.consul.recipes.internal.thread.ThreadFactoryBuilder;
+import pl.allegro.tech.discovery.consul.recipes.json.JsonDeserializer;
+import pl.allegro.tech.discovery.consul.recipes.json.JsonSerializer;
+import pl.allegro.tech.discovery.consul.recipes.kv.KeyValueEntry;
+import pl.allegro.tech.discovery.consul.recipes.kv.KeyValueSnapshot;
+import pl.allegro.tech.discovery.consul.recipes.kv.KeyValueWatcher;
+import pl.allegro.tech.discovery.consul.recipes.kv.KeyValueWriter;
+import pl.allegro.tech.discovery.consul.recipes.session.Session;
+import pl.allegro.tech.discovery.consul.recipes.session.SessionRenewalScheduler;
+import pl.allegro.tech.discovery.consul.recipes.watch.Canceller;
+import pl.allegro.tech.discovery.consul.recipes.watch.ConsulWatcher;
+import pl.allegro.tech.discovery.consul.recipes.watch.WatchResult;
+
+import java.io.Closeable;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Elects leaders for many locks at once, e.g. one per partition. All locks are held by a single session,
+ * watched with a single recursive blocking query on {@code service/<serviceName>/leaders/} and acquired
+ * in batches with KV transactions, so the number of threads, connections and Raft writes does not grow
+ * with the number of locks.
+ * <p>
+ * Only locks observed as free are acquired, so that a transaction is not rolled back by locks held by other nodes.
+ */
+public class LeaderElectorGroup implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(LeaderElectorGroup.class);
+
+    private final String serviceName;
+    private final String nodeId;
+    private final Set<String> lockNames;
+    private final Session session;
+    private final ConsulWatcher consulWatcher;
+    private final KeyValueWriter writer;
+    private final JsonDeserializer jsonDeserializer;
+    private final ScheduledExecutorService acquirementPool;
+    private final int lockDelaySeconds;
+    private final int lockRescueDelaySeconds;
+    private final List<GroupLeadershipObserver> observers = new CopyOnWriteArrayList<>();
+    private final Set<String> leaderships = ConcurrentHashMap.newKeySet();
+    private final Set<String> pendingAcquisitions = new HashSet<>();
+
+    private volatile Set<String> observedFree;
+
+    private Canceller watchCanceller;
+
+    private LeaderElectorGroup(String serviceName,
+                               String nodeId,
+                               Collection<String> lockNames,
+                               Session session,
+                               ConsulWatcher consulWatcher,
+                               KeyValueWriter writer,
+                               JsonDeserializer jsonDeserializer,
+                               ScheduledExecutorService acquirementPool,
+                               int lockDelaySeconds,
+                               int lockRescueDelaySeconds) {
+        this.serviceName = serviceName;
+        this.nodeId = nodeId;
+        this.lockNames = Collections.unmodifiableSet(new LinkedHashSet<>(lockNames));
+        this.session = session;
+        this.consulWatcher = consulWatcher;
+        this.writer = writer;
+        this.jsonDeserializer = jsonDeserializer;
+        this.acquirementPool = acquirementPool;
+        this.lockDelaySeconds = lockDelaySeconds;
+        this.lockRescueDelaySeconds = lockRescueDelaySeconds;
+        this.observedFree = this.lockNames;
+    }
+
+    public static Builder forService(String serviceName,
+                                     Collection<String> lockNames,
+                                     OkHttpClient httpClient,
+                                     JsonSerializer jsonSerializer,
+                                     JsonDeserializer jsonDeserializer) {
+        if (jsonDeserializer == null) {
+            throw new IllegalStateException("Configured JsonDeserializer required.");
+        }
+        if (jsonSerializer == null) {
+            throw new IllegalStateException("Configured JsonSerializer required.");
+        }
+        return new Builder(serviceName, lockNames, httpClient, jsonSerializer, jsonDeserializer);
+    }
+
+    public void start() {
+        session.start();
+        acquirementPool.scheduleAtFixedRate(() -> acquire(observedFree),
+                0, lockRescueDelaySeconds, TimeUnit.SECONDS);
+        watchCanceller = new KeyValueWatcher(locksPrefix(), consulWatcher, jsonDeserializer)
+                .watch(this::locksUpdate, this::watchException);
+    }
+
+    @Override
+    public void close() {
+        if (watchCanceller != null) {
+            watchCanceller.cancel();
+        }
+        session.close();
+        writer.close();
+        new ArrayList<>(leaderships).forEach(this::notALeader);
+    }
+
+    public boolean isLeader(String lockName) {
+        return leaderships.contains(lockName);
+    }
+
+    /**
+     * Names of locks this node currently holds.
+     */
+    public Set<String> leaderships() {
+        return Collections.unmodifiableSet(new HashSet<>(leaderships));
+    }
+
+    public Set<String> lockNames() {
+        return lockNames;
+    }
+
+    public void registerObserver(GroupLeadershipObserver observer) {
+        observers.add(observer);
+    }
+
+    public void unregisterObserver(GroupLeadershipObserver observer) {
+        observers.remove(observer);
+    }
+
+    private void locksUpdate(WatchResult<KeyValueSnapshot> result) {
+        try {
+            KeyValueSnapshot snapshot = result.getBody();
+            Optional<String> currentSession = currentSessionId();
+            Set<String> free = new LinkedHashSet<>();
+            for (String lockName : lockNames) {
+                Optional<String> holder = snapshot.get(lockKey(lockName)).flatMap(KeyValueEntry::getSession);
+                if (!holder.isPresent()) {
+                    free.add(lockName);
+                    notALeader(lockName);
+                } else if (holder.equals(currentSession)) {
+                    becameLeader(lockName);
+                } else {
+                    notALeader(lockName);
+                }
+            }
+            observedFree = Collections.unmodifiableSet(free);
+            scheduleAcquisition(free);
+        } catch (Exception e) {
+            logger.error("Unexpected issue on update of leader locks of {}", serviceName, e);
+        }
+    }
+
+    /**
+     * Free locks are acquired after lock delay, during which Consul rejects acquisition of recently released locks.
+     * Locks freed while an acquisition is pending join the same batch.
+     */
+    private void scheduleAcquisition(Set<String> free) {
+        if (free.isEmpty()) {
+            return;
+        }
+        synchronized (pendingAcquisitions) {
+            boolean scheduled = !pendingAcquisitions.isEmpty();
+            pendingAcquisitions.addAll(free);
+            if (!scheduled) {
+                acquirementPool.schedule(() -> {
+                    Set<String> batch;
+                    synchronized (pendingAcquisitions) {
+                        batch = new LinkedHashSet<>(pendingAcquisitions);
+                        pendingAcquisitions.clear();
+                    }
+                    batch.retainAll(observedFree);
+                    acquire(batch);
+                }, lockDelaySeconds, TimeUnit.SECONDS);
+            }
+        }
+    }
+
+    private void acquire(Set<String> locks) {
+        if (locks.isEmpty()) {
+            return;
+        }
+        try {
+            String sessionId = session.currentId();
+            byte[] value = nodeId.getBytes(StandardCharsets.UTF_8);
+            for (String lockName : locks) {
+                writer.lock(lockKey(lockName), value, sessionId).whenComplete((result, e) -> {
+                    if (e != null) {
+                        logger.error("Couldn't acquire lock {} of {}", lockName, serviceName, e);
+                    } else if (result.isSuccessful()) {
+                        becameLeader(lockName);
+                    } else {
+                        logger.debug("Lock {} of {} not acquired: {}", lockName, serviceName, result.getError().orElse(""));
+                    }
+                });
+            }
+            writer.flush();
+        } catch (Exception e) {
+            logger.error("Couldn't acquire locks of {}", serviceName, e);
+        }
+    }
+
+    private Optional<String> currentSessionId() {
+        try {
+            return Optional.of(session.currentId());
+        } catch (Exception e) {
+            return Optional.empty();
+        }
+    }
+
+    private void watchException(Exception exception) {
+        try {
+            logger.info("Got a leadership watch exception. Clearing leadership status of {}", serviceName, exception);
+            new ArrayList<>(leaderships).forEach(this::notALeader);
+        } catch (Exception e) {
+            logger.warn("Issue notifying about leader locks watch exception", e);
+        }
+    }
+
+    private void becameLeader(String lockName) {
+        if (leaderships.add(lockName)) {
+            logger.info("Node({}) became a leader of {}", nodeId, lockName);
+            observers.forEach(observer -> observer.leadershipAcquired(lockName));
+        }
+    }
+
+    private void notALeader(String lockName) {
+        if (leaderships.remove(lockName)) {
+            logger.info("Node({}) is no longer a leader of {}", nodeId, lockName);
+            observers.forEach(observer -> observer.leadershipLost(lockName));
+        }
+    }
+
+    private String locksPrefix() {
+        return "service/" + serviceName + "/leaders/";
+    }
+
+    private String lockKey(String lockName) {
+        return locksPrefix() + lockName;
+    }
+
+    public static class Builder {
+        private final String serviceName;
+        private final Collection<String> lockNames;
+        private final OkHttpClient httpClient;
+        private final JsonSerializer jsonSerializer;
+        private final JsonDeserializer jsonDeserializer;
+
+        private ConsulWatcher consulWatcher = null;
+        private ScheduledExecutorService lockAcquirementPool = null;
+        private Session session = null;
+        private SessionRenewalScheduler sessionRenewalScheduler = null;
+        private URI agentUri = URI.create("http://localhost:8500");
+        private String aclToken = null;
+        private String nodeId = UUID.randomUUID().toString();
+        private int lockDelaySeconds = 16;
+        private int lockRescueDelaySeconds = (int) Duration.ofMinutes(5).getSeconds();
+
+        private Builder(String serviceName,
+                        Collection<String> lockNames,
+                        OkHttpClient httpClient,
+                        JsonSerializer jsonSerializer,
+                        JsonDeserializer jsonDeserializer) {
+            this.serviceName = serviceName;
+            this.lockNames = lockNames;
+            this.httpClient = httpClient;
+            this.jsonSerializer = jsonSerializer;
+            this.jsonDeserializer = jsonDeserializer;
+        }
+
+        public LeaderElectorGroup build() {
+            if (this.consulWatcher == null) {
+                ExecutorService workerPool = Executors.newSingleThreadExecutor(
+                        new ThreadFactoryBuilder("consul-recipes-leader-group-watch-%d").build());
+                this.consulWatcher = ConsulRecipes.consulRecipes()
+                        .withAgentUri(agentUri)
+                        .withJsonSerializer(jsonSerializer)
+                        .withJsonDeserializer(jsonDeserializer)
+                        .build()
+                        .consulWatcher(workerPool)
+                        .build();
+            }
+
+            if (this.lockAcquirementPool == null) {
+                this.lockAcquirementPool = Executors.newSingleThreadScheduledExecutor(
+                        new ThreadFactoryBuilder("consul-recipes-leader-group-lock-%d").build());
+            }
+
+            if (this.session == null) {
+                this.session = Session.forService(serviceName, httpClient, jsonSerializer, jsonDeserializer)
+                        .withAgentUri(agentUri)
+                        .withRenewalScheduler(sessionRenewalScheduler)
+                        .build();
+            }
+
+            KeyValueWriter writer = KeyValueWriter.keyValueWriter(httpClient, jsonSerializer, jsonDeserializer)
+                    .withAgentUri(agentUri)
+                    .withAclToken(aclToken)
+                    .withFlushPool(lockAcquirementPool)
+                    .build();
+
+            return new LeaderElectorGroup(
+                    serviceName,
+                    nodeId,
+                    lockNames,
+                    session,
+                    consulWatcher,
+                    writer,
+                    jsonDeserializer,
+                    lockAcquirementPool,
+                    lockDelaySeconds,
+                    lockRescueDelaySeconds
+            );
+        }
+
+        public Builder withAgentUri(URI agentUri) {
+            this.agentUri = agentUri;
+            return this;
+        }
+
+        public Builder withAclToken(String aclToken) {
+            this.aclToken = aclToken;
+            return this;
+        }
+
+        public Builder withNodeId(String nodeId) {
+            this.nodeId = nodeId;
+            return this;
+        }
+
+        public Builder withConsulWatcher(ConsulWatcher consulWatcher) {
+            this.consulWatcher = consulWatcher;
+            return this;
+        }
+
+        public Builder withLockDelaySeconds(int seconds) {
+            this.lockDelaySeconds = seconds;
+            return this;
+        }
+
+        public Builder withLockRescueDelaySeconds(int seconds) {
+            this.lockRescueDelaySeconds = seconds;
+            return this;
+        }
+
+        public Builder withLockAcquirementPool(ScheduledExecutorService lockAcquirementPool) {
+            this.lockAcquirementPool = lockAcquirementPool;
+            return this;
+        }
+
+        public Builder withSession(Session session) {
+            this.session = session;
+            return this;
+        }
+
+        /**
+         * Scheduler renewing the session created by the group. Ignored when session is provided.
+         */
+        public Builder withSessionRenewalScheduler(SessionRenewalScheduler sessionRenewalScheduler) {
+            this.sessionRenewalScheduler = sessionRenewalScheduler;
+            return this;
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package pl.allegro.tech.discovery.consul.recipes.leader;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Leadership statistics as observed by a single elector. A leaderless period starts when the elector observes the lock
+ * free and ends when it observes any holder of the lock.
+ */
+public class LeaderElectorStats {
+
+    private final AtomicLong acquireAttempts = new AtomicLong(0);
+
+    private final AtomicLong acquisitions = new AtomicLong(0);
+
+    private final AtomicLong cancelledAttempts = new AtomicLong(0);
+
+    private final AtomicLong leaderlessPeriods = new AtomicLong(0);
+
+    private final AtomicLong totalLeaderlessMillis = new AtomicLong(0);
+
+    private volatile long lastLeaderlessMillis = 0;
+
+    private volatile long maxLeaderlessMillis = 0;
+
+    private volatile long lastTimeToLeadershipMillis = 0;
+
+    private volatile long leaderlessSinceMillis = -1;
+
+    void acquireAttempted() {
+        acquireAttempts.incrementAndGet();
+    }
+
+    void attemptCancelled() {
+        cancelledAttempts.incrementAndGet();
+    }
+
+    synchronized void lockObservedFree(long now) {
+        if (leaderlessSinceMillis < 0) {
+            leaderlessSinceMillis = now;
+        }
+    }
+
+    synchronized void lockObservedHeld(long now) {
+        if (leaderlessSinceMillis >= 0) {
+            long leaderless = now - leaderlessSinceMillis;
+            leaderlessPeriods.incrementAndGet();
+            totalLeaderlessMillis.addAndGet(leaderless);
+            lastLeaderlessMillis = leaderless;
+            maxLeaderlessMillis = Math.max(maxLeaderlessMillis, leaderless);
+            leaderlessSinceMillis = -1;
+        }
+    }
+
+    synchronized void leadershipAcquired(long now) {
+        acquisitions.incrementAndGet();
+        if (leaderlessSinceMillis >= 0) {
+            lastTimeToLeadershipMillis = now - leaderlessSinceMillis;
+        }
+        lockObservedHeld(now);
+    }
+
+    public long getAcquireAttempts() {
+        return acquireAttempts.get();
+    }
+
+    /**
+     * Scheduled acquisition attempts that were not sent, because another holder was observed first.
+     */
+    public long getCancelledAttempts() {
+        return cancelledAttempts.get();
+    }
+
+    /**
+     * Number of times this elector became a leader.
+     */
+    public long getAcquisitions() {
+        return acquisitions.get();
+    }
+
+    public long getLeaderlessPeriods() {
+        return leaderlessPeriods.get();
+    }
+
+    public long getTotalLeaderlessMillis() {
+        return totalLeaderlessMillis.get();
+    }
+
+    public long getLastLeaderlessMillis() {
+        return lastLeaderlessMillis;
+    }
+
+    public long getMaxLeaderlessMillis() {
+        return maxLeaderlessMillis;
+    }
+
+    /**
+     * Time from observing the lock free to this elector becoming a leader, for the last acquisition that followed
+     * a leaderless period.
+     */
+    public long getLastTimeToLeadershipMillis() {
+        return lastTimeToLeadershipMillis;
+    }
+
+    public boolean isLeaderless() {
+        return leaderlessSinceMillis >= 0;
+    }
+}
@@ -1,22 +1,53 @@
 package pl.allegro.tech.discovery.consul.recipes.locate;
 
+import okhttp3.Call;
+import okhttp3.Callback;
 import okhttp3.HttpUrl;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.Response;
+import okhttp3.ResponseBody;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import pl.allegro.tech.discovery.consul.recipes.datacenter.ConsulDatacenterReader;
+import pl.allegro.tech.discovery.consul.recipes.internal.thread.ThreadFactoryBuilder;
 import pl.allegro.tech.discovery.consul.recipes.json.JsonDeserializer;
 
+import java.io.IOException;
 import java.net.URI;
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.function.Function;
 
+/**
+ * Locates Consul agents in all known datacenters. Remote datacenters are asked in parallel and every lookup
+ * waits at most the datacenter timeout, returning agents from datacenters that answered in time.
+ * <p>
+ * Results are cached per service name. Cached results younger than cache TTL are returned as they are. Older ones,
+ * up to max stale time, are returned immediately while being refreshed in the background. Only when there is no
+ * usable cached result, the lookup waits for Consul.
+ * <p>
+ * Agents of remote datacenters can be ranked by round trip time estimated from Consul network coordinates, with
+ * agents reported as failing moved to the end of the ranking for the failure penalty period.
+ */
 public class ConsulAgentLocator {
 
     private static final Logger logger = LoggerFactory.getLogger(ConsulAgentLocator.class);
@@ -33,12 +64,51 @@ public class ConsulAgentLocator {
 
     private final int agentPort;
 
-    private ConsulAgentLocator(URI agentUri, JsonDeserializer jsonDeserializer, ConsulDatacenterReader locationReader, OkHttpClient httpClient, int agentPort) {
+    private final Clock clock;
+
+    private final long datacenterTimeoutMillis;
+
+    private final long cacheTtlMillis;
+
+    private final long maxStaleMillis;
+
+    private final ConcurrentMap<String, CachedLookup> cache = new ConcurrentHashMap<>();
+
+    private final ConcurrentMap<String, CompletableFuture<CachedLookup>> inFlightLookups = new ConcurrentHashMap<>();
+
+    private final NetworkCoordinates networkCoordinates;
+
+    private final long agentFailurePenaltyMillis;
+
+    private final ConcurrentMap<URI, Long> failedAgents = new ConcurrentHashMap<>();
+
+    private volatile Executor refreshExecutor;
+
+    private ConsulAgentLocator(URI agentUri,
+                               JsonDeserializer jsonDeserializer,
+                               ConsulDatacenterReader locationReader,
+                               OkHttpClient httpClient,
+                               int agentPort,
+                               Clock clock,
+                               long datacenterTimeoutMillis,
+                               long cacheTtlMillis,
+                               long maxStaleMillis,
+                               Executor refreshExecutor,
+                               long coordinatesRefreshMillis,
+                               long agentFailurePenaltyMillis) {
         this.agentUri = HttpUrl.get(agentUri);
         this.jsonDeserializer = jsonDeserializer;
         this.locationReader = locationReader;
         this.httpClient = httpClient;
         this.agentPort = agentPort;
+        this.clock = clock;
+        this.datacenterTimeoutMillis = datacenterTimeoutMillis;
+        this.cacheTtlMillis = cacheTtlMillis;
+        this.maxStaleMillis = maxStaleMillis;
+        this.refreshExecutor = refreshExecutor;
+        this.agentFailurePenaltyMillis = agentFailurePenaltyMillis;
+        this.networkCoordinates = new NetworkCoordinates(this.agentUri, httpClient, jsonDeserializer, clock,
+                coordinatesRefreshMillis, this::refreshExecutor);
     }
 
     public static ConsulAgentLocator.Builder consulAgentLocator(JsonDeserializer jsonDeserializer, ConsulDatacenterReader locationReader, OkHttpClient httpClient) {
@@ -71,19 +141,61 @@ public class ConsulAgentLocator {
      * <p>
      */
     public Map<String, AgentData> locateDatacenterAgents(String serviceName, Function<List<Map<String, Object>>, Map<String, Object>> preferredAgent) {
-        String localDatacenter = locationReader.localDatacenter();
-        List<String> knownDatacenters = locationReader.knownDatacenters();
+        CachedLookup lookup = lookup(serviceName);
 
         Map<String, AgentData> agents = new HashMap<>();
-        for (String datacenter : knownDatacenters) {
-            if (localDatacenter.equals(datacenter)) {
+        for (String datacenter : lookup.knownDatacenters) {
+            if (lookup.localDatacenter.equals(datacenter)) {
                 agents.put(datacenter, new AgentData("localhost", agentUri.uri()));
             } else {
-                AgentData agentData = readAgentAddress(datacenter, serviceName, preferredAgent);
-                if (agentData != null) {
-                    agents.put(datacenter, agentData);
+                DatacenterInstances instances = lookup.remoteDatacenters.get(datacenter);
+                if (instances != null && !instances.data.isEmpty()) {
+                    AgentData agentData = chooseAgent(datacenter, instances.data, preferredAgent);
+                    if (agentData != null) {
+                        agents.put(datacenter, agentData);
+                    }
                 }
+            }
+        }
 
+        if (agents.isEmpty()) {
+            throw new FailedToFindAgentsException("Failed to find any agents for service name: " + serviceName);
+        }
+
+        return agents;
+    }
+
+    /**
+     * Returns the nearest agent in each DC for given service name, skipping agents reported as failing unless there
+     * is no other choice. Local DC is always represented by the local agent.
+     */
+    public Map<String, AgentData> locateNearestDatacenterAgents(String serviceName) {
+        Map<String, AgentData> agents = new HashMap<>();
+        locateRankedDatacenterAgents(serviceName).forEach((datacenter, ranked) -> agents.put(datacenter, ranked.get(0)));
+        return agents;
+    }
+
+    /**
+     * Returns agents in each DC for given service name, ordered by round trip time estimated from network coordinates.
+     * Agents without coordinates follow the ones with coordinates and agents reported as failing are last, so callers
+     * can fall back to the next agent on the list. When coordinates are not available, agents keep the order returned
+     * by Consul.
+     */
+    public Map<String, List<AgentData>> locateRankedDatacenterAgents(String serviceName) {
+        CachedLookup lookup = lookup(serviceName);
+
+        Map<String, List<AgentData>> agents = new HashMap<>();
+        for (String datacenter : lookup.knownDatacenters) {
+            if (lookup.localDatacenter.equals(datacenter)) {
+                agents.put(datacenter, Collections.singletonList(new AgentData("localhost", agentUri.uri())));
+            } else {
+                DatacenterInstances instances = lookup.remoteDatacenters.get(datacenter);
+                if (instances != null && !instances.data.isEmpty()) {
+                    List<AgentData> ranked = rankAgents(lookup.localDatacenter, datacenter, instances.data);
+                    if (!ranked.isEmpty()) {
+                        agents.put(datacenter, ranked);
+                    }
+                }
             }
         }
 
@@ -94,30 +206,241 @@ public class ConsulAgentLocator {
         return agents;
     }
 
-    private AgentData readAgentAddress(String datacenter, String serviceName, Function<List<Map<String, Object>>, Map<String, Object>> preferredAgent) {
+    /**
+     * Moves the agent to the end of rankings for the failure penalty period.
+     */
+    public void reportAgentFailure(AgentData agent) {
+        failedAgents.put(agent.getUri(), clock.millis() + agentFailurePenaltyMillis);
+    }
+
+    private List<AgentData> rankAgents(String localDatacenter, String datacenter, List<Map<String, Object>> data) {
+        Map<String, AgentData> agentsByNode = new LinkedHashMap<>();
+        for (Map<String, Object> instance : data) {
+            AgentData agentData = chooseAgent(datacenter, data, ignored -> instance);
+            if (agentData != null) {
+                agentsByNode.putIfAbsent(agentData.getName(), agentData);
+            }
+        }
+
+        Map<String, Double> rtt = networkCoordinates.estimateRtt(localDatacenter, datacenter, agentsByNode.keySet());
+        long now = clock.millis();
+        List<AgentData> ranked = new ArrayList<>(agentsByNode.values());
+        ranked.sort(Comparator.<AgentData, Boolean>comparing(agent -> isPenalized(agent, now))
+                .thenComparing(agent -> rtt.getOrDefault(agent.getName(), Double.POSITIVE_INFINITY)));
+        return ranked;
+    }
+
+    private boolean isPenalized(AgentData agent, long now) {
+        Long penalizedUntil = failedAgents.get(agent.getUri());
+        if (penalizedUntil == null) {
+            return false;
+        }
+        if (penalizedUntil <= now) {
+            failedAgents.remove(agent.getUri(), penalizedUntil);
+            return false;
+        }
+        return true;
+    }
+
+    private AgentData chooseAgent(String datacenter,
+                                  List<Map<String, Object>> data,
+                                  Function<List<Map<String, Object>>, Map<String, Object>> preferredAgent) {
+        try {
+            Map node = (Map) preferredAgent.apply(data).get("Node");
+            String address = (String) node.get("Address");
+            String name = (String) node.get("Node");
+            return new AgentData(name, URI.create("http://" + address + ":" + agentPort));
+        } catch (Exception exception) {
+            logger.error("Failed to choose remote agent in datacenter {}", datacenter, exception);
+            return null;
+        }
+    }
+
+    private CachedLookup lookup(String serviceName) {
+        CachedLookup cached = cache.get(serviceName);
+        if (cached != null) {
+            long age = clock.millis() - cached.fetchedAtMillis;
+            if (age < cacheTtlMillis) {
+                return cached;
+            }
+            if (age < maxStaleMillis) {
+                refresh(serviceName, cached, refreshExecutor()).whenComplete((lookup, e) -> {
+                    if (e != null) {
+                        logger.warn("Background refresh of agents for service {} failed", serviceName, e);
+                    }
+                });
+                return cached;
+            }
+        }
+
+        try {
+            return refresh(serviceName, cached, Runnable::run).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    private CompletableFuture<CachedLookup> refresh(String serviceName, CachedLookup previous, Executor executor) {
+        CompletableFuture<CachedLookup> created = new CompletableFuture<>();
+        CompletableFuture<CachedLookup> inFlight = inFlightLookups.putIfAbsent(serviceName, created);
+        if (inFlight != null) {
+            return inFlight;
+        }
+
+        executor.execute(() -> {
+            try {
+                CachedLookup lookup = fetch(serviceName, previous);
+                cache.put(serviceName, lookup);
+                created.complete(lookup);
+            } catch (Exception e) {
+                created.completeExceptionally(e);
+            } finally {
+                inFlightLookups.remove(serviceName, created);
+            }
+        });
+        return created;
+    }
+
+    private CachedLookup fetch(String serviceName, CachedLookup previous) {
+        String localDatacenter = locationReader.localDatacenter();
+        List<String> knownDatacenters = locationReader.knownDatacenters();
+        long now = clock.millis();
+
+        Map<String, DatacenterCall> calls = new LinkedHashMap<>();
+        for (String datacenter : knownDatacenters) {
+            if (!localDatacenter.equals(datacenter)) {
+                calls.put(datacenter, readInstances(datacenter, serviceName));
+            }
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(datacenterTimeoutMillis);
+        Map<String, DatacenterInstances> remoteDatacenters = new HashMap<>();
+        for (Map.Entry<String, DatacenterCall> entry : calls.entrySet()) {
+            String datacenter = entry.getKey();
+            DatacenterCall call = entry.getValue();
+            try {
+                List<Map<String, Object>> data = call.result.get(
+                        Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                remoteDatacenters.put(datacenter, new DatacenterInstances(data, now));
+            } catch (TimeoutException e) {
+                call.call.cancel();
+                logger.error("Timed out reading information about remote agents from: {}", call.call.request().url());
+                keepPrevious(datacenter, previous, now, remoteDatacenters);
+            } catch (ExecutionException e) {
+                logger.error("Failed to read information about remote agents from: {}", call.call.request().url(), e.getCause());
+                keepPrevious(datacenter, previous, now, remoteDatacenters);
+            } catch (InterruptedException e) {
+                // a lookup missing the remaining datacenters must not be cached for everyone
+                calls.values().forEach(remaining -> remaining.call.cancel());
+                Thread.currentThread().interrupt();
+                throw new FailedToFindAgentsException("Interrupted while reading remote agents of service "
+                        + serviceName, e);
+            }
+        }
+
+        return new CachedLookup(localDatacenter, knownDatacenters, remoteDatacenters, now);
+    }
+
+    private void keepPrevious(String datacenter, CachedLookup previous, long now, Map<String, DatacenterInstances> remoteDatacenters) {
+        if (previous == null) {
+            return;
+        }
+        DatacenterInstances previousInstances = previous.remoteDatacenters.get(datacenter);
+        if (previousInstances != null && now - previousInstances.fetchedAtMillis < maxStaleMillis) {
+            remoteDatacenters.put(datacenter, previousInstances);
+        }
+    }
+
+    private DatacenterCall readInstances(String datacenter, String serviceName) {
         HttpUrl uri = agentUri.newBuilder("v1/health/service/" + serviceName)
                 .addQueryParameter("passing", null).addQueryParameter("dc", datacenter)
                 .build();
 
-        try {
-            Response response = httpClient.newCall(new Request.Builder().get().url(uri).build()).execute();
-            if (!response.isSuccessful()) {
-                logger.error("Received status code other than 2xx when asking for service {} at {}", serviceName, uri);
-                return null;
+        CompletableFuture<List<Map<String, Object>>> result = new CompletableFuture<>();
+        Call call = httpClient.newCall(new Request.Builder().get().url(uri).build());
+        call.enqueue(new Callback() {
+            @Override
+            public void onFailure(Call call, IOException e) {
+                result.completeExceptionally(e);
             }
 
-            List<Map<String, Object>> data = jsonDeserializer.deserializeMapList(response.body().string());
-            if (data.isEmpty()) {
-                logger.error("No healthy instances of service {} found at {}", serviceName, uri);
-                return null;
+            @Override
+            public void onResponse(Call call, Response response) {
+                try (ResponseBody body = response.body()) {
+                    if (!response.isSuccessful()) {
+                        result.completeExceptionally(new FailedToFindAgentsException(
+                                "Received status code " + response.code() + " when asking for service " + serviceName));
+                        return;
+                    }
+                    List<Map<String, Object>> data = jsonDeserializer.deserializeMapList(body.string());
+                    if (data.isEmpty()) {
+                        logger.error("No healthy instances of service {} found at {}", serviceName, uri);
+                    }
+                    result.complete(data);
+                } catch (Exception e) {
+                    result.completeExceptionally(e);
+                }
             }
+        });
+        return new DatacenterCall(call, result);
+    }
 
-            String address = (String) ((Map) preferredAgent.apply(data).get("Node")).get("Address");
-            String name = (String) ((Map) preferredAgent.apply(data).get("Node")).get("Node");
-            return new AgentData(name, URI.create("http://" + address + ":" + agentPort));
-        } catch (Exception exception) {
-            logger.error("Failed to read information about remote agent from: {}", uri, exception);
-            return null;
+    private Executor refreshExecutor() {
+        if (refreshExecutor == null) {
+            synchronized (this) {
+                if (refreshExecutor == null) {
+                    ExecutorService executor = Executors.newSingleThreadExecutor(
+                            new ThreadFactoryBuilder("consul-recipes-agent-locator-%d")
+                                    .withBackingThreadFactory(runnable -> {
+                                        Thread thread = new Thread(runnable);
+                                        thread.setDaemon(true);
+                                        return thread;
+                                    })
+                                    .build());
+                    refreshExecutor = executor;
+                }
+            }
+        }
+        return refreshExecutor;
+    }
+
+    private static class DatacenterCall {
+        private final Call call;
+        private final CompletableFuture<List<Map<String, Object>>> result;
+
+        private DatacenterCall(Call call, CompletableFuture<List<Map<String, Object>>> result) {
+            this.call = call;
+            this.result = result;
+        }
+    }
+
+    private static class DatacenterInstances {
+        private final List<Map<String, Object>> data;
+        private final long fetchedAtMillis;
+
+        private DatacenterInstances(List<Map<String, Object>> data, long fetchedAtMillis) {
+            this.data = data;
+            this.fetchedAtMillis = fetchedAtMillis;
+        }
+    }
+
+    private static class CachedLookup {
+        private final String localDatacenter;
+        private final List<String> knownDatacenters;
+        private final Map<String, DatacenterInstances> remoteDatacenters;
+        private final long fetchedAtMillis;
+
+        private CachedLookup(String localDatacenter,
+                             List<String> knownDatacenters,
+                             Map<String, DatacenterInstances> remoteDatacenters,
+                             long fetchedAtMillis) {
+            this.localDatacenter = localDatacenter;
+            this.knownDatacenters = knownDatacenters;
+            this.remoteDatacenters = remoteDatacenters;
+            this.fetchedAtMillis = fetchedAtMillis;
         }
     }
 
@@ -133,6 +456,20 @@ public class ConsulAgentLocator {
 
         private int agentPort = 8500;
 
+        private Clock clock = Clock.systemDefaultZone();
+
+        private long datacenterTimeoutMillis = 2000;
+
+        private long cacheTtlMillis = TimeUnit.SECONDS.toMillis(10);
+
+        private long maxStaleMillis = TimeUnit.MINUTES.toMillis(5);
+
+        private Executor refreshExecutor = null;
+
+        private long coordinatesRefreshMillis = TimeUnit.MINUTES.toMillis(1);
+
+        private long agentFailurePenaltyMillis = TimeUnit.SECONDS.toMillis(30);
+
         private Builder(JsonDeserializer jsonDeserializer, ConsulDatacenterReader locationReader, OkHttpClient httpClient) {
             this.jsonDeserializer = jsonDeserializer;
             this.locationReader = locationReader;
@@ -140,7 +477,9 @@ public class ConsulAgentLocator {
         }
 
         public ConsulAgentLocator build() {
-            return new ConsulAgentLocator(agentUri, jsonDeserializer, locationReader, httpClient, agentPort);
+            return new ConsulAgentLocator(agentUri, jsonDeserializer, locationReader, httpClient, agentPort, clock,
+                    datacenterTimeoutMillis, cacheTtlMillis, maxStaleMillis, refreshExecutor, coordinatesRefreshMillis,
+                    agentFailurePenaltyMillis);
         }
 
         public Builder withAgentUri(URI localAgentUri) {
@@ -152,6 +491,56 @@ public class ConsulAgentLocator {
             this.agentPort = agentPort;
             return this;
         }
+
+        public Builder withClock(Clock clock) {
+            this.clock = clock;
+            return this;
+        }
+
+        /**
+         * Maximum time a lookup waits for remote datacenters. Datacenters that do not answer in time are skipped.
+         */
+        public Builder withDatacenterTimeoutMillis(long datacenterTimeoutMillis) {
+            this.datacenterTimeoutMillis = datacenterTimeoutMillis;
+            return this;
+        }
+
+        /**
+         * Results younger than TTL are returned without asking Consul. Zero disables caching of fresh results.
+         */
+        public Builder withCacheTtlMillis(long cacheTtlMillis) {
+            this.cacheTtlMillis = cacheTtlMillis;
+            return this;
+        }
+
+        /**
+         * Results older than TTL but younger than max stale time are returned while being refreshed in the background.
+         */
+        public Builder withMaxStaleMillis(long maxStaleMillis) {
+            this.maxStaleMillis = maxStaleMillis;
+            return this;
+        }
+
+        public Builder withRefreshExecutor(Executor refreshExecutor) {
+            this.refreshExecutor = refreshExecutor;
+            return this;
+        }
+
+        /**
+         * Network coordinates older than this are refreshed in the background on the next ranking.
+         */
+        public Builder withCoordinatesRefreshMillis(long coordinatesRefreshMillis) {
+            this.coordinatesRefreshMillis = coordinatesRefreshMillis;
+            return this;
+        }
+
+        /**
+         * How long an agent reported as failing stays at the end of rankings.
+         */
+        public Builder withAgentFailurePenaltyMillis(long agentFailurePenaltyMillis) {
+            this.agentFailurePenaltyMillis = agentFailurePenaltyMillis;
+            return this;
+        }
     }
 
     public static class AgentData {
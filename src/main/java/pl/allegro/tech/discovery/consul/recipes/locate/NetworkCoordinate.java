@@ -0,0 +1,49 @@
+package pl.allegro.tech.discovery.consul.recipes.locate;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Vivaldi network coordinate as computed by Consul. Distance between two coordinates estimates the round trip
+ * time between nodes, see https://developer.hashicorp.com/consul/docs/architecture/coordinates.
+ */
+class NetworkCoordinate {
+    private final double[] vec;
+    private final double height;
+    private final double adjustment;
+
+    NetworkCoordinate(double[] vec, double height, double adjustment) {
+        this.vec = vec;
+        this.height = height;
+        this.adjustment = adjustment;
+    }
+
+    @SuppressWarnings("unchecked")
+    static NetworkCoordinate fromMap(Map<String, Object> coord) {
+        List<Number> vecList = (List<Number>) coord.get("Vec");
+        double[] vec = new double[vecList != null ? vecList.size() : 0];
+        for (int i = 0; i < vec.length; i++) {
+            vec[i] = vecList.get(i).doubleValue();
+        }
+        return new NetworkCoordinate(vec, number(coord.get("Height")), number(coord.get("Adjustment")));
+    }
+
+    private static double number(Object value) {
+        return value instanceof Number ? ((Number) value).doubleValue() : 0;
+    }
+
+    /**
+     * Estimated round trip time in seconds.
+     */
+    double distanceTo(NetworkCoordinate other) {
+        double sum = 0;
+        int dimensions = Math.min(vec.length, other.vec.length);
+        for (int i = 0; i < dimensions; i++) {
+            double difference = vec[i] - other.vec[i];
+            sum += difference * difference;
+        }
+        double rtt = Math.sqrt(sum) + height + other.height;
+        double adjusted = rtt + adjustment + other.adjustment;
+        return adjusted > 0 ? adjusted : rtt;
+    }
+}
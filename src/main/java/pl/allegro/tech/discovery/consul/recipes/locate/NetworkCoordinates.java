@@ -0,0 +1,200 @@
+package pl.allegro.tech.discovery.consul.recipes.locate;
+
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import pl.allegro.tech.discovery.consul.recipes.json.JsonDeserializer;
+
+import java.io.IOException;
+import java.time.Clock;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+/**
+ * Estimates round trip times to nodes of remote datacenters using Consul network coordinates.
+ * <p>
+ * Coordinates from WAN and LAN pools are not comparable, so the estimate consists of two parts: WAN distance
+ * between local datacenter servers and the closest server of the remote datacenter, and LAN distance between
+ * that server and the node. Coordinates are cached and refreshed in the background when older than refresh interval.
+ */
+class NetworkCoordinates {
+
+    private static final Logger logger = LoggerFactory.getLogger(NetworkCoordinates.class);
+
+    private final HttpUrl agentUri;
+    private final OkHttpClient httpClient;
+    private final JsonDeserializer jsonDeserializer;
+    private final Clock clock;
+    private final long refreshMillis;
+    private final Supplier<Executor> refreshExecutor;
+
+    private final CachedCoordinates<Map<String, Map<String, NetworkCoordinate>>> wanCoordinates;
+    private final ConcurrentMap<String, CachedCoordinates<Map<String, NetworkCoordinate>>> lanCoordinates =
+            new ConcurrentHashMap<>();
+
+    NetworkCoordinates(HttpUrl agentUri,
+                       OkHttpClient httpClient,
+                       JsonDeserializer jsonDeserializer,
+                       Clock clock,
+                       long refreshMillis,
+                       Supplier<Executor> refreshExecutor) {
+        this.agentUri = agentUri;
+        this.httpClient = httpClient;
+        this.jsonDeserializer = jsonDeserializer;
+        this.clock = clock;
+        this.refreshMillis = refreshMillis;
+        this.refreshExecutor = refreshExecutor;
+        this.wanCoordinates = new CachedCoordinates<>(this::readWanCoordinates);
+    }
+
+    /**
+     * Estimated round trip times in seconds from local datacenter to given nodes of remote datacenter.
+     * Nodes for which there is not enough coordinates to estimate the round trip time are absent from the result.
+     */
+    Map<String, Double> estimateRtt(String localDatacenter, String datacenter, Collection<String> nodes) {
+        Map<String, Map<String, NetworkCoordinate>> wan = wanCoordinates.get();
+        Map<String, NetworkCoordinate> localServers = wan.getOrDefault(localDatacenter, Collections.emptyMap());
+        Map<String, NetworkCoordinate> remoteServers = wan.getOrDefault(datacenter, Collections.emptyMap());
+        Map<String, NetworkCoordinate> lan = lanCoordinates
+                .computeIfAbsent(datacenter, dc -> new CachedCoordinates<>(() -> readLanCoordinates(dc)))
+                .get();
+
+        String entryServer = null;
+        double wanRtt = Double.POSITIVE_INFINITY;
+        for (Map.Entry<String, NetworkCoordinate> remoteServer : remoteServers.entrySet()) {
+            for (NetworkCoordinate localServer : localServers.values()) {
+                double rtt = localServer.distanceTo(remoteServer.getValue());
+                if (rtt < wanRtt && lan.containsKey(remoteServer.getKey())) {
+                    wanRtt = rtt;
+                    entryServer = remoteServer.getKey();
+                }
+            }
+        }
+        if (entryServer == null) {
+            entryServer = remoteServers.keySet().stream().filter(lan::containsKey).findFirst().orElse(null);
+            wanRtt = 0;
+        }
+        if (entryServer == null) {
+            return Collections.emptyMap();
+        }
+
+        NetworkCoordinate entryCoordinate = lan.get(entryServer);
+        Map<String, Double> estimates = new HashMap<>();
+        for (String node : nodes) {
+            NetworkCoordinate nodeCoordinate = lan.get(node);
+            if (nodeCoordinate != null) {
+                estimates.put(node, wanRtt + entryCoordinate.distanceTo(nodeCoordinate));
+            }
+        }
+        return estimates;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, Map<String, NetworkCoordinate>> readWanCoordinates() throws IOException {
+        Map<String, Map<String, NetworkCoordinate>> coordinates = new HashMap<>();
+        for (Map<String, Object> area : jsonDeserializer.deserializeMapList(call("v1/coordinate/datacenters", null))) {
+            String datacenter = (String) area.get("Datacenter");
+            List<Map<String, Object>> servers = (List<Map<String, Object>>) area.get("Coordinates");
+            if (datacenter == null || servers == null) {
+                continue;
+            }
+            Map<String, NetworkCoordinate> datacenterServers = coordinates.computeIfAbsent(datacenter, dc -> new HashMap<>());
+            String suffix = "." + datacenter;
+            for (Map<String, Object> server : servers) {
+                String node = (String) server.get("Node");
+                Map<String, Object> coord = (Map<String, Object>) server.get("Coord");
+                if (node != null && coord != null) {
+                    String lanName = node.endsWith(suffix) ? node.substring(0, node.length() - suffix.length()) : node;
+                    datacenterServers.put(lanName, NetworkCoordinate.fromMap(coord));
+                }
+            }
+        }
+        return coordinates;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, NetworkCoordinate> readLanCoordinates(String datacenter) throws IOException {
+        Map<String, NetworkCoordinate> coordinates = new HashMap<>();
+        for (Map<String, Object> node : jsonDeserializer.deserializeMapList(call("v1/coordinate/nodes", datacenter))) {
+            String name = (String) node.get("Node");
+            Map<String, Object> coord = (Map<String, Object>) node.get("Coord");
+            if (name != null && coord != null) {
+                coordinates.put(name, NetworkCoordinate.fromMap(coord));
+            }
+        }
+        return coordinates;
+    }
+
+    private String call(String endpoint, String datacenter) throws IOException {
+        HttpUrl.Builder url = agentUri.newBuilder(endpoint);
+        if (datacenter != null) {
+            url.addQueryParameter("dc", datacenter);
+        }
+        try (Response response = httpClient.newCall(new Request.Builder().get().url(url.build()).build()).execute()) {
+            ResponseBody body = response.body();
+            if (!response.isSuccessful()) {
+                throw new IOException("Received status code " + response.code() + " from " + endpoint);
+            }
+            return body.string();
+        }
+    }
+
+    private interface CoordinatesReader<T> {
+        T read() throws IOException;
+    }
+
+    private class CachedCoordinates<T> {
+        private final CoordinatesReader<T> reader;
+        private final AtomicBoolean refreshing = new AtomicBoolean(false);
+        private volatile T value;
+        private volatile long fetchedAtMillis;
+
+        private CachedCoordinates(CoordinatesReader<T> reader) {
+            this.reader = reader;
+        }
+
+        T get() {
+            if (value == null) {
+                synchronized (this) {
+                    if (value == null) {
+                        load();
+                    }
+                }
+            } else if (clock.millis() - fetchedAtMillis >= refreshMillis && refreshing.compareAndSet(false, true)) {
+                refreshExecutor.get().execute(() -> {
+                    try {
+                        load();
+                    } finally {
+                        refreshing.set(false);
+                    }
+                });
+            }
+            return value;
+        }
+
+        @SuppressWarnings("unchecked")
+        private void load() {
+            try {
+                value = reader.read();
+            } catch (Exception e) {
+                logger.warn("Failed to read network coordinates", e);
+                if (value == null) {
+                    value = (T) Collections.emptyMap();
+                }
+            }
+            fetchedAtMillis = clock.millis();
+        }
+    }
+}
@@ -0,0 +1,506 @@
+package pl.allegro.tech.discovery.consul.recipes.lock;
+
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import pl.allegro.tech.discovery.consul.recipes.ConsulRecipes;
+import pl.allegro.tech.discovery.consul.recipes.internal.thread.ThreadFactoryBuilder;
+import pl.allegro.tech.discovery.consul.recipes.json.JsonDeserializer;
+import pl.allegro.tech.discovery.consul.recipes.json.JsonSerializer;
+import pl.allegro.tech.discovery.consul.recipes.kv.KeyValueEntry;
+import pl.allegro.tech.discovery.consul.recipes.kv.KeyValueSnapshot;
+import pl.allegro.tech.discovery.consul.recipes.kv.KeyValueWatcher;
+import pl.allegro.tech.discovery.consul.recipes.kv.KeyValueWriteException;
+import pl.allegro.tech.discovery.consul.recipes.kv.KeyValueWriteResult;
+import pl.allegro.tech.discovery.consul.recipes.kv.KeyValueWriter;
+import pl.allegro.tech.discovery.consul.recipes.session.Session;
+import pl.allegro.tech.discovery.consul.recipes.session.SessionRenewalScheduler;
+import pl.allegro.tech.discovery.consul.recipes.watch.Canceller;
+import pl.allegro.tech.discovery.consul.recipes.watch.ConsulWatcher;
+import pl.allegro.tech.discovery.consul.recipes.watch.WatchResult;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Lock on an arbitrary KV key, held by a session.
+ * <p>
+ * Every acquisition of a key increments its {@code LockIndex}, which is exposed as a fencing token: a store that
+ * remembers the highest token it has seen can reject writes of a holder that lost the lock without knowing it.
+ * <p>
+ * Waiting for the lock is driven by a blocking query on the key, so waiters try to acquire it only after observing it
+ * free, and then every {@code retryMillis} while it stays free (e.g. during the lock delay of the previous holder).
+ */
+public class DistributedLock implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(DistributedLock.class);
+
+    private final String key;
+    private final byte[] value;
+    private final Session session;
+    private final boolean ownsSession;
+    private final ConsulWatcher consulWatcher;
+    private final JsonDeserializer jsonDeserializer;
+    private final KeyValueWriter writer;
+    private final OkHttpClient httpClient;
+    private final HttpUrl keyUrl;
+    private final String aclToken;
+    private final ScheduledExecutorService retryPool;
+    private final long retryMillis;
+
+    private final List<CompletableFuture<Long>> waiters = new ArrayList<>();
+
+    private volatile Optional<KeyValueEntry> observedEntry = Optional.empty();
+    private volatile String holdingSessionId = null;
+    private volatile long fencingToken = 0;
+    private volatile long acquiredModifyIndex = 0;
+
+    private boolean attemptInFlight = false;
+    private boolean retryScheduled = false;
+
+    private Canceller watchCanceller;
+
+    private DistributedLock(String key,
+                            byte[] value,
+                            Session session,
+                            boolean ownsSession,
+                            ConsulWatcher consulWatcher,
+                            JsonDeserializer jsonDeserializer,
+                            KeyValueWriter writer,
+                            OkHttpClient httpClient,
+                            URI agentUri,
+                            String aclToken,
+                            ScheduledExecutorService retryPool,
+                            long retryMillis) {
+        this.key = key;
+        this.value = value;
+        this.session = session;
+        this.ownsSession = ownsSession;
+        this.consulWatcher = consulWatcher;
+        this.jsonDeserializer = jsonDeserializer;
+        this.writer = writer;
+        this.httpClient = httpClient;
+        this.keyUrl = HttpUrl.get(agentUri).newBuilder("/v1/kv/" + key).build();
+        this.aclToken = aclToken;
+        this.retryPool = retryPool;
+        this.retryMillis = retryMillis;
+    }
+
+    public static Builder forKey(String key,
+                                 OkHttpClient httpClient,
+                                 JsonSerializer jsonSerializer,
+                                 JsonDeserializer jsonDeserializer) {
+        if (jsonDeserializer == null) {
+            throw new IllegalStateException("Configured JsonDeserializer required.");
+        }
+        if (jsonSerializer == null) {
+            throw new IllegalStateException("Configured JsonSerializer required.");
+        }
+        return new Builder(key, httpClient, jsonSerializer, jsonDeserializer);
+    }
+
+    public void start() {
+        if (ownsSession) {
+            session.start();
+        }
+        watchCanceller = new KeyValueWatcher(key, consulWatcher, jsonDeserializer)
+                .watch(this::update, this::watchException);
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            failWaiters(new CancellationException());
+        }
+        if (isHeld()) {
+            unlockAsync().exceptionally(e -> null).join();
+        }
+        if (watchCanceller != null) {
+            watchCanceller.cancel();
+        }
+        retryPool.shutdownNow();
+        writer.close();
+        if (ownsSession) {
+            session.close();
+        }
+    }
+
+    /**
+     * Tries to acquire the lock once, without waiting.
+     *
+     * @return true if the lock is held by this instance
+     */
+    public boolean tryLock() {
+        try {
+            return tryLockAsync().join().isPresent();
+        } catch (CompletionException e) {
+            logger.warn("Couldn't acquire lock {}", key, e.getCause());
+            return false;
+        }
+    }
+
+    /**
+     * Tries to acquire the lock once, without waiting.
+     *
+     * @return fencing token if the lock was acquired, empty if it is held by another session
+     */
+    public CompletableFuture<OptionalLong> tryLockAsync() {
+        if (isHeld()) {
+            return CompletableFuture.completedFuture(OptionalLong.of(fencingToken));
+        }
+        Optional<String> sessionId = currentSessionId();
+        if (!sessionId.isPresent()) {
+            return CompletableFuture.completedFuture(OptionalLong.empty());
+        }
+        return writer.lock(key, value, sessionId.get())
+                .thenCompose(result -> acquiredEntry(sessionId.get(), result))
+                .thenApply(entry -> held(sessionId.get(), entry));
+    }
+
+    /**
+     * Waits for the lock at most the given time.
+     *
+     * @return true if the lock is held by this instance
+     */
+    public boolean lock(long timeout, TimeUnit unit) throws InterruptedException {
+        CompletableFuture<Long> waiter = lockAsync();
+        try {
+            waiter.get(timeout, unit);
+            return true;
+        } catch (TimeoutException e) {
+            waiter.cancel(false);
+            return waiter.isDone() && !waiter.isCompletedExceptionally();
+        } catch (ExecutionException e) {
+            logger.warn("Couldn't acquire lock {}", key, e.getCause());
+            return false;
+        }
+    }
+
+    /**
+     * Completes with the fencing token when the lock is acquired. Cancelling the future stops waiting.
+     */
+    public synchronized CompletableFuture<Long> lockAsync() {
+        if (isHeld()) {
+            return CompletableFuture.completedFuture(fencingToken);
+        }
+        CompletableFuture<Long> waiter = new CompletableFuture<>();
+        waiter.whenComplete((token, e) -> removeWaiter(waiter));
+        waiters.add(waiter);
+        attempt();
+        return waiter;
+    }
+
+    public void unlock() {
+        unlockAsync().join();
+    }
+
+    public CompletableFuture<Void> unlockAsync() {
+        String sessionId = holdingSessionId;
+        if (sessionId == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        holdingSessionId = null;
+        return writer.unlock(key, value, sessionId).thenApply(result -> {
+            if (!result.isSuccessful()) {
+                logger.warn("Couldn't release lock {}: {}", key, result.getError().orElse(""));
+            }
+            return null;
+        });
+    }
+
+    public boolean isHeld() {
+        return holdingSessionId != null;
+    }
+
+    /**
+     * Lock index of the current acquisition, which grows with every acquisition of the key by any session.
+     */
+    public OptionalLong fencingToken() {
+        return isHeld() ? OptionalLong.of(fencingToken) : OptionalLong.empty();
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * Entry of the key after a successful acquisition, empty if the key is held by another session. When the
+     * transaction result doesn't carry the entry, the key is read back; if that fails the lock is released, as
+     * there is no fencing token to hand out.
+     */
+    private CompletableFuture<Optional<KeyValueEntry>> acquiredEntry(String sessionId, KeyValueWriteResult result) {
+        if (!result.isSuccessful()) {
+            return CompletableFuture.completedFuture(Optional.empty());
+        }
+        if (result.getEntry().isPresent()) {
+            return CompletableFuture.completedFuture(result.getEntry());
+        }
+        return readAcquiredEntry(sessionId).whenComplete((entry, e) -> {
+            if (e != null) {
+                writer.unlock(key, value, sessionId);
+            }
+        });
+    }
+
+    private CompletableFuture<Optional<KeyValueEntry>> readAcquiredEntry(String sessionId) {
+        CompletableFuture<Optional<KeyValueEntry>> acquired = new CompletableFuture<>();
+        Request.Builder requestBuilder = new Request.Builder()
+                .url(keyUrl)
+                .get();
+        if (aclToken != null) {
+            requestBuilder.addHeader("X-Consul-Token", aclToken);
+        }
+        httpClient.newCall(requestBuilder.build()).enqueue(new Callback() {
+            @Override
+            public void onFailure(Call call, IOException e) {
+                acquired.completeExceptionally(e);
+            }
+
+            @Override
+            public void onResponse(Call call, Response response) {
+                try (ResponseBody body = response.body()) {
+                    String content = response.isSuccessful() ? body.string() : "";
+                    List<Map<String, Object>> entries = content.trim().isEmpty() ?
+                            null : jsonDeserializer.deserializeMapList(content);
+                    Optional<KeyValueEntry> entry = entries == null || entries.isEmpty() ?
+                            Optional.empty() : Optional.of(KeyValueEntry.fromMap(entries.get(0)));
+                    if (entry.flatMap(KeyValueEntry::getSession).filter(sessionId::equals).isPresent()) {
+                        acquired.complete(entry);
+                    } else {
+                        acquired.completeExceptionally(new KeyValueWriteException(
+                                "Couldn't read fencing token of lock " + key + " acquired by session " + sessionId));
+                    }
+                } catch (Exception e) {
+                    acquired.completeExceptionally(e);
+                }
+            }
+        });
+        return acquired;
+    }
+
+    private synchronized OptionalLong held(String sessionId, Optional<KeyValueEntry> acquired) {
+        if (!acquired.isPresent()) {
+            return OptionalLong.empty();
+        }
+        fencingToken = acquired.get().getLockIndex();
+        acquiredModifyIndex = acquired.get().getModifyIndex();
+        holdingSessionId = sessionId;
+        completeWaiters();
+        return OptionalLong.of(fencingToken);
+    }
+
+    private void update(WatchResult<KeyValueSnapshot> result) {
+        Optional<KeyValueEntry> entry = result.getBody().get(key);
+        synchronized (this) {
+            observedEntry = entry;
+            Optional<String> holder = entry.flatMap(KeyValueEntry::getSession);
+            String sessionId = holdingSessionId;
+            boolean heldByOther = sessionId != null && !holder.filter(sessionId::equals).isPresent();
+            // a result of a query answered before the acquisition doesn't mean the lock was lost
+            long observedIndex = entry.map(KeyValueEntry::getModifyIndex).orElse(result.getIndex());
+            if (heldByOther && observedIndex > acquiredModifyIndex) {
+                logger.warn("Lost lock {}", key);
+                holdingSessionId = null;
+            }
+            if (!holder.isPresent()) {
+                attempt();
+            }
+        }
+    }
+
+    private synchronized void attempt() {
+        if (waiters.isEmpty() || attemptInFlight || isHeld()) {
+            return;
+        }
+        Optional<String> sessionId = currentSessionId();
+        if (!sessionId.isPresent()) {
+            scheduleRetry();
+            return;
+        }
+        attemptInFlight = true;
+        writer.lock(key, value, sessionId.get())
+                .thenCompose(result -> acquiredEntry(sessionId.get(), result))
+                .whenComplete((acquired, e) -> {
+            synchronized (this) {
+                attemptInFlight = false;
+                if (e != null) {
+                    logger.warn("Couldn't acquire lock {}", key, e);
+                }
+                if (e == null && acquired.isPresent() && waiters.isEmpty()) {
+                    // every waiter gave up while the attempt was in flight
+                    writer.unlock(key, value, sessionId.get());
+                } else if (e != null || !held(sessionId.get(), acquired).isPresent()) {
+                    boolean observedFree = !observedEntry.flatMap(KeyValueEntry::getSession).isPresent();
+                    if (observedFree) {
+                        scheduleRetry();
+                    }
+                }
+            }
+        });
+    }
+
+    private void scheduleRetry() {
+        if (retryScheduled || retryPool.isShutdown()) {
+            return;
+        }
+        retryScheduled = true;
+        retryPool.schedule(() -> {
+            synchronized (this) {
+                retryScheduled = false;
+                attempt();
+            }
+        }, retryMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void completeWaiters() {
+        for (CompletableFuture<Long> waiter : new ArrayList<>(waiters)) {
+            waiter.complete(fencingToken);
+        }
+    }
+
+    private void failWaiters(Exception exception) {
+        for (CompletableFuture<Long> waiter : new ArrayList<>(waiters)) {
+            waiter.completeExceptionally(exception);
+        }
+    }
+
+    private synchronized void removeWaiter(CompletableFuture<Long> waiter) {
+        waiters.remove(waiter);
+    }
+
+    private void watchException(Exception exception) {
+        logger.warn("Got an exception while watching lock {}", key, exception);
+    }
+
+    private Optional<String> currentSessionId() {
+        try {
+            return Optional.of(session.currentId());
+        } catch (Exception e) {
+            return Optional.empty();
+        }
+    }
+
+    public static class Builder {
+        private final String key;
+        private final OkHttpClient httpClient;
+        private final JsonSerializer jsonSerializer;
+        private final JsonDeserializer jsonDeserializer;
+
+        private URI agentUri = URI.create("http://localhost:8500");
+        private String aclToken = null;
+        private ConsulWatcher consulWatcher = null;
+        private Session session = null;
+        private SessionRenewalScheduler sessionRenewalScheduler = null;
+        private byte[] value = new byte[0];
+        private long retryMillis = 1000;
+
+        private Builder(String key,
+                        OkHttpClient httpClient,
+                        JsonSerializer jsonSerializer,
+                        JsonDeserializer jsonDeserializer) {
+            this.key = key;
+            this.httpClient = httpClient;
+            this.jsonSerializer = jsonSerializer;
+            this.jsonDeserializer = jsonDeserializer;
+        }
+
+        public Builder withAgentUri(URI agentUri) {
+            this.agentUri = agentUri;
+            return this;
+        }
+
+        public Builder withAclToken(String aclToken) {
+            this.aclToken = aclToken;
+            return this;
+        }
+
+        public Builder withConsulWatcher(ConsulWatcher consulWatcher) {
+            this.consulWatcher = consulWatcher;
+            return this;
+        }
+
+        /**
+         * Session shared with other locks. It has to be started and closed by the caller.
+         */
+        public Builder withSession(Session session) {
+            this.session = session;
+            return this;
+        }
+
+        /**
+         * Scheduler renewing the session created by the lock. Ignored when session is provided.
+         */
+        public Builder withSessionRenewalScheduler(SessionRenewalScheduler sessionRenewalScheduler) {
+            this.sessionRenewalScheduler = sessionRenewalScheduler;
+            return this;
+        }
+
+        public Builder withValue(byte[] value) {
+            this.value = value;
+            return this;
+        }
+
+        /**
+         * Interval of acquisition attempts of waiters while the lock is observed free, but can't be acquired,
+         * e.g. because of the lock delay.
+         */
+        public Builder withRetryMillis(long retryMillis) {
+            this.retryMillis = retryMillis;
+            return this;
+        }
+
+        public DistributedLock build() {
+            if (this.consulWatcher == null) {
+                ExecutorService workerPool = Executors.newSingleThreadExecutor(
+                        new ThreadFactoryBuilder("consul-recipes-lock-watch-%d").build());
+                this.consulWatcher = ConsulRecipes.consulRecipes()
+                        .withAgentUri(agentUri)
+                        .withJsonSerializer(jsonSerializer)
+                        .withJsonDeserializer(jsonDeserializer)
+                        .build()
+                        .consulWatcher(workerPool)
+                        .build();
+            }
+
+            boolean ownsSession = this.session == null;
+            Session lockSession = ownsSession ?
+                    Session.forService(key, httpClient, jsonSerializer, jsonDeserializer)
+                            .withAgentUri(agentUri)
+                            .withRenewalScheduler(sessionRenewalScheduler)
+                            .build() :
+                    this.session;
+
+            KeyValueWriter writer = KeyValueWriter.keyValueWriter(httpClient, jsonSerializer, jsonDeserializer)
+                    .withAgentUri(agentUri)
+                    .withAclToken(aclToken)
+                    .build();
+
+            ScheduledExecutorService retryPool = Executors.newSingleThreadScheduledExecutor(
+                    new ThreadFactoryBuilder("consul-recipes-lock-retry-%d").build());
+
+            return new DistributedLock(key, value, lockSession, ownsSession, consulWatcher, jsonDeserializer, writer,
+                    httpClient, agentUri, aclToken, retryPool, retryMillis);
+        }
+    }
+}
@@ -0,0 +1,370 @@
+package pl.allegro.tech.discovery.consul.recipes.partition;
+
+import okhttp3.OkHttpClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import pl.allegro.tech.discovery.consul.recipes.ConsulRecipes;
+import pl.allegro.tech.discovery.consul.recipes.internal.thread.ThreadFactoryBuilder;
+import pl.allegro.tech.discovery.consul.recipes.json.JsonDeserializer;
+import pl.allegro.tech.discovery.consul.recipes.json.JsonSerializer;
+import pl.allegro.tech.discovery.consul.recipes.kv.KeyValueEntry;
+import pl.allegro.tech.discovery.consul.recipes.kv.KeyValueSnapshot;
+import pl.allegro.tech.discovery.consul.recipes.kv.KeyValueWatcher;
+import pl.allegro.tech.discovery.consul.recipes.kv.KeyValueWriter;
+import pl.allegro.tech.discovery.consul.recipes.session.Session;
+import pl.allegro.tech.discovery.consul.recipes.session.SessionRenewalScheduler;
+import pl.allegro.tech.discovery.consul.recipes.watch.Canceller;
+import pl.allegro.tech.discovery.consul.recipes.watch.ConsulWatcher;
+import pl.allegro.tech.discovery.consul.recipes.watch.WatchResult;
+
+import java.io.Closeable;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Spreads a fixed number of partitions among nodes of a service. Every node registers as a member with a key
+ * {@code service/<serviceName>/members/<nodeId>} held by its session, watches all members with a single recursive
+ * blocking query and computes its partitions with rendezvous hashing, so when a node joins or leaves, only
+ * partitions it takes over or owned move.
+ * <p>
+ * Nodes observe membership changes independently, so a partition may briefly be assigned to two nodes, or to none.
+ * Processing that must not overlap should additionally be guarded, e.g. with fencing tokens.
+ */
+public class PartitionAssigner implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(PartitionAssigner.class);
+
+    private final String serviceName;
+    private final String nodeId;
+    private final int partitionCount;
+    private final Session session;
+    private final boolean ownsSession;
+    private final ConsulWatcher consulWatcher;
+    private final KeyValueWriter writer;
+    private final JsonDeserializer jsonDeserializer;
+    private final ScheduledExecutorService registrationPool;
+    private final long registrationRetryMillis;
+    private final List<PartitionObserver> observers = new CopyOnWriteArrayList<>();
+    private final AtomicBoolean registrationInFlight = new AtomicBoolean(false);
+
+    private volatile Set<Integer> assigned = Collections.emptySet();
+    private volatile Set<String> members = Collections.emptySet();
+    private volatile boolean registered = false;
+    private volatile boolean closed = false;
+
+    private Canceller watchCanceller;
+
+    private PartitionAssigner(String serviceName,
+                              String nodeId,
+                              int partitionCount,
+                              Session session,
+                              boolean ownsSession,
+                              ConsulWatcher consulWatcher,
+                              KeyValueWriter writer,
+                              JsonDeserializer jsonDeserializer,
+                              ScheduledExecutorService registrationPool,
+                              long registrationRetryMillis) {
+        this.serviceName = serviceName;
+        this.nodeId = nodeId;
+        this.partitionCount = partitionCount;
+        this.session = session;
+        this.ownsSession = ownsSession;
+        this.consulWatcher = consulWatcher;
+        this.writer = writer;
+        this.jsonDeserializer = jsonDeserializer;
+        this.registrationPool = registrationPool;
+        this.registrationRetryMillis = registrationRetryMillis;
+    }
+
+    public static Builder forService(String serviceName,
+                                     int partitionCount,
+                                     OkHttpClient httpClient,
+                                     JsonSerializer jsonSerializer,
+                                     JsonDeserializer jsonDeserializer) {
+        if (jsonDeserializer == null) {
+            throw new IllegalStateException("Configured JsonDeserializer required.");
+        }
+        if (jsonSerializer == null) {
+            throw new IllegalStateException("Configured JsonSerializer required.");
+        }
+        if (partitionCount < 1) {
+            throw new IllegalArgumentException("Partition count must be positive");
+        }
+        return new Builder(serviceName, partitionCount, httpClient, jsonSerializer, jsonDeserializer);
+    }
+
+    public void start() {
+        if (ownsSession) {
+            session.start();
+        }
+        registrationPool.scheduleWithFixedDelay(this::registerIfMissing,
+                0, registrationRetryMillis, TimeUnit.MILLISECONDS);
+        watchCanceller = new KeyValueWatcher(membersPrefix(), consulWatcher, jsonDeserializer)
+                .watch(this::membersUpdate, this::watchException);
+    }
+
+    @Override
+    public void close() {
+        if (watchCanceller != null) {
+            watchCanceller.cancel();
+        }
+        closed = true;
+        revokeAll();
+        CompletableFuture<?> deregistration = writer.delete(memberKey());
+        writer.flush();
+        deregistration.exceptionally(e -> null).join();
+        // shuts down the registration pool, which is also the flush pool of the writer
+        writer.close();
+        if (ownsSession) {
+            session.close();
+        }
+    }
+
+    /**
+     * Partitions currently assigned to this node, numbered from 0 to {@code partitionCount - 1}.
+     */
+    public Set<Integer> assignedPartitions() {
+        return assigned;
+    }
+
+    public boolean isAssigned(int partition) {
+        return assigned.contains(partition);
+    }
+
+    /**
+     * Node ids of members, as seen in the last watch result.
+     */
+    public Set<String> members() {
+        return members;
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    public int getPartitionCount() {
+        return partitionCount;
+    }
+
+    public void registerObserver(PartitionObserver observer) {
+        observers.add(observer);
+    }
+
+    public void unregisterObserver(PartitionObserver observer) {
+        observers.remove(observer);
+    }
+
+    private void membersUpdate(WatchResult<KeyValueSnapshot> result) {
+        try {
+            Set<String> current = new TreeSet<>();
+            Optional<String> ownSession = currentSessionId();
+            boolean ownRegistration = false;
+            for (KeyValueEntry entry : result.getBody().withPrefix(membersPrefix()).values()) {
+                Optional<String> holder = entry.getSession();
+                if (!holder.isPresent()) {
+                    continue;
+                }
+                String member = entry.getKey().substring(membersPrefix().length());
+                current.add(member);
+                if (member.equals(nodeId)) {
+                    ownRegistration = holder.equals(ownSession);
+                }
+            }
+            members = Collections.unmodifiableSet(current);
+            registered = ownRegistration;
+            if (!ownRegistration && !closed) {
+                registrationPool.execute(this::registerIfMissing);
+            }
+            reassign(RendezvousHashing.partitionsOf(nodeId, ownRegistration ? current : Collections.emptySet(),
+                    partitionCount));
+        } catch (Exception e) {
+            logger.error("Unexpected issue on update of members of {}", serviceName, e);
+        }
+    }
+
+    private synchronized void reassign(Set<Integer> partitions) {
+        Set<Integer> revoked = new TreeSet<>(assigned);
+        revoked.removeAll(partitions);
+        Set<Integer> gained = new TreeSet<>(partitions);
+        gained.removeAll(assigned);
+        assigned = Collections.unmodifiableSet(new TreeSet<>(partitions));
+        if (!revoked.isEmpty()) {
+            logger.info("Node({}) revoked partitions {} of {}", nodeId, revoked, serviceName);
+            Set<Integer> unmodifiableRevoked = Collections.unmodifiableSet(revoked);
+            observers.forEach(observer -> observer.partitionsRevoked(unmodifiableRevoked));
+        }
+        if (!gained.isEmpty()) {
+            logger.info("Node({}) assigned partitions {} of {}", nodeId, gained, serviceName);
+            Set<Integer> unmodifiableGained = Collections.unmodifiableSet(gained);
+            observers.forEach(observer -> observer.partitionsAssigned(unmodifiableGained));
+        }
+    }
+
+    private void revokeAll() {
+        reassign(new HashSet<>());
+    }
+
+    private void registerIfMissing() {
+        if (closed || registered || !registrationInFlight.compareAndSet(false, true)) {
+            return;
+        }
+        Optional<String> sessionId = currentSessionId();
+        if (!sessionId.isPresent()) {
+            registrationInFlight.set(false);
+            return;
+        }
+        writer.lock(memberKey(), nodeId.getBytes(StandardCharsets.UTF_8), sessionId.get()).whenComplete((result, e) -> {
+            registrationInFlight.set(false);
+            if (e != null) {
+                logger.warn("Couldn't register member {} of {}", nodeId, serviceName, e);
+            } else if (!result.isSuccessful()) {
+                logger.debug("Member {} of {} not registered: {}", nodeId, serviceName, result.getError().orElse(""));
+            }
+        });
+    }
+
+    private Optional<String> currentSessionId() {
+        try {
+            return Optional.of(session.currentId());
+        } catch (Exception e) {
+            return Optional.empty();
+        }
+    }
+
+    private void watchException(Exception exception) {
+        logger.warn("Got an exception while watching members of {}", serviceName, exception);
+    }
+
+    private String membersPrefix() {
+        return "service/" + serviceName + "/members/";
+    }
+
+    private String memberKey() {
+        return membersPrefix() + nodeId;
+    }
+
+    public static class Builder {
+        private final String serviceName;
+        private final int partitionCount;
+        private final OkHttpClient httpClient;
+        private final JsonSerializer jsonSerializer;
+        private final JsonDeserializer jsonDeserializer;
+
+        private URI agentUri = URI.create("http://localhost:8500");
+        private String aclToken = null;
+        private ConsulWatcher consulWatcher = null;
+        private Session session = null;
+        private SessionRenewalScheduler sessionRenewalScheduler = null;
+        private String nodeId = UUID.randomUUID().toString();
+        private long registrationRetryMillis = 5000;
+
+        private Builder(String serviceName,
+                        int partitionCount,
+                        OkHttpClient httpClient,
+                        JsonSerializer jsonSerializer,
+                        JsonDeserializer jsonDeserializer) {
+            this.serviceName = serviceName;
+            this.partitionCount = partitionCount;
+            this.httpClient = httpClient;
+            this.jsonSerializer = jsonSerializer;
+            this.jsonDeserializer = jsonDeserializer;
+        }
+
+        public Builder withAgentUri(URI agentUri) {
+            this.agentUri = agentUri;
+            return this;
+        }
+
+        public Builder withAclToken(String aclToken) {
+            this.aclToken = aclToken;
+            return this;
+        }
+
+        public Builder withConsulWatcher(ConsulWatcher consulWatcher) {
+            this.consulWatcher = consulWatcher;
+            return this;
+        }
+
+        /**
+         * Session shared with other recipes. It has to be started and closed by the caller.
+         */
+        public Builder withSession(Session session) {
+            this.session = session;
+            return this;
+        }
+
+        /**
+         * Scheduler renewing the session created by the assigner. Ignored when session is provided.
+         */
+        public Builder withSessionRenewalScheduler(SessionRenewalScheduler sessionRenewalScheduler) {
+            this.sessionRenewalScheduler = sessionRenewalScheduler;
+            return this;
+        }
+
+        /**
+         * Identity of the member used for hashing. A node that keeps its id after a restart gets the same partitions
+         * back, provided the other members did not change.
+         */
+        public Builder withNodeId(String nodeId) {
+            this.nodeId = nodeId;
+            return this;
+        }
+
+        /**
+         * Interval of registration attempts while the member key is missing or held by another session,
+         * e.g. during the lock delay after the session of this node was lost.
+         */
+        public Builder withRegistrationRetryMillis(long registrationRetryMillis) {
+            this.registrationRetryMillis = registrationRetryMillis;
+            return this;
+        }
+
+        public PartitionAssigner build() {
+            if (this.consulWatcher == null) {
+                ExecutorService workerPool = Executors.newSingleThreadExecutor(
+                        new ThreadFactoryBuilder("consul-recipes-partition-watch-%d").build());
+                this.consulWatcher = ConsulRecipes.consulRecipes()
+                        .withAgentUri(agentUri)
+                        .withJsonSerializer(jsonSerializer)
+                        .withJsonDeserializer(jsonDeserializer)
+                        .build()
+                        .consulWatcher(workerPool)
+                        .build();
+            }
+
+            boolean ownsSession = this.session == null;
+            Session assignerSession = ownsSession ?
+                    Session.forService(serviceName, httpClient, jsonSerializer, jsonDeserializer)
+                            .withAgentUri(agentUri)
+                            .withRenewalScheduler(sessionRenewalScheduler)
+                            .build() :
+                    this.session;
+
+            ScheduledExecutorService registrationPool = Executors.newSingleThreadScheduledExecutor(
+                    new ThreadFactoryBuilder("consul-recipes-partition-registration-%d").build());
+
+            KeyValueWriter writer = KeyValueWriter.keyValueWriter(httpClient, jsonSerializer, jsonDeserializer)
+                    .withAgentUri(agentUri)
+                    .withAclToken(aclToken)
+                    .withFlushPool(registrationPool)
+                    .build();
+
+            return new PartitionAssigner(serviceName, nodeId, partitionCount, assignerSession, ownsSession,
+                    consulWatcher, writer, jsonDeserializer, registrationPool, registrationRetryMillis);
+        }
+    }
+}
@@ -0,0 +1,8 @@
+package pl.allegro.tech.discovery.consul.recipes.partition;
+
+import java.util.Set;
+
+public interface PartitionObserver {
+    void partitionsAssigned(Set<Integer> partitions);
+    void partitionsRevoked(Set<Integer> partitions);
+}
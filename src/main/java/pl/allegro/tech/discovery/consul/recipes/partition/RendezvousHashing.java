@@ -0,0 +1,67 @@
+package pl.allegro.tech.discovery.consul.recipes.partition;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Highest random weight hashing: every partition is assigned to the member with the highest hash of
+ * {@code (member, partition)}. When a member joins or leaves, only partitions it gains or owned move,
+ * and all members compute the same assignment from the same member set without coordination.
+ */
+class RendezvousHashing {
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private RendezvousHashing() {
+    }
+
+    static Set<Integer> partitionsOf(String member, Collection<String> members, int partitionCount) {
+        Set<Integer> partitions = new HashSet<>();
+        if (!members.contains(member)) {
+            return partitions;
+        }
+        for (int partition = 0; partition < partitionCount; partition++) {
+            if (member.equals(ownerOf(partition, members))) {
+                partitions.add(partition);
+            }
+        }
+        return partitions;
+    }
+
+    static String ownerOf(int partition, Collection<String> members) {
+        String owner = null;
+        long highestWeight = 0;
+        for (String member : members) {
+            long weight = weight(member, partition);
+            if (owner == null || Long.compareUnsigned(weight, highestWeight) > 0
+                    || (weight == highestWeight && member.compareTo(owner) < 0)) {
+                owner = member;
+                highestWeight = weight;
+            }
+        }
+        return owner;
+    }
+
+    static long weight(String member, int partition) {
+        long hash = FNV_OFFSET_BASIS;
+        for (byte b : member.getBytes(StandardCharsets.UTF_8)) {
+            hash = (hash ^ (b & 0xff)) * FNV_PRIME;
+        }
+        for (int shift = 0; shift < 32; shift += 8) {
+            hash = (hash ^ ((partition >>> shift) & 0xff)) * FNV_PRIME;
+        }
+        return mix(hash);
+    }
+
+    /**
+     * Finalizer of SplitMix64, spreading FNV hashes of similar inputs, e.g. consecutive partitions.
+     */
+    private static long mix(long hash) {
+        hash = (hash ^ (hash >>> 30)) * 0xbf58476d1ce4e5b9L;
+        hash = (hash ^ (hash >>> 27)) * 0x94d049bb133111ebL;
+        return hash ^ (hash >>> 31);
+    }
+}
@@ -0,0 +1,17 @@
+package pl.allegro.tech.discovery.consul.recipes.registration;
+
+public enum CheckStatus {
+    PASSING("passing"),
+    WARNING("warning"),
+    CRITICAL("critical");
+
+    private final String consulValue;
+
+    CheckStatus(String consulValue) {
+        this.consulValue = consulValue;
+    }
+
+    String consulValue() {
+        return consulValue;
+    }
+}
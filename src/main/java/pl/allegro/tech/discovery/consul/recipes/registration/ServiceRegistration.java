@@ -0,0 +1,146 @@
+package pl.allegro.tech.discovery.consul.recipes.registration;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Service registered in the local agent together with a TTL check, which has to be heartbeated by
+ * {@link ServiceRegistry}.
+ */
+public class ServiceRegistration {
+
+    private final String serviceId;
+    private final String serviceName;
+    private final String address;
+    private final Integer port;
+    private final List<String> tags;
+    private final Map<String, String> meta;
+    private final int checkTtlSeconds;
+    private final Integer deregisterCriticalAfterSeconds;
+
+    private ServiceRegistration(String serviceId,
+                                String serviceName,
+                                String address,
+                                Integer port,
+                                List<String> tags,
+                                Map<String, String> meta,
+                                int checkTtlSeconds,
+                                Integer deregisterCriticalAfterSeconds) {
+        this.serviceId = serviceId;
+        this.serviceName = serviceName;
+        this.address = address;
+        this.port = port;
+        this.tags = tags;
+        this.meta = meta;
+        this.checkTtlSeconds = checkTtlSeconds;
+        this.deregisterCriticalAfterSeconds = deregisterCriticalAfterSeconds;
+    }
+
+    public static Builder forService(String serviceName) {
+        return new Builder(serviceName);
+    }
+
+    public String getServiceId() {
+        return serviceId;
+    }
+
+    public String getServiceName() {
+        return serviceName;
+    }
+
+    public String getCheckId() {
+        return "service:" + serviceId;
+    }
+
+    public int getCheckTtlSeconds() {
+        return checkTtlSeconds;
+    }
+
+    Map<String, Object> toConsulRegistration() {
+        Map<String, Object> check = new HashMap<>();
+        check.put("CheckID", getCheckId());
+        check.put("Name", "Service '" + serviceName + "' TTL check");
+        check.put("TTL", checkTtlSeconds + "s");
+        if (deregisterCriticalAfterSeconds != null) {
+            check.put("DeregisterCriticalServiceAfter", deregisterCriticalAfterSeconds + "s");
+        }
+
+        Map<String, Object> registration = new HashMap<>();
+        registration.put("ID", serviceId);
+        registration.put("Name", serviceName);
+        registration.put("Tags", tags);
+        registration.put("Meta", meta);
+        registration.put("Check", check);
+        if (address != null) {
+            registration.put("Address", address);
+        }
+        if (port != null) {
+            registration.put("Port", port);
+        }
+        return registration;
+    }
+
+    public static class Builder {
+        private final String serviceName;
+
+        private String serviceId;
+        private String address = null;
+        private Integer port = null;
+        private List<String> tags = new ArrayList<>();
+        private Map<String, String> meta = new HashMap<>();
+        private int checkTtlSeconds = 30;
+        private Integer deregisterCriticalAfterSeconds = null;
+
+        private Builder(String serviceName) {
+            this.serviceName = serviceName;
+            this.serviceId = serviceName;
+        }
+
+        public Builder withServiceId(String serviceId) {
+            this.serviceId = serviceId;
+            return this;
+        }
+
+        public Builder withAddress(String address) {
+            this.address = address;
+            return this;
+        }
+
+        public Builder withPort(int port) {
+            this.port = port;
+            return this;
+        }
+
+        public Builder withTags(List<String> tags) {
+            this.tags = new ArrayList<>(tags);
+            return this;
+        }
+
+        public Builder withMeta(Map<String, String> meta) {
+            this.meta = new HashMap<>(meta);
+            return this;
+        }
+
+        public Builder withCheckTtlSeconds(int checkTtlSeconds) {
+            this.checkTtlSeconds = checkTtlSeconds;
+            return this;
+        }
+
+        /**
+         * Consul deregisters the service when its check stays critical longer than given time.
+         */
+        public Builder withDeregisterCriticalAfterSeconds(int deregisterCriticalAfterSeconds) {
+            this.deregisterCriticalAfterSeconds = deregisterCriticalAfterSeconds;
+            return this;
+        }
+
+        public ServiceRegistration build() {
+            return new ServiceRegistration(serviceId, serviceName, address, port,
+                    Collections.unmodifiableList(tags), Collections.unmodifiableMap(meta),
+                    checkTtlSeconds, deregisterCriticalAfterSeconds);
+        }
+    }
+}
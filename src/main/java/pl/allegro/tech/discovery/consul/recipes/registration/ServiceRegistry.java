@@ -0,0 +1,485 @@
+package pl.allegro.tech.discovery.consul.recipes.registration;
+
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import pl.allegro.tech.discovery.consul.recipes.json.JsonDeserializer;
+import pl.allegro.tech.discovery.consul.recipes.json.JsonSerializer;
+import pl.allegro.tech.discovery.consul.recipes.session.SessionRenewalScheduler;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static java.net.HttpURLConnection.HTTP_NOT_FOUND;
+import static pl.allegro.tech.discovery.consul.recipes.internal.http.BodyParser.readBodyOrFallback;
+import static pl.allegro.tech.discovery.consul.recipes.internal.http.MediaType.JSON_MEDIA_TYPE;
+
+/**
+ * Registers services with TTL checks in the local agent and heartbeats all of them from a single scheduled tick,
+ * sharing one HTTP client and a {@link SessionRenewalScheduler} with sessions.
+ * <p>
+ * Every tick sends heartbeats of checks whose status changed since the last heartbeat and of checks that are due,
+ * so heartbeats falling due close to each other are coalesced into one burst. A check is due after
+ * {@code heartbeatRatio} of its TTL, moved earlier by a random jitter to spread services registered at the same time.
+ * Status updates that don't change the status are not sent until the check is due, so callers can report status
+ * as often as they like.
+ * <p>
+ * When the agent doesn't know a check, e.g. after it restarted, the service is registered again.
+ */
+public class ServiceRegistry implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(ServiceRegistry.class);
+
+    private final OkHttpClient httpClient;
+    private final HttpUrl baseUrl;
+    private final String aclToken;
+    private final JsonSerializer jsonSerializer;
+    private final SessionRenewalScheduler scheduler;
+    private final boolean ownsScheduler;
+    private final long tickMillis;
+    private final double heartbeatRatio;
+    private final double heartbeatJitterRatio;
+    private final ServiceRegistryStats stats = new ServiceRegistryStats();
+
+    private final Map<String, RegisteredService> services = new ConcurrentHashMap<>();
+    private final AtomicReference<ScheduledFuture<?>> scheduledTick = new AtomicReference<>();
+
+    private volatile boolean closed = false;
+
+    private ServiceRegistry(OkHttpClient httpClient,
+                            URI agentUri,
+                            String aclToken,
+                            JsonSerializer jsonSerializer,
+                            SessionRenewalScheduler scheduler,
+                            boolean ownsScheduler,
+                            long tickMillis,
+                            double heartbeatRatio,
+                            double heartbeatJitterRatio) {
+        this.httpClient = httpClient;
+        this.baseUrl = HttpUrl.get(agentUri);
+        this.aclToken = aclToken;
+        this.jsonSerializer = jsonSerializer;
+        this.scheduler = scheduler;
+        this.ownsScheduler = ownsScheduler;
+        this.tickMillis = tickMillis;
+        this.heartbeatRatio = heartbeatRatio;
+        this.heartbeatJitterRatio = heartbeatJitterRatio;
+    }
+
+    public static Builder serviceRegistry(OkHttpClient httpClient,
+                                          JsonSerializer jsonSerializer,
+                                          JsonDeserializer jsonDeserializer) {
+        if (jsonDeserializer == null) {
+            throw new IllegalStateException("Configured JsonDeserializer required.");
+        }
+        if (jsonSerializer == null) {
+            throw new IllegalStateException("Configured JsonSerializer required.");
+        }
+        return new Builder(httpClient, jsonSerializer);
+    }
+
+    public void start() {
+        scheduleTick();
+    }
+
+    /**
+     * Deregisters all services and stops heartbeating.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        ScheduledFuture<?> tick = scheduledTick.getAndSet(null);
+        if (tick != null) {
+            tick.cancel(false);
+        }
+        List<CompletableFuture<Void>> deregistrations = new ArrayList<>();
+        for (String serviceId : new ArrayList<>(services.keySet())) {
+            deregistrations.add(deregister(serviceId));
+        }
+        try {
+            CompletableFuture.allOf(deregistrations.toArray(new CompletableFuture[0])).get(5, TimeUnit.SECONDS);
+        } catch (Exception e) {
+            logger.warn("Couldn't deregister all services", e);
+        }
+        if (ownsScheduler) {
+            scheduler.close();
+        }
+    }
+
+    /**
+     * Registers the service with its check in {@link CheckStatus#PASSING} status. Registering a service with the same
+     * id again replaces the registration.
+     */
+    public CompletableFuture<Void> register(ServiceRegistration registration) {
+        RegisteredService service = new RegisteredService(registration);
+        services.put(registration.getServiceId(), service);
+        return sendRegistration(service);
+    }
+
+    public CompletableFuture<Void> deregister(String serviceId) {
+        services.remove(serviceId);
+        return send(put("/v1/agent/service/deregister/" + serviceId, new byte[0]))
+                .thenApply(response -> null);
+    }
+
+    public void pass(String serviceId) {
+        updateStatus(serviceId, CheckStatus.PASSING, "");
+    }
+
+    public void warn(String serviceId, String output) {
+        updateStatus(serviceId, CheckStatus.WARNING, output);
+    }
+
+    public void fail(String serviceId, String output) {
+        updateStatus(serviceId, CheckStatus.CRITICAL, output);
+    }
+
+    /**
+     * Reports status of the service check. It is sent with the next tick if it differs from the last sent one,
+     * and otherwise when the check is due.
+     */
+    public void updateStatus(String serviceId, CheckStatus status, String output) {
+        RegisteredService service = services.get(serviceId);
+        if (service == null) {
+            throw new IllegalArgumentException("Service " + serviceId + " is not registered");
+        }
+        service.update(new CheckState(status, output), System.currentTimeMillis());
+    }
+
+    public Set<String> registeredServices() {
+        return services.keySet();
+    }
+
+    public ServiceRegistryStats stats() {
+        return stats;
+    }
+
+    private void scheduleTick() {
+        if (closed) {
+            return;
+        }
+        scheduledTick.set(scheduler.schedule(this::tick, tickMillis));
+        if (closed) {
+            ScheduledFuture<?> tick = scheduledTick.getAndSet(null);
+            if (tick != null) {
+                tick.cancel(false);
+            }
+        }
+    }
+
+    private void tick() {
+        try {
+            long now = System.currentTimeMillis();
+            for (RegisteredService service : services.values()) {
+                long dueMillis = service.dueMillis();
+                if (now >= dueMillis) {
+                    heartbeat(service, now, dueMillis);
+                }
+            }
+        } catch (Exception e) {
+            logger.error("Unexpected issue while heartbeating services", e);
+        } finally {
+            scheduleTick();
+        }
+    }
+
+    private void heartbeat(RegisteredService service, long now, long dueMillis) {
+        if (!service.inFlight.compareAndSet(false, true)) {
+            return;
+        }
+        CheckState state = service.pending.get();
+        stats.heartbeatSent(Math.max(0, now - dueMillis));
+        Request request;
+        try {
+            Map<String, Object> update = new HashMap<>(2);
+            update.put("Status", state.status.consulValue());
+            update.put("Output", state.output);
+            request = put("/v1/agent/check/update/" + service.registration.getCheckId(),
+                    jsonSerializer.serializeMap(update).getBytes(StandardCharsets.UTF_8));
+        } catch (Exception e) {
+            service.inFlight.set(false);
+            stats.heartbeatFailed();
+            logger.error("Couldn't prepare heartbeat of {}", service.registration.getServiceId(), e);
+            return;
+        }
+        httpClient.newCall(request).enqueue(new Callback() {
+            @Override
+            public void onFailure(Call call, IOException e) {
+                service.inFlight.set(false);
+                stats.heartbeatFailed();
+                service.retryLater(System.currentTimeMillis());
+                logger.warn("Couldn't heartbeat service {}", service.registration.getServiceId(), e);
+            }
+
+            @Override
+            public void onResponse(Call call, Response response) {
+                try (ResponseBody body = response.body()) {
+                    long completedAt = System.currentTimeMillis();
+                    if (response.isSuccessful()) {
+                        stats.heartbeatSucceeded(Math.max(0, service.expiresAtMillis - completedAt));
+                        service.heartbeated(state, now);
+                    } else if (response.code() == HTTP_NOT_FOUND
+                            && services.get(service.registration.getServiceId()) == service) {
+                        stats.reregistered();
+                        logger.info("Check of service {} unknown to the agent, registering it again",
+                                service.registration.getServiceId());
+                        service.reregistering();
+                        sendRegistration(service).whenComplete((ignored, e) -> {
+                            if (e != null) {
+                                service.reregistrationFailed(System.currentTimeMillis());
+                                logger.warn("Couldn't register service {} again",
+                                        service.registration.getServiceId(), e);
+                            }
+                        });
+                    } else {
+                        stats.heartbeatFailed();
+                        service.retryLater(completedAt);
+                        logger.warn("Unsuccessful heartbeat HTTP response. Code: {}; Body: {}",
+                                response.code(), readBodyOrFallback(response, "(failed to read body)"));
+                    }
+                } finally {
+                    service.inFlight.set(false);
+                }
+            }
+        });
+    }
+
+    private CompletableFuture<Void> sendRegistration(RegisteredService service) {
+        try {
+            byte[] body = jsonSerializer.serializeMap(service.registration.toConsulRegistration())
+                    .getBytes(StandardCharsets.UTF_8);
+            long sentAt = System.currentTimeMillis();
+            return send(put("/v1/agent/service/register", body)).thenApply(response -> {
+                // a newly registered TTL check is critical until the first heartbeat
+                service.registered(sentAt);
+                return null;
+            });
+        } catch (Exception e) {
+            CompletableFuture<Void> result = new CompletableFuture<>();
+            result.completeExceptionally(e);
+            return result;
+        }
+    }
+
+    private CompletableFuture<Response> send(Request request) {
+        CompletableFuture<Response> result = new CompletableFuture<>();
+        httpClient.newCall(request).enqueue(new Callback() {
+            @Override
+            public void onFailure(Call call, IOException e) {
+                result.completeExceptionally(e);
+            }
+
+            @Override
+            public void onResponse(Call call, Response response) {
+                try (ResponseBody body = response.body()) {
+                    if (response.isSuccessful()) {
+                        result.complete(response);
+                    } else {
+                        result.completeExceptionally(new IOException("Received status code " + response.code()
+                                + ": " + readBodyOrFallback(response, "(failed to read body)")));
+                    }
+                }
+            }
+        });
+        return result;
+    }
+
+    private Request put(String path, byte[] body) {
+        Request.Builder requestBuilder = new Request.Builder()
+                .url(baseUrl.newBuilder(path).build())
+                .put(RequestBody.create(JSON_MEDIA_TYPE, body));
+        if (aclToken != null) {
+            requestBuilder.addHeader("X-Consul-Token", aclToken);
+        }
+        return requestBuilder.build();
+    }
+
+    private static class CheckState {
+        private final CheckStatus status;
+        private final String output;
+
+        private CheckState(CheckStatus status, String output) {
+            this.status = status;
+            this.output = output != null ? output : "";
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            CheckState that = (CheckState) o;
+            return status == that.status && Objects.equals(output, that.output);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(status, output);
+        }
+    }
+
+    private class RegisteredService {
+        private final ServiceRegistration registration;
+        private final long ttlMillis;
+        private final AtomicReference<CheckState> pending =
+                new AtomicReference<>(new CheckState(CheckStatus.PASSING, ""));
+        private final AtomicBoolean inFlight = new AtomicBoolean(false);
+
+        private volatile boolean registered = false;
+        private volatile CheckState sent = null;
+        private volatile long changedAtMillis = Long.MAX_VALUE;
+        private volatile long nextHeartbeatMillis = Long.MAX_VALUE;
+        private volatile long expiresAtMillis = 0;
+
+        private RegisteredService(ServiceRegistration registration) {
+            this.registration = registration;
+            this.ttlMillis = TimeUnit.SECONDS.toMillis(registration.getCheckTtlSeconds());
+        }
+
+        private void update(CheckState state, long now) {
+            CheckState previous = pending.getAndSet(state);
+            if (!state.equals(previous)) {
+                changedAtMillis = now;
+            } else if (state.equals(sent)) {
+                stats.heartbeatSkipped();
+            }
+        }
+
+        /**
+         * Changed status is due immediately, unchanged one when the check needs a heartbeat.
+         */
+        private long dueMillis() {
+            if (!registered) {
+                return Long.MAX_VALUE;
+            }
+            return pending.get().equals(sent) ? nextHeartbeatMillis : Math.min(changedAtMillis, nextHeartbeatMillis);
+        }
+
+        private void registered(long now) {
+            registered = true;
+            sent = null;
+            changedAtMillis = now;
+            nextHeartbeatMillis = now;
+        }
+
+        private void heartbeated(CheckState state, long sentAt) {
+            sent = state;
+            expiresAtMillis = sentAt + ttlMillis;
+            long interval = (long) (ttlMillis * heartbeatRatio);
+            long jitter = (long) (interval * heartbeatJitterRatio * ThreadLocalRandom.current().nextDouble());
+            nextHeartbeatMillis = sentAt + interval - jitter;
+        }
+
+        private void retryLater(long now) {
+            nextHeartbeatMillis = now + tickMillis;
+        }
+
+        /**
+         * Heartbeats would hit the same unknown check, so none is due until the registration completes.
+         */
+        private void reregistering() {
+            registered = false;
+        }
+
+        private void reregistrationFailed(long now) {
+            registered = true;
+            retryLater(now);
+        }
+    }
+
+    public static class Builder {
+        private final OkHttpClient httpClient;
+        private final JsonSerializer jsonSerializer;
+
+        private URI agentUri = URI.create("http://localhost:8500");
+        private String aclToken = null;
+        private SessionRenewalScheduler scheduler = null;
+        private long tickMillis = 1000;
+        private double heartbeatRatio = 0.5;
+        private double heartbeatJitterRatio = 0.1;
+
+        private Builder(OkHttpClient httpClient, JsonSerializer jsonSerializer) {
+            this.httpClient = httpClient;
+            this.jsonSerializer = jsonSerializer;
+        }
+
+        public Builder withAgentUri(URI agentUri) {
+            this.agentUri = agentUri;
+            return this;
+        }
+
+        public Builder withAclToken(String aclToken) {
+            this.aclToken = aclToken;
+            return this;
+        }
+
+        /**
+         * Scheduler shared e.g. with sessions. It is not closed along with the registry.
+         */
+        public Builder withScheduler(SessionRenewalScheduler scheduler) {
+            this.scheduler = scheduler;
+            return this;
+        }
+
+        /**
+         * Interval of ticks sending due heartbeats and changed statuses. Heartbeats due within one tick are sent
+         * together and status changes are sent with a delay of at most one tick.
+         */
+        public Builder withTickMillis(long tickMillis) {
+            this.tickMillis = tickMillis;
+            return this;
+        }
+
+        /**
+         * Part of the check TTL, between 0 and 1, after which a check with unchanged status is heartbeated.
+         */
+        public Builder withHeartbeatRatio(double heartbeatRatio) {
+            if (heartbeatRatio <= 0 || heartbeatRatio >= 1) {
+                throw new IllegalArgumentException("Heartbeat ratio must be between 0 and 1");
+            }
+            this.heartbeatRatio = heartbeatRatio;
+            return this;
+        }
+
+        /**
+         * Maximum part of heartbeat interval, between 0 and 1, by which heartbeats are randomly moved earlier.
+         */
+        public Builder withHeartbeatJitterRatio(double heartbeatJitterRatio) {
+            if (heartbeatJitterRatio < 0 || heartbeatJitterRatio > 1) {
+                throw new IllegalArgumentException("Jitter ratio must be between 0 and 1");
+            }
+            this.heartbeatJitterRatio = heartbeatJitterRatio;
+            return this;
+        }
+
+        public ServiceRegistry build() {
+            boolean ownsScheduler = scheduler == null;
+            SessionRenewalScheduler registryScheduler = ownsScheduler ?
+                    SessionRenewalScheduler.sessionRenewalScheduler().withJitterRatio(0).build() :
+                    scheduler;
+            return new ServiceRegistry(httpClient, agentUri, aclToken, jsonSerializer, registryScheduler,
+                    ownsScheduler, tickMillis, heartbeatRatio, heartbeatJitterRatio);
+        }
+    }
+}
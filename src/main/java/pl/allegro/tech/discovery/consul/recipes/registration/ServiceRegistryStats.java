@@ -0,0 +1,83 @@
+package pl.allegro.tech.discovery.consul.recipes.registration;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Heartbeat lag is the time between the moment a heartbeat was due (or a status change was requested) and the moment
+ * it was sent. Growing lag means the scheduler can't keep up with the number of registered services.
+ */
+public class ServiceRegistryStats {
+
+    private final AtomicLong heartbeats = new AtomicLong(0);
+
+    private final AtomicLong failedHeartbeats = new AtomicLong(0);
+
+    private final AtomicLong skippedHeartbeats = new AtomicLong(0);
+
+    private final AtomicLong reregistrations = new AtomicLong(0);
+
+    private volatile long lastHeartbeatLagMillis = 0;
+
+    private volatile long maxHeartbeatLagMillis = 0;
+
+    private volatile long minHeadroomMillis = Long.MAX_VALUE;
+
+    synchronized void heartbeatSent(long lagMillis) {
+        lastHeartbeatLagMillis = lagMillis;
+        maxHeartbeatLagMillis = Math.max(maxHeartbeatLagMillis, lagMillis);
+    }
+
+    synchronized void heartbeatSucceeded(long headroomMillis) {
+        heartbeats.incrementAndGet();
+        minHeadroomMillis = Math.min(minHeadroomMillis, headroomMillis);
+    }
+
+    void heartbeatFailed() {
+        failedHeartbeats.incrementAndGet();
+    }
+
+    void heartbeatSkipped() {
+        skippedHeartbeats.incrementAndGet();
+    }
+
+    void reregistered() {
+        reregistrations.incrementAndGet();
+    }
+
+    public long getHeartbeats() {
+        return heartbeats.get();
+    }
+
+    public long getFailedHeartbeats() {
+        return failedHeartbeats.get();
+    }
+
+    /**
+     * Status updates that were not sent, because the status did not change and the check was far from expiring.
+     */
+    public long getSkippedHeartbeats() {
+        return skippedHeartbeats.get();
+    }
+
+    /**
+     * Number of times a check was unknown to the agent, e.g. after its restart, and the service was registered again.
+     */
+    public long getReregistrations() {
+        return reregistrations.get();
+    }
+
+    public long getLastHeartbeatLagMillis() {
+        return lastHeartbeatLagMillis;
+    }
+
+    public long getMaxHeartbeatLagMillis() {
+        return maxHeartbeatLagMillis;
+    }
+
+    /**
+     * Smallest time that was left until a check expired when its heartbeat completed.
+     */
+    public long getMinHeadroomMillis() {
+        return minHeadroomMillis == Long.MAX_VALUE ? 0 : minHeadroomMillis;
+    }
+}
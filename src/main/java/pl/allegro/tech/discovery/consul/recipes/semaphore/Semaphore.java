@@ -0,0 +1,468 @@
+package pl.allegro.tech.discovery.consul.recipes.semaphore;
+
+import okhttp3.OkHttpClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import pl.allegro.tech.discovery.consul.recipes.ConsulRecipes;
+import pl.allegro.tech.discovery.consul.recipes.internal.thread.ThreadFactoryBuilder;
+import pl.allegro.tech.discovery.consul.recipes.json.JsonDeserializer;
+import pl.allegro.tech.discovery.consul.recipes.json.JsonSerializer;
+import pl.allegro.tech.discovery.consul.recipes.kv.KeyValueEntry;
+import pl.allegro.tech.discovery.consul.recipes.kv.KeyValueSnapshot;
+import pl.allegro.tech.discovery.consul.recipes.kv.KeyValueWatcher;
+import pl.allegro.tech.discovery.consul.recipes.kv.KeyValueWriter;
+import pl.allegro.tech.discovery.consul.recipes.session.Session;
+import pl.allegro.tech.discovery.consul.recipes.session.SessionRenewalScheduler;
+import pl.allegro.tech.discovery.consul.recipes.watch.Canceller;
+import pl.allegro.tech.discovery.consul.recipes.watch.ConsulWatcher;
+import pl.allegro.tech.discovery.consul.recipes.watch.WatchResult;
+
+import java.io.Closeable;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Limits the number of holders across many nodes, following Consul's semaphore pattern. Every contender creates
+ * a key {@code <prefix>/<sessionId>} locked with its session, and holders are listed in {@code <prefix>/.lock},
+ * which is updated with check-and-set. Holders whose contender key is gone, e.g. because their session expired,
+ * are pruned from the list by other contenders. Waiting contenders are woken by a blocking query on the prefix.
+ * <p>
+ * A single instance holds at most one permit at a time.
+ */
+public class Semaphore implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(Semaphore.class);
+
+    private static final String LOCK_KEY = ".lock";
+
+    private final String prefix;
+    private final int limit;
+    private final byte[] contenderValue;
+    private final Session session;
+    private final boolean ownsSession;
+    private final ConsulWatcher consulWatcher;
+    private final KeyValueWriter writer;
+    private final JsonSerializer jsonSerializer;
+    private final JsonDeserializer jsonDeserializer;
+
+    private volatile KeyValueSnapshot snapshot = KeyValueSnapshot.empty();
+    private volatile boolean held = false;
+
+    private CompletableFuture<Void> pendingAcquisition = null;
+    private boolean contenderInFlight = false;
+    private boolean casInFlight = false;
+    private long failedCasIndex = -1;
+    private long acquiredLockIndex = 0;
+
+    private Canceller watchCanceller;
+
+    private Semaphore(String prefix,
+                      int limit,
+                      byte[] contenderValue,
+                      Session session,
+                      boolean ownsSession,
+                      ConsulWatcher consulWatcher,
+                      KeyValueWriter writer,
+                      JsonSerializer jsonSerializer,
+                      JsonDeserializer jsonDeserializer) {
+        this.prefix = prefix.endsWith("/") ? prefix.substring(0, prefix.length() - 1) : prefix;
+        this.limit = limit;
+        this.contenderValue = contenderValue;
+        this.session = session;
+        this.ownsSession = ownsSession;
+        this.consulWatcher = consulWatcher;
+        this.writer = writer;
+        this.jsonSerializer = jsonSerializer;
+        this.jsonDeserializer = jsonDeserializer;
+    }
+
+    public static Builder forPrefix(String prefix,
+                                    int limit,
+                                    OkHttpClient httpClient,
+                                    JsonSerializer jsonSerializer,
+                                    JsonDeserializer jsonDeserializer) {
+        if (jsonDeserializer == null) {
+            throw new IllegalStateException("Configured JsonDeserializer required.");
+        }
+        if (jsonSerializer == null) {
+            throw new IllegalStateException("Configured JsonSerializer required.");
+        }
+        if (limit < 1) {
+            throw new IllegalArgumentException("Semaphore limit must be positive");
+        }
+        return new Builder(prefix, limit, httpClient, jsonSerializer, jsonDeserializer);
+    }
+
+    public void start() {
+        if (ownsSession) {
+            session.start();
+        }
+        watchCanceller = new KeyValueWatcher(prefix + "/", consulWatcher, jsonDeserializer)
+                .watch(this::update, this::watchException);
+    }
+
+    @Override
+    public void close() {
+        release().exceptionally(e -> null).join();
+        if (watchCanceller != null) {
+            watchCanceller.cancel();
+        }
+        writer.close();
+        if (ownsSession) {
+            session.close();
+        }
+    }
+
+    /**
+     * Completes when this instance holds a permit. Completes immediately if it already does. Completes exceptionally
+     * with {@link SemaphoreException} when the contender key or the lock can't be written, e.g. on connection errors.
+     */
+    public synchronized CompletableFuture<Void> acquire() {
+        if (held) {
+            return CompletableFuture.completedFuture(null);
+        }
+        if (pendingAcquisition == null) {
+            pendingAcquisition = new CompletableFuture<>();
+            tryAcquire();
+        }
+        return pendingAcquisition;
+    }
+
+    /**
+     * Gives back the permit or abandons pending acquisition.
+     */
+    public CompletableFuture<Void> release() {
+        String sessionId;
+        KeyValueSnapshot current;
+        synchronized (this) {
+            if (pendingAcquisition != null) {
+                pendingAcquisition.completeExceptionally(new SemaphoreException("Semaphore released before acquired"));
+                pendingAcquisition = null;
+            }
+            held = false;
+            current = snapshot;
+            sessionId = currentSessionId().orElse(null);
+        }
+        if (sessionId == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        CompletableFuture<?> holderRemoval = CompletableFuture.completedFuture(null);
+        LockState state = LockState.read(current.get(lockKey()), jsonDeserializer);
+        if (state.holders.contains(sessionId)) {
+            Set<String> holders = new LinkedHashSet<>(state.holders);
+            holders.remove(sessionId);
+            holderRemoval = writer.compareAndSet(lockKey(), serializeLock(holders), state.modifyIndex);
+        }
+        // contender key removal is enough for others to prune this holder if the update above loses a race
+        return holderRemoval
+                .handle((result, e) -> null)
+                .thenCompose(ignored -> writer.delete(contenderKey(sessionId)))
+                .thenApply(result -> null);
+    }
+
+    public boolean isHeld() {
+        return held;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    /**
+     * Sessions currently holding permits, as seen in the last watch result.
+     */
+    public Set<String> holders() {
+        KeyValueSnapshot current = snapshot;
+        return liveHolders(current, LockState.read(current.get(lockKey()), jsonDeserializer));
+    }
+
+    private void update(WatchResult<KeyValueSnapshot> result) {
+        synchronized (this) {
+            snapshot = result.getBody();
+            if (held) {
+                Optional<String> sessionId = currentSessionId();
+                Set<String> holders = liveHolders(snapshot, LockState.read(snapshot.get(lockKey()), jsonDeserializer));
+                // a snapshot taken before the lock update of this instance doesn't list it yet
+                long lockIndex = snapshot.get(lockKey()).map(KeyValueEntry::getModifyIndex).orElse(result.getIndex());
+                boolean lost = !holders.contains(sessionId.orElse(null)) && lockIndex >= acquiredLockIndex;
+                if (!sessionId.isPresent() || lost) {
+                    logger.warn("Lost permit of semaphore {}", prefix);
+                    held = false;
+                }
+            }
+            tryAcquire();
+        }
+    }
+
+    private synchronized void tryAcquire() {
+        if (pendingAcquisition == null || contenderInFlight || casInFlight) {
+            return;
+        }
+        Optional<String> currentSession = currentSessionId();
+        if (!currentSession.isPresent()) {
+            return;
+        }
+        String sessionId = currentSession.get();
+        KeyValueSnapshot current = snapshot;
+
+        boolean contenderPresent = current.get(contenderKey(sessionId))
+                .flatMap(KeyValueEntry::getSession)
+                .filter(sessionId::equals)
+                .isPresent();
+        if (!contenderPresent) {
+            createContender(sessionId);
+            return;
+        }
+
+        Optional<KeyValueEntry> lockEntry = current.get(lockKey());
+        LockState state = LockState.read(lockEntry, jsonDeserializer);
+        if (lockEntry.isPresent() && state.limit != limit) {
+            fail(new SemaphoreException("Semaphore " + prefix + " has limit " + state.limit + ", expected " + limit));
+            return;
+        }
+        Set<String> holders = liveHolders(current, state);
+        if (holders.contains(sessionId)) {
+            acquired(state.modifyIndex);
+            return;
+        }
+        if (holders.size() >= limit || state.modifyIndex == failedCasIndex) {
+            return;
+        }
+
+        holders.add(sessionId);
+        casInFlight = true;
+        writer.compareAndSet(lockKey(), serializeLock(holders), state.modifyIndex).whenComplete((result, e) -> {
+            synchronized (this) {
+                casInFlight = false;
+                if (e != null) {
+                    // nothing may change the lock to trigger another attempt, so the caller has to retry
+                    fail(new SemaphoreException("Couldn't update lock of semaphore " + prefix, e));
+                } else if (result.isSuccessful()) {
+                    // the written entry is newer than the one it was compared against, even if not returned
+                    acquired(result.getEntry().map(KeyValueEntry::getModifyIndex).orElse(state.modifyIndex + 1));
+                } else {
+                    failedCasIndex = state.modifyIndex;
+                    tryAcquire();
+                }
+            }
+        });
+    }
+
+    private void createContender(String sessionId) {
+        contenderInFlight = true;
+        writer.lock(contenderKey(sessionId), contenderValue, sessionId).whenComplete((result, e) -> {
+            synchronized (this) {
+                contenderInFlight = false;
+                if (e != null) {
+                    fail(new SemaphoreException("Couldn't create contender key of semaphore " + prefix, e));
+                } else if (!result.isSuccessful()) {
+                    fail(new SemaphoreException("Couldn't create contender key of semaphore " + prefix + ": "
+                            + result.getError().orElse("")));
+                }
+            }
+        });
+    }
+
+    private void acquired(long lockIndex) {
+        held = true;
+        acquiredLockIndex = lockIndex;
+        if (pendingAcquisition != null) {
+            pendingAcquisition.complete(null);
+            pendingAcquisition = null;
+        }
+    }
+
+    private void fail(Exception exception) {
+        logger.error("Semaphore {} acquisition failed", prefix, exception);
+        if (pendingAcquisition != null) {
+            pendingAcquisition.completeExceptionally(exception);
+            pendingAcquisition = null;
+        }
+    }
+
+    private void watchException(Exception exception) {
+        logger.warn("Got an exception while watching semaphore {}", prefix, exception);
+    }
+
+    /**
+     * Holders listed in the lock, whose contender keys are still held by their sessions.
+     */
+    private Set<String> liveHolders(KeyValueSnapshot current, LockState state) {
+        Set<String> live = new LinkedHashSet<>();
+        for (String holder : state.holders) {
+            boolean alive = current.get(contenderKey(holder))
+                    .flatMap(KeyValueEntry::getSession)
+                    .filter(holder::equals)
+                    .isPresent();
+            if (alive) {
+                live.add(holder);
+            }
+        }
+        return live;
+    }
+
+    private byte[] serializeLock(Set<String> holders) {
+        Map<String, Object> lock = new HashMap<>(2);
+        lock.put("Limit", limit);
+        lock.put("Holders", new ArrayList<>(holders));
+        try {
+            return jsonSerializer.serializeMap(lock).getBytes(StandardCharsets.UTF_8);
+        } catch (Exception e) {
+            throw new SemaphoreException("Couldn't serialize semaphore lock", e);
+        }
+    }
+
+    private Optional<String> currentSessionId() {
+        try {
+            return Optional.of(session.currentId());
+        } catch (Exception e) {
+            return Optional.empty();
+        }
+    }
+
+    private String lockKey() {
+        return prefix + "/" + LOCK_KEY;
+    }
+
+    private String contenderKey(String sessionId) {
+        return prefix + "/" + sessionId;
+    }
+
+    private static class LockState {
+        private final int limit;
+        private final List<String> holders;
+        private final long modifyIndex;
+
+        private LockState(int limit, List<String> holders, long modifyIndex) {
+            this.limit = limit;
+            this.holders = holders;
+            this.modifyIndex = modifyIndex;
+        }
+
+        @SuppressWarnings("unchecked")
+        private static LockState read(Optional<KeyValueEntry> entry, JsonDeserializer jsonDeserializer) {
+            if (!entry.isPresent()) {
+                return new LockState(0, Collections.emptyList(), 0);
+            }
+            try {
+                Map<String, Object> lock = jsonDeserializer.deserializeMap(entry.get().getValueAsString().orElse("{}"));
+                Number limit = (Number) lock.get("Limit");
+                List<String> holders = (List<String>) lock.get("Holders");
+                return new LockState(limit != null ? limit.intValue() : 0,
+                        holders != null ? holders : Collections.emptyList(),
+                        entry.get().getModifyIndex());
+            } catch (Exception e) {
+                logger.warn("Couldn't read semaphore lock {}, treating it as empty", entry.get().getKey(), e);
+                return new LockState(0, Collections.emptyList(), entry.get().getModifyIndex());
+            }
+        }
+    }
+
+    public static class Builder {
+        private final String prefix;
+        private final int limit;
+        private final OkHttpClient httpClient;
+        private final JsonSerializer jsonSerializer;
+        private final JsonDeserializer jsonDeserializer;
+
+        private URI agentUri = URI.create("http://localhost:8500");
+        private String aclToken = null;
+        private ConsulWatcher consulWatcher = null;
+        private Session session = null;
+        private SessionRenewalScheduler sessionRenewalScheduler = null;
+        private byte[] contenderValue = new byte[0];
+
+        private Builder(String prefix,
+                        int limit,
+                        OkHttpClient httpClient,
+                        JsonSerializer jsonSerializer,
+                        JsonDeserializer jsonDeserializer) {
+            this.prefix = prefix;
+            this.limit = limit;
+            this.httpClient = httpClient;
+            this.jsonSerializer = jsonSerializer;
+            this.jsonDeserializer = jsonDeserializer;
+        }
+
+        public Builder withAgentUri(URI agentUri) {
+            this.agentUri = agentUri;
+            return this;
+        }
+
+        public Builder withAclToken(String aclToken) {
+            this.aclToken = aclToken;
+            return this;
+        }
+
+        public Builder withConsulWatcher(ConsulWatcher consulWatcher) {
+            this.consulWatcher = consulWatcher;
+            return this;
+        }
+
+        /**
+         * Session shared with other recipes. It has to be started and closed by the caller.
+         */
+        public Builder withSession(Session session) {
+            this.session = session;
+            return this;
+        }
+
+        /**
+         * Scheduler renewing the session created by the semaphore. Ignored when session is provided.
+         */
+        public Builder withSessionRenewalScheduler(SessionRenewalScheduler sessionRenewalScheduler) {
+            this.sessionRenewalScheduler = sessionRenewalScheduler;
+            return this;
+        }
+
+        /**
+         * Value of the contender key, e.g. to describe the holder.
+         */
+        public Builder withContenderValue(byte[] contenderValue) {
+            this.contenderValue = contenderValue;
+            return this;
+        }
+
+        public Semaphore build() {
+            if (this.consulWatcher == null) {
+                ExecutorService workerPool = Executors.newSingleThreadExecutor(
+                        new ThreadFactoryBuilder("consul-recipes-semaphore-watch-%d").build());
+                this.consulWatcher = ConsulRecipes.consulRecipes()
+                        .withAgentUri(agentUri)
+                        .withJsonSerializer(jsonSerializer)
+                        .withJsonDeserializer(jsonDeserializer)
+                        .build()
+                        .consulWatcher(workerPool)
+                        .build();
+            }
+
+            boolean ownsSession = this.session == null;
+            Session semaphoreSession = ownsSession ?
+                    Session.forService(prefix, httpClient, jsonSerializer, jsonDeserializer)
+                            .withAgentUri(agentUri)
+                            .withRenewalScheduler(sessionRenewalScheduler)
+                            .build() :
+                    this.session;
+
+            KeyValueWriter writer = KeyValueWriter.keyValueWriter(httpClient, jsonSerializer, jsonDeserializer)
+                    .withAgentUri(agentUri)
+                    .withAclToken(aclToken)
+                    .build();
+
+            return new Semaphore(prefix, limit, contenderValue, semaphoreSession, ownsSession, consulWatcher, writer,
+                    jsonSerializer, jsonDeserializer);
+        }
+    }
+}
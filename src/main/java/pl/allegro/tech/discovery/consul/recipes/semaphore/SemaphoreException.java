@@ -0,0 +1,12 @@
+package pl.allegro.tech.discovery.consul.recipes.semaphore;
+
+public class SemaphoreException extends RuntimeException {
+
+    public SemaphoreException(String message) {
+        super(message);
+    }
+
+    public SemaphoreException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -1,13 +1,15 @@
 package pl.allegro.tech.discovery.consul.recipes.session;
 
+import okhttp3.Call;
+import okhttp3.Callback;
 import okhttp3.HttpUrl;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.RequestBody;
 import okhttp3.Response;
+import okhttp3.ResponseBody;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import pl.allegro.tech.discovery.consul.recipes.internal.thread.ThreadFactoryBuilder;
 import pl.allegro.tech.discovery.consul.recipes.json.JsonDeserializer;
 import pl.allegro.tech.discovery.consul.recipes.json.JsonSerializer;
 
@@ -15,46 +17,81 @@ import java.io.Closeable;
 import java.io.IOException;
 import java.net.URI;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.Executors;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import static java.net.HttpURLConnection.HTTP_NOT_FOUND;
 import static pl.allegro.tech.discovery.consul.recipes.internal.http.BodyParser.readBodyOrFallback;
 import static pl.allegro.tech.discovery.consul.recipes.internal.http.MediaType.JSON_MEDIA_TYPE;
 
+/**
+ * Consul session renewed in the background. Renewals are asynchronous calls scheduled on a
+ * {@link SessionRenewalScheduler}, which can be shared by many sessions.
+ * <p>
+ * A renewal that fails is retried sooner, within the remaining session TTL. When Consul no longer knows the session,
+ * a new one is created.
+ * <p>
+ * Consul can respond to a renewal with a different TTL when it needs to shed load. The session adopts it and adjusts
+ * renewal interval. Renewals happen early enough to leave a margin for renewal latency, and the margin doubles
+ * when latency is rising.
+ */
 public class Session implements Closeable {
 
     private static final Logger logger = LoggerFactory.getLogger(Session.class);
     private static final int DEFAULT_SESSION_RENEW_WINDOW_SECONDS = 2;
+    private static final long MIN_RETRY_DELAY_MILLIS = 500;
+    private static final int MAX_RETRY_BACKOFF_EXPONENT = 16;
+    private static final long MIN_RENEW_DELAY_MILLIS = 1000;
+    private static final int LATENCY_MARGIN_MULTIPLIER = 3;
+    private static final Pattern DURATION_PART = Pattern.compile("(\\d+(?:\\.\\d+)?)(h|ms|m|s|us|\u00b5s|ns)");
 
     private final String serviceName;
     private final OkHttpClient httpClient;
     private final HttpUrl baseUrl;
     private final int sessionTTLSeconds;
     private final int lockDelaySeconds;
-    private final int sessionRenewSeconds;
-    private final ScheduledExecutorService sessionRenewPool = Executors.newSingleThreadScheduledExecutor();
+    private final SessionRenewalScheduler renewalScheduler;
+    private final boolean ownsRenewalScheduler;
     private final JsonSerializer jsonSerializer;
     private final JsonDeserializer jsonDeserializer;
 
     private final AtomicReference<String> currentSessionId = new AtomicReference<>();
+    private final AtomicReference<ScheduledFuture<?>> scheduledRenewal = new AtomicReference<>();
+    private final AtomicInteger retriesAfterExpiration = new AtomicInteger(0);
+    private final SessionStats stats;
+
+    private volatile long ttlMillis;
+
+    private volatile long sessionExpiresAtMillis;
+    private volatile boolean closed = false;
 
     private Session(String serviceName,
                     OkHttpClient httpClient,
                     URI baseUri,
                     int sessionTTLSeconds,
                     int lockDelaySeconds,
+                    SessionRenewalScheduler renewalScheduler,
+                    boolean ownsRenewalScheduler,
                     JsonSerializer jsonSerializer,
                     JsonDeserializer jsonDeserializer) {
         this.serviceName = serviceName;
         this.httpClient = httpClient;
         this.baseUrl = HttpUrl.get(baseUri);
         this.sessionTTLSeconds = sessionTTLSeconds;
-        this.sessionRenewSeconds = Math.max(1, sessionTTLSeconds - DEFAULT_SESSION_RENEW_WINDOW_SECONDS);
+        this.ttlMillis = TimeUnit.SECONDS.toMillis(sessionTTLSeconds);
+        this.stats = new SessionStats(ttlMillis);
         this.lockDelaySeconds = lockDelaySeconds;
+        this.renewalScheduler = renewalScheduler;
+        this.ownsRenewalScheduler = ownsRenewalScheduler;
         this.jsonSerializer = jsonSerializer;
         this.jsonDeserializer = jsonDeserializer;
     }
@@ -72,18 +109,19 @@ public class Session implements Closeable {
 
     public void start() {
         newSession();
-        sessionRenewPool.scheduleAtFixedRate(() -> renewSession(),
-                sessionRenewSeconds, sessionRenewSeconds, TimeUnit.SECONDS);
+        scheduleRenewal(renewDelayMillis());
     }
 
     @Override
     public void close() {
+        closed = true;
+        ScheduledFuture<?> renewal = scheduledRenewal.getAndSet(null);
+        if (renewal != null) {
+            renewal.cancel(false);
+        }
         deleteSession();
-        sessionRenewPool.shutdown();
-        try {
-            sessionRenewPool.awaitTermination(5, TimeUnit.SECONDS);
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
+        if (ownsRenewalScheduler) {
+            renewalScheduler.close();
         }
     }
 
@@ -98,17 +136,18 @@ public class Session implements Closeable {
                     .put(RequestBody.create(JSON_MEDIA_TYPE, ""))
                     .build();
 
-            httpClient.newCall(request).execute();
+            httpClient.newCall(request).execute().close();
         } catch (Exception ex) {
             logger.error("Error while deleting session ", ex);
         }
     }
 
     public void refresh() {
-        sessionRenewPool.submit(this::newSession);
+        newSessionAsync();
     }
 
-    private String createSession() {
+    private CompletableFuture<String> createSession() {
+        CompletableFuture<String> result = new CompletableFuture<>();
         try {
             String body = jsonSerializer.serializeMap(consulSessionInfo(serviceName, sessionTTLSeconds));
             RequestBody requestBody = RequestBody.create(JSON_MEDIA_TYPE, body);
@@ -118,11 +157,28 @@ public class Session implements Closeable {
                     .put(requestBody)
                     .build();
 
-            String responseBody = httpClient.newCall(request).execute().body().string();
-            return (String) jsonDeserializer.deserializeMap(responseBody).get("ID");
-        } catch (IOException e) {
-            throw new SessionCreationException("Failed to create session", e);
+            httpClient.newCall(request).enqueue(new Callback() {
+                @Override
+                public void onFailure(Call call, IOException e) {
+                    result.completeExceptionally(new SessionCreationException("Failed to create session", e));
+                }
+
+                @Override
+                public void onResponse(Call call, Response response) {
+                    try (ResponseBody responseBody = response.body()) {
+                        if (!response.isSuccessful()) {
+                            throw new IOException("Received status code " + response.code());
+                        }
+                        result.complete((String) jsonDeserializer.deserializeMap(responseBody.string()).get("ID"));
+                    } catch (Exception e) {
+                        result.completeExceptionally(new SessionCreationException("Failed to create session", e));
+                    }
+                }
+            });
+        } catch (Exception e) {
+            result.completeExceptionally(new SessionCreationException("Failed to create session", e));
         }
+        return result;
     }
 
     private Map<String, Object> consulSessionInfo(String serviceName, int sessionTTLSeconds) {
@@ -133,48 +189,190 @@ public class Session implements Closeable {
         return info;
     }
 
+    private void scheduleRenewal(long delayMillis) {
+        if (closed) {
+            return;
+        }
+        scheduledRenewal.set(renewalScheduler.schedule(this::renewSession, delayMillis));
+        if (closed) {
+            ScheduledFuture<?> renewal = scheduledRenewal.getAndSet(null);
+            if (renewal != null) {
+                renewal.cancel(false);
+            }
+        }
+    }
+
     private void renewSession() {
-        String sessionId;
-        try {
-            sessionId = currentId();
-        } catch (SessionUninitializedException e) {
-            logger.warn("Session renewal failed - not initialized yet", e);
+        String sessionId = currentSessionId.get();
+        if (sessionId == null) {
+            logger.warn("Session renewal skipped - not initialized yet, creating new session");
+            newSessionAsync().whenComplete((id, e) -> scheduleRenewal(id != null ? renewDelayMillis() : retryDelayMillis()));
             return;
         }
 
-        try (Response response = callSessionRenew(sessionId)) {
-            // TODO: response can contain a different TTL, which means consul needs a break and we should adjust.
+        long startedAtMillis = System.currentTimeMillis();
+        try {
+            httpClient.newCall(sessionRenewRequest(sessionId)).enqueue(new Callback() {
+                @Override
+                public void onFailure(Call call, IOException e) {
+                    logger.error("Couldn't renew session {}", sessionId, e);
+                    stats.renewFailed();
+                    scheduleRenewal(retryDelayMillis());
+                }
 
-            if (!response.isSuccessful()) {
-                if (response.code() == HTTP_NOT_FOUND) {
-                    newSession();
-                } else {
-                    logger.warn("Unsuccessful session renewal HTTP response. Code: {}; Body: {}",
-                            response.code(), readBodyOrFallback(response, "(failed to read body)"));
+                @Override
+                public void onResponse(Call call, Response response) {
+                    try (ResponseBody body = response.body()) {
+                        if (response.isSuccessful()) {
+                            long now = System.currentTimeMillis();
+                            stats.renewed(now - startedAtMillis, sessionExpiresAtMillis - now);
+                            adoptTtl(sessionId, body.string());
+                            sessionRenewed();
+                            scheduleRenewal(renewDelayMillis());
+                        } else if (response.code() == HTTP_NOT_FOUND) {
+                            stats.recreated();
+                            newSessionAsync().whenComplete((id, e) ->
+                                    scheduleRenewal(id != null ? renewDelayMillis() : retryDelayMillis()));
+                        } else {
+                            logger.warn("Unsuccessful session renewal HTTP response. Code: {}; Body: {}",
+                                    response.code(), readBodyOrFallback(response, "(failed to read body)"));
+                            stats.renewFailed();
+                            scheduleRenewal(retryDelayMillis());
+                        }
+                    } catch (Exception e) {
+                        logger.error("Couldn't handle session {} renewal response", sessionId, e);
+                        scheduleRenewal(retryDelayMillis());
+                    }
                 }
-            }
+            });
         } catch (Exception e) {
-            logger.error("Couldn't renew session {}", sessionId == null ? "(empty)" : sessionId, e);
+            logger.error("Couldn't renew session {}", sessionId, e);
+            stats.renewFailed();
+            scheduleRenewal(retryDelayMillis());
         }
     }
 
-    private Response callSessionRenew(String sessionId) throws IOException {
-        Request request = new Request.Builder()
+    private void adoptTtl(String sessionId, String renewResponse) throws IOException {
+        List<Map<String, Object>> sessions = renewResponse.trim().isEmpty() ?
+                null : jsonDeserializer.deserializeMapList(renewResponse);
+        if (sessions == null || sessions.isEmpty() || !(sessions.get(0).get("TTL") instanceof String)) {
+            return;
+        }
+        long responseTtlMillis = parseDurationMillis((String) sessions.get(0).get("TTL"));
+        if (responseTtlMillis > 0 && responseTtlMillis != ttlMillis) {
+            logger.info("Consul changed TTL of session {} from {}ms to {}ms", sessionId, ttlMillis, responseTtlMillis);
+            stats.ttlChanged();
+            useTtl(responseTtlMillis);
+        }
+    }
+
+    /**
+     * Renewals are scheduled with this TTL, so stats report the same one.
+     */
+    private void useTtl(long newTtlMillis) {
+        ttlMillis = newTtlMillis;
+        stats.ttlUsed(newTtlMillis);
+    }
+
+    /**
+     * Parses durations in Go format, as returned by Consul, e.g. "15s", "1m30s" or "1.5s".
+     * Returns 0 when the value can't be parsed.
+     */
+    static long parseDurationMillis(String duration) {
+        Matcher matcher = DURATION_PART.matcher(duration.trim());
+        double millis = 0;
+        int end = 0;
+        while (matcher.find()) {
+            if (matcher.start() != end) {
+                return 0;
+            }
+            end = matcher.end();
+            double value = Double.parseDouble(matcher.group(1));
+            switch (matcher.group(2)) {
+                case "h":
+                    millis += value * 3_600_000;
+                    break;
+                case "m":
+                    millis += value * 60_000;
+                    break;
+                case "s":
+                    millis += value * 1000;
+                    break;
+                case "ms":
+                    millis += value;
+                    break;
+                case "us":
+                case "\u00b5s":
+                    millis += value / 1000;
+                    break;
+                default:
+                    millis += value / 1_000_000;
+            }
+        }
+        return end == duration.trim().length() ? (long) millis : 0;
+    }
+
+    /**
+     * Renewal leaves a margin for renewal latency before the session expires, doubled when latency is rising.
+     */
+    private long renewDelayMillis() {
+        long margin = Math.max(TimeUnit.SECONDS.toMillis(DEFAULT_SESSION_RENEW_WINDOW_SECONDS),
+                (long) (LATENCY_MARGIN_MULTIPLIER * stats.getAverageRenewLatencyMillis()));
+        if (stats.isLatencyRising()) {
+            margin *= 2;
+        }
+        return Math.max(MIN_RENEW_DELAY_MILLIS, ttlMillis - margin);
+    }
+
+    /**
+     * Retries are spread over the time left until session expires, so a few of them fit in before it does.
+     * Once it expired, they back off exponentially up to the renew delay instead of retrying at the minimal delay.
+     */
+    private long retryDelayMillis() {
+        long untilExpiration = sessionExpiresAtMillis - System.currentTimeMillis();
+        if (untilExpiration <= 0) {
+            int exponent = Math.min(retriesAfterExpiration.getAndIncrement(), MAX_RETRY_BACKOFF_EXPONENT);
+            return Math.min(renewDelayMillis(), MIN_RETRY_DELAY_MILLIS << exponent);
+        }
+        return Math.max(MIN_RETRY_DELAY_MILLIS, Math.min(renewDelayMillis(), untilExpiration / 3));
+    }
+
+    private void sessionRenewed() {
+        sessionExpiresAtMillis = System.currentTimeMillis() + ttlMillis;
+        retriesAfterExpiration.set(0);
+    }
+
+    private Request sessionRenewRequest(String sessionId) {
+        return new Request.Builder()
                 .url(baseUrl.newBuilder("/v1/session/renew/" + sessionId).build())
                 .put(RequestBody.create(JSON_MEDIA_TYPE, new byte[0]))
                 .build();
-
-        return httpClient.newCall(request).execute();
     }
 
     private void newSession() {
         try {
-            this.currentSessionId.set(createSession());
-        } catch (Exception e) {
-            logger.warn("Creating new session failed", e);
+            newSessionAsync().join();
+        } catch (CompletionException e) {
+            // failure is logged when creating session, renewal will try again
         }
     }
 
+    private CompletableFuture<String> newSessionAsync() {
+        return createSession().whenComplete((sessionId, e) -> {
+            if (e != null) {
+                logger.warn("Creating new session failed", e);
+            } else {
+                useTtl(TimeUnit.SECONDS.toMillis(sessionTTLSeconds));
+                sessionRenewed();
+                this.currentSessionId.set(sessionId);
+            }
+        });
+    }
+
+    public SessionStats stats() {
+        return stats;
+    }
+
     public String currentId() {
         String current = this.currentSessionId.get();
         if (current == null) {
@@ -204,6 +402,7 @@ public class Session implements Closeable {
         private int sessionTTLSeconds = 60;
         private int lockDelaySeconds = 15;
         private ScheduledExecutorService sessionRenewPool = null;
+        private SessionRenewalScheduler renewalScheduler = null;
 
         private Builder(String serviceName, OkHttpClient httpClient,
                         JsonSerializer jsonSerializer, JsonDeserializer jsonDeserializer) {
@@ -223,25 +422,43 @@ public class Session implements Closeable {
             return this;
         }
 
+        /**
+         * Renews the session on given pool. The pool is not shut down when session is closed.
+         */
         public Builder withSessionRenewPool(ScheduledExecutorService pool) {
             this.sessionRenewPool = pool;
             return this;
         }
 
+        /**
+         * Renews the session on given scheduler, which can be shared by many sessions. The scheduler is not closed
+         * when session is closed.
+         */
+        public Builder withRenewalScheduler(SessionRenewalScheduler renewalScheduler) {
+            this.renewalScheduler = renewalScheduler;
+            return this;
+        }
+
         public Builder withLockDelaySeconds(int seconds) {
             this.lockDelaySeconds = seconds;
             return this;
         }
 
         public Session build() {
-            if (this.sessionRenewPool == null) {
-                this.sessionRenewPool = Executors.newSingleThreadScheduledExecutor(
-                        new ThreadFactoryBuilder("consul-recipes-session-%d").build());
+            SessionRenewalScheduler scheduler = this.renewalScheduler;
+            boolean ownsScheduler = false;
+            if (scheduler == null && this.sessionRenewPool != null) {
+                scheduler = SessionRenewalScheduler.sessionRenewalScheduler()
+                        .withExecutor(this.sessionRenewPool)
+                        .build();
+            } else if (scheduler == null) {
+                scheduler = SessionRenewalScheduler.sessionRenewalScheduler().build();
+                ownsScheduler = true;
             }
 
             return new Session(this.serviceName,
                     this.httpClient, this.agentUri, sessionTTLSeconds,
-                    lockDelaySeconds, jsonSerializer, jsonDeserializer);
+                    lockDelaySeconds, scheduler, ownsScheduler, jsonSerializer, jsonDeserializer);
         }
     }
 }
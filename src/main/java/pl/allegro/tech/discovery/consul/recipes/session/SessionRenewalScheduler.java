@@ -0,0 +1,108 @@
+package pl.allegro.tech.discovery.consul.recipes.session;
+
+import pl.allegro.tech.discovery.consul.recipes.internal.thread.ThreadFactoryBuilder;
+
+import java.io.Closeable;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Schedules renewals of many sessions on a small, shared pool of threads. Renewal calls are asynchronous, so threads
+ * are only busy while scheduling them and handling their results.
+ * <p>
+ * Every renewal is moved earlier by a random part of its delay (up to jitter ratio), which spreads renewals of
+ * sessions created at the same time instead of sending them to Consul in bursts. Renewals are never moved later,
+ * so jitter does not bring sessions closer to expiration.
+ */
+public class SessionRenewalScheduler implements Closeable {
+
+    private final ScheduledExecutorService executor;
+    private final boolean ownsExecutor;
+    private final double jitterRatio;
+
+    private SessionRenewalScheduler(ScheduledExecutorService executor, boolean ownsExecutor, double jitterRatio) {
+        this.executor = executor;
+        this.ownsExecutor = ownsExecutor;
+        this.jitterRatio = jitterRatio;
+    }
+
+    public static Builder sessionRenewalScheduler() {
+        return new Builder();
+    }
+
+    /**
+     * Schedules a task, e.g. a renewal or a heartbeat, moved earlier by a random jitter.
+     */
+    public ScheduledFuture<?> schedule(Runnable task, long delayMillis) {
+        long jitter = (long) (delayMillis * jitterRatio * ThreadLocalRandom.current().nextDouble());
+        return executor.schedule(task, Math.max(0, delayMillis - jitter), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Shuts down the pool, unless it was provided from outside.
+     */
+    @Override
+    public void close() {
+        if (!ownsExecutor) {
+            return;
+        }
+        executor.shutdown();
+        try {
+            executor.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public static class Builder {
+        private ScheduledExecutorService executor = null;
+        private int threads = 1;
+        private double jitterRatio = 0.1;
+
+        private Builder() {
+        }
+
+        /**
+         * Uses given pool instead of creating one. The pool is not shut down when scheduler is closed.
+         */
+        public Builder withExecutor(ScheduledExecutorService executor) {
+            this.executor = executor;
+            return this;
+        }
+
+        public Builder withThreads(int threads) {
+            this.threads = threads;
+            return this;
+        }
+
+        /**
+         * Maximum part of renewal delay, between 0 and 1, by which renewals are randomly moved earlier.
+         */
+        public Builder withJitterRatio(double jitterRatio) {
+            if (jitterRatio < 0 || jitterRatio > 1) {
+                throw new IllegalArgumentException("Jitter ratio must be between 0 and 1");
+            }
+            this.jitterRatio = jitterRatio;
+            return this;
+        }
+
+        public SessionRenewalScheduler build() {
+            if (executor != null) {
+                return new SessionRenewalScheduler(executor, false, jitterRatio);
+            }
+            ScheduledThreadPoolExecutor pool = new ScheduledThreadPoolExecutor(threads,
+                    new ThreadFactoryBuilder("consul-recipes-session-renew-%d")
+                            .withBackingThreadFactory(runnable -> {
+                                Thread thread = new Thread(runnable);
+                                thread.setDaemon(true);
+                                return thread;
+                            })
+                            .build());
+            pool.setRemoveOnCancelPolicy(true);
+            return new SessionRenewalScheduler(pool, true, jitterRatio);
+        }
+    }
+}
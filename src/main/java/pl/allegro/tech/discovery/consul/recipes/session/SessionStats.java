@@ -0,0 +1,107 @@
+package pl.allegro.tech.discovery.consul.recipes.session;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+public class SessionStats {
+
+    private static final double LATENCY_SMOOTHING = 0.3;
+
+    private final AtomicLong renewals = new AtomicLong(0);
+
+    private final AtomicLong failedRenewals = new AtomicLong(0);
+
+    private final AtomicLong recreations = new AtomicLong(0);
+
+    private final AtomicLong ttlChanges = new AtomicLong(0);
+
+    private volatile long ttlMillis;
+
+    private volatile long lastRenewLatencyMillis = 0;
+
+    private volatile double averageRenewLatencyMillis = 0;
+
+    private volatile long lastHeadroomMillis = 0;
+
+    private volatile long minHeadroomMillis = Long.MAX_VALUE;
+
+    SessionStats(long ttlMillis) {
+        this.ttlMillis = ttlMillis;
+    }
+
+    synchronized void renewed(long latencyMillis, long headroomMillis) {
+        renewals.incrementAndGet();
+        lastRenewLatencyMillis = latencyMillis;
+        averageRenewLatencyMillis = renewals.get() == 1 ? latencyMillis :
+                LATENCY_SMOOTHING * latencyMillis + (1 - LATENCY_SMOOTHING) * averageRenewLatencyMillis;
+        lastHeadroomMillis = headroomMillis;
+        minHeadroomMillis = Math.min(minHeadroomMillis, headroomMillis);
+    }
+
+    void renewFailed() {
+        failedRenewals.incrementAndGet();
+    }
+
+    void recreated() {
+        recreations.incrementAndGet();
+    }
+
+    void ttlChanged() {
+        ttlChanges.incrementAndGet();
+    }
+
+    void ttlUsed(long ttlMillis) {
+        this.ttlMillis = ttlMillis;
+    }
+
+    boolean isLatencyRising() {
+        return renewals.get() > 1 && lastRenewLatencyMillis > 1.5 * averageRenewLatencyMillis;
+    }
+
+    public long getRenewals() {
+        return renewals.get();
+    }
+
+    public long getFailedRenewals() {
+        return failedRenewals.get();
+    }
+
+    /**
+     * Number of times the session was lost and created again.
+     */
+    public long getRecreations() {
+        return recreations.get();
+    }
+
+    /**
+     * Number of times Consul responded with a TTL different from the current one.
+     */
+    public long getTtlChanges() {
+        return ttlChanges.get();
+    }
+
+    public long getTtlMillis() {
+        return ttlMillis;
+    }
+
+    public long getLastRenewLatencyMillis() {
+        return lastRenewLatencyMillis;
+    }
+
+    /**
+     * Exponentially weighted average of renewal latency.
+     */
+    public double getAverageRenewLatencyMillis() {
+        return averageRenewLatencyMillis;
+    }
+
+    /**
+     * Time that was left until session expiration when the last renewal completed.
+     */
+    public long getLastHeadroomMillis() {
+        return lastHeadroomMillis;
+    }
+
+    public long getMinHeadroomMillis() {
+        return minHeadroomMillis == Long.MAX_VALUE ? 0 : minHeadroomMillis;
+    }
+}
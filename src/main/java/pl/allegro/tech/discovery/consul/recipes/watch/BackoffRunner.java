@@ -1,12 +1,12 @@
 package pl.allegro.tech.discovery.consul.recipes.watch;
 
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 class BackoffRunner implements AutoCloseable {
 
-    private final ScheduledExecutorService executorService = Executors.newSingleThreadScheduledExecutor();
+    private final ScheduledThreadPoolExecutor executorService = new ScheduledThreadPoolExecutor(1);
 
     private final long initialBackoff;
 
@@ -15,16 +15,21 @@ class BackoffRunner implements AutoCloseable {
     BackoffRunner(long initialBackoff, long maxBackoff) {
         this.initialBackoff = initialBackoff;
         this.maxBackoff = maxBackoff;
+        this.executorService.setRemoveOnCancelPolicy(true);
     }
 
-    long runWithBackoff(int retry, Runnable action) {
-        long backoff = Math.min(
+    long backoff(int retry) {
+        return Math.min(
                 initialBackoff << retry,
                 maxBackoff
         );
+    }
 
-        executorService.schedule(action, backoff, TimeUnit.MILLISECONDS);
-        return backoff;
+    /**
+     * Returned future can be cancelled to drop the action, e.g. when the watch is cancelled during backoff.
+     */
+    ScheduledFuture<?> runWithBackoff(long backoff, Runnable action) {
+        return executorService.schedule(action, backoff, TimeUnit.MILLISECONDS);
     }
 
     @Override
@@ -1,13 +1,61 @@
 package pl.allegro.tech.discovery.consul.recipes.watch;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
 public class Canceller {
     volatile boolean cancelled;
 
+    private final List<Canceller> children;
+
+    private final List<Runnable> cancelActions = new ArrayList<>();
+
+    public Canceller() {
+        this(Collections.emptyList());
+    }
+
+    private Canceller(List<Canceller> children) {
+        this.children = children;
+    }
+
+    /**
+     * Creates a canceller which cancels all given cancellers at once.
+     */
+    public static Canceller composite(Collection<Canceller> cancellers) {
+        return new Canceller(new ArrayList<>(cancellers));
+    }
+
+    /**
+     * Cancels the watch and aborts its in-flight request and pending reconnect right away. Cancelling more than
+     * once has no effect.
+     */
     public final void cancel() {
-        cancelled = true;
+        synchronized (this) {
+            if (cancelled) {
+                return;
+            }
+            cancelled = true;
+        }
+        cancelActions.forEach(Runnable::run);
+        children.forEach(Canceller::cancel);
     }
 
     public final boolean isCancelled() {
         return cancelled;
     }
+
+    /**
+     * Runs the action when cancelled, or right away if already cancelled.
+     */
+    void onCancel(Runnable action) {
+        synchronized (this) {
+            if (!cancelled) {
+                cancelActions.add(action);
+                return;
+            }
+        }
+        action.run();
+    }
 }
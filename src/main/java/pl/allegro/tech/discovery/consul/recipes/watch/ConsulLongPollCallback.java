@@ -13,15 +13,20 @@ import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
 
+import static java.net.HttpURLConnection.HTTP_NOT_FOUND;
+
 class ConsulLongPollCallback implements Callback {
 
     private static final Logger logger = LoggerFactory.getLogger(ConsulLongPollCallback.class);
 
+    private static final String KV_PATH_PREFIX = "/v1/kv/";
+
     private final ExecutorService workerPool;
 
     private final HttpUrl endpoint;
@@ -38,12 +43,20 @@ class ConsulLongPollCallback implements Callback {
 
     private final AtomicLong currentIndex = new AtomicLong(0);
 
+    private final AtomicReference<String> currentContentHash = new AtomicReference<>(null);
+
+    private final AtomicReference<Call> currentCall = new AtomicReference<>(null);
+
+    private final AtomicReference<ScheduledFuture<?>> pendingReconnect = new AtomicReference<>(null);
+
     private final AtomicInteger retryCount = new AtomicInteger(0);
 
     private final ConsulWatcherStats stats;
 
     private final Canceller callbackCanceller;
 
+    private final PollGate pollGate;
+
     ConsulLongPollCallback(ExecutorService workerPool,
                            BackoffRunner backoffRunner,
                            HttpUrl endpoint,
@@ -51,7 +64,8 @@ class ConsulLongPollCallback implements Callback {
                            Consumer<Exception> failureConsumer,
                            ReconnectCallback reconnect,
                            ConsulWatcherStats stats,
-                           Canceller callbackCanceller) {
+                           Canceller callbackCanceller,
+                           PollGate pollGate) {
         this.workerPool = workerPool;
         this.backoffRunner = backoffRunner;
         this.endpoint = endpoint;
@@ -60,6 +74,7 @@ class ConsulLongPollCallback implements Callback {
         this.reconnect = reconnect;
         this.stats = stats;
         this.callbackCanceller = callbackCanceller;
+        this.pollGate = pollGate;
     }
 
     @Override
@@ -71,7 +86,7 @@ class ConsulLongPollCallback implements Callback {
             return;
         }
 
-        if (response.isSuccessful()) {
+        if (response.isSuccessful() || isMissingKeyResponse(response)) {
             onSuccessfulResponse(call, response);
         } else {
             onNonOkHttpResponse(response);
@@ -91,23 +106,79 @@ class ConsulLongPollCallback implements Callback {
         );
     }
 
+    /**
+     * Consul answers blocking queries on missing KV keys with 404 carrying a valid index,
+     * which means "no entries" rather than a failure. Other endpoints may return 404 with an index too
+     * (e.g. an unknown session or ACL token), which is an error, so only KV endpoints are treated that way.
+     */
+    private boolean isMissingKeyResponse(Response response) {
+        return response.code() == HTTP_NOT_FOUND && response.header("X-Consul-Index") != null
+                && endpoint.encodedPath().startsWith(KV_PATH_PREFIX);
+    }
+
     boolean isCancelled() {
         return callbackCanceller.isCancelled();
     }
 
+    /**
+     * Remembers the call about to be enqueued, so that it can be aborted on cancellation.
+     */
+    void trackCall(Call call) {
+        currentCall.set(call);
+        if (isCancelled()) {
+            call.cancel();
+        }
+    }
+
+    private void trackReconnect(ScheduledFuture<?> reconnect) {
+        pendingReconnect.set(reconnect);
+        if (isCancelled()) {
+            reconnect.cancel(false);
+        }
+    }
+
+    /**
+     * Aborts the in-flight call, instead of waiting for it to return after up to the whole blocking wait time,
+     * and drops the pending reconnect, if any.
+     */
+    void abort() {
+        Call call = currentCall.get();
+        if (call != null) {
+            call.cancel();
+        }
+        ScheduledFuture<?> reconnect = pendingReconnect.get();
+        if (reconnect != null) {
+            reconnect.cancel(false);
+        }
+    }
+
+    /**
+     * Endpoints local to the agent, like {@code /v1/agent/services}, don't return {@code X-Consul-Index} but
+     * {@code X-Consul-ContentHash}, and block on the {@code hash} parameter instead of {@code index}.
+     */
     private void onSuccessfulResponse(Call call, Response response) {
         stats.eventReceived();
         try (ResponseBody body = response.body()) {
             String indexString = response.header("X-Consul-Index");
-            if (indexString == null) {
-                stats.indexMissing();
-                logger.error("There was no X-Consul-Index header in response for {} endpoint, retrying", endpoint);
-            } else {
+            String contentHash = response.header("X-Consul-ContentHash");
+            boolean dispatched;
+            if (indexString != null) {
                 long newIndex = Long.parseLong(indexString);
-                updateIndexAndProcessEvent(newIndex, body);
+                dispatched = updateIndexAndProcessEvent(newIndex, body);
+            } else if (contentHash != null) {
+                dispatched = updateContentHashAndProcessEvent(contentHash, body);
+            } else {
+                stats.indexMissing();
+                reconnectAfterFailureAndRun(
+                        backoff -> logger.error("There was neither X-Consul-Index nor X-Consul-ContentHash header " +
+                                "in response for {} endpoint, retrying with {}ms backoff", endpoint, backoff)
+                );
+                return;
             }
 
-            reconnectAfterSuccessfulResponse();
+            if (!dispatched || !pollGate.pollsAfterDelivery()) {
+                reconnectAfterSuccessfulResponse();
+            }
         } catch (IOException exception) {
             handleSucessfulResponseProcessingException(exception);
         }
@@ -134,7 +205,7 @@ class ConsulLongPollCallback implements Callback {
     }
 
     private void reconnectAfterSuccessfulResponse() {
-        reconnect.reconnect(endpoint, currentIndex.get(), this);
+        pollGate.poll(() -> reconnect.reconnect(endpoint, currentIndex.get(), currentContentHash.get(), this));
         retryCount.set(0);
     }
 
@@ -151,7 +222,15 @@ class ConsulLongPollCallback implements Callback {
             logger.trace("Dispatching work on endpoint {} index {} to worker, text: {}",
                     endpoint, index, new String(content, StandardCharsets.UTF_8));
         }
-        workerPool.submit(() -> consumer.accept(new WatchResult<>(index, new String(content, StandardCharsets.UTF_8))));
+        workerPool.submit(() -> {
+            try {
+                consumer.accept(new WatchResult<>(index, new String(content, StandardCharsets.UTF_8)));
+            } finally {
+                if (pollGate.pollsAfterDelivery()) {
+                    reconnectAfterSuccessfulResponse();
+                }
+            }
+        });
     }
 
     private void handleContentUnchanged(long index) {
@@ -173,14 +252,21 @@ class ConsulLongPollCallback implements Callback {
         );
     }
 
-    private void handleIndexForward(long newIndex, ResponseBody body) throws IOException {
+    private void handleContentHashNotChanged(String contentHash) {
+        stats.indexNotChanged();
+        logger.trace("Discarding event on endpoint {} content hash {} as content hash did not change",
+                endpoint, contentHash);
+    }
+
+    private boolean handleIndexForward(long newIndex, ResponseBody body) throws IOException {
         currentIndex.set(newIndex);
         byte[] content = body.bytes();
         if (contentChanged(content)) {
             handleContentChanged(newIndex, content);
-        } else {
-            handleContentUnchanged(newIndex);
+            return true;
         }
+        handleContentUnchanged(newIndex);
+        return false;
     }
 
     private void logNonOkHttpResponseWithException(Response response, long backoff, IOException e) {
@@ -204,7 +290,10 @@ class ConsulLongPollCallback implements Callback {
         return !Arrays.equals(oldContent, newContent);
     }
 
-    private void updateIndexAndProcessEvent(long newIndex, ResponseBody body) throws IOException {
+    /**
+     * Returns whether the result was handed to the consumer.
+     */
+    private boolean updateIndexAndProcessEvent(long newIndex, ResponseBody body) throws IOException {
         long lastIndex = currentIndex.get();
 
         if (newIndex == lastIndex) {
@@ -212,13 +301,35 @@ class ConsulLongPollCallback implements Callback {
         } else if (newIndex < lastIndex) {
             handleIndexBackwards(lastIndex, newIndex);
         } else {
-            handleIndexForward(newIndex, body);
+            return handleIndexForward(newIndex, body);
+        }
+        return false;
+    }
+
+    /**
+     * Results of endpoints blocking on content hash have no index, so they are passed on with index 0.
+     */
+    private boolean updateContentHashAndProcessEvent(String contentHash, ResponseBody body) throws IOException {
+        String lastContentHash = currentContentHash.getAndSet(contentHash);
+        if (contentHash.equals(lastContentHash)) {
+            handleContentHashNotChanged(contentHash);
+            return false;
+        }
+        byte[] content = body.bytes();
+        if (contentChanged(content)) {
+            handleContentChanged(0, content);
+            return true;
         }
+        handleContentUnchanged(0);
+        return false;
     }
 
     long reconnectWithBackoff() {
         currentIndex.set(0);
-        return backoffRunner.runWithBackoff(retryCount.getAndIncrement(), () ->
-                reconnect.reconnect(endpoint, currentIndex.get(), this));
+        currentContentHash.set(null);
+        long backoff = backoffRunner.backoff(retryCount.getAndIncrement());
+        trackReconnect(backoffRunner.runWithBackoff(backoff, () ->
+                reconnect.reconnect(endpoint, currentIndex.get(), currentContentHash.get(), this)));
+        return backoff;
     }
 }
@@ -1,5 +1,6 @@
 package pl.allegro.tech.discovery.consul.recipes.watch;
 
+import okhttp3.Call;
 import okhttp3.HttpUrl;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
@@ -28,41 +29,76 @@ public class ConsulWatcher implements AutoCloseable {
 
     private final ConsulWatcherStats stats;
 
+    private final WatchAdmission admission;
+
+    private final WatchPriority priority;
+
     private ConsulWatcher(URI uri, ExecutorService workerPool, OkHttpClient httpClient,
                           Clock clock,
                           boolean allowStale,
                           long initialBackoff,
                           long maxBackoff,
-                          long recentStatsMillis) {
+                          long recentStatsMillis,
+                          WatchAdmission admission,
+                          WatchPriority priority) {
         this.baseUrl = HttpUrl.get(uri);
         this.workerPool = workerPool;
         this.httpClient = httpClient;
         this.backoffRunner = new BackoffRunner(initialBackoff, maxBackoff);
         this.allowStale = allowStale;
         this.stats = new ConsulWatcherStats(clock, recentStatsMillis);
+        this.admission = admission;
+        this.priority = priority;
     }
 
     public static ConsulWatcher.Builder consulWatcher(OkHttpClient httpClient, ExecutorService workerPool) {
         return new ConsulWatcher.Builder(httpClient, workerPool);
     }
 
+    /**
+     * Watches the endpoint with blocking queries. Endpoints of the agent that block on content hash instead of
+     * index, like {@code /v1/agent/services} or {@code /v1/agent/checks}, are supported too; their results have
+     * index 0.
+     * <p>
+     * The watch is started once admitted with the priority of this watcher. If it is rejected, failure consumer
+     * gets {@link WatchRejectedException} and returned canceller is already cancelled.
+     */
     public Canceller watchEndpoint(String endpoint, Consumer<WatchResult<String>> consumer, Consumer<Exception> failureConsumer) {
+        return watchEndpoint(endpoint, consumer, failureConsumer, new PollGate());
+    }
+
+    /**
+     * Watches the endpoint re-polling it after a result only when the gate is not paused.
+     */
+    Canceller watchEndpoint(String endpoint,
+                            Consumer<WatchResult<String>> consumer,
+                            Consumer<Exception> failureConsumer,
+                            PollGate pollGate) {
         HttpUrl normalizedEndpoint = normalizeEndpoint(endpoint);
         logger.info("Starting HTTP long poll for endpoint: {}", normalizedEndpoint);
         Canceller callbackCanceller = new Canceller();
-        watchAtIndex(
+        ConsulLongPollCallback callback = new ConsulLongPollCallback(
+                workerPool,
+                backoffRunner,
                 normalizedEndpoint,
-                new ConsulLongPollCallback(
-                        workerPool,
-                        backoffRunner,
-                        normalizedEndpoint,
-                        consumer,
-                        failureConsumer,
-                        this::reconnect,
-                        stats,
-                        callbackCanceller),
-                0
-        );
+                consumer,
+                failureConsumer,
+                this::reconnect,
+                stats,
+                callbackCanceller,
+                pollGate);
+        callbackCanceller.onCancel(callback::abort);
+        boolean admitted = admission.admit(priority, callbackCanceller, () -> {
+            stats.watchStarted();
+            callbackCanceller.onCancel(stats::watchCancelled);
+            watchAtIndex(normalizedEndpoint, callback, 0, null);
+        });
+        if (!admitted) {
+            logger.warn("Watch of endpoint {} with {} priority rejected", normalizedEndpoint, priority);
+            callbackCanceller.cancel();
+            failureConsumer.accept(new WatchRejectedException(
+                    "Capacity for " + priority + " watches exhausted, rejected watch of " + normalizedEndpoint));
+        }
 
         return callbackCanceller;
     }
@@ -78,23 +114,32 @@ public class ConsulWatcher implements AutoCloseable {
         return builder.build();
     }
 
-    private void watchAtIndex(HttpUrl endpoint, ConsulLongPollCallback callback, long index) {
+    private void watchAtIndex(HttpUrl endpoint, ConsulLongPollCallback callback, long index, String contentHash) {
         if (!callback.isCancelled()) {
-            logger.trace("Starting long poll at endpoint {} with index {}", endpoint, index);
-
-            HttpUrl url = endpoint.newBuilder()
-                    .addQueryParameter("index", Long.toString(index))
-                    .build();
+            HttpUrl url;
+            if (contentHash != null) {
+                logger.trace("Starting long poll at endpoint {} with content hash {}", endpoint, contentHash);
+                url = endpoint.newBuilder()
+                        .addQueryParameter("hash", contentHash)
+                        .build();
+            } else {
+                logger.trace("Starting long poll at endpoint {} with index {}", endpoint, index);
+                url = endpoint.newBuilder()
+                        .addQueryParameter("index", Long.toString(index))
+                        .build();
+            }
 
             Request request = new Request.Builder().get().url(url).build();
-            httpClient.newCall(request).enqueue(callback);
+            Call call = httpClient.newCall(request);
+            callback.trackCall(call);
+            call.enqueue(callback);
         } else {
             logger.info("Stopping long poll at endpoint {}", endpoint);
         }
     }
 
-    private void reconnect(HttpUrl endpoint, long index, ConsulLongPollCallback callback) {
-        watchAtIndex(endpoint, callback, index);
+    private void reconnect(HttpUrl endpoint, long index, String contentHash, ConsulLongPollCallback callback) {
+        watchAtIndex(endpoint, callback, index, contentHash);
     }
 
     public ConsulWatcherStats stats() {
@@ -125,6 +170,10 @@ public class ConsulWatcher implements AutoCloseable {
 
         private long recentStatsMillis = TimeUnit.MINUTES.toMillis(1);
 
+        private WatchAdmission admission = WatchAdmission.unlimited();
+
+        private WatchPriority priority = WatchPriority.NORMAL;
+
         private Builder(OkHttpClient httpClient, ExecutorService workerPool) {
             this.workerPool = workerPool;
             this.httpClient = httpClient;
@@ -132,7 +181,7 @@ public class ConsulWatcher implements AutoCloseable {
 
         public ConsulWatcher build() {
             return new ConsulWatcher(agentUri, workerPool, httpClient, clock, allowStale,
-                    initialReconnectBackoffMillis, maxReconnectBackoffMillis, recentStatsMillis);
+                    initialReconnectBackoffMillis, maxReconnectBackoffMillis, recentStatsMillis, admission, priority);
         }
 
         public Builder withClock(Clock clock) {
@@ -160,5 +209,21 @@ public class ConsulWatcher implements AutoCloseable {
             this.recentStatsMillis = recentStatsMillis;
             return this;
         }
+
+        /**
+         * Admission shared by watchers using the same HTTP client. Without it, watches are never queued by the watcher.
+         */
+        public Builder withAdmission(WatchAdmission admission) {
+            this.admission = admission;
+            return this;
+        }
+
+        /**
+         * Priority of all watches of this watcher, {@link WatchPriority#NORMAL} by default.
+         */
+        public Builder withPriority(WatchPriority priority) {
+            this.priority = priority;
+            return this;
+        }
     }
 }
@@ -20,6 +20,10 @@ public class ConsulWatcherStats {
 
     private final AtomicLong failures = new AtomicLong(0);
 
+    private final AtomicLong activeWatches = new AtomicLong(0);
+
+    private final AtomicLong cancelledWatches = new AtomicLong(0);
+
     private final RecentCounter recentFailures;
 
     public ConsulWatcherStats(Clock clock, long recentStatsMillis) {
@@ -55,6 +59,15 @@ public class ConsulWatcherStats {
         recentFailures.increment();
     }
 
+    void watchStarted() {
+        activeWatches.incrementAndGet();
+    }
+
+    void watchCancelled() {
+        activeWatches.decrementAndGet();
+        cancelledWatches.incrementAndGet();
+    }
+
     public long getEventsTotal() {
         return eventsTotal.get();
     }
@@ -87,4 +100,15 @@ public class ConsulWatcherStats {
         return recentFailures.lastCompletedCount();
     }
 
+    /**
+     * Number of watches started and not cancelled yet.
+     */
+    public long getActiveWatches() {
+        return activeWatches.get();
+    }
+
+    public long getCancelledWatches() {
+        return cancelledWatches.get();
+    }
+
 }
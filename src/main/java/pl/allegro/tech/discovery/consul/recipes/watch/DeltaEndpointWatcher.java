@@ -0,0 +1,61 @@
+package pl.allegro.tech.discovery.consul.recipes.watch;
+
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Wraps an {@link EndpointWatcher} and delivers changes between consecutive results instead of full snapshots.
+ * Every {@link #watch} call tracks its own previous state; the first delivered delta is computed against
+ * an empty state. Deltas reported as empty by the delta predicate are not delivered.
+ *
+ * @param <T> type of the snapshot returned by the underlying watcher
+ * @param <D> type of the delta
+ */
+public class DeltaEndpointWatcher<T, D> {
+    private final EndpointWatcher<T> watcher;
+    private final BiFunction<D, T, D> differ;
+    private final Predicate<D> emptyDelta;
+
+    /**
+     * @param differ     computes a delta from the previous delta (or {@code null} for the first result) and current snapshot
+     * @param emptyDelta tells whether delta contains no changes and can be skipped
+     */
+    public DeltaEndpointWatcher(EndpointWatcher<T> watcher, BiFunction<D, T, D> differ, Predicate<D> emptyDelta) {
+        this.watcher = watcher;
+        this.differ = differ;
+        this.emptyDelta = emptyDelta;
+    }
+
+    public Canceller watch(Consumer<WatchResult<D>> consumer, Consumer<Exception> failureConsumer) {
+        DeltaState state = new DeltaState();
+        return watcher.watch(watchResult -> {
+            WatchResult<D> delta = state.next(watchResult);
+            if (delta != null) {
+                consumer.accept(delta);
+            }
+        }, failureConsumer);
+    }
+
+    public ConsulWatcherStats stats() {
+        return watcher.stats();
+    }
+
+    public String endpoint() {
+        return watcher.endpoint();
+    }
+
+    private class DeltaState {
+        private D last = null;
+
+        synchronized WatchResult<D> next(WatchResult<T> watchResult) {
+            boolean first = last == null;
+            D delta = differ.apply(last, watchResult.getBody());
+            last = delta;
+            if (!first && emptyDelta.test(delta)) {
+                return null;
+            }
+            return new WatchResult<>(watchResult.getIndex(), delta);
+        }
+    }
+}
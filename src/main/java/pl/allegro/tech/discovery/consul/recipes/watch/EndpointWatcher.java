@@ -16,13 +16,17 @@ public class EndpointWatcher<T> {
     }
 
     public Canceller watch(Consumer<WatchResult<T>> consumer, Consumer<Exception> failureConsumer) {
+        return watch(consumer, failureConsumer, new PollGate());
+    }
+
+    Canceller watch(Consumer<WatchResult<T>> consumer, Consumer<Exception> failureConsumer, PollGate pollGate) {
         return watcher.watchEndpoint(endpoint, (watchResult) -> {
             try {
                 consumer.accept(watchResult.map(decoder::decode));
             } catch (Exception e) {
                 failureConsumer.accept(e);
             }
-        }, failureConsumer);
+        }, failureConsumer, pollGate);
     }
 
     public ConsulWatcherStats stats() {
@@ -0,0 +1,63 @@
+package pl.allegro.tech.discovery.consul.recipes.watch;
+
+/**
+ * Lets a consumer pause re-polling of a watch. A poll requested while paused is parked and run on resume, so at
+ * most one poll is pending and no results pile up while the consumer can't take them.
+ */
+class PollGate {
+
+    private final boolean pollsAfterDelivery;
+
+    private boolean paused = false;
+
+    private Runnable parkedPoll = null;
+
+    PollGate() {
+        this(false);
+    }
+
+    private PollGate(boolean pollsAfterDelivery) {
+        this.pollsAfterDelivery = pollsAfterDelivery;
+    }
+
+    /**
+     * Gate of a consumer that pauses it while taking a result, so the poll following a result is requested only
+     * after the consumer returns, instead of right after the result is handed to the worker pool.
+     */
+    static PollGate afterDelivery() {
+        return new PollGate(true);
+    }
+
+    boolean pollsAfterDelivery() {
+        return pollsAfterDelivery;
+    }
+
+    /**
+     * Runs the poll right away, or parks it until {@link #resume()} if paused.
+     */
+    void poll(Runnable poll) {
+        synchronized (this) {
+            if (paused) {
+                parkedPoll = poll;
+                return;
+            }
+        }
+        poll.run();
+    }
+
+    synchronized void pause() {
+        paused = true;
+    }
+
+    void resume() {
+        Runnable poll;
+        synchronized (this) {
+            paused = false;
+            poll = parkedPoll;
+            parkedPoll = null;
+        }
+        if (poll != null) {
+            poll.run();
+        }
+    }
+}
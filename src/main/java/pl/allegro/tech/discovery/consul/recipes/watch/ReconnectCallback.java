@@ -4,6 +4,9 @@ import okhttp3.HttpUrl;
 
 interface ReconnectCallback {
 
-    void reconnect(HttpUrl endpoint, long index, ConsulLongPollCallback callback);
+    /**
+     * Reconnects blocking on the content hash, if it is not null, or on the index otherwise.
+     */
+    void reconnect(HttpUrl endpoint, long index, String contentHash, ConsulLongPollCallback callback);
 
 }
@@ -0,0 +1,227 @@
+package pl.allegro.tech.discovery.consul.recipes.watch;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Accounts capacity for watches sharing one HTTP client. Every watch holds a slot from the moment it is started
+ * until it is cancelled, as its long poll occupies a connection for most of that time. Capacity should match the
+ * limit of concurrent requests of the client, so that long polls never queue unnoticed in its dispatcher.
+ * <p>
+ * Part of capacity can be reserved for a priority class: less important watches can't use it, so e.g. critical
+ * watches don't starve behind thousands of bulk catalog watches. A watch that can't be admitted waits in a queue
+ * and is started, most important first, when another watch is cancelled, or is rejected if queueing is disabled.
+ */
+public class WatchAdmission {
+
+    private static final Logger logger = LoggerFactory.getLogger(WatchAdmission.class);
+
+    private final int capacity;
+    private final int[] reserved;
+    private final boolean queueing;
+    private final Consumer<WatchPriority> exhaustionListener;
+
+    private final int[] active = new int[WatchPriority.values().length];
+    private final Map<WatchPriority, Deque<Admission>> queues = new EnumMap<>(WatchPriority.class);
+    private int activeTotal = 0;
+
+    private final WatchAdmissionStats stats = new WatchAdmissionStats();
+
+    private WatchAdmission(int capacity, int[] reserved, boolean queueing, Consumer<WatchPriority> exhaustionListener) {
+        this.capacity = capacity;
+        this.reserved = reserved;
+        this.queueing = queueing;
+        this.exhaustionListener = exhaustionListener;
+        for (WatchPriority priority : WatchPriority.values()) {
+            queues.put(priority, new ArrayDeque<>());
+        }
+    }
+
+    public static Builder watchAdmission(int capacity) {
+        return new Builder(capacity);
+    }
+
+    /**
+     * Admission without a limit, used by watchers not configured with one.
+     */
+    public static WatchAdmission unlimited() {
+        return new Builder(Integer.MAX_VALUE).build();
+    }
+
+    public WatchAdmissionStats stats() {
+        return stats;
+    }
+
+    /**
+     * Starts the watch right away if there is capacity for its priority, otherwise queues it. Capacity is released
+     * and the watch is removed from the queue when it is cancelled.
+     *
+     * @return false if the watch was rejected and will never be started
+     */
+    boolean admit(WatchPriority priority, Canceller canceller, Runnable start) {
+        Admission admission = new Admission(priority, start);
+        boolean startNow;
+        synchronized (this) {
+            startNow = canAdmit(priority);
+            if (startNow) {
+                occupy(admission);
+            } else if (queueing) {
+                admission.queued = true;
+                queues.get(priority).addLast(admission);
+                stats.queued(priority);
+            } else {
+                stats.rejected();
+            }
+        }
+
+        if (!startNow) {
+            stats.exhausted();
+            notifyExhausted(priority);
+            if (!queueing) {
+                return false;
+            }
+            logger.warn("Capacity for {} watches exhausted, queueing watch", priority);
+        }
+        canceller.onCancel(() -> release(admission));
+        if (startNow) {
+            admission.start.run();
+        }
+        return true;
+    }
+
+    private void release(Admission admission) {
+        List<Admission> toStart;
+        synchronized (this) {
+            if (admission.queued) {
+                admission.queued = false;
+                queues.get(admission.priority).remove(admission);
+                stats.dequeued(admission.priority);
+                return;
+            }
+            if (!admission.active) {
+                return;
+            }
+            admission.active = false;
+            active[admission.priority.ordinal()]--;
+            activeTotal--;
+            stats.released(admission.priority);
+            toStart = admitQueued();
+        }
+        toStart.forEach(queued -> queued.start.run());
+    }
+
+    private List<Admission> admitQueued() {
+        List<Admission> admitted = new ArrayList<>();
+        for (WatchPriority priority : WatchPriority.values()) {
+            Deque<Admission> queue = queues.get(priority);
+            while (!queue.isEmpty() && canAdmit(priority)) {
+                Admission admission = queue.pollFirst();
+                admission.queued = false;
+                stats.dequeued(priority);
+                occupy(admission);
+                admitted.add(admission);
+            }
+        }
+        return admitted;
+    }
+
+    private void occupy(Admission admission) {
+        admission.active = true;
+        active[admission.priority.ordinal()]++;
+        activeTotal++;
+        stats.admitted(admission.priority);
+    }
+
+    /**
+     * Watch can be admitted if it leaves intact the unused part of capacity reserved for more important classes.
+     */
+    private boolean canAdmit(WatchPriority priority) {
+        long limit = capacity;
+        for (int moreImportant = 0; moreImportant < priority.ordinal(); moreImportant++) {
+            limit -= Math.max(0, reserved[moreImportant] - active[moreImportant]);
+        }
+        return activeTotal < limit;
+    }
+
+    private void notifyExhausted(WatchPriority priority) {
+        try {
+            exhaustionListener.accept(priority);
+        } catch (Exception e) {
+            logger.warn("Watch admission exhaustion listener failed", e);
+        }
+    }
+
+    private static class Admission {
+        private final WatchPriority priority;
+        private final Runnable start;
+        private boolean queued = false;
+        private boolean active = false;
+
+        private Admission(WatchPriority priority, Runnable start) {
+            this.priority = priority;
+            this.start = start;
+        }
+    }
+
+    public static class Builder {
+        private final int capacity;
+        private final int[] reserved = new int[WatchPriority.values().length];
+        private boolean queueing = true;
+        private Consumer<WatchPriority> exhaustionListener = priority -> {
+        };
+
+        private Builder(int capacity) {
+            if (capacity <= 0) {
+                throw new IllegalArgumentException("Capacity must be positive");
+            }
+            this.capacity = capacity;
+        }
+
+        /**
+         * Reserves part of capacity for watches of given priority, which less important watches can't use.
+         */
+        public Builder withReservedCapacity(WatchPriority priority, int reservedCapacity) {
+            if (reservedCapacity < 0) {
+                throw new IllegalArgumentException("Reserved capacity can't be negative");
+            }
+            this.reserved[priority.ordinal()] = reservedCapacity;
+            return this;
+        }
+
+        /**
+         * With queueing disabled, watches over capacity are rejected with {@link WatchRejectedException} passed
+         * to their failure consumer, instead of waiting for capacity. Enabled by default.
+         */
+        public Builder withQueueing(boolean queueing) {
+            this.queueing = queueing;
+            return this;
+        }
+
+        /**
+         * Called with the priority of every watch that could not be admitted right away.
+         */
+        public Builder withExhaustionListener(Consumer<WatchPriority> exhaustionListener) {
+            this.exhaustionListener = exhaustionListener;
+            return this;
+        }
+
+        public WatchAdmission build() {
+            long totalReserved = 0;
+            for (int reservedCapacity : reserved) {
+                totalReserved += reservedCapacity;
+            }
+            if (totalReserved > capacity) {
+                throw new IllegalArgumentException("Reserved capacity exceeds capacity");
+            }
+            return new WatchAdmission(capacity, reserved.clone(), queueing, exhaustionListener);
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package pl.allegro.tech.discovery.consul.recipes.watch;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+public class WatchAdmissionStats {
+
+    private final AtomicLong[] active = counters();
+
+    private final AtomicLong[] queued = counters();
+
+    private final AtomicLong rejected = new AtomicLong(0);
+
+    private final AtomicLong exhausted = new AtomicLong(0);
+
+    private static AtomicLong[] counters() {
+        AtomicLong[] counters = new AtomicLong[WatchPriority.values().length];
+        for (int i = 0; i < counters.length; i++) {
+            counters[i] = new AtomicLong(0);
+        }
+        return counters;
+    }
+
+    void admitted(WatchPriority priority) {
+        active[priority.ordinal()].incrementAndGet();
+    }
+
+    void released(WatchPriority priority) {
+        active[priority.ordinal()].decrementAndGet();
+    }
+
+    void queued(WatchPriority priority) {
+        queued[priority.ordinal()].incrementAndGet();
+    }
+
+    void dequeued(WatchPriority priority) {
+        queued[priority.ordinal()].decrementAndGet();
+    }
+
+    void rejected() {
+        rejected.incrementAndGet();
+    }
+
+    void exhausted() {
+        exhausted.incrementAndGet();
+    }
+
+    /**
+     * Number of watches of given priority holding capacity.
+     */
+    public long getActive(WatchPriority priority) {
+        return active[priority.ordinal()].get();
+    }
+
+    public long getActiveTotal() {
+        return sum(active);
+    }
+
+    /**
+     * Number of watches of given priority waiting for capacity.
+     */
+    public long getQueued(WatchPriority priority) {
+        return queued[priority.ordinal()].get();
+    }
+
+    public long getQueuedTotal() {
+        return sum(queued);
+    }
+
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    /**
+     * Number of times a watch could not be admitted right away and was queued or rejected.
+     */
+    public long getExhausted() {
+        return exhausted.get();
+    }
+
+    private static long sum(AtomicLong[] counters) {
+        long sum = 0;
+        for (AtomicLong counter : counters) {
+            sum += counter.get();
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,17 @@
+package pl.allegro.tech.discovery.consul.recipes.watch;
+
+/**
+ * Priority class of watches, from the most important. Watches of a class can use capacity reserved for it and
+ * unreserved capacity, but not capacity reserved for more important classes.
+ */
+public enum WatchPriority {
+    /**
+     * Watches needed for correctness, e.g. of a leader election or lock key.
+     */
+    CRITICAL,
+    NORMAL,
+    /**
+     * Watches of many endpoints at once, e.g. of instances of all services in a catalog.
+     */
+    BULK
+}
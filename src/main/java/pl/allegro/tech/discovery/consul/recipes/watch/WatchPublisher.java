@@ -0,0 +1,182 @@
+package pl.allegro.tech.discovery.consul.recipes.watch;
+
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/**
+ * Reactive Streams publisher of results of an {@link EndpointWatcher}. Every subscriber gets its own watch, started
+ * on subscription and cancelled with it.
+ * <p>
+ * Results are delivered only on demand. While there is none, only the latest result is kept and the endpoint is not
+ * re-polled, so a slow subscriber gets the current state when it requests more, without anything being buffered.
+ * Watch failures are transient, the watch keeps retrying, so they are passed to the failure consumer instead of
+ * terminating the stream. Only a rejected watch ends it with {@code onError}. {@link #close()} cancels all watches
+ * and completes their subscribers.
+ * <p>
+ * On Java 9+ {@code org.reactivestreams.FlowAdapters.toFlowPublisher} turns it into a
+ * {@code java.util.concurrent.Flow.Publisher}. Requires {@code org.reactivestreams:reactive-streams} on classpath.
+ */
+public class WatchPublisher<T> implements Publisher<WatchResult<T>>, AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(WatchPublisher.class);
+
+    private final EndpointWatcher<T> watcher;
+    private final Consumer<Exception> failureConsumer;
+    private final Set<WatchSubscription> subscriptions = ConcurrentHashMap.newKeySet();
+
+    public WatchPublisher(EndpointWatcher<T> watcher) {
+        this(watcher, exception -> logger.warn("Watch of {} failed", watcher.endpoint(), exception));
+    }
+
+    public WatchPublisher(EndpointWatcher<T> watcher, Consumer<Exception> failureConsumer) {
+        this.watcher = watcher;
+        this.failureConsumer = failureConsumer;
+    }
+
+    @Override
+    public void subscribe(Subscriber<? super WatchResult<T>> subscriber) {
+        if (subscriber == null) {
+            throw new NullPointerException("Subscriber must not be null");
+        }
+        WatchSubscription subscription = new WatchSubscription(subscriber);
+        subscriptions.add(subscription);
+        subscriber.onSubscribe(subscription);
+        subscription.start();
+    }
+
+    /**
+     * Cancels watches of all subscribers and completes them.
+     */
+    @Override
+    public void close() {
+        subscriptions.forEach(WatchSubscription::complete);
+    }
+
+    private class WatchSubscription implements Subscription {
+
+        private final Subscriber<? super WatchResult<T>> subscriber;
+        private final Canceller canceller = new Canceller();
+        private final PollGate pollGate = PollGate.afterDelivery();
+
+        private final AtomicLong demand = new AtomicLong(0);
+        private final AtomicReference<WatchResult<T>> latest = new AtomicReference<>(null);
+        private final AtomicInteger drains = new AtomicInteger(0);
+
+        private volatile boolean cancelled = false;
+        private volatile boolean done = false;
+        private volatile Throwable error = null;
+
+        private WatchSubscription(Subscriber<? super WatchResult<T>> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        private void start() {
+            pollGate.pause();
+            Canceller watchCanceller = watcher.watch(this::onResult, this::onFailure, pollGate);
+            canceller.onCancel(watchCanceller::cancel);
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                terminate(new IllegalArgumentException("Requested " + n + " results, must be positive"));
+                return;
+            }
+            demand.getAndUpdate(current -> current + n < 0 ? Long.MAX_VALUE : current + n);
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            release();
+        }
+
+        private void complete() {
+            if (!done) {
+                done = true;
+                drain();
+            }
+        }
+
+        private void terminate(Throwable throwable) {
+            if (!done) {
+                error = throwable;
+                done = true;
+                drain();
+            }
+        }
+
+        private void onResult(WatchResult<T> result) {
+            latest.set(result);
+            drain();
+        }
+
+        private void onFailure(Exception exception) {
+            if (exception instanceof WatchRejectedException) {
+                terminate(exception);
+            } else {
+                failureConsumer.accept(exception);
+            }
+        }
+
+        private void release() {
+            canceller.cancel();
+            latest.set(null);
+            subscriptions.remove(this);
+        }
+
+        /**
+         * Delivers signals from one thread at a time, whichever called it first, and pauses polling while there
+         * is no demand.
+         */
+        private void drain() {
+            if (drains.getAndIncrement() != 0) {
+                return;
+            }
+            int missed = 1;
+            do {
+                if (cancelled) {
+                    return;
+                }
+                if (done) {
+                    release();
+                    signalTermination();
+                    return;
+                }
+                while (demand.get() > 0 && !done && !cancelled) {
+                    WatchResult<T> result = latest.getAndSet(null);
+                    if (result == null) {
+                        break;
+                    }
+                    demand.decrementAndGet();
+                    subscriber.onNext(result);
+                }
+                if (demand.get() > 0) {
+                    pollGate.resume();
+                } else {
+                    pollGate.pause();
+                }
+                missed = drains.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        private void signalTermination() {
+            if (error != null) {
+                subscriber.onError(error);
+            } else {
+                subscriber.onComplete();
+            }
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package pl.allegro.tech.discovery.consul.recipes.watch;
+
+/**
+ * Passed to the failure consumer of a watch that was not started, because capacity for watches of its priority
+ * was exhausted and queueing is disabled.
+ */
+public class WatchRejectedException extends RuntimeException {
+
+    public WatchRejectedException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,417 @@
+package pl.allegro.tech.discovery.consul.recipes.watch.catalog;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+
+/**
+ * Instances of a service stored in columns instead of an object per instance: ports in an {@code int[]}, IPv4
+ * addresses packed into an {@code int[]}, other addresses in a dictionary and tags as ids of a per-snapshot tag
+ * dictionary, with a bitset of instances per tag. An instance costs a few dozen bytes on top of its id, instead of
+ * a {@link ServiceInstance} with its boxed port, address and list of tags.
+ * <p>
+ * {@link #getInstances()} creates a {@link ServiceInstance} on every {@code get}, so columns should be read directly
+ * or through an {@link InstanceView} on hot paths. {@link #forEach(Consumer)} reuses a single view for all instances.
+ * {@link InstanceDetails} of instances are not kept.
+ */
+public class ColumnarServiceInstances extends ServiceInstances {
+
+    private static final int NO_PORT = -1;
+    private static final byte NO_ADDRESS = 0;
+    private static final byte IPV4_ADDRESS = 1;
+    private static final byte DICTIONARY_ADDRESS = 2;
+
+    private final Columns columns;
+
+    private ColumnarServiceInstances(String serviceName, Columns columns) {
+        super(serviceName, new MaterializedInstances(columns));
+        this.columns = columns;
+    }
+
+    public static ColumnarServiceInstances of(ServiceInstances serviceInstances) {
+        if (serviceInstances instanceof ColumnarServiceInstances) {
+            return (ColumnarServiceInstances) serviceInstances;
+        }
+        return of(serviceInstances.getServiceName(), serviceInstances.getInstances());
+    }
+
+    public static ColumnarServiceInstances of(String serviceName, Collection<ServiceInstance> instances) {
+        Builder builder = builder(serviceName, instances.size());
+        instances.forEach(builder::add);
+        return builder.build();
+    }
+
+    public static Builder builder(String serviceName, int expectedSize) {
+        return new Builder(serviceName, expectedSize);
+    }
+
+    public int size() {
+        return columns.size;
+    }
+
+    public String serviceId(int index) {
+        return columns.serviceIds[checkIndex(index)];
+    }
+
+    public boolean hasPort(int index) {
+        return columns.ports[checkIndex(index)] != NO_PORT;
+    }
+
+    /**
+     * @return port of the instance or -1 if it has none
+     */
+    public int port(int index) {
+        return columns.ports[checkIndex(index)];
+    }
+
+    /**
+     * @return address of the instance or {@code null} if it has none
+     */
+    public String address(int index) {
+        return address(columns, checkIndex(index));
+    }
+
+    public boolean hasTag(int index, String tag) {
+        Integer tagId = columns.tagIds.get(tag);
+        return tagId != null && columns.instancesByTag[tagId].get(checkIndex(index));
+    }
+
+    public int tagCount(int index) {
+        checkIndex(index);
+        return columns.tagOffsets[index + 1] - columns.tagOffsets[index];
+    }
+
+    public String tag(int index, int tagPosition) {
+        if (tagPosition < 0 || tagPosition >= tagCount(index)) {
+            throw new IndexOutOfBoundsException("Tag position: " + tagPosition);
+        }
+        return columns.tagDictionary[columns.tags[columns.tagOffsets[index] + tagPosition]];
+    }
+
+    /**
+     * Calls the consumer with indexes of instances having given tag, in ascending order.
+     */
+    public void forEachWithTag(String tag, IntConsumer consumer) {
+        Integer tagId = columns.tagIds.get(tag);
+        if (tagId == null) {
+            return;
+        }
+        BitSet instances = columns.instancesByTag[tagId];
+        for (int index = instances.nextSetBit(0); index >= 0; index = instances.nextSetBit(index + 1)) {
+            consumer.accept(index);
+        }
+    }
+
+    public int countWithTag(String tag) {
+        Integer tagId = columns.tagIds.get(tag);
+        return tagId == null ? 0 : columns.instancesByTag[tagId].cardinality();
+    }
+
+    /**
+     * Distinct tags of all instances.
+     */
+    public List<String> tags() {
+        return Collections.unmodifiableList(Arrays.asList(columns.tagDictionary));
+    }
+
+    public InstanceView view(int index) {
+        InstanceView view = new InstanceView(this);
+        view.moveTo(index);
+        return view;
+    }
+
+    /**
+     * Calls the consumer for every instance with the same view moved to consecutive instances. The view must not be
+     * kept after the consumer returns.
+     */
+    public void forEach(Consumer<InstanceView> consumer) {
+        InstanceView view = new InstanceView(this);
+        for (int index = 0; index < columns.size; index++) {
+            view.moveTo(index);
+            consumer.accept(view);
+        }
+    }
+
+    private int checkIndex(int index) {
+        if (index < 0 || index >= columns.size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", size: " + columns.size);
+        }
+        return index;
+    }
+
+    /**
+     * Packs a dotted-quad IPv4 address into an int, or returns {@code null} if the address is not in that form.
+     * Addresses that would not format back to the same text, like ones with leading zeros, are not packed either.
+     */
+    static Integer parseIpv4(String address) {
+        int packed = 0;
+        int octets = 0;
+        int octet = -1;
+        int digits = 0;
+        for (int i = 0; i <= address.length(); i++) {
+            char c = i < address.length() ? address.charAt(i) : '.';
+            if (c == '.') {
+                if (octet < 0 || octet > 255 || (digits > 1 && address.charAt(i - digits) == '0') || ++octets > 4) {
+                    return null;
+                }
+                packed = (packed << 8) | octet;
+                octet = -1;
+                digits = 0;
+            } else if (c >= '0' && c <= '9' && digits < 3) {
+                octet = (octet < 0 ? 0 : octet * 10) + (c - '0');
+                digits++;
+            } else {
+                return null;
+            }
+        }
+        return octets == 4 ? packed : null;
+    }
+
+    private static String address(Columns columns, int index) {
+        switch (columns.addressKinds[index]) {
+            case IPV4_ADDRESS:
+                return formatIpv4(columns.addressValues[index]);
+            case DICTIONARY_ADDRESS:
+                return columns.addressDictionary[columns.addressValues[index]];
+            default:
+                return null;
+        }
+    }
+
+    static String formatIpv4(int packed) {
+        return ((packed >>> 24) & 0xff) + "." + ((packed >>> 16) & 0xff) + "."
+                + ((packed >>> 8) & 0xff) + "." + (packed & 0xff);
+    }
+
+    /**
+     * Flyweight of a single instance, reading from columns of the snapshot.
+     */
+    public static class InstanceView {
+        private final ColumnarServiceInstances instances;
+        private int index;
+
+        private InstanceView(ColumnarServiceInstances instances) {
+            this.instances = instances;
+        }
+
+        void moveTo(int index) {
+            this.index = instances.checkIndex(index);
+        }
+
+        public int index() {
+            return index;
+        }
+
+        public String getServiceId() {
+            return instances.serviceId(index);
+        }
+
+        public String getServiceAddress() {
+            return instances.address(index);
+        }
+
+        public int getServicePort() {
+            return instances.port(index);
+        }
+
+        public boolean hasPort() {
+            return instances.hasPort(index);
+        }
+
+        public boolean hasTag(String tag) {
+            return instances.hasTag(index, tag);
+        }
+
+        public ServiceInstance toServiceInstance() {
+            return instances.getInstances().get(index);
+        }
+    }
+
+    public static class Builder {
+        private final String serviceName;
+
+        private final List<String> serviceIds;
+        private int[] ports;
+        private byte[] addressKinds;
+        private int[] addressValues;
+        private final List<String> addressDictionary = new ArrayList<>();
+        private final Map<String, Integer> addressIds = new HashMap<>();
+        private int[] tagOffsets;
+        private int[] tags;
+        private int tagsSize = 0;
+        private final List<String> tagDictionary = new ArrayList<>();
+        private final Map<String, Integer> tagIds = new HashMap<>();
+        private final List<BitSet> instancesByTag = new ArrayList<>();
+        private int size = 0;
+
+        private Builder(String serviceName, int expectedSize) {
+            int capacity = Math.max(expectedSize, 4);
+            this.serviceName = serviceName;
+            this.serviceIds = new ArrayList<>(capacity);
+            this.ports = new int[capacity];
+            this.addressKinds = new byte[capacity];
+            this.addressValues = new int[capacity];
+            this.tagOffsets = new int[capacity + 1];
+            this.tags = new int[capacity * 2];
+        }
+
+        public Builder add(ServiceInstance instance) {
+            return add(instance.getServiceId(), instance.getServiceTags(),
+                    instance.getServiceAddress().orElse(null), instance.getServicePort().orElse(null));
+        }
+
+        public Builder add(String serviceId, List<String> serviceTags, String serviceAddress, Integer servicePort) {
+            ensureCapacity(size + 1);
+            serviceIds.add(serviceId);
+            ports[size] = servicePort != null ? servicePort : NO_PORT;
+            addAddress(serviceAddress);
+            addTags(serviceTags != null ? serviceTags : Collections.emptyList());
+            size++;
+            return this;
+        }
+
+        public ColumnarServiceInstances build() {
+            Columns columns = new Columns(
+                    size,
+                    serviceIds.toArray(new String[0]),
+                    Arrays.copyOf(ports, size),
+                    Arrays.copyOf(addressKinds, size),
+                    Arrays.copyOf(addressValues, size),
+                    addressDictionary.toArray(new String[0]),
+                    Arrays.copyOf(tagOffsets, size + 1),
+                    Arrays.copyOf(tags, tagsSize),
+                    tagDictionary.toArray(new String[0]),
+                    new HashMap<>(tagIds),
+                    instancesByTag.toArray(new BitSet[0])
+            );
+            return new ColumnarServiceInstances(serviceName, columns);
+        }
+
+        private void addAddress(String address) {
+            if (address == null) {
+                addressKinds[size] = NO_ADDRESS;
+                return;
+            }
+            Integer ipv4 = parseIpv4(address);
+            if (ipv4 != null) {
+                addressKinds[size] = IPV4_ADDRESS;
+                addressValues[size] = ipv4;
+                return;
+            }
+            // IPv6 and host names are usually shared by many instances (e.g. of the same host), so a dictionary is
+            // smaller than packing them, and keeps their original text
+            addressKinds[size] = DICTIONARY_ADDRESS;
+            addressValues[size] = addressIds.computeIfAbsent(address, a -> {
+                addressDictionary.add(a);
+                return addressDictionary.size() - 1;
+            });
+        }
+
+        private void addTags(List<String> serviceTags) {
+            tagOffsets[size] = tagsSize;
+            if (tags.length < tagsSize + serviceTags.size()) {
+                tags = Arrays.copyOf(tags, Math.max(tags.length * 2, tagsSize + serviceTags.size()));
+            }
+            for (String tag : serviceTags) {
+                int tagId = tagIds.computeIfAbsent(tag, t -> {
+                    tagDictionary.add(t);
+                    instancesByTag.add(new BitSet());
+                    return tagDictionary.size() - 1;
+                });
+                tags[tagsSize++] = tagId;
+                instancesByTag.get(tagId).set(size);
+            }
+            tagOffsets[size + 1] = tagsSize;
+        }
+
+        private void ensureCapacity(int capacity) {
+            if (ports.length >= capacity) {
+                return;
+            }
+            int grown = Math.max(capacity, ports.length * 2);
+            ports = Arrays.copyOf(ports, grown);
+            addressKinds = Arrays.copyOf(addressKinds, grown);
+            addressValues = Arrays.copyOf(addressValues, grown);
+            tagOffsets = Arrays.copyOf(tagOffsets, grown + 1);
+        }
+    }
+
+    private static class Columns {
+        private final int size;
+        private final String[] serviceIds;
+        private final int[] ports;
+        private final byte[] addressKinds;
+        private final int[] addressValues;
+        private final String[] addressDictionary;
+        private final int[] tagOffsets;
+        private final int[] tags;
+        private final String[] tagDictionary;
+        private final Map<String, Integer> tagIds;
+        private final BitSet[] instancesByTag;
+
+        private Columns(int size,
+                        String[] serviceIds,
+                        int[] ports,
+                        byte[] addressKinds,
+                        int[] addressValues,
+                        String[] addressDictionary,
+                        int[] tagOffsets,
+                        int[] tags,
+                        String[] tagDictionary,
+                        Map<String, Integer> tagIds,
+                        BitSet[] instancesByTag) {
+            this.size = size;
+            this.serviceIds = serviceIds;
+            this.ports = ports;
+            this.addressKinds = addressKinds;
+            this.addressValues = addressValues;
+            this.addressDictionary = addressDictionary;
+            this.tagOffsets = tagOffsets;
+            this.tags = tags;
+            this.tagDictionary = tagDictionary;
+            this.tagIds = tagIds;
+            this.instancesByTag = instancesByTag;
+        }
+    }
+
+    /**
+     * Creates {@link ServiceInstance} objects from columns on demand.
+     */
+    private static class MaterializedInstances extends AbstractList<ServiceInstance> implements RandomAccess {
+        private final Columns columns;
+
+        private MaterializedInstances(Columns columns) {
+            this.columns = columns;
+        }
+
+        @Override
+        public ServiceInstance get(int index) {
+            if (index < 0 || index >= columns.size) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", size: " + columns.size);
+            }
+            int tagsStart = columns.tagOffsets[index];
+            int tagsEnd = columns.tagOffsets[index + 1];
+            List<String> tags = new ArrayList<>(tagsEnd - tagsStart);
+            for (int i = tagsStart; i < tagsEnd; i++) {
+                tags.add(columns.tagDictionary[columns.tags[i]]);
+            }
+            String address = address(columns, index);
+            int port = columns.ports[index];
+            return new ServiceInstance(columns.serviceIds[index], tags, address, port != NO_PORT ? port : null);
+        }
+
+        @Override
+        public int size() {
+            return columns.size;
+        }
+    }
+}
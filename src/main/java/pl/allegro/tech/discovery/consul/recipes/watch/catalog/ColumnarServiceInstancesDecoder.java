@@ -0,0 +1,50 @@
+package pl.allegro.tech.discovery.consul.recipes.watch.catalog;
+
+import pl.allegro.tech.discovery.consul.recipes.json.JsonDecoder;
+import pl.allegro.tech.discovery.consul.recipes.json.JsonDeserializer;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Decodes a JSON array of service instances straight into {@link ColumnarServiceInstances}. Unlike
+ * {@link IncrementalServiceInstancesDecoder}, it keeps nothing between updates, so the only retained memory is
+ * the columnar snapshot itself, at the cost of decoding all instances on every update.
+ */
+public class ColumnarServiceInstancesDecoder implements JsonDecoder<ServiceInstances> {
+
+    private final String serviceName;
+    private final JsonDeserializer jsonDeserializer;
+    private final Function<Map<String, Object>, ServiceInstance> instanceReader;
+
+    public ColumnarServiceInstancesDecoder(String serviceName,
+                                           JsonDeserializer jsonDeserializer,
+                                           Function<Map<String, Object>, ServiceInstance> instanceReader) {
+        if (jsonDeserializer == null) {
+            throw new IllegalStateException("Configured JsonDeserializer required.");
+        }
+        this.serviceName = serviceName;
+        this.jsonDeserializer = jsonDeserializer;
+        this.instanceReader = instanceReader;
+    }
+
+    @Override
+    public ServiceInstances decode(String s) {
+        if (s.trim().isEmpty()) {
+            return ColumnarServiceInstances.builder(serviceName, 0).build();
+        }
+        List<Map<String, Object>> elements;
+        try {
+            elements = jsonDeserializer.deserializeMapList(s);
+        } catch (IOException e) {
+            throw new JsonDecodeException("Cannot deserialize JSON", e);
+        }
+        ColumnarServiceInstances.Builder builder = ColumnarServiceInstances.builder(serviceName, elements.size());
+        for (Map<String, Object> element : elements) {
+            builder.add(instanceReader.apply(element));
+        }
+        return builder.build();
+    }
+}
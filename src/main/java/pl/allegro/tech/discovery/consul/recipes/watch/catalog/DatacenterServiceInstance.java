@@ -0,0 +1,38 @@
+package pl.allegro.tech.discovery.consul.recipes.watch.catalog;
+
+import java.util.Objects;
+
+/**
+ * Service instance along with the datacenter it was read from.
+ */
+public class DatacenterServiceInstance {
+    private final String datacenter;
+    private final ServiceInstance instance;
+
+    public DatacenterServiceInstance(String datacenter, ServiceInstance instance) {
+        this.datacenter = datacenter;
+        this.instance = instance;
+    }
+
+    public String getDatacenter() {
+        return datacenter;
+    }
+
+    public ServiceInstance getInstance() {
+        return instance;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        DatacenterServiceInstance that = (DatacenterServiceInstance) o;
+        return Objects.equals(datacenter, that.datacenter) &&
+                Objects.equals(instance, that.instance);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(datacenter, instance);
+    }
+}
@@ -0,0 +1,89 @@
+package pl.allegro.tech.discovery.consul.recipes.watch.catalog;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Instances of a single service in many datacenters, keyed by datacenter name.
+ */
+public class DatacenterServiceInstances {
+    private final String serviceName;
+    private final Map<String, ServiceInstances> instancesByDatacenter;
+
+    private volatile ServiceInstances merged;
+    private volatile List<DatacenterServiceInstance> mergedWithDatacenters;
+
+    public DatacenterServiceInstances(String serviceName, Map<String, ServiceInstances> instancesByDatacenter) {
+        this.serviceName = serviceName;
+        this.instancesByDatacenter = Collections.unmodifiableMap(new TreeMap<>(instancesByDatacenter));
+    }
+
+    public String getServiceName() {
+        return serviceName;
+    }
+
+    /**
+     * Datacenters which reported their instances at least once.
+     */
+    public Set<String> getDatacenters() {
+        return instancesByDatacenter.keySet();
+    }
+
+    public Map<String, ServiceInstances> getInstancesByDatacenter() {
+        return instancesByDatacenter;
+    }
+
+    public List<ServiceInstance> getInstances(String datacenter) {
+        ServiceInstances instances = instancesByDatacenter.get(datacenter);
+        return instances != null ? instances.getInstances() : Collections.emptyList();
+    }
+
+    /**
+     * Instances from all datacenters as a single list. Instances don't carry their datacenter and service IDs
+     * may repeat across datacenters; use {@link #mergedWithDatacenters()} when the datacenter matters.
+     */
+    public ServiceInstances merged() {
+        ServiceInstances result = merged;
+        if (result == null) {
+            List<ServiceInstance> instances = new ArrayList<>();
+            instancesByDatacenter.values().forEach(it -> instances.addAll(it.getInstances()));
+            result = new ServiceInstances(serviceName, Collections.unmodifiableList(instances));
+            merged = result;
+        }
+        return result;
+    }
+
+    /**
+     * Instances from all datacenters as a single list, each tagged with its datacenter.
+     */
+    public List<DatacenterServiceInstance> mergedWithDatacenters() {
+        List<DatacenterServiceInstance> result = mergedWithDatacenters;
+        if (result == null) {
+            List<DatacenterServiceInstance> instances = new ArrayList<>();
+            instancesByDatacenter.forEach((datacenter, it) -> it.getInstances()
+                    .forEach(instance -> instances.add(new DatacenterServiceInstance(datacenter, instance))));
+            result = Collections.unmodifiableList(instances);
+            mergedWithDatacenters = result;
+        }
+        return result;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        DatacenterServiceInstances that = (DatacenterServiceInstances) o;
+        return Objects.equals(serviceName, that.serviceName) &&
+                Objects.equals(instancesByDatacenter, that.instancesByDatacenter);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(serviceName, instancesByDatacenter);
+    }
+}
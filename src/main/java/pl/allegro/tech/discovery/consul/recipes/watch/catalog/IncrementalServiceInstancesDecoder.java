@@ -0,0 +1,39 @@
+package pl.allegro.tech.discovery.consul.recipes.watch.catalog;
+
+import pl.allegro.tech.discovery.consul.recipes.json.IncrementalJsonArrayDecoder;
+import pl.allegro.tech.discovery.consul.recipes.json.JsonDecoder;
+import pl.allegro.tech.discovery.consul.recipes.json.JsonDeserializer;
+
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Decodes a JSON array of service instances reusing {@link ServiceInstance} objects from the previous
+ * decoding for array elements whose JSON text did not change. Only new or changed elements are deserialized,
+ * so the cost of an update is proportional to the number of changed instances, not to the size of the service.
+ */
+public class IncrementalServiceInstancesDecoder implements JsonDecoder<ServiceInstances> {
+
+    private final String serviceName;
+    private final IncrementalJsonArrayDecoder<ServiceInstance> instancesDecoder;
+
+    public IncrementalServiceInstancesDecoder(String serviceName,
+                                              JsonDeserializer jsonDeserializer,
+                                              Function<Map<String, Object>, ServiceInstance> instanceReader) {
+        this.serviceName = serviceName;
+        this.instancesDecoder = new IncrementalJsonArrayDecoder<>(jsonDeserializer, instanceReader);
+    }
+
+    /**
+     * Creates a decoder using given array decoder, e.g. one whose reader gets also the JSON text of an instance.
+     */
+    public IncrementalServiceInstancesDecoder(String serviceName, IncrementalJsonArrayDecoder<ServiceInstance> instancesDecoder) {
+        this.serviceName = serviceName;
+        this.instancesDecoder = instancesDecoder;
+    }
+
+    @Override
+    public ServiceInstances decode(String s) {
+        return new ServiceInstances(serviceName, instancesDecoder.decode(s));
+    }
+}
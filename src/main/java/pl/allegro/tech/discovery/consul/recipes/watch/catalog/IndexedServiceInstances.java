@@ -0,0 +1,161 @@
+package pl.allegro.tech.discovery.consul.recipes.watch.catalog;
+
+import java.util.AbstractList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.Set;
+
+/**
+ * Immutable snapshot of instances of a service with inverted indexes of tags and metadata, built once per watch
+ * update. Every lookup is a hash map access returning a precomputed list, so it does not allocate and can be
+ * called from any number of threads without locking. Lists are backed by an array of all instances and arrays
+ * of positions in it; they support random access, so iterating them with an index does not allocate either.
+ */
+public final class IndexedServiceInstances {
+
+    private static final IndexedServiceInstances EMPTY = new IndexedServiceInstances(
+            "", new ServiceInstance[0], Collections.emptyMap(), Collections.emptyMap());
+
+    private final String serviceName;
+    private final List<ServiceInstance> instances;
+    private final Map<String, List<ServiceInstance>> byTag;
+    private final Map<String, Map<String, List<ServiceInstance>>> byMeta;
+
+    private IndexedServiceInstances(String serviceName,
+                                    ServiceInstance[] instances,
+                                    Map<String, List<ServiceInstance>> byTag,
+                                    Map<String, Map<String, List<ServiceInstance>>> byMeta) {
+        this.serviceName = serviceName;
+        this.instances = new InstancesView(instances, null);
+        this.byTag = byTag;
+        this.byMeta = byMeta;
+    }
+
+    public static IndexedServiceInstances empty() {
+        return EMPTY;
+    }
+
+    public static IndexedServiceInstances of(ServiceInstances serviceInstances) {
+        return of(serviceInstances, InstanceMetadataExtractor.none());
+    }
+
+    public static IndexedServiceInstances of(ServiceInstances serviceInstances, InstanceMetadataExtractor extractor) {
+        ServiceInstance[] instances = serviceInstances.getInstances().toArray(new ServiceInstance[0]);
+
+        Map<String, PositionsBuilder> tagPositions = new HashMap<>();
+        Map<String, Map<String, PositionsBuilder>> metaPositions = new HashMap<>();
+        for (int position = 0; position < instances.length; position++) {
+            ServiceInstance instance = instances[position];
+            for (String tag : instance.getServiceTags()) {
+                tagPositions.computeIfAbsent(tag, t -> new PositionsBuilder()).add(position);
+            }
+            for (Map.Entry<String, String> meta : extractor.extract(instance).entrySet()) {
+                metaPositions.computeIfAbsent(meta.getKey(), k -> new HashMap<>())
+                        .computeIfAbsent(meta.getValue(), v -> new PositionsBuilder())
+                        .add(position);
+            }
+        }
+
+        Map<String, List<ServiceInstance>> byTag = new HashMap<>(capacity(tagPositions.size()));
+        tagPositions.forEach((tag, positions) -> byTag.put(tag, positions.view(instances)));
+
+        Map<String, Map<String, List<ServiceInstance>>> byMeta = new HashMap<>(capacity(metaPositions.size()));
+        metaPositions.forEach((key, values) -> {
+            Map<String, List<ServiceInstance>> byValue = new HashMap<>(capacity(values.size()));
+            values.forEach((value, positions) -> byValue.put(value, positions.view(instances)));
+            byMeta.put(key, Collections.unmodifiableMap(byValue));
+        });
+
+        return new IndexedServiceInstances(serviceInstances.getServiceName(), instances,
+                Collections.unmodifiableMap(byTag), Collections.unmodifiableMap(byMeta));
+    }
+
+    public String getServiceName() {
+        return serviceName;
+    }
+
+    public List<ServiceInstance> instances() {
+        return instances;
+    }
+
+    public List<ServiceInstance> withTag(String tag) {
+        return byTag.getOrDefault(tag, Collections.emptyList());
+    }
+
+    public List<ServiceInstance> withMeta(String key, String value) {
+        Map<String, List<ServiceInstance>> byValue = byMeta.get(key);
+        if (byValue == null) {
+            return Collections.emptyList();
+        }
+        return byValue.getOrDefault(value, Collections.emptyList());
+    }
+
+    public Set<String> tags() {
+        return byTag.keySet();
+    }
+
+    /**
+     * Values of given metadata key of all instances.
+     */
+    public Set<String> metaValues(String key) {
+        return byMeta.getOrDefault(key, Collections.emptyMap()).keySet();
+    }
+
+    public int size() {
+        return instances.size();
+    }
+
+    public boolean isEmpty() {
+        return instances.isEmpty();
+    }
+
+    private static int capacity(int size) {
+        return Math.max(16, size * 4 / 3 + 1);
+    }
+
+    private static class PositionsBuilder {
+        private int[] positions = new int[4];
+        private int size = 0;
+
+        void add(int position) {
+            if (size == positions.length) {
+                int[] grown = new int[positions.length * 2];
+                System.arraycopy(positions, 0, grown, 0, size);
+                positions = grown;
+            }
+            positions[size++] = position;
+        }
+
+        List<ServiceInstance> view(ServiceInstance[] instances) {
+            int[] trimmed = new int[size];
+            System.arraycopy(positions, 0, trimmed, 0, size);
+            return new InstancesView(instances, trimmed);
+        }
+    }
+
+    /**
+     * Instances at given positions, or all instances if positions are {@code null}.
+     */
+    private static class InstancesView extends AbstractList<ServiceInstance> implements RandomAccess {
+        private final ServiceInstance[] instances;
+        private final int[] positions;
+
+        InstancesView(ServiceInstance[] instances, int[] positions) {
+            this.instances = instances;
+            this.positions = positions;
+        }
+
+        @Override
+        public ServiceInstance get(int index) {
+            return positions == null ? instances[index] : instances[positions[index]];
+        }
+
+        @Override
+        public int size() {
+            return positions == null ? instances.length : positions.length;
+        }
+    }
+}
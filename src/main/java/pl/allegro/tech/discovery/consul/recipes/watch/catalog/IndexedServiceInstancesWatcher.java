@@ -0,0 +1,36 @@
+package pl.allegro.tech.discovery.consul.recipes.watch.catalog;
+
+import pl.allegro.tech.discovery.consul.recipes.watch.Canceller;
+import pl.allegro.tech.discovery.consul.recipes.watch.ConsulWatcherStats;
+import pl.allegro.tech.discovery.consul.recipes.watch.EndpointWatcher;
+import pl.allegro.tech.discovery.consul.recipes.watch.WatchResult;
+
+import java.util.function.Consumer;
+
+/**
+ * Wraps a watcher of service instances and delivers {@link IndexedServiceInstances} rebuilt on every update,
+ * so that lookups by tag or metadata don't scan instances.
+ */
+public class IndexedServiceInstancesWatcher {
+    private final EndpointWatcher<ServiceInstances> watcher;
+    private final InstanceMetadataExtractor extractor;
+
+    public IndexedServiceInstancesWatcher(EndpointWatcher<ServiceInstances> watcher, InstanceMetadataExtractor extractor) {
+        this.watcher = watcher;
+        this.extractor = extractor;
+    }
+
+    public Canceller watch(Consumer<WatchResult<IndexedServiceInstances>> consumer, Consumer<Exception> failureConsumer) {
+        return watcher.watch(watchResult ->
+                consumer.accept(watchResult.map(instances -> IndexedServiceInstances.of(instances, extractor))),
+                failureConsumer);
+    }
+
+    public ConsulWatcherStats stats() {
+        return watcher.stats();
+    }
+
+    public String endpoint() {
+        return watcher.endpoint();
+    }
+}
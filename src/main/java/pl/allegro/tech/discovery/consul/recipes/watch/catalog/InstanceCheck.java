@@ -0,0 +1,66 @@
+package pl.allegro.tech.discovery.consul.recipes.watch.catalog;
+
+import java.util.Map;
+import java.util.Objects;
+
+import static pl.allegro.tech.discovery.consul.recipes.json.JsonValueReader.nullableValue;
+import static pl.allegro.tech.discovery.consul.recipes.json.JsonValueReader.requiredValue;
+
+/**
+ * Check of an instance, or of its node, as returned together with the instance.
+ */
+public class InstanceCheck {
+
+    private final String checkId;
+    private final String name;
+    private final String status;
+    private final String output;
+
+    public InstanceCheck(String checkId, String name, String status, String output) {
+        this.checkId = checkId;
+        this.name = name != null ? name : "";
+        this.status = status;
+        this.output = output != null ? output : "";
+    }
+
+    public static InstanceCheck fromMap(Map<String, ?> props) {
+        return new InstanceCheck(
+                requiredValue(props, "CheckID", String.class),
+                nullableValue(props, "Name", String.class),
+                requiredValue(props, "Status", String.class),
+                nullableValue(props, "Output", String.class)
+        );
+    }
+
+    public String getCheckId() {
+        return checkId;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getStatus() {
+        return status;
+    }
+
+    public String getOutput() {
+        return output;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        InstanceCheck that = (InstanceCheck) o;
+        return Objects.equals(checkId, that.checkId) &&
+                Objects.equals(name, that.name) &&
+                Objects.equals(status, that.status) &&
+                Objects.equals(output, that.output);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(checkId, name, status, output);
+    }
+}
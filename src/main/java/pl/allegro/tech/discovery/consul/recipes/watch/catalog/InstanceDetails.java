@@ -0,0 +1,91 @@
+package pl.allegro.tech.discovery.consul.recipes.watch.catalog;
+
+import pl.allegro.tech.discovery.consul.recipes.json.JsonDecoder;
+import pl.allegro.tech.discovery.consul.recipes.json.JsonDeserializer;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.function.Function;
+
+/**
+ * Fields of an instance that are rarely needed: node, datacenter, metadata, weights and checks. They are decoded
+ * from the JSON of the instance only when {@link ServiceInstance} is asked for any of them.
+ */
+public class InstanceDetails {
+
+    private static final InstanceDetails EMPTY = new InstanceDetails(null, null, null, null, null);
+
+    private final String node;
+    private final String datacenter;
+    private final Map<String, String> meta;
+    private final ServiceWeights weights;
+    private final List<InstanceCheck> checks;
+
+    public InstanceDetails(String node, String datacenter, Map<String, String> meta, ServiceWeights weights,
+                           List<InstanceCheck> checks) {
+        this.node = node;
+        this.datacenter = datacenter;
+        this.meta = meta != null ? Collections.unmodifiableMap(meta) : Collections.emptyMap();
+        this.weights = weights;
+        this.checks = checks != null ? Collections.unmodifiableList(checks) : Collections.emptyList();
+    }
+
+    public static InstanceDetails empty() {
+        return EMPTY;
+    }
+
+    /**
+     * Decoder of details from the JSON text of an instance, deserializing it to a map read by the reader.
+     */
+    public static Function<String, InstanceDetails> decoder(JsonDeserializer jsonDeserializer,
+                                                            Function<Map<String, Object>, InstanceDetails> reader) {
+        return json -> {
+            try {
+                return reader.apply(jsonDeserializer.deserializeMap(json));
+            } catch (IOException e) {
+                throw new JsonDecoder.JsonDecodeException("Cannot deserialize JSON", e);
+            }
+        };
+    }
+
+    public Optional<String> getNode() {
+        return Optional.ofNullable(node);
+    }
+
+    public Optional<String> getDatacenter() {
+        return Optional.ofNullable(datacenter);
+    }
+
+    public Map<String, String> getMeta() {
+        return meta;
+    }
+
+    public Optional<ServiceWeights> getWeights() {
+        return Optional.ofNullable(weights);
+    }
+
+    public List<InstanceCheck> getChecks() {
+        return checks;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        InstanceDetails that = (InstanceDetails) o;
+        return Objects.equals(node, that.node) &&
+                Objects.equals(datacenter, that.datacenter) &&
+                Objects.equals(meta, that.meta) &&
+                Objects.equals(weights, that.weights) &&
+                Objects.equals(checks, that.checks);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(node, datacenter, meta, weights, checks);
+    }
+}
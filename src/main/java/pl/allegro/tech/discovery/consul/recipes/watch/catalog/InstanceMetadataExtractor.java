@@ -0,0 +1,42 @@
+package pl.allegro.tech.discovery.consul.recipes.watch.catalog;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Extracts metadata of an instance that {@link IndexedServiceInstances} should be indexed by.
+ */
+@FunctionalInterface
+public interface InstanceMetadataExtractor {
+
+    Map<String, String> extract(ServiceInstance instance);
+
+    static InstanceMetadataExtractor none() {
+        return instance -> Collections.emptyMap();
+    }
+
+    /**
+     * Reads service metadata of instances, decoding their {@link InstanceDetails}.
+     */
+    static InstanceMetadataExtractor serviceMeta() {
+        return ServiceInstance::getMeta;
+    }
+
+    /**
+     * Reads metadata encoded in tags as {@code <key><separator><value>}, e.g. {@code zone=dc1-a}.
+     * Tags without the separator are skipped.
+     */
+    static InstanceMetadataExtractor keyValueTags(String separator) {
+        return instance -> {
+            Map<String, String> meta = new HashMap<>();
+            for (String tag : instance.getServiceTags()) {
+                int separatorIndex = tag.indexOf(separator);
+                if (separatorIndex > 0) {
+                    meta.put(tag.substring(0, separatorIndex), tag.substring(separatorIndex + separator.length()));
+                }
+            }
+            return meta;
+        };
+    }
+}
@@ -2,20 +2,43 @@ package pl.allegro.tech.discovery.consul.recipes.watch.catalog;
 
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.function.Function;
 
+/**
+ * Instance of a service. Besides its id, tags, address and port, an instance can keep the JSON text it was read
+ * from and decode {@link InstanceDetails} (node, datacenter, metadata, weights and checks) from it on first access,
+ * so consumers that don't need them don't pay for decoding. Details are not part of equality, but
+ * {@link ServiceInstancesDelta} compares them to report instances whose details changed.
+ */
 public class ServiceInstance {
     private final String serviceId;
     private final List<String> serviceTags;
     private final String serviceAddress;
     private final Integer servicePort;
 
+    private final String json;
+    private final Function<String, InstanceDetails> detailsDecoder;
+    private volatile InstanceDetails details;
+
     public ServiceInstance(String serviceId, List<String> serviceTags, String serviceAddress, Integer servicePort) {
+        this(serviceId, serviceTags, serviceAddress, servicePort, null, null);
+    }
+
+    /**
+     * Creates an instance with details decoded lazily from given JSON text by the decoder.
+     */
+    public ServiceInstance(String serviceId, List<String> serviceTags, String serviceAddress, Integer servicePort,
+                           String json, Function<String, InstanceDetails> detailsDecoder) {
         this.serviceId = serviceId;
         this.serviceTags = serviceTags != null ? serviceTags : Collections.emptyList();
         this.serviceAddress = serviceAddress;
         this.servicePort = servicePort;
+        this.json = json;
+        this.detailsDecoder = detailsDecoder;
+        this.details = json == null || detailsDecoder == null ? InstanceDetails.empty() : null;
     }
 
     public String getServiceId() {
@@ -34,12 +57,46 @@ public class ServiceInstance {
         return Optional.ofNullable(servicePort);
     }
 
+    /**
+     * Details of the instance, decoded on first call. Empty if the instance was created without JSON.
+     *
+     * @throws pl.allegro.tech.discovery.consul.recipes.json.JsonDecoder.JsonDecodeException if JSON can't be decoded
+     */
+    public InstanceDetails getDetails() {
+        InstanceDetails current = details;
+        if (current == null) {
+            current = detailsDecoder.apply(json);
+            details = current;
+        }
+        return current;
+    }
+
+    public Optional<String> getNode() {
+        return getDetails().getNode();
+    }
+
+    public Optional<String> getDatacenter() {
+        return getDetails().getDatacenter();
+    }
+
+    public Map<String, String> getMeta() {
+        return getDetails().getMeta();
+    }
+
+    public Optional<ServiceWeights> getWeights() {
+        return getDetails().getWeights();
+    }
+
+    public List<InstanceCheck> getChecks() {
+        return getDetails().getChecks();
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
         ServiceInstance that = (ServiceInstance) o;
-        return servicePort == that.servicePort &&
+        return Objects.equals(servicePort, that.servicePort) &&
                 Objects.equals(serviceId, that.serviceId) &&
                 Objects.equals(serviceTags, that.serviceTags) &&
                 Objects.equals(serviceAddress, that.serviceAddress);
@@ -0,0 +1,127 @@
+package pl.allegro.tech.discovery.consul.recipes.watch.catalog;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Changes of service instances between two consecutive watch results, keyed by service ID,
+ * together with the current snapshot.
+ */
+public class ServiceInstancesDelta {
+    private final ServiceInstances snapshot;
+    private final Map<String, ServiceInstance> instancesById;
+    private final Map<String, ServiceInstance> added;
+    private final Map<String, ServiceInstance> removed;
+    private final Map<String, ServiceInstance> modified;
+
+    private ServiceInstancesDelta(ServiceInstances snapshot,
+                                  Map<String, ServiceInstance> instancesById,
+                                  Map<String, ServiceInstance> added,
+                                  Map<String, ServiceInstance> removed,
+                                  Map<String, ServiceInstance> modified) {
+        this.snapshot = snapshot;
+        this.instancesById = Collections.unmodifiableMap(instancesById);
+        this.added = Collections.unmodifiableMap(added);
+        this.removed = Collections.unmodifiableMap(removed);
+        this.modified = Collections.unmodifiableMap(modified);
+    }
+
+    /**
+     * Computes changes between previous delta's snapshot and current snapshot.
+     *
+     * @param previous previous delta or {@code null} if there was none, in which case all instances are added
+     */
+    public static ServiceInstancesDelta between(ServiceInstancesDelta previous, ServiceInstances current) {
+        Map<String, ServiceInstance> previousById = previous != null ? previous.instancesById : Collections.emptyMap();
+        Map<String, ServiceInstance> currentById = new LinkedHashMap<>();
+        Map<String, ServiceInstance> added = new HashMap<>();
+        Map<String, ServiceInstance> modified = new HashMap<>();
+
+        for (ServiceInstance instance : current.getInstances()) {
+            String serviceId = instance.getServiceId();
+            currentById.put(serviceId, instance);
+
+            ServiceInstance previousInstance = previousById.get(serviceId);
+            if (previousInstance == null) {
+                added.put(serviceId, instance);
+            } else if (previousInstance != instance && isModified(previousInstance, instance)) {
+                modified.put(serviceId, instance);
+            }
+        }
+
+        Map<String, ServiceInstance> removed = new HashMap<>();
+        if (previousById.size() + added.size() != currentById.size()) {
+            previousById.forEach((serviceId, instance) -> {
+                if (!currentById.containsKey(serviceId)) {
+                    removed.put(serviceId, instance);
+                }
+            });
+        }
+
+        return new ServiceInstancesDelta(current, currentById, added, removed, modified);
+    }
+
+    /**
+     * Details are not part of instance equality, so they are compared too, which decodes them only for instances
+     * that were decoded again, i.e. whose JSON changed.
+     */
+    private static boolean isModified(ServiceInstance previous, ServiceInstance current) {
+        return !previous.equals(current) || !previous.getDetails().equals(current.getDetails());
+    }
+
+    public ServiceInstances getSnapshot() {
+        return snapshot;
+    }
+
+    public String getServiceName() {
+        return snapshot.getServiceName();
+    }
+
+    /**
+     * Current instances keyed by service ID.
+     */
+    public Map<String, ServiceInstance> getInstancesById() {
+        return instancesById;
+    }
+
+    public Map<String, ServiceInstance> getAdded() {
+        return added;
+    }
+
+    /**
+     * Removed instances keyed by service ID, with their last known state.
+     */
+    public Map<String, ServiceInstance> getRemoved() {
+        return removed;
+    }
+
+    /**
+     * Modified instances keyed by service ID, with their new state.
+     */
+    public Map<String, ServiceInstance> getModified() {
+        return modified;
+    }
+
+    public boolean isEmpty() {
+        return added.isEmpty() && removed.isEmpty() && modified.isEmpty();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        ServiceInstancesDelta that = (ServiceInstancesDelta) o;
+        return Objects.equals(snapshot, that.snapshot) &&
+                Objects.equals(added, that.added) &&
+                Objects.equals(removed, that.removed) &&
+                Objects.equals(modified, that.modified);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(snapshot, added, removed, modified);
+    }
+}
@@ -0,0 +1,11 @@
+package pl.allegro.tech.discovery.consul.recipes.watch.catalog;
+
+import pl.allegro.tech.discovery.consul.recipes.watch.DeltaEndpointWatcher;
+import pl.allegro.tech.discovery.consul.recipes.watch.EndpointWatcher;
+
+public class ServiceInstancesDeltaWatcher extends DeltaEndpointWatcher<ServiceInstances, ServiceInstancesDelta> {
+
+    public ServiceInstancesDeltaWatcher(EndpointWatcher<ServiceInstances> watcher) {
+        super(watcher, ServiceInstancesDelta::between, ServiceInstancesDelta::isEmpty);
+    }
+}
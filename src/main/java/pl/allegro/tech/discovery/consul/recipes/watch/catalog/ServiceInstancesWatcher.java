@@ -1,55 +1,65 @@
 package pl.allegro.tech.discovery.consul.recipes.watch.catalog;
 
-import pl.allegro.tech.discovery.consul.recipes.json.JsonDecoder;
+import pl.allegro.tech.discovery.consul.recipes.json.IncrementalJsonArrayDecoder;
 import pl.allegro.tech.discovery.consul.recipes.json.JsonDeserializer;
 import pl.allegro.tech.discovery.consul.recipes.watch.ConsulWatcher;
 import pl.allegro.tech.discovery.consul.recipes.watch.EndpointWatcher;
 
-import java.io.IOException;
 import java.util.List;
 import java.util.Map;
-import java.util.stream.Collectors;
+import java.util.function.BiFunction;
+import java.util.function.Function;
 
+import static pl.allegro.tech.discovery.consul.recipes.json.JsonValueReader.nullableValue;
 import static pl.allegro.tech.discovery.consul.recipes.json.JsonValueReader.requiredValue;
 
 public class ServiceInstancesWatcher extends EndpointWatcher<ServiceInstances> {
 
     public ServiceInstancesWatcher(String serviceName, ConsulWatcher watcher, JsonDeserializer jsonDeserializer) {
-        super("/v1/catalog/service/" + serviceName, watcher, new ServiceInstancesJsonDecoder(serviceName, jsonDeserializer));
+        super("/v1/catalog/service/" + serviceName, watcher, new IncrementalServiceInstancesDecoder(serviceName,
+                new IncrementalJsonArrayDecoder<>(jsonDeserializer, instanceReader(jsonDeserializer))));
     }
 
-    private static class ServiceInstancesJsonDecoder implements JsonDecoder<ServiceInstances> {
-
-        private final String serviceName;
-        private final JsonDeserializer jsonDeserializer;
-
-        ServiceInstancesJsonDecoder(String serviceName, JsonDeserializer jsonDeserializer) {
-            if (jsonDeserializer == null) {
-                throw new IllegalStateException("Configured JsonDeserializer required.");
-            }
-            this.serviceName = serviceName;
-            this.jsonDeserializer = jsonDeserializer;
-        }
-
-        @Override
-        @SuppressWarnings("unchecked")
-        public ServiceInstances decode(String s) {
-            List<Map<String, Object>> services;
-            try {
-                services = jsonDeserializer.deserializeMapList(s);
-            } catch (IOException e) {
-                throw new JsonDecodeException("Cannot deserialize JSON", e);
-            }
-
-            List<ServiceInstance> instances = services.stream()
-                    .map(props -> new ServiceInstance(
-                            requiredValue(props, "ServiceID", String.class),
-                            requiredValue(props, "ServiceTags", List.class),
-                            requiredValue(props, "ServiceAddress", String.class),
-                            requiredValue(props, "ServicePort", Integer.class)
-                    ))
-                    .collect(Collectors.toList());
-            return new ServiceInstances(serviceName, instances);
-        }
+    /**
+     * Watches instances decoded into {@link ColumnarServiceInstances}, for large services.
+     */
+    public static EndpointWatcher<ServiceInstances> columnar(String serviceName, ConsulWatcher watcher,
+                                                             JsonDeserializer jsonDeserializer) {
+        return new EndpointWatcher<>("/v1/catalog/service/" + serviceName, watcher,
+                new ColumnarServiceInstancesDecoder(serviceName, jsonDeserializer, ServiceInstancesWatcher::readInstance));
+    }
+
+    private static BiFunction<String, Map<String, Object>, ServiceInstance> instanceReader(JsonDeserializer jsonDeserializer) {
+        Function<String, InstanceDetails> detailsDecoder =
+                InstanceDetails.decoder(jsonDeserializer, ServiceInstancesWatcher::readDetails);
+        return (json, props) -> readInstance(props, json, detailsDecoder);
+    }
+
+    private static ServiceInstance readInstance(Map<String, Object> props) {
+        return readInstance(props, null, null);
+    }
+
+    private static ServiceInstance readInstance(Map<String, Object> props, String json,
+                                                Function<String, InstanceDetails> detailsDecoder) {
+        return new ServiceInstance(
+                requiredValue(props, "ServiceID", String.class),
+                requiredValue(props, "ServiceTags", List.class),
+                requiredValue(props, "ServiceAddress", String.class),
+                requiredValue(props, "ServicePort", Integer.class),
+                json,
+                detailsDecoder
+        );
+    }
+
+    @SuppressWarnings("unchecked")
+    private static InstanceDetails readDetails(Map<String, Object> props) {
+        Map<String, ?> weights = nullableValue(props, "ServiceWeights", Map.class);
+        return new InstanceDetails(
+                nullableValue(props, "Node", String.class),
+                nullableValue(props, "Datacenter", String.class),
+                nullableValue(props, "ServiceMeta", Map.class),
+                weights != null ? ServiceWeights.fromMap(weights) : null,
+                null
+        );
     }
 }
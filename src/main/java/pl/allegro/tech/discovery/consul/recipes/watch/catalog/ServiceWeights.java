@@ -0,0 +1,49 @@
+package pl.allegro.tech.discovery.consul.recipes.watch.catalog;
+
+import java.util.Map;
+import java.util.Objects;
+
+import static pl.allegro.tech.discovery.consul.recipes.json.JsonValueReader.requiredValue;
+
+/**
+ * Weights of an instance used by Consul DNS for weighted balancing, depending on the state of its checks.
+ */
+public class ServiceWeights {
+
+    private final int passing;
+    private final int warning;
+
+    public ServiceWeights(int passing, int warning) {
+        this.passing = passing;
+        this.warning = warning;
+    }
+
+    public static ServiceWeights fromMap(Map<String, ?> props) {
+        return new ServiceWeights(
+                requiredValue(props, "Passing", Integer.class),
+                requiredValue(props, "Warning", Integer.class)
+        );
+    }
+
+    public int getPassing() {
+        return passing;
+    }
+
+    public int getWarning() {
+        return warning;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        ServiceWeights that = (ServiceWeights) o;
+        return passing == that.passing &&
+                warning == that.warning;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(passing, warning);
+    }
+}
@@ -0,0 +1,101 @@
+package pl.allegro.tech.discovery.consul.recipes.watch.catalog;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Changes of catalog services between two consecutive watch results together with the current snapshot.
+ */
+public class ServicesDelta {
+    private final Services snapshot;
+    private final Set<String> added;
+    private final Set<String> removed;
+    private final Map<String, List<String>> tagsChanged;
+
+    private ServicesDelta(Services snapshot, Set<String> added, Set<String> removed, Map<String, List<String>> tagsChanged) {
+        this.snapshot = snapshot;
+        this.added = Collections.unmodifiableSet(added);
+        this.removed = Collections.unmodifiableSet(removed);
+        this.tagsChanged = Collections.unmodifiableMap(tagsChanged);
+    }
+
+    /**
+     * Computes changes between previous delta's snapshot and current snapshot.
+     *
+     * @param previous previous delta or {@code null} if there was none, in which case all services are added
+     */
+    public static ServicesDelta between(ServicesDelta previous, Services current) {
+        Set<String> added = new HashSet<>();
+        Set<String> removed = new HashSet<>();
+        Map<String, List<String>> tagsChanged = new HashMap<>();
+
+        if (previous == null) {
+            added.addAll(current.serviceNames());
+            return new ServicesDelta(current, added, removed, tagsChanged);
+        }
+
+        Services previousServices = previous.snapshot;
+        for (String serviceName : current.serviceNames()) {
+            List<String> previousTags = previousServices.tagsForServiceOrNull(serviceName);
+            if (previousTags == null) {
+                added.add(serviceName);
+            } else {
+                List<String> currentTags = current.tagsForServiceOrNull(serviceName);
+                if (!Objects.equals(previousTags, currentTags)) {
+                    tagsChanged.put(serviceName, currentTags);
+                }
+            }
+        }
+        for (String serviceName : previousServices.serviceNames()) {
+            if (!current.containsService(serviceName)) {
+                removed.add(serviceName);
+            }
+        }
+
+        return new ServicesDelta(current, added, removed, tagsChanged);
+    }
+
+    public Services getSnapshot() {
+        return snapshot;
+    }
+
+    public Set<String> getAdded() {
+        return added;
+    }
+
+    public Set<String> getRemoved() {
+        return removed;
+    }
+
+    /**
+     * Services present in both snapshots whose tags changed, with their new tags.
+     */
+    public Map<String, List<String>> getTagsChanged() {
+        return tagsChanged;
+    }
+
+    public boolean isEmpty() {
+        return added.isEmpty() && removed.isEmpty() && tagsChanged.isEmpty();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        ServicesDelta that = (ServicesDelta) o;
+        return Objects.equals(snapshot, that.snapshot) &&
+                Objects.equals(added, that.added) &&
+                Objects.equals(removed, that.removed) &&
+                Objects.equals(tagsChanged, that.tagsChanged);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(snapshot, added, removed, tagsChanged);
+    }
+}
@@ -0,0 +1,11 @@
+package pl.allegro.tech.discovery.consul.recipes.watch.catalog;
+
+import pl.allegro.tech.discovery.consul.recipes.watch.DeltaEndpointWatcher;
+import pl.allegro.tech.discovery.consul.recipes.watch.EndpointWatcher;
+
+public class ServicesDeltaWatcher extends DeltaEndpointWatcher<Services, ServicesDelta> {
+
+    public ServicesDeltaWatcher(EndpointWatcher<Services> watcher) {
+        super(watcher, ServicesDelta::between, ServicesDelta::isEmpty);
+    }
+}
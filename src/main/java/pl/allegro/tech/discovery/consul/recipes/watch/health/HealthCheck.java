@@ -0,0 +1,96 @@
+package pl.allegro.tech.discovery.consul.recipes.watch.health;
+
+import java.util.Map;
+import java.util.Objects;
+
+import static pl.allegro.tech.discovery.consul.recipes.json.JsonValueReader.nullableValue;
+import static pl.allegro.tech.discovery.consul.recipes.json.JsonValueReader.requiredValue;
+
+/**
+ * State of a single check. Node checks, like the agent's {@code serfHealth}, have an empty service id.
+ */
+public class HealthCheck {
+
+    public static final String PASSING = "passing";
+    public static final String WARNING = "warning";
+    public static final String CRITICAL = "critical";
+
+    private final String node;
+    private final String checkId;
+    private final String status;
+    private final String serviceId;
+    private final String serviceName;
+
+    public HealthCheck(String node, String checkId, String status, String serviceId, String serviceName) {
+        this.node = node;
+        this.checkId = checkId;
+        this.status = status;
+        this.serviceId = serviceId != null ? serviceId : "";
+        this.serviceName = serviceName != null ? serviceName : "";
+    }
+
+    static HealthCheck fromMap(Map<String, ?> props) {
+        return new HealthCheck(
+                requiredValue(props, "Node", String.class),
+                requiredValue(props, "CheckID", String.class),
+                requiredValue(props, "Status", String.class),
+                nullableValue(props, "ServiceID", String.class),
+                nullableValue(props, "ServiceName", String.class)
+        );
+    }
+
+    public String getNode() {
+        return node;
+    }
+
+    public String getCheckId() {
+        return checkId;
+    }
+
+    public String getStatus() {
+        return status;
+    }
+
+    public String getServiceId() {
+        return serviceId;
+    }
+
+    public String getServiceName() {
+        return serviceName;
+    }
+
+    public boolean isNodeCheck() {
+        return serviceId.isEmpty();
+    }
+
+    public boolean isPassing() {
+        return PASSING.equals(status);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        HealthCheck that = (HealthCheck) o;
+        return Objects.equals(node, that.node) &&
+                Objects.equals(checkId, that.checkId) &&
+                Objects.equals(status, that.status) &&
+                Objects.equals(serviceId, that.serviceId) &&
+                Objects.equals(serviceName, that.serviceName);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(node, checkId, status, serviceId, serviceName);
+    }
+
+    @Override
+    public String toString() {
+        return "HealthCheck{" +
+                "node='" + node + '\'' +
+                ", checkId='" + checkId + '\'' +
+                ", status='" + status + '\'' +
+                ", serviceId='" + serviceId + '\'' +
+                '}';
+    }
+}
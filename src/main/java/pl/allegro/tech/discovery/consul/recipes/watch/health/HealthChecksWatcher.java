@@ -0,0 +1,20 @@
+package pl.allegro.tech.discovery.consul.recipes.watch.health;
+
+import pl.allegro.tech.discovery.consul.recipes.json.IncrementalJsonArrayDecoder;
+import pl.allegro.tech.discovery.consul.recipes.json.JsonDeserializer;
+import pl.allegro.tech.discovery.consul.recipes.watch.ConsulWatcher;
+import pl.allegro.tech.discovery.consul.recipes.watch.EndpointWatcher;
+
+import java.util.List;
+
+/**
+ * Watches states of all checks in the datacenter with a single blocking query. Checks whose JSON did not change
+ * between consecutive results are not decoded again.
+ */
+public class HealthChecksWatcher extends EndpointWatcher<List<HealthCheck>> {
+
+    public HealthChecksWatcher(ConsulWatcher watcher, JsonDeserializer jsonDeserializer) {
+        super("/v1/health/state/any", watcher,
+                new IncrementalJsonArrayDecoder<>(jsonDeserializer, HealthCheck::fromMap));
+    }
+}
@@ -0,0 +1,185 @@
+package pl.allegro.tech.discovery.consul.recipes.watch.health;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import pl.allegro.tech.discovery.consul.recipes.watch.Canceller;
+import pl.allegro.tech.discovery.consul.recipes.watch.EndpointWatcher;
+import pl.allegro.tech.discovery.consul.recipes.watch.WatchResult;
+import pl.allegro.tech.discovery.consul.recipes.watch.catalog.Services;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * Keeps an in-memory model of health of every service in the datacenter, driven by one blocking query on
+ * {@code /v1/health/state/any} and one on {@code /v1/catalog/services}, instead of a query per service.
+ * <p>
+ * After every update the model is indexed by service and subscribers of a service are notified only when its
+ * instances, their checks or its tags changed. Only instances with at least one check (including checks of their
+ * node) are visible in the model.
+ * <p>
+ * The model holds health only: instances carry node, service ID and checks, but no address, port or instance tags.
+ * Consumers that need to connect to instances, e.g. load balancers, should use {@link HealthServiceInstancesWatcher}.
+ */
+public class HealthMirror implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(HealthMirror.class);
+
+    private final EndpointWatcher<Services> servicesWatcher;
+    private final EndpointWatcher<List<HealthCheck>> checksWatcher;
+    private final Map<String, List<Consumer<ServiceHealth>>> subscribers = new ConcurrentHashMap<>();
+
+    private volatile Services services = new Services(Collections.emptyMap());
+    private volatile List<HealthCheck> checks = Collections.emptyList();
+    private volatile Map<String, ServiceHealth> model = Collections.emptyMap();
+    private volatile long checksIndex = 0;
+
+    private final List<Canceller> cancellers = new ArrayList<>();
+
+    public HealthMirror(EndpointWatcher<Services> servicesWatcher, EndpointWatcher<List<HealthCheck>> checksWatcher) {
+        this.servicesWatcher = servicesWatcher;
+        this.checksWatcher = checksWatcher;
+    }
+
+    public void start() {
+        cancellers.add(servicesWatcher.watch(this::servicesUpdate, this::watchException));
+        cancellers.add(checksWatcher.watch(this::checksUpdate, this::watchException));
+    }
+
+    @Override
+    public void close() {
+        cancellers.forEach(Canceller::cancel);
+        cancellers.clear();
+    }
+
+    public Optional<ServiceHealth> serviceHealth(String serviceName) {
+        return Optional.ofNullable(model.get(serviceName));
+    }
+
+    public Set<String> serviceNames() {
+        return model.keySet();
+    }
+
+    /**
+     * Consul index of the last checks update or 0 if nothing was received yet.
+     */
+    public long index() {
+        return checksIndex;
+    }
+
+    /**
+     * Subscriber is called with the current health of the service, if known, and then on every change of it.
+     * A service removed from the catalog is reported with no instances and no tags.
+     */
+    public void subscribe(String serviceName, Consumer<ServiceHealth> subscriber) {
+        subscribers.computeIfAbsent(serviceName, name -> new CopyOnWriteArrayList<>()).add(subscriber);
+        ServiceHealth current = model.get(serviceName);
+        if (current != null) {
+            notify(subscriber, current);
+        }
+    }
+
+    public void unsubscribe(String serviceName, Consumer<ServiceHealth> subscriber) {
+        List<Consumer<ServiceHealth>> serviceSubscribers = subscribers.get(serviceName);
+        if (serviceSubscribers != null) {
+            serviceSubscribers.remove(subscriber);
+        }
+    }
+
+    private synchronized void servicesUpdate(WatchResult<Services> result) {
+        services = result.getBody();
+        rebuild();
+    }
+
+    private synchronized void checksUpdate(WatchResult<List<HealthCheck>> result) {
+        checks = result.getBody();
+        checksIndex = result.getIndex();
+        rebuild();
+    }
+
+    private void rebuild() {
+        Map<String, ServiceHealth> previous = model;
+        Map<String, ServiceHealth> current = index(services, checks);
+        model = Collections.unmodifiableMap(current);
+
+        Set<String> changed = new HashSet<>();
+        for (Map.Entry<String, ServiceHealth> entry : current.entrySet()) {
+            if (!entry.getValue().equals(previous.get(entry.getKey()))) {
+                changed.add(entry.getKey());
+            }
+        }
+        for (String serviceName : previous.keySet()) {
+            if (!current.containsKey(serviceName)) {
+                changed.add(serviceName);
+            }
+        }
+
+        for (String serviceName : changed) {
+            List<Consumer<ServiceHealth>> serviceSubscribers = subscribers.get(serviceName);
+            if (serviceSubscribers == null) {
+                continue;
+            }
+            ServiceHealth health = current.getOrDefault(serviceName, ServiceHealth.absent(serviceName));
+            serviceSubscribers.forEach(subscriber -> notify(subscriber, health));
+        }
+    }
+
+    static Map<String, ServiceHealth> index(Services services, List<HealthCheck> checks) {
+        Map<String, List<HealthCheck>> nodeChecks = new HashMap<>();
+        Map<String, Map<String, List<HealthCheck>>> serviceChecks = new HashMap<>();
+        Map<String, String> instanceNodes = new HashMap<>();
+        for (HealthCheck check : checks) {
+            if (check.isNodeCheck()) {
+                nodeChecks.computeIfAbsent(check.getNode(), node -> new ArrayList<>()).add(check);
+            } else {
+                String instance = check.getNode() + "/" + check.getServiceId();
+                serviceChecks.computeIfAbsent(check.getServiceName(), name -> new HashMap<>())
+                        .computeIfAbsent(instance, id -> new ArrayList<>())
+                        .add(check);
+                instanceNodes.put(instance, check.getNode());
+            }
+        }
+
+        Set<String> serviceNames = new HashSet<>(services.serviceNames());
+        serviceNames.addAll(serviceChecks.keySet());
+
+        Map<String, ServiceHealth> indexed = new HashMap<>(serviceNames.size() * 4 / 3 + 1);
+        for (String serviceName : serviceNames) {
+            Map<String, InstanceHealth> instances = new HashMap<>();
+            for (Map.Entry<String, List<HealthCheck>> instance :
+                    serviceChecks.getOrDefault(serviceName, Collections.emptyMap()).entrySet()) {
+                String node = instanceNodes.get(instance.getKey());
+                List<HealthCheck> instanceChecks = new ArrayList<>(nodeChecks.getOrDefault(node, Collections.emptyList()));
+                instanceChecks.addAll(instance.getValue());
+                String serviceId = instance.getValue().get(0).getServiceId();
+                instances.put(instance.getKey(), new InstanceHealth(node, serviceId, instanceChecks));
+            }
+            List<String> tags = services.tagsForServiceOrNull(serviceName);
+            indexed.put(serviceName, new ServiceHealth(serviceName,
+                    tags != null ? tags : Collections.emptyList(), instances));
+        }
+        return indexed;
+    }
+
+    private void notify(Consumer<ServiceHealth> subscriber, ServiceHealth health) {
+        try {
+            subscriber.accept(health);
+        } catch (Exception e) {
+            logger.warn("Health mirror subscriber failed on update of {}", health.getServiceName(), e);
+        }
+    }
+
+    private void watchException(Exception exception) {
+        logger.warn("Got an exception while watching health of services", exception);
+    }
+}
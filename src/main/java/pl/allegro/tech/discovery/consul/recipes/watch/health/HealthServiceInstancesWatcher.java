@@ -1,16 +1,23 @@
 package pl.allegro.tech.discovery.consul.recipes.watch.health;
 
-import pl.allegro.tech.discovery.consul.recipes.json.JsonDecoder;
+import pl.allegro.tech.discovery.consul.recipes.json.IncrementalJsonArrayDecoder;
 import pl.allegro.tech.discovery.consul.recipes.json.JsonDeserializer;
 import pl.allegro.tech.discovery.consul.recipes.watch.ConsulWatcher;
 import pl.allegro.tech.discovery.consul.recipes.watch.EndpointWatcher;
+import pl.allegro.tech.discovery.consul.recipes.watch.catalog.ColumnarServiceInstances;
+import pl.allegro.tech.discovery.consul.recipes.watch.catalog.ColumnarServiceInstancesDecoder;
+import pl.allegro.tech.discovery.consul.recipes.watch.catalog.IncrementalServiceInstancesDecoder;
+import pl.allegro.tech.discovery.consul.recipes.watch.catalog.InstanceCheck;
+import pl.allegro.tech.discovery.consul.recipes.watch.catalog.InstanceDetails;
 import pl.allegro.tech.discovery.consul.recipes.watch.catalog.ServiceInstance;
 import pl.allegro.tech.discovery.consul.recipes.watch.catalog.ServiceInstances;
+import pl.allegro.tech.discovery.consul.recipes.watch.catalog.ServiceWeights;
 
-import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
-import java.util.stream.Collectors;
+import java.util.function.BiFunction;
+import java.util.function.Function;
 
 import static pl.allegro.tech.discovery.consul.recipes.json.JsonValueReader.nullableValue;
 import static pl.allegro.tech.discovery.consul.recipes.json.JsonValueReader.requiredValue;
@@ -19,44 +26,70 @@ public class HealthServiceInstancesWatcher extends EndpointWatcher<ServiceInstan
 
     public HealthServiceInstancesWatcher(String serviceName, ConsulWatcher watcher, JsonDeserializer jsonDeserializer) {
         super("/v1/health/service/" + serviceName + "?passing=true", watcher,
-                new ServiceInstancesJsonDecoder(serviceName, jsonDeserializer));
+                instancesDecoder(serviceName, jsonDeserializer));
     }
 
-    private static class ServiceInstancesJsonDecoder implements JsonDecoder<ServiceInstances> {
+    /**
+     * Watches healthy instances registered in given datacenter.
+     */
+    public HealthServiceInstancesWatcher(String serviceName, String datacenter, ConsulWatcher watcher, JsonDeserializer jsonDeserializer) {
+        super("/v1/health/service/" + serviceName + "?passing=true&dc=" + datacenter, watcher,
+                instancesDecoder(serviceName, jsonDeserializer));
+    }
 
-        private final String serviceName;
-        private final JsonDeserializer jsonDeserializer;
+    /**
+     * Watches healthy instances decoded into {@link ColumnarServiceInstances}, for large services.
+     */
+    public static EndpointWatcher<ServiceInstances> columnar(String serviceName, ConsulWatcher watcher,
+                                                             JsonDeserializer jsonDeserializer) {
+        return new EndpointWatcher<>("/v1/health/service/" + serviceName + "?passing=true", watcher,
+                new ColumnarServiceInstancesDecoder(serviceName, jsonDeserializer, HealthServiceInstancesWatcher::readInstance));
+    }
 
-        ServiceInstancesJsonDecoder(String serviceName, JsonDeserializer jsonDeserializer) {
-            if (jsonDeserializer == null) {
-                throw new IllegalStateException("Configured JsonDeserializer required.");
-            }
-            this.serviceName = serviceName;
-            this.jsonDeserializer = jsonDeserializer;
-        }
+    private static IncrementalServiceInstancesDecoder instancesDecoder(String serviceName, JsonDeserializer jsonDeserializer) {
+        Function<String, InstanceDetails> detailsDecoder =
+                InstanceDetails.decoder(jsonDeserializer, HealthServiceInstancesWatcher::readDetails);
+        BiFunction<String, Map<String, Object>, ServiceInstance> instanceReader =
+                (json, props) -> readInstance(props, json, detailsDecoder);
+        return new IncrementalServiceInstancesDecoder(serviceName,
+                new IncrementalJsonArrayDecoder<>(jsonDeserializer, instanceReader));
+    }
+
+    private static ServiceInstance readInstance(Map<String, Object> props) {
+        return readInstance(props, null, null);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static ServiceInstance readInstance(Map<String, Object> props, String json,
+                                                Function<String, InstanceDetails> detailsDecoder) {
+        Map<String, ?> service = requiredValue(props, "Service", Map.class);
+        return new ServiceInstance(
+                requiredValue(service, "ID", String.class),
+                nullableValue(service, "Tags", List.class),
+                nullableValue(service, "Address", String.class),
+                nullableValue(service, "Port", Integer.class),
+                json,
+                detailsDecoder
+        );
+    }
+
+    @SuppressWarnings("unchecked")
+    private static InstanceDetails readDetails(Map<String, Object> props) {
+        Map<String, ?> node = nullableValue(props, "Node", Map.class);
+        Map<String, ?> service = requiredValue(props, "Service", Map.class);
+        Map<String, ?> weights = nullableValue(service, "Weights", Map.class);
+        List<Map<String, ?>> checks = nullableValue(props, "Checks", List.class);
 
-        @Override
-        @SuppressWarnings("unchecked")
-        public ServiceInstances decode(String s) {
-            List<Map<String, Object>> services;
-            try {
-                services = jsonDeserializer.deserializeMapList(s);
-            } catch (IOException e) {
-                throw new JsonDecodeException("Cannot deserialize JSON", e);
-            }
-
-            List<ServiceInstance> instances = services.stream()
-                    .map(props -> {
-                        Map<String, ?> service = requiredValue(props, "Service", Map.class);
-                        return new ServiceInstance(
-                                requiredValue(service, "ID", String.class),
-                                nullableValue(service, "Tags", List.class),
-                                nullableValue(service, "Address", String.class),
-                                nullableValue(service, "Port", Integer.class)
-                        );
-                    })
-                    .collect(Collectors.toList());
-            return new ServiceInstances(serviceName, instances);
+        List<InstanceCheck> instanceChecks = new ArrayList<>();
+        if (checks != null) {
+            checks.forEach(check -> instanceChecks.add(InstanceCheck.fromMap(check)));
         }
+        return new InstanceDetails(
+                node != null ? nullableValue(node, "Node", String.class) : null,
+                node != null ? nullableValue(node, "Datacenter", String.class) : null,
+                nullableValue(service, "Meta", Map.class),
+                weights != null ? ServiceWeights.fromMap(weights) : null,
+                instanceChecks
+        );
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,71 @@
+package pl.allegro.tech.discovery.consul.recipes.watch.health;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Checks of a service instance, including checks of the node it is registered on.
+ * <p>
+ * Instances are identified only by node and service ID, as {@code /v1/health/state/any} returns checks without
+ * address, port or tags of the instances.
+ */
+public class InstanceHealth {
+
+    private final String node;
+    private final String serviceId;
+    private final List<HealthCheck> checks;
+
+    public InstanceHealth(String node, String serviceId, List<HealthCheck> checks) {
+        this.node = node;
+        this.serviceId = serviceId;
+        this.checks = Collections.unmodifiableList(checks);
+    }
+
+    public String getNode() {
+        return node;
+    }
+
+    public String getServiceId() {
+        return serviceId;
+    }
+
+    public List<HealthCheck> getChecks() {
+        return checks;
+    }
+
+    /**
+     * The worst status of all checks: critical, then warning, then passing.
+     */
+    public String getStatus() {
+        String status = HealthCheck.PASSING;
+        for (HealthCheck check : checks) {
+            if (HealthCheck.CRITICAL.equals(check.getStatus())) {
+                return HealthCheck.CRITICAL;
+            }
+            if (!check.isPassing()) {
+                status = HealthCheck.WARNING;
+            }
+        }
+        return status;
+    }
+
+    public boolean isPassing() {
+        return checks.stream().allMatch(HealthCheck::isPassing);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        InstanceHealth that = (InstanceHealth) o;
+        return Objects.equals(node, that.node) &&
+                Objects.equals(serviceId, that.serviceId) &&
+                Objects.equals(checks, that.checks);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(node, serviceId, checks);
+    }
+}
@@ -0,0 +1,66 @@
+package pl.allegro.tech.discovery.consul.recipes.watch.health;
+
+import pl.allegro.tech.discovery.consul.recipes.json.JsonDeserializer;
+import pl.allegro.tech.discovery.consul.recipes.watch.Canceller;
+import pl.allegro.tech.discovery.consul.recipes.watch.ConsulWatcher;
+import pl.allegro.tech.discovery.consul.recipes.watch.EndpointWatcher;
+import pl.allegro.tech.discovery.consul.recipes.watch.WatchResult;
+import pl.allegro.tech.discovery.consul.recipes.watch.catalog.DatacenterServiceInstances;
+import pl.allegro.tech.discovery.consul.recipes.watch.catalog.ServiceInstances;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Watches healthy instances of a service in many datacenters at once. Every datacenter is watched with its own
+ * blocking query, index and backoff, so a slow or partitioned datacenter does not delay updates from others.
+ * <p>
+ * Every change in any datacenter publishes a merged view with the latest known instances of each datacenter.
+ * Datacenters appear in the view once they respond for the first time and keep their last known instances while
+ * failing. Consul indexes are not comparable between datacenters, so the index of a published result is a local
+ * sequence number, increasing with every publication. With a multi-threaded worker pool results may reach the consumer
+ * out of order, in which case the one with the highest index is the most recent.
+ */
+public class MultiDatacenterServiceInstancesWatcher {
+    private final String serviceName;
+    private final Map<String, EndpointWatcher<ServiceInstances>> watchers;
+
+    public MultiDatacenterServiceInstancesWatcher(String serviceName,
+                                                  List<String> datacenters,
+                                                  ConsulWatcher watcher,
+                                                  JsonDeserializer jsonDeserializer) {
+        this.serviceName = serviceName;
+        this.watchers = new LinkedHashMap<>();
+        for (String datacenter : datacenters) {
+            watchers.put(datacenter, new HealthServiceInstancesWatcher(serviceName, datacenter, watcher, jsonDeserializer));
+        }
+    }
+
+    public Canceller watch(Consumer<WatchResult<DatacenterServiceInstances>> consumer, Consumer<Exception> failureConsumer) {
+        MergedView view = new MergedView();
+        List<Canceller> cancellers = new ArrayList<>(watchers.size());
+        watchers.forEach((datacenter, watcher) -> cancellers.add(watcher.watch(
+                result -> consumer.accept(view.update(datacenter, result.getBody())),
+                failureConsumer
+        )));
+        return Canceller.composite(cancellers);
+    }
+
+    public List<String> datacenters() {
+        return new ArrayList<>(watchers.keySet());
+    }
+
+    private class MergedView {
+        private final Map<String, ServiceInstances> instancesByDatacenter = new HashMap<>();
+        private long sequence = 0;
+
+        synchronized WatchResult<DatacenterServiceInstances> update(String datacenter, ServiceInstances instances) {
+            instancesByDatacenter.put(datacenter, instances);
+            return new WatchResult<>(++sequence, new DatacenterServiceInstances(serviceName, instancesByDatacenter));
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package pl.allegro.tech.discovery.consul.recipes.watch.health;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.stream.Collectors;
+
+/**
+ * Health of all instances of a service that have checks, keyed by {@code <node>/<serviceId>}.
+ */
+public class ServiceHealth {
+
+    private final String serviceName;
+    private final List<String> tags;
+    private final Map<String, InstanceHealth> instances;
+
+    public ServiceHealth(String serviceName, List<String> tags, Map<String, InstanceHealth> instances) {
+        this.serviceName = serviceName;
+        this.tags = Collections.unmodifiableList(tags);
+        this.instances = Collections.unmodifiableMap(instances);
+    }
+
+    static ServiceHealth absent(String serviceName) {
+        return new ServiceHealth(serviceName, Collections.emptyList(), Collections.emptyMap());
+    }
+
+    public String getServiceName() {
+        return serviceName;
+    }
+
+    /**
+     * Tags of all instances of the service, as listed in the catalog.
+     */
+    public List<String> getTags() {
+        return tags;
+    }
+
+    public Map<String, InstanceHealth> getInstances() {
+        return instances;
+    }
+
+    public List<InstanceHealth> passingInstances() {
+        return instances.values().stream()
+                .filter(InstanceHealth::isPassing)
+                .collect(Collectors.toList());
+    }
+
+    public Collection<InstanceHealth> instances() {
+        return instances.values();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        ServiceHealth that = (ServiceHealth) o;
+        return Objects.equals(serviceName, that.serviceName) &&
+                Objects.equals(tags, that.tags) &&
+                Objects.equals(instances, that.instances);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(serviceName, tags, instances);
+    }
+}
@@ -0,0 +1,94 @@
+package pl.allegro.tech.discovery.consul.recipes.datacenter
+
+import com.fasterxml.jackson.databind.ObjectMapper
+import com.github.tomakehurst.wiremock.junit.WireMockRule
+import org.junit.ClassRule
+import pl.allegro.tech.discovery.consul.recipes.ConsulRecipes
+import pl.allegro.tech.discovery.consul.recipes.json.JacksonJsonDeserializer
+import spock.lang.Shared
+import spock.lang.Specification
+
+import static com.github.tomakehurst.wiremock.client.WireMock.*
+
+class ConsulDatacenterReaderTest extends Specification {
+
+    @ClassRule
+    @Shared
+    WireMockRule consul = new WireMockRule(0)
+
+    private ConsulRecipes recipes = ConsulRecipes.consulRecipes()
+            .withJsonDeserializer(new JacksonJsonDeserializer(new ObjectMapper()))
+            .withAgentUri(URI.create("http://localhost:${consul.port()}"))
+            .build()
+
+    def setup() {
+        consul.stubFor(get(urlPathEqualTo('/v1/agent/self'))
+                .willReturn(aResponse().withFixedDelay(200).withBody('{"Config": {"Datacenter": "dc1"}}')))
+        consul.stubFor(get(urlPathEqualTo('/v1/catalog/datacenters'))
+                .willReturn(aResponse().withFixedDelay(200).withBody('["dc1", "dc2"]')))
+    }
+
+    def cleanup() {
+        consul.resetAll()
+    }
+
+    def "should read local datacenter only once"() {
+        given:
+        def reader = recipes.consulDatacenterReader().build()
+
+        when:
+        def concurrent = (1..5).collect { reader.localDatacenterAsync() }
+        def later = reader.localDatacenter()
+
+        then:
+        concurrent*.join() == ['dc1'] * 5
+        later == 'dc1'
+        consul.verify(1, getRequestedFor(urlPathEqualTo('/v1/agent/self')))
+    }
+
+    def "should share a single call between concurrent requests for known datacenters"() {
+        given:
+        def reader = recipes.consulDatacenterReader().build()
+
+        when:
+        def concurrent = (1..5).collect { reader.knownDatacentersAsync() }
+
+        then:
+        concurrent*.join() == [['dc1', 'dc2']] * 5
+        consul.verify(1, getRequestedFor(urlPathEqualTo('/v1/catalog/datacenters')))
+    }
+
+    def "should read known datacenters again when cached list expires"() {
+        given:
+        def reader = recipes.consulDatacenterReader()
+                .withDatacentersCacheTtlMillis(0)
+                .build()
+
+        when:
+        reader.knownDatacenters()
+        reader.knownDatacenters()
+
+        then:
+        consul.verify(2, getRequestedFor(urlPathEqualTo('/v1/catalog/datacenters')))
+    }
+
+    def "should retry reading local datacenter after failure"() {
+        given:
+        def reader = recipes.consulDatacenterReader().build()
+        consul.stubFor(get(urlPathEqualTo('/v1/agent/self'))
+                .willReturn(aResponse().withStatus(500)))
+
+        when:
+        reader.localDatacenter()
+
+        then:
+        thrown(FailedToRetrieveDatacenterException)
+
+        when:
+        consul.stubFor(get(urlPathEqualTo('/v1/agent/self'))
+                .willReturn(aResponse().withBody('{"Config": {"Datacenter": "dc1"}}')))
+
+        then:
+        reader.localDatacenter() == 'dc1'
+    }
+}
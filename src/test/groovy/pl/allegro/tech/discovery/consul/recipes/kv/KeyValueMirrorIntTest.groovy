@@ -0,0 +1,98 @@
+package pl.allegro.tech.discovery.consul.recipes.kv
+
+import com.ecwid.consul.v1.kv.KeyValueConsulClient
+import com.fasterxml.jackson.databind.ObjectMapper
+import org.junit.ClassRule
+import pl.allegro.tech.discovery.consul.recipes.ConsulCluster
+import pl.allegro.tech.discovery.consul.recipes.ConsulRecipes
+import pl.allegro.tech.discovery.consul.recipes.json.JacksonJsonDeserializer
+import spock.lang.Shared
+import spock.lang.Specification
+import spock.util.concurrent.PollingConditions
+
+import java.util.concurrent.Executors
+
+class KeyValueMirrorIntTest extends Specification {
+
+    public static final String GIVEN_DC = "dc1"
+    public static final String GIVEN_NODE = "node1-dc1"
+
+    @Shared
+    @ClassRule
+    ConsulCluster consulCluster = new ConsulCluster.Builder()
+            .withNode(GIVEN_DC, GIVEN_NODE)
+            .build()
+
+    private ConsulRecipes recipes = ConsulRecipes.consulRecipes()
+            .withAgentUri(URI.create("http://localhost:${consulCluster.getHttpPort(GIVEN_DC, GIVEN_NODE)}"))
+            .withJsonDeserializer(new JacksonJsonDeserializer(new ObjectMapper()))
+            .build()
+
+    private KeyValueConsulClient kvClient = new KeyValueConsulClient("localhost", consulCluster.getHttpPort(GIVEN_DC, GIVEN_NODE))
+
+    def cleanup() {
+        kvClient.deleteKVValues("config")
+    }
+
+    def "should mirror prefix and report only changed keys"() {
+        given:
+        kvClient.setKVValue("config/a", "1")
+        kvClient.setKVValue("config/b", "2")
+        def mirror = recipes.keyValueMirror("config/", recipes.consulWatcher(Executors.newFixedThreadPool(1)).build())
+        List<KeyValueDelta> deltas = [].asSynchronized()
+        mirror.registerListener({ deltas << it })
+
+        when:
+        mirror.start()
+
+        then:
+        new PollingConditions(timeout: 10).eventually {
+            mirror.snapshot().size() == 2
+            mirror.snapshot().get("config/a").get().valueAsString == Optional.of("1")
+        }
+
+        when:
+        kvClient.setKVValue("config/b", "3")
+        kvClient.deleteKVValue("config/a")
+
+        then:
+        new PollingConditions(timeout: 10).eventually {
+            mirror.snapshot().asMap().keySet() == ["config/b"] as Set
+            mirror.snapshot().get("config/b").get().valueAsString == Optional.of("3")
+            deltas.any { it.modified.containsKey("config/b") }
+            deltas.any { it.removed.containsKey("config/a") }
+            deltas.every { !it.modified.containsKey("config/a") }
+        }
+
+        when: "last key under prefix is removed"
+        kvClient.deleteKVValue("config/b")
+
+        then:
+        new PollingConditions(timeout: 10).eventually {
+            mirror.snapshot().empty
+        }
+
+        cleanup:
+        mirror.close()
+    }
+
+    def "should list keys up to separator"() {
+        given:
+        kvClient.setKVValue("config/a/1", "1")
+        kvClient.setKVValue("config/a/2", "2")
+        kvClient.setKVValue("config/b", "3")
+        def watcher = recipes.keysWatcher("config/", "/", recipes.consulWatcher(Executors.newFixedThreadPool(1)).build())
+        List<String> keys = null
+
+        when:
+        def canceller = watcher.watch({ keys = it.body }, {})
+
+        then:
+        new PollingConditions(timeout: 10).eventually {
+            keys == ["config/a/", "config/b"]
+        }
+
+        cleanup:
+        canceller?.cancel()
+    }
+}
@@ -0,0 +1,160 @@
+package pl.allegro.tech.discovery.consul.recipes.kv
+
+import com.fasterxml.jackson.databind.ObjectMapper
+import com.github.tomakehurst.wiremock.junit.WireMockRule
+import com.github.tomakehurst.wiremock.stubbing.Scenario
+import org.junit.ClassRule
+import pl.allegro.tech.discovery.consul.recipes.ConsulRecipes
+import pl.allegro.tech.discovery.consul.recipes.json.JacksonJsonDeserializer
+import pl.allegro.tech.discovery.consul.recipes.json.JacksonJsonSerializer
+import spock.lang.Shared
+import spock.lang.Specification
+
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.TimeUnit
+
+import static com.github.tomakehurst.wiremock.client.WireMock.*
+
+class KeyValueWriterTest extends Specification {
+
+    @ClassRule
+    @Shared
+    WireMockRule consul = new WireMockRule(0)
+
+    private KeyValueWriter writer = ConsulRecipes.consulRecipes()
+            .withAgentUri(URI.create("http://localhost:${consul.port()}"))
+            .withJsonSerializer(new JacksonJsonSerializer(new ObjectMapper()))
+            .withJsonDeserializer(new JacksonJsonDeserializer(new ObjectMapper()))
+            .build()
+            .keyValueWriter()
+            .withFlushDelayMillis(50)
+            .build()
+
+    def cleanup() {
+        writer.close()
+        consul.resetAll()
+    }
+
+    def "should send queued operations in a single transaction"() {
+        given:
+        consul.stubFor(put(urlPathEqualTo('/v1/txn'))
+                .willReturn(aResponse().withBody('''{
+                    "Results": [
+                        {"KV": {"Key": "config/a", "CreateIndex": 10, "ModifyIndex": 10, "LockIndex": 0, "Flags": 0}},
+                        {"KV": {"Key": "config/b", "CreateIndex": 5, "ModifyIndex": 11, "LockIndex": 0, "Flags": 0}}
+                    ],
+                    "Errors": null
+                }''')))
+
+        when:
+        def set = writer.set("config/a", "1")
+        def delete = writer.delete("config/old")
+        def cas = writer.compareAndSet("config/b", "2".bytes, 5)
+
+        then:
+        set.get(5, TimeUnit.SECONDS).entry.get().modifyIndex == 10
+        delete.get(5, TimeUnit.SECONDS).successful
+        !delete.get().entry.isPresent()
+        cas.get(5, TimeUnit.SECONDS).entry.get().modifyIndex == 11
+
+        and:
+        consul.verify(1, putRequestedFor(urlPathEqualTo('/v1/txn'))
+                .withRequestBody(matchingJsonPath('$[2].KV.Verb', equalTo('cas')))
+                .withRequestBody(matchingJsonPath('$[2].KV.Index', equalTo('5'))))
+    }
+
+    def "should fail rejected operation and retry operations rolled back with it"() {
+        given:
+        consul.stubFor(put(urlPathEqualTo('/v1/txn'))
+                .inScenario('rollback')
+                .whenScenarioStateIs(Scenario.STARTED)
+                .willReturn(aResponse().withStatus(409).withBody('''{
+                    "Results": null,
+                    "Errors": [{"OpIndex": 1, "What": "failed to set key \\"config/b\\", index is stale"}]
+                }'''))
+                .willSetStateTo('retried'))
+
+        consul.stubFor(put(urlPathEqualTo('/v1/txn'))
+                .inScenario('rollback')
+                .whenScenarioStateIs('retried')
+                .willReturn(aResponse().withBody('''{
+                    "Results": [{"KV": {"Key": "config/a", "CreateIndex": 12, "ModifyIndex": 12, "LockIndex": 0, "Flags": 0}}],
+                    "Errors": null
+                }''')))
+
+        when:
+        def set = writer.set("config/a", "1")
+        def cas = writer.compareAndSet("config/b", "2".bytes, 5)
+
+        then:
+        !cas.get(5, TimeUnit.SECONDS).successful
+        cas.get().error.get().contains("index is stale")
+        set.get(5, TimeUnit.SECONDS).successful
+
+        and:
+        consul.verify(2, putRequestedFor(urlPathEqualTo('/v1/txn')))
+    }
+
+    def "should split operations into transactions of limited size"() {
+        given:
+        def smallBatchWriter = ConsulRecipes.consulRecipes()
+                .withAgentUri(URI.create("http://localhost:${consul.port()}"))
+                .withJsonSerializer(new JacksonJsonSerializer(new ObjectMapper()))
+                .withJsonDeserializer(new JacksonJsonDeserializer(new ObjectMapper()))
+                .build()
+                .keyValueWriter()
+                .withMaxOperationsPerTransaction(2)
+                .withFlushDelayMillis(50)
+                .build()
+        consul.stubFor(put(urlPathEqualTo('/v1/txn'))
+                .willReturn(aResponse().withBody('{"Results": [], "Errors": null}')))
+
+        when:
+        def results = (1..5).collect { smallBatchWriter.delete("config/$it") }
+        results.each { it.get(5, TimeUnit.SECONDS) }
+
+        then:
+        consul.verify(3, putRequestedFor(urlPathEqualTo('/v1/txn')))
+
+        cleanup:
+        smallBatchWriter.close()
+    }
+
+    def "should fail operations rolled back after writer was closed"() {
+        given:
+        consul.stubFor(put(urlPathEqualTo('/v1/txn'))
+                .willReturn(aResponse().withStatus(409).withFixedDelay(500).withBody('''{
+                    "Results": null,
+                    "Errors": [{"OpIndex": 1, "What": "failed to set key \\"config/b\\", index is stale"}]
+                }''')))
+
+        when:
+        def set = writer.set("config/a", "1")
+        def cas = writer.compareAndSet("config/b", "2".bytes, 5)
+        writer.close()
+        set.get(5, TimeUnit.SECONDS)
+
+        then:
+        thrown(ExecutionException)
+        !cas.get(5, TimeUnit.SECONDS).successful
+    }
+
+    def "should fail all operations when rollback error does not match any of them"() {
+        given:
+        consul.stubFor(put(urlPathEqualTo('/v1/txn'))
+                .willReturn(aResponse().withStatus(409).withBody('''{
+                    "Results": null,
+                    "Errors": [{"What": "permission denied"}]
+                }''')))
+
+        when:
+        def set = writer.set("config/a", "1")
+        def cas = writer.compareAndSet("config/b", "2".bytes, 5)
+        set.get(5, TimeUnit.SECONDS)
+
+        then:
+        thrown(ExecutionException)
+        cas.isCompletedExceptionally()
+        consul.verify(1, putRequestedFor(urlPathEqualTo('/v1/txn')))
+    }
+}
@@ -0,0 +1,103 @@
+package pl.allegro.tech.discovery.consul.recipes.leader
+
+import com.fasterxml.jackson.databind.ObjectMapper
+import org.junit.ClassRule
+import pl.allegro.tech.discovery.consul.recipes.ConsulCluster
+import pl.allegro.tech.discovery.consul.recipes.ConsulRecipes
+import pl.allegro.tech.discovery.consul.recipes.json.JacksonJsonDeserializer
+import pl.allegro.tech.discovery.consul.recipes.json.JacksonJsonSerializer
+import pl.allegro.tech.discovery.consul.recipes.session.Session
+import spock.lang.Shared
+import spock.lang.Specification
+import spock.util.concurrent.PollingConditions
+
+import java.util.concurrent.Executors
+
+class LeaderElectorGroupIntTest extends Specification {
+
+    @ClassRule
+    @Shared
+    ConsulCluster cluster = new ConsulCluster.Builder()
+            .withNode("dc1", "dc1-node1")
+            .withNode("dc1", "dc1-node2")
+            .build()
+
+    List<String> partitions = (0..<16).collect { "partition-$it".toString() }
+
+    def "should choose exactly one leader for every lock"() {
+        given:
+        LeaderElectorGroup group1 = createGroup("dc1", "dc1-node1")
+        LeaderElectorGroup group2 = createGroup("dc1", "dc1-node2")
+
+        expect:
+        new PollingConditions(timeout: 10).eventually {
+            (group1.leaderships() + group2.leaderships()) == partitions as Set
+            group1.leaderships().intersect(group2.leaderships()).isEmpty()
+        }
+
+        when:
+        group1.close()
+
+        then:
+        group1.leaderships().isEmpty()
+
+        and:
+        new PollingConditions(timeout: 10).eventually {
+            group2.leaderships() == partitions as Set
+        }
+
+        cleanup:
+        group2.close()
+    }
+
+    def "should notify observers about leadership of each lock"() {
+        given:
+        def acquired = [].asSynchronized()
+        LeaderElectorGroup group = createGroup("dc1", "dc1-node1", false)
+        group.registerObserver(new GroupLeadershipObserver() {
+            @Override
+            void leadershipAcquired(String lockName) {
+                acquired << lockName
+            }
+
+            @Override
+            void leadershipLost(String lockName) {
+            }
+        })
+
+        when:
+        group.start()
+
+        then:
+        new PollingConditions(timeout: 10).eventually {
+            acquired as Set == partitions as Set
+            acquired.size() == partitions.size()
+        }
+
+        cleanup:
+        group.close()
+    }
+
+    LeaderElectorGroup createGroup(String dc, String nodeName, boolean start = true) {
+        ConsulRecipes recipes = ConsulRecipes.consulRecipes()
+                .withJsonDeserializer(new JacksonJsonDeserializer(new ObjectMapper()))
+                .withJsonSerializer(new JacksonJsonSerializer(new ObjectMapper()))
+                .withAgentUri(URI.create("http://localhost:${cluster.getHttpPort(dc, nodeName)}"))
+                .build()
+
+        Session session = recipes.session("my-service")
+                .withLockDelaySeconds(0)
+                .build()
+
+        LeaderElectorGroup group = recipes.leaderElectorGroup("my-service", partitions)
+                .withConsulWatcher(recipes.consulWatcher(Executors.newFixedThreadPool(1)).build())
+                .withLockDelaySeconds(1)
+                .withSession(session)
+                .build()
+
+        if (start) {
+            group.start()
+        }
+        return group
+    }
+}
@@ -0,0 +1,89 @@
+package pl.allegro.tech.discovery.consul.recipes.leader
+
+import com.fasterxml.jackson.databind.ObjectMapper
+import org.junit.ClassRule
+import pl.allegro.tech.discovery.consul.recipes.ConsulCluster
+import pl.allegro.tech.discovery.consul.recipes.ConsulRecipes
+import pl.allegro.tech.discovery.consul.recipes.json.JacksonJsonDeserializer
+import pl.allegro.tech.discovery.consul.recipes.json.JacksonJsonSerializer
+import pl.allegro.tech.discovery.consul.recipes.session.Session
+import spock.lang.Shared
+import spock.lang.Specification
+import spock.lang.Unroll
+import spock.util.concurrent.PollingConditions
+
+import java.util.concurrent.Executors
+
+/**
+ * Measures how long the service stays without a leader after the leader goes away.
+ */
+class LeaderElectorHandoverIntTest extends Specification {
+
+    private static final int SESSION_LOCK_DELAY_SECONDS = 1
+    private static final int ELECTOR_LOCK_DELAY_SECONDS = 4
+
+    @ClassRule
+    @Shared
+    ConsulCluster cluster = new ConsulCluster.Builder()
+            .withNode("dc1", "dc1-node1")
+            .withNode("dc1", "dc1-node2")
+            .build()
+
+    @Unroll
+    def "should hand over leadership within #maxHandoverMillis ms when fast failover is #fastFailover"() {
+        given:
+        String service = "handover-$fastFailover"
+        LeaderElector elector1 = createElector("dc1-node1", service, fastFailover)
+        LeaderElector elector2 = createElector("dc1-node2", service, fastFailover)
+        new PollingConditions(timeout: 10).eventually {
+            elector1.leader ^ elector2.leader
+        }
+        LeaderElector leader = elector1.leader ? elector1 : elector2
+        LeaderElector follower = elector1.leader ? elector2 : elector1
+
+        when:
+        long start = System.currentTimeMillis()
+        leader.close()
+        new PollingConditions(timeout: 15, delay: 0.05).eventually {
+            follower.leader
+        }
+        long handoverMillis = System.currentTimeMillis() - start
+
+        then:
+        handoverMillis < maxHandoverMillis
+        follower.stats().acquisitions == 1
+        follower.stats().lastLeaderlessMillis < maxHandoverMillis
+        !follower.stats().leaderless
+
+        cleanup:
+        follower.close()
+
+        where:
+        fastFailover | maxHandoverMillis
+        false        | (ELECTOR_LOCK_DELAY_SECONDS + 3) * 1000
+        true         | (SESSION_LOCK_DELAY_SECONDS + 2) * 1000
+    }
+
+    LeaderElector createElector(String nodeName, String service, boolean fastFailover) {
+        ConsulRecipes recipes = ConsulRecipes.consulRecipes()
+                .withJsonDeserializer(new JacksonJsonDeserializer(new ObjectMapper()))
+                .withJsonSerializer(new JacksonJsonSerializer(new ObjectMapper()))
+                .withAgentUri(URI.create("http://localhost:${cluster.getHttpPort("dc1", nodeName)}"))
+                .build()
+
+        Session session = recipes.session(service)
+                .withLockDelaySeconds(SESSION_LOCK_DELAY_SECONDS)
+                .build()
+
+        LeaderElector leaderElector = recipes.leaderElector(service)
+                .withConsulWatcher(recipes.consulWatcher(Executors.newFixedThreadPool(1)).build())
+                .withLockDelaySeconds(ELECTOR_LOCK_DELAY_SECONDS)
+                .withFastFailover(fastFailover)
+                .withSession(session)
+                .build()
+
+        leaderElector.start()
+
+        return leaderElector
+    }
+}
@@ -0,0 +1,79 @@
+package pl.allegro.tech.discovery.consul.recipes.leader
+
+import com.fasterxml.jackson.databind.ObjectMapper
+import org.junit.ClassRule
+import pl.allegro.tech.discovery.consul.recipes.ConsulCluster
+import pl.allegro.tech.discovery.consul.recipes.ConsulRecipes
+import pl.allegro.tech.discovery.consul.recipes.json.JacksonJsonDeserializer
+import pl.allegro.tech.discovery.consul.recipes.json.JacksonJsonSerializer
+import pl.allegro.tech.discovery.consul.recipes.session.Session
+import spock.lang.Shared
+import spock.lang.Specification
+import spock.util.concurrent.PollingConditions
+
+import java.util.concurrent.Executors
+
+class LeaderElectorStampedeIntTest extends Specification {
+
+    private static final int CANDIDATES = 6
+
+    @ClassRule
+    @Shared
+    ConsulCluster cluster = new ConsulCluster.Builder()
+            .withNode("dc1", "dc1-node1")
+            .build()
+
+    def "should send few acquisition attempts when many ranked candidates compete for a freed lock"() {
+        given:
+        List<LeaderElector> electors = (1..CANDIDATES).collect { createElector() }
+        new PollingConditions(timeout: 10).eventually {
+            electors.count { it.leader } == 1
+        }
+        LeaderElector leader = electors.find { it.leader }
+        List<LeaderElector> followers = electors - leader
+        long attemptsBefore = followers.sum { it.stats().acquireAttempts } as long
+
+        when:
+        leader.close()
+
+        then:
+        new PollingConditions(timeout: 10).eventually {
+            followers.count { it.leader } == 1
+        }
+
+        when:
+        sleep(2000)
+        long attempts = (followers.sum { it.stats().acquireAttempts } as long) - attemptsBefore
+
+        then: "far fewer attempts than two per follower sent without staggering"
+        attempts <= 4
+        followers.sum { it.stats().cancelledAttempts } > 0
+        followers.count { it.leader } == 1
+
+        cleanup:
+        followers*.close()
+    }
+
+    LeaderElector createElector() {
+        ConsulRecipes recipes = ConsulRecipes.consulRecipes()
+                .withJsonDeserializer(new JacksonJsonDeserializer(new ObjectMapper()))
+                .withJsonSerializer(new JacksonJsonSerializer(new ObjectMapper()))
+                .withAgentUri(URI.create("http://localhost:${cluster.getHttpPort("dc1", "dc1-node1")}"))
+                .build()
+
+        Session session = recipes.session("stampede")
+                .withLockDelaySeconds(1)
+                .build()
+
+        LeaderElector leaderElector = recipes.leaderElector("stampede")
+                .withConsulWatcher(recipes.consulWatcher(Executors.newFixedThreadPool(1)).build())
+                .withFastFailover(true)
+                .withAcquisitionStagger(AcquisitionStagger.RANKED, 1000)
+                .withSession(session)
+                .build()
+
+        leaderElector.start()
+
+        return leaderElector
+    }
+}
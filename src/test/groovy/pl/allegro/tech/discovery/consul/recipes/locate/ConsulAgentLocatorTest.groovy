@@ -0,0 +1,148 @@
+package pl.allegro.tech.discovery.consul.recipes.locate
+
+import com.fasterxml.jackson.databind.ObjectMapper
+import com.github.tomakehurst.wiremock.junit.WireMockRule
+import org.junit.ClassRule
+import pl.allegro.tech.discovery.consul.recipes.ConsulRecipes
+import pl.allegro.tech.discovery.consul.recipes.json.JacksonJsonDeserializer
+import spock.lang.Shared
+import spock.lang.Specification
+
+import static com.github.tomakehurst.wiremock.client.WireMock.*
+
+class ConsulAgentLocatorTest extends Specification {
+
+    @ClassRule
+    @Shared
+    WireMockRule consul = new WireMockRule(0)
+
+    private ConsulRecipes recipes = ConsulRecipes.consulRecipes()
+            .withJsonDeserializer(new JacksonJsonDeserializer(new ObjectMapper()))
+            .withAgentUri(URI.create("http://localhost:${consul.port()}"))
+            .build()
+
+    def setup() {
+        consul.stubFor(get(urlPathEqualTo('/v1/agent/self'))
+                .willReturn(aResponse().withBody('{"Config": {"Datacenter": "dc1"}}')))
+        consul.stubFor(get(urlPathEqualTo('/v1/catalog/datacenters'))
+                .willReturn(aResponse().withBody('["dc1", "dc2", "dc3"]')))
+        consul.stubFor(get(urlPathEqualTo('/v1/health/service/my-service'))
+                .withQueryParam('dc', equalTo('dc2'))
+                .willReturn(aResponse().withBody(healthResponse('node1-dc2', '10.0.2.1'))))
+        consul.stubFor(get(urlPathEqualTo('/v1/health/service/my-service'))
+                .withQueryParam('dc', equalTo('dc3'))
+                .willReturn(aResponse().withFixedDelay(5000).withBody(healthResponse('node1-dc3', '10.0.3.1'))))
+    }
+
+    def cleanup() {
+        consul.resetAll()
+    }
+
+    def "should return agents from datacenters which answered before the deadline"() {
+        given:
+        def locator = recipes.consulAgentLocator()
+                .withDatacenterTimeoutMillis(500)
+                .build()
+
+        when:
+        long start = System.currentTimeMillis()
+        def agents = locator.locateDatacenterAgents('my-service')
+        long duration = System.currentTimeMillis() - start
+
+        then:
+        agents.keySet() == ['dc1', 'dc2'] as Set
+        agents['dc2'].name == 'node1-dc2'
+        duration < 2000
+    }
+
+    def "should serve cached agents without asking Consul again"() {
+        given:
+        def locator = recipes.consulAgentLocator()
+                .withDatacenterTimeoutMillis(500)
+                .withCacheTtlMillis(60000)
+                .build()
+        locator.locateDatacenterAgents('my-service')
+
+        when:
+        def agents = locator.locateDatacenterAgents('my-service')
+
+        then:
+        agents['dc2'].name == 'node1-dc2'
+        consul.verify(1, getRequestedFor(urlPathEqualTo('/v1/health/service/my-service'))
+                .withQueryParam('dc', equalTo('dc2')))
+    }
+
+    def "should rank remote agents by round trip time estimated from network coordinates"() {
+        given:
+        stubTwoNodesInDc2()
+        consul.stubFor(get(urlPathEqualTo('/v1/coordinate/datacenters'))
+                .willReturn(aResponse().withBody("""[
+                    {"Datacenter": "dc1", "Coordinates": [${coordinate('server-dc1.dc1', 0.0)}]},
+                    {"Datacenter": "dc2", "Coordinates": [${coordinate('server-dc2.dc2', 0.05)}]}
+                ]""")))
+        consul.stubFor(get(urlPathEqualTo('/v1/coordinate/nodes'))
+                .withQueryParam('dc', equalTo('dc2'))
+                .willReturn(aResponse().withBody("""[
+                    ${coordinate('server-dc2', 0.0)},
+                    ${coordinate('far-dc2', 0.02)},
+                    ${coordinate('near-dc2', 0.001)}
+                ]""")))
+        def locator = recipes.consulAgentLocator()
+                .withDatacenterTimeoutMillis(500)
+                .build()
+
+        when:
+        def ranked = locator.locateRankedDatacenterAgents('my-service')
+
+        then:
+        ranked['dc1']*.name == ['localhost']
+        ranked['dc2']*.name == ['near-dc2', 'far-dc2']
+        locator.locateNearestDatacenterAgents('my-service')['dc2'].name == 'near-dc2'
+    }
+
+    def "should move agents reported as failing to the end of ranking"() {
+        given:
+        stubTwoNodesInDc2()
+        def locator = recipes.consulAgentLocator()
+                .withDatacenterTimeoutMillis(500)
+                .build()
+        def nearest = locator.locateNearestDatacenterAgents('my-service')['dc2']
+
+        when:
+        locator.reportAgentFailure(nearest)
+
+        then:
+        nearest.name == 'far-dc2'
+        locator.locateRankedDatacenterAgents('my-service')['dc2']*.name == ['near-dc2', 'far-dc2']
+    }
+
+    def "should keep order returned by Consul when coordinates are not available"() {
+        given:
+        stubTwoNodesInDc2()
+        consul.stubFor(get(urlPathMatching('/v1/coordinate/.*'))
+                .willReturn(aResponse().withStatus(500)))
+        def locator = recipes.consulAgentLocator()
+                .withDatacenterTimeoutMillis(500)
+                .build()
+
+        expect:
+        locator.locateRankedDatacenterAgents('my-service')['dc2']*.name == ['far-dc2', 'near-dc2']
+    }
+
+    private void stubTwoNodesInDc2() {
+        consul.stubFor(get(urlPathEqualTo('/v1/health/service/my-service'))
+                .withQueryParam('dc', equalTo('dc2'))
+                .willReturn(aResponse().withBody("""[
+                    {"Node": {"Node": "far-dc2", "Address": "10.0.2.2"}, "Service": {"ID": "my-service-1"}},
+                    {"Node": {"Node": "near-dc2", "Address": "10.0.2.3"}, "Service": {"ID": "my-service-2"}}
+                ]""")))
+    }
+
+    private static String coordinate(String node, double x) {
+        return """{"Node": "$node", "Coord": {"Vec": [$x, 0, 0, 0, 0, 0, 0, 0], "Height": 0.0001, "Adjustment": 0}}"""
+    }
+
+    private static String healthResponse(String node, String address) {
+        return """[{"Node": {"Node": "$node", "Address": "$address"}, "Service": {"ID": "my-service-1"}}]"""
+    }
+}
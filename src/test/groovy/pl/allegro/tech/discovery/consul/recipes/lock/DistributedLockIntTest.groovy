@@ -0,0 +1,131 @@
+package pl.allegro.tech.discovery.consul.recipes.lock
+
+import com.fasterxml.jackson.databind.ObjectMapper
+import org.junit.ClassRule
+import pl.allegro.tech.discovery.consul.recipes.ConsulCluster
+import pl.allegro.tech.discovery.consul.recipes.ConsulRecipes
+import pl.allegro.tech.discovery.consul.recipes.json.JacksonJsonDeserializer
+import pl.allegro.tech.discovery.consul.recipes.json.JacksonJsonSerializer
+import pl.allegro.tech.discovery.consul.recipes.session.Session
+import spock.lang.Shared
+import spock.lang.Specification
+
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+class DistributedLockIntTest extends Specification {
+
+    @ClassRule
+    @Shared
+    ConsulCluster cluster = new ConsulCluster.Builder()
+            .withNode("dc1", "dc1-node1")
+            .withNode("dc1", "dc1-node2")
+            .build()
+
+    List<Session> sessions = []
+
+    def cleanup() {
+        sessions*.close()
+    }
+
+    def "should let only one instance hold the lock"() {
+        given:
+        DistributedLock lock1 = createLock("exclusive", "dc1-node1")
+        DistributedLock lock2 = createLock("exclusive", "dc1-node2")
+
+        expect:
+        lock1.tryLock()
+        !lock2.tryLock()
+        lock1.held
+        !lock2.held
+
+        when:
+        lock1.unlock()
+
+        then:
+        lock2.tryLock()
+        !lock1.held
+
+        cleanup:
+        [lock1, lock2]*.close()
+    }
+
+    def "should wake up waiter when the lock is released"() {
+        given:
+        DistributedLock lock1 = createLock("waiting", "dc1-node1")
+        DistributedLock lock2 = createLock("waiting", "dc1-node2")
+        lock1.tryLock()
+
+        when:
+        CompletableFuture<Long> waiter = lock2.lockAsync()
+        Thread.sleep(500)
+
+        then:
+        !waiter.isDone()
+
+        when:
+        lock1.unlock()
+
+        then:
+        waiter.get(10, TimeUnit.SECONDS) == lock2.fencingToken().asLong
+
+        cleanup:
+        [lock1, lock2]*.close()
+    }
+
+    def "should give up waiting after timeout"() {
+        given:
+        DistributedLock lock1 = createLock("timeout", "dc1-node1")
+        DistributedLock lock2 = createLock("timeout", "dc1-node2")
+        lock1.tryLock()
+
+        expect:
+        !lock2.lock(500, TimeUnit.MILLISECONDS)
+        !lock2.held
+
+        cleanup:
+        [lock1, lock2]*.close()
+    }
+
+    def "should increase fencing token with every acquisition"() {
+        given:
+        DistributedLock lock1 = createLock("fencing", "dc1-node1")
+        DistributedLock lock2 = createLock("fencing", "dc1-node2")
+
+        when:
+        lock1.tryLock()
+        long firstToken = lock1.fencingToken().asLong
+        lock1.unlock()
+        lock2.tryLock()
+        long secondToken = lock2.fencingToken().asLong
+
+        then:
+        secondToken > firstToken
+        !lock1.fencingToken().isPresent()
+
+        cleanup:
+        [lock1, lock2]*.close()
+    }
+
+    DistributedLock createLock(String name, String nodeName) {
+        ConsulRecipes recipes = ConsulRecipes.consulRecipes()
+                .withJsonDeserializer(new JacksonJsonDeserializer(new ObjectMapper()))
+                .withJsonSerializer(new JacksonJsonSerializer(new ObjectMapper()))
+                .withAgentUri(URI.create("http://localhost:${cluster.getHttpPort("dc1", nodeName)}"))
+                .build()
+
+        Session session = recipes.session("my-service")
+                .withLockDelaySeconds(0)
+                .build()
+        session.start()
+        sessions << session
+
+        DistributedLock lock = recipes.distributedLock("service/my-service/locks/$name")
+                .withConsulWatcher(recipes.consulWatcher(Executors.newFixedThreadPool(1)).build())
+                .withSession(session)
+                .build()
+        lock.start()
+        return lock
+    }
+}
@@ -0,0 +1,73 @@
+package pl.allegro.tech.discovery.consul.recipes.lock
+
+import com.fasterxml.jackson.databind.ObjectMapper
+import com.github.tomakehurst.wiremock.junit.WireMockRule
+import org.junit.ClassRule
+import pl.allegro.tech.discovery.consul.recipes.ConsulRecipes
+import pl.allegro.tech.discovery.consul.recipes.json.JacksonJsonDeserializer
+import pl.allegro.tech.discovery.consul.recipes.json.JacksonJsonSerializer
+import spock.lang.Shared
+import spock.lang.Specification
+
+import static com.github.tomakehurst.wiremock.client.WireMock.*
+
+class DistributedLockTest extends Specification {
+
+    @ClassRule
+    @Shared
+    WireMockRule consul = new WireMockRule(0)
+
+    private ConsulRecipes recipes = ConsulRecipes.consulRecipes()
+            .withJsonDeserializer(new JacksonJsonDeserializer(new ObjectMapper()))
+            .withJsonSerializer(new JacksonJsonSerializer(new ObjectMapper()))
+            .withAgentUri(URI.create("http://localhost:${consul.port()}"))
+            .build()
+
+    def setup() {
+        consul.stubFor(put(urlPathEqualTo('/v1/session/create'))
+                .willReturn(aResponse().withBody('{"ID": "session-1"}')))
+        consul.stubFor(put(urlPathMatching('/v1/session/renew/.*'))
+                .willReturn(aResponse().withBody('[{"ID": "session-1", "TTL": "10s"}]')))
+        consul.stubFor(put(urlPathMatching('/v1/session/destroy/.*'))
+                .willReturn(aResponse().withBody('true')))
+    }
+
+    def cleanup() {
+        consul.resetAll()
+    }
+
+    def "should stay held when watch result older than acquisition arrives after it"() {
+        given: "the first watch result, observing the key free, is delayed until after the acquisition"
+        consul.stubFor(get(urlPathEqualTo('/v1/kv/locks/stale'))
+                .withQueryParam('index', equalTo('0'))
+                .willReturn(aResponse().withFixedDelay(500)
+                        .withHeader('X-Consul-Index', '5')
+                        .withBody('[{"Key": "locks/stale", "CreateIndex": 3, "ModifyIndex": 5, "LockIndex": 0}]')))
+        consul.stubFor(get(urlPathEqualTo('/v1/kv/locks/stale'))
+                .withQueryParam('index', equalTo('5'))
+                .willReturn(aResponse().withFixedDelay(10000)
+                        .withHeader('X-Consul-Index', '5')
+                        .withBody('[]')))
+        consul.stubFor(put(urlPathEqualTo('/v1/txn'))
+                .willReturn(aResponse().withBody('''{
+                    "Results": [{"KV": {"Key": "locks/stale", "CreateIndex": 3, "ModifyIndex": 10, "LockIndex": 1,
+                                        "Flags": 0, "Session": "session-1"}}],
+                    "Errors": null
+                }''')))
+        DistributedLock lock = recipes.distributedLock("locks/stale").build()
+
+        when:
+        lock.start()
+        boolean acquired = lock.tryLock()
+        sleep(1000)
+
+        then:
+        acquired
+        consul.verify(getRequestedFor(urlPathEqualTo('/v1/kv/locks/stale')).withQueryParam('index', equalTo('5')))
+        lock.held
+        lock.fencingToken().asLong == 1
+
+        cleanup:
+        lock.close()
+    }
+}
@@ -0,0 +1,110 @@
+package pl.allegro.tech.discovery.consul.recipes.partition
+
+import com.fasterxml.jackson.databind.ObjectMapper
+import org.junit.ClassRule
+import pl.allegro.tech.discovery.consul.recipes.ConsulCluster
+import pl.allegro.tech.discovery.consul.recipes.ConsulRecipes
+import pl.allegro.tech.discovery.consul.recipes.json.JacksonJsonDeserializer
+import pl.allegro.tech.discovery.consul.recipes.json.JacksonJsonSerializer
+import spock.lang.Shared
+import spock.lang.Specification
+import spock.util.concurrent.PollingConditions
+
+import java.util.concurrent.Executors
+
+class PartitionAssignerIntTest extends Specification {
+
+    @ClassRule
+    @Shared
+    ConsulCluster cluster = new ConsulCluster.Builder()
+            .withNode("dc1", "dc1-node1")
+            .withNode("dc1", "dc1-node2")
+            .build()
+
+    static final int PARTITIONS = 32
+
+    def "should spread partitions among members and take them over when a member leaves"() {
+        given:
+        PartitionAssigner assigner1 = createAssigner("spread", "dc1-node1")
+        PartitionAssigner assigner2 = createAssigner("spread", "dc1-node2")
+
+        expect:
+        new PollingConditions(timeout: 10).eventually {
+            assigner1.members().size() == 2
+            assigner2.members().size() == 2
+            !assigner1.assignedPartitions().isEmpty()
+            !assigner2.assignedPartitions().isEmpty()
+            (assigner1.assignedPartitions() + assigner2.assignedPartitions()) == (0..<PARTITIONS) as Set
+            assigner1.assignedPartitions().intersect(assigner2.assignedPartitions()).isEmpty()
+        }
+
+        when:
+        assigner1.close()
+
+        then:
+        assigner1.assignedPartitions().isEmpty()
+
+        and:
+        new PollingConditions(timeout: 10).eventually {
+            assigner2.assignedPartitions() == (0..<PARTITIONS) as Set
+        }
+
+        cleanup:
+        assigner2.close()
+    }
+
+    def "should notify observers about assigned and revoked partitions"() {
+        given:
+        Set<Integer> assigned = Collections.synchronizedSet(new HashSet<Integer>())
+        Set<Integer> revoked = Collections.synchronizedSet(new HashSet<Integer>())
+        PartitionAssigner assigner1 = createAssigner("observed", "dc1-node1", false)
+        assigner1.registerObserver(new PartitionObserver() {
+            @Override
+            void partitionsAssigned(Set<Integer> partitions) {
+                assigned.addAll(partitions)
+            }
+
+            @Override
+            void partitionsRevoked(Set<Integer> partitions) {
+                revoked.addAll(partitions)
+            }
+        })
+
+        when:
+        assigner1.start()
+
+        then:
+        new PollingConditions(timeout: 10).eventually {
+            assigned == (0..<PARTITIONS) as Set
+        }
+
+        when:
+        PartitionAssigner assigner2 = createAssigner("observed", "dc1-node2")
+
+        then:
+        new PollingConditions(timeout: 10).eventually {
+            !assigner2.assignedPartitions().isEmpty()
+            revoked == assigner2.assignedPartitions()
+        }
+
+        cleanup:
+        [assigner1, assigner2]*.close()
+    }
+
+    PartitionAssigner createAssigner(String serviceName, String nodeName, boolean start = true) {
+        ConsulRecipes recipes = ConsulRecipes.consulRecipes()
+                .withJsonDeserializer(new JacksonJsonDeserializer(new ObjectMapper()))
+                .withJsonSerializer(new JacksonJsonSerializer(new ObjectMapper()))
+                .withAgentUri(URI.create("http://localhost:${cluster.getHttpPort("dc1", nodeName)}"))
+                .build()
+
+        PartitionAssigner assigner = recipes.partitionAssigner(serviceName, PARTITIONS)
+                .withConsulWatcher(recipes.consulWatcher(Executors.newFixedThreadPool(1)).build())
+                .build()
+
+        if (start) {
+            assigner.start()
+        }
+        return assigner
+    }
+}
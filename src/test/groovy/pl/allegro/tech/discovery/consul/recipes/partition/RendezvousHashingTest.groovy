@@ -0,0 +1,60 @@
+package pl.allegro.tech.discovery.consul.recipes.partition
+
+import spock.lang.Specification
+
+class RendezvousHashingTest extends Specification {
+
+    static final int PARTITIONS = 256
+
+    def "should assign every partition to exactly one member"() {
+        given:
+        def members = ["node-a", "node-b", "node-c"]
+
+        when:
+        def assignments = members.collect { RendezvousHashing.partitionsOf(it, members, PARTITIONS) }
+
+        then:
+        assignments.sum { it.size() } == PARTITIONS
+        assignments.flatten() as Set == (0..<PARTITIONS) as Set
+    }
+
+    def "should spread partitions evenly"() {
+        given:
+        def members = (1..8).collect { "node-$it".toString() }
+
+        expect:
+        members.every {
+            def count = RendezvousHashing.partitionsOf(it, members, PARTITIONS).size()
+            count > PARTITIONS / 8 / 2 && count < PARTITIONS / 8 * 2
+        }
+    }
+
+    def "should move only partitions of the member that left"() {
+        given:
+        def members = ["node-a", "node-b", "node-c", "node-d"]
+        def remaining = ["node-a", "node-b", "node-c"]
+
+        expect:
+        remaining.every {
+            RendezvousHashing.partitionsOf(it, remaining, PARTITIONS)
+                    .containsAll(RendezvousHashing.partitionsOf(it, members, PARTITIONS))
+        }
+    }
+
+    def "should move to a member that joined only partitions it takes over"() {
+        given:
+        def members = ["node-a", "node-b", "node-c"]
+        def joined = members + "node-d"
+
+        expect:
+        members.every {
+            RendezvousHashing.partitionsOf(it, members, PARTITIONS)
+                    .containsAll(RendezvousHashing.partitionsOf(it, joined, PARTITIONS))
+        }
+    }
+
+    def "should assign no partitions to a node that is not a member"() {
+        expect:
+        RendezvousHashing.partitionsOf("node-x", ["node-a"], PARTITIONS).isEmpty()
+    }
+}
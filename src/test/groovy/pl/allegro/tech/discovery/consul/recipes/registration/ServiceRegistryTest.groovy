@@ -0,0 +1,188 @@
+package pl.allegro.tech.discovery.consul.recipes.registration
+
+import com.fasterxml.jackson.databind.ObjectMapper
+import com.github.tomakehurst.wiremock.junit.WireMockRule
+import org.junit.ClassRule
+import pl.allegro.tech.discovery.consul.recipes.ConsulRecipes
+import pl.allegro.tech.discovery.consul.recipes.json.JacksonJsonDeserializer
+import pl.allegro.tech.discovery.consul.recipes.json.JacksonJsonSerializer
+import spock.lang.Shared
+import spock.lang.Specification
+import spock.util.concurrent.PollingConditions
+
+import java.util.concurrent.TimeUnit
+
+import static com.github.tomakehurst.wiremock.client.WireMock.*
+
+class ServiceRegistryTest extends Specification {
+
+    @ClassRule
+    @Shared
+    WireMockRule consul = new WireMockRule(0)
+
+    private ConsulRecipes recipes = ConsulRecipes.consulRecipes()
+            .withJsonDeserializer(new JacksonJsonDeserializer(new ObjectMapper()))
+            .withJsonSerializer(new JacksonJsonSerializer(new ObjectMapper()))
+            .withAgentUri(URI.create("http://localhost:${consul.port()}"))
+            .build()
+
+    def setup() {
+        consul.stubFor(put(urlPathEqualTo('/v1/agent/service/register')).willReturn(aResponse()))
+        consul.stubFor(put(urlPathMatching('/v1/agent/service/deregister/.*')).willReturn(aResponse()))
+        consul.stubFor(put(urlPathMatching('/v1/agent/check/update/.*')).willReturn(aResponse()))
+    }
+
+    def cleanup() {
+        consul.resetAll()
+    }
+
+    def "should register service with TTL check and heartbeat it"() {
+        given:
+        ServiceRegistry registry = recipes.serviceRegistry()
+                .withTickMillis(100)
+                .build()
+        registry.start()
+
+        when:
+        registry.register(ServiceRegistration.forService("sidecar")
+                .withServiceId("sidecar-1")
+                .withPort(8080)
+                .withCheckTtlSeconds(1)
+                .build()).get(5, TimeUnit.SECONDS)
+
+        then:
+        consul.verify(putRequestedFor(urlPathEqualTo('/v1/agent/service/register'))
+                .withRequestBody(matchingJsonPath('$.ID', equalTo('sidecar-1')))
+                .withRequestBody(matchingJsonPath('$.Check.CheckID', equalTo('service:sidecar-1')))
+                .withRequestBody(matchingJsonPath('$.Check.TTL', equalTo('1s'))))
+
+        and:
+        new PollingConditions(timeout: 5).eventually {
+            consul.verify(moreThanOrExactly(3), putRequestedFor(urlPathEqualTo('/v1/agent/check/update/service:sidecar-1'))
+                    .withRequestBody(matchingJsonPath('$.Status', equalTo('passing'))))
+        }
+
+        cleanup:
+        registry.close()
+    }
+
+    def "should not send unchanged status before check is due"() {
+        given:
+        ServiceRegistry registry = recipes.serviceRegistry()
+                .withTickMillis(100)
+                .build()
+        registry.start()
+        registry.register(ServiceRegistration.forService("sidecar")
+                .withCheckTtlSeconds(60)
+                .build()).get(5, TimeUnit.SECONDS)
+        new PollingConditions(timeout: 5).eventually {
+            registry.stats().heartbeats == 1
+        }
+
+        when:
+        10.times { registry.pass("sidecar") }
+        Thread.sleep(500)
+
+        then:
+        registry.stats().heartbeats == 1
+        registry.stats().skippedHeartbeats == 10
+
+        when:
+        registry.fail("sidecar", "out of memory")
+
+        then:
+        new PollingConditions(timeout: 5).eventually {
+            consul.verify(putRequestedFor(urlPathEqualTo('/v1/agent/check/update/service:sidecar'))
+                    .withRequestBody(matchingJsonPath('$.Status', equalTo('critical')))
+                    .withRequestBody(matchingJsonPath('$.Output', equalTo('out of memory'))))
+        }
+
+        cleanup:
+        registry.close()
+    }
+
+    def "should heartbeat many services from a single tick"() {
+        given:
+        ServiceRegistry registry = recipes.serviceRegistry()
+                .withTickMillis(100)
+                .build()
+        registry.start()
+
+        when:
+        (1..50).each {
+            registry.register(ServiceRegistration.forService("sidecar-$it").withCheckTtlSeconds(1).build())
+        }
+
+        then:
+        new PollingConditions(timeout: 5).eventually {
+            registry.stats().heartbeats >= 100
+            registry.stats().failedHeartbeats == 0
+            registry.stats().minHeadroomMillis > 0
+        }
+
+        cleanup:
+        registry.close()
+    }
+
+    def "should register service again when agent does not know its check"() {
+        given:
+        consul.stubFor(put(urlPathEqualTo('/v1/agent/check/update/service:sidecar'))
+                .willReturn(aResponse().withStatus(404)))
+        ServiceRegistry registry = recipes.serviceRegistry()
+                .withTickMillis(100)
+                .build()
+        registry.start()
+
+        when:
+        registry.register(ServiceRegistration.forService("sidecar").withCheckTtlSeconds(1).build())
+
+        then:
+        new PollingConditions(timeout: 5).eventually {
+            registry.stats().reregistrations > 0
+            consul.verify(moreThanOrExactly(2), putRequestedFor(urlPathEqualTo('/v1/agent/service/register')))
+        }
+
+        cleanup:
+        registry.close()
+    }
+
+    def "should deregister services when closed"() {
+        given:
+        ServiceRegistry registry = recipes.serviceRegistry().build()
+        registry.start()
+        registry.register(ServiceRegistration.forService("sidecar").build()).get(5, TimeUnit.SECONDS)
+
+        when:
+        registry.close()
+
+        then:
+        consul.verify(putRequestedFor(urlPathEqualTo('/v1/agent/service/deregister/sidecar')))
+        registry.registeredServices().isEmpty()
+    }
+
+    def "should register service again only once while registration is in flight"() {
+        given:
+        consul.stubFor(put(urlPathEqualTo('/v1/agent/check/update/service:sidecar'))
+                .willReturn(aResponse().withStatus(404)))
+        consul.stubFor(put(urlPathEqualTo('/v1/agent/service/register'))
+                .willReturn(aResponse().withFixedDelay(2000)))
+        ServiceRegistry registry = recipes.serviceRegistry()
+                .withTickMillis(50)
+                .build()
+        registry.start()
+        registry.register(ServiceRegistration.forService("sidecar").withCheckTtlSeconds(1).build())
+                .get(5, TimeUnit.SECONDS)
+
+        when:
+        new PollingConditions(timeout: 5).eventually {
+            registry.stats().reregistrations == 1
+        }
+        sleep(500)
+
+        then:
+        registry.stats().reregistrations == 1
+
+        cleanup:
+        registry.close()
+    }
+}
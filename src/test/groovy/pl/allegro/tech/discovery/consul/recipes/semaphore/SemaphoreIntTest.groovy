@@ -0,0 +1,110 @@
+package pl.allegro.tech.discovery.consul.recipes.semaphore
+
+import com.fasterxml.jackson.databind.ObjectMapper
+import org.junit.ClassRule
+import pl.allegro.tech.discovery.consul.recipes.ConsulCluster
+import pl.allegro.tech.discovery.consul.recipes.ConsulRecipes
+import pl.allegro.tech.discovery.consul.recipes.json.JacksonJsonDeserializer
+import pl.allegro.tech.discovery.consul.recipes.json.JacksonJsonSerializer
+import spock.lang.Shared
+import spock.lang.Specification
+import spock.util.concurrent.PollingConditions
+
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+class SemaphoreIntTest extends Specification {
+
+    @ClassRule
+    @Shared
+    ConsulCluster cluster = new ConsulCluster.Builder()
+            .withNode("dc1", "dc1-node1")
+            .withNode("dc1", "dc1-node2")
+            .build()
+
+    def "should not let more contenders hold permits than the limit"() {
+        given:
+        Semaphore semaphore1 = createSemaphore("limited", "dc1-node1")
+        Semaphore semaphore2 = createSemaphore("limited", "dc1-node2")
+        Semaphore semaphore3 = createSemaphore("limited", "dc1-node1")
+
+        when:
+        semaphore1.acquire().get(10, TimeUnit.SECONDS)
+        semaphore2.acquire().get(10, TimeUnit.SECONDS)
+        CompletableFuture<Void> third = semaphore3.acquire()
+
+        then:
+        new PollingConditions(timeout: 5).eventually {
+            semaphore3.holders().size() == 2
+        }
+        !third.isDone()
+        !semaphore3.isHeld()
+
+        when:
+        semaphore1.release().get(10, TimeUnit.SECONDS)
+
+        then:
+        third.get(10, TimeUnit.SECONDS) == null
+        semaphore3.isHeld()
+        !semaphore1.isHeld()
+
+        and:
+        new PollingConditions(timeout: 5).eventually {
+            semaphore2.holders().size() == 2
+        }
+
+        cleanup:
+        [semaphore1, semaphore2, semaphore3]*.close()
+    }
+
+    def "should free permit of a contender that was closed"() {
+        given:
+        Semaphore semaphore1 = createSemaphore("closed", "dc1-node1", 1)
+        Semaphore semaphore2 = createSemaphore("closed", "dc1-node2", 1)
+        semaphore1.acquire().get(10, TimeUnit.SECONDS)
+        CompletableFuture<Void> second = semaphore2.acquire()
+
+        when:
+        semaphore1.close()
+
+        then:
+        second.get(10, TimeUnit.SECONDS) == null
+        semaphore2.isHeld()
+
+        cleanup:
+        semaphore2.close()
+    }
+
+    def "should fail acquisition when limits of contenders differ"() {
+        given:
+        Semaphore semaphore1 = createSemaphore("mismatched", "dc1-node1", 2)
+        Semaphore semaphore2 = createSemaphore("mismatched", "dc1-node2", 3)
+        semaphore1.acquire().get(10, TimeUnit.SECONDS)
+
+        when:
+        semaphore2.acquire().get(10, TimeUnit.SECONDS)
+
+        then:
+        def e = thrown(ExecutionException)
+        e.cause instanceof SemaphoreException
+
+        cleanup:
+        [semaphore1, semaphore2]*.close()
+    }
+
+    Semaphore createSemaphore(String name, String nodeName, int limit = 2) {
+        ConsulRecipes recipes = ConsulRecipes.consulRecipes()
+                .withJsonDeserializer(new JacksonJsonDeserializer(new ObjectMapper()))
+                .withJsonSerializer(new JacksonJsonSerializer(new ObjectMapper()))
+                .withAgentUri(URI.create("http://localhost:${cluster.getHttpPort("dc1", nodeName)}"))
+                .build()
+
+        Semaphore semaphore = recipes.semaphore("service/my-service/semaphores/$name", limit)
+                .withConsulWatcher(recipes.consulWatcher(Executors.newFixedThreadPool(1)).build())
+                .build()
+        semaphore.start()
+        return semaphore
+    }
+}
@@ -0,0 +1,161 @@
+package pl.allegro.tech.discovery.consul.recipes.session
+
+import com.fasterxml.jackson.databind.ObjectMapper
+import com.github.tomakehurst.wiremock.junit.WireMockRule
+import org.junit.ClassRule
+import pl.allegro.tech.discovery.consul.recipes.ConsulRecipes
+import pl.allegro.tech.discovery.consul.recipes.json.JacksonJsonDeserializer
+import pl.allegro.tech.discovery.consul.recipes.json.JacksonJsonSerializer
+import spock.lang.Shared
+import spock.lang.Specification
+import spock.util.concurrent.PollingConditions
+
+import static com.github.tomakehurst.wiremock.client.WireMock.*
+
+class SessionTest extends Specification {
+
+    @ClassRule
+    @Shared
+    WireMockRule consul = new WireMockRule(0)
+
+    private ConsulRecipes recipes = ConsulRecipes.consulRecipes()
+            .withJsonDeserializer(new JacksonJsonDeserializer(new ObjectMapper()))
+            .withJsonSerializer(new JacksonJsonSerializer(new ObjectMapper()))
+            .withAgentUri(URI.create("http://localhost:${consul.port()}"))
+            .build()
+
+    def setup() {
+        consul.stubFor(put(urlPathEqualTo('/v1/session/create'))
+                .willReturn(aResponse().withBody('{"ID": "session-1"}')))
+        consul.stubFor(put(urlPathMatching('/v1/session/renew/.*'))
+                .willReturn(aResponse().withBody('[{"ID": "session-1", "TTL": "1s"}]')))
+        consul.stubFor(put(urlPathMatching('/v1/session/destroy/.*'))
+                .willReturn(aResponse().withBody('true')))
+    }
+
+    def cleanup() {
+        consul.resetAll()
+    }
+
+    def "should renew many sessions on a shared scheduler"() {
+        given:
+        def sessions = (1..20).collect {
+            recipes.session("my-service")
+                    .withSessionTTLSeconds(1)
+                    .build()
+        }
+
+        when:
+        sessions*.start()
+
+        then:
+        new PollingConditions(timeout: 5).eventually {
+            consul.verify(moreThanOrExactly(40), putRequestedFor(urlPathEqualTo('/v1/session/renew/session-1')))
+        }
+
+        cleanup:
+        sessions*.close()
+    }
+
+    def "should create new session when Consul does not know the renewed one"() {
+        given:
+        def session = recipes.session("my-service")
+                .withSessionTTLSeconds(1)
+                .build()
+        session.start()
+
+        when:
+        consul.stubFor(put(urlPathEqualTo('/v1/session/renew/session-1'))
+                .willReturn(aResponse().withStatus(404)))
+        consul.stubFor(put(urlPathEqualTo('/v1/session/create'))
+                .willReturn(aResponse().withBody('{"ID": "session-2"}')))
+
+        then:
+        new PollingConditions(timeout: 5).eventually {
+            session.currentId() == 'session-2'
+        }
+
+        cleanup:
+        session.close()
+    }
+
+    def "should adopt TTL returned by Consul in renewal response"() {
+        given:
+        consul.stubFor(put(urlPathMatching('/v1/session/renew/.*'))
+                .willReturn(aResponse().withBody('[{"ID": "session-1", "TTL": "3s"}]')))
+        def session = recipes.session("my-service")
+                .withSessionTTLSeconds(1)
+                .build()
+
+        when:
+        session.start()
+
+        then:
+        new PollingConditions(timeout: 5).eventually {
+            session.stats().renewals >= 1
+            session.stats().ttlMillis == 3000
+            session.stats().ttlChanges == 1
+        }
+
+        cleanup:
+        session.close()
+    }
+
+    def "should report configured TTL again after creating new session"() {
+        given:
+        consul.stubFor(put(urlPathMatching('/v1/session/renew/.*'))
+                .willReturn(aResponse().withBody('[{"ID": "session-1", "TTL": "3s"}]')))
+        def session = recipes.session("my-service")
+                .withSessionTTLSeconds(1)
+                .build()
+        session.start()
+        new PollingConditions(timeout: 5).eventually {
+            session.stats().ttlMillis == 3000
+        }
+
+        when:
+        consul.stubFor(put(urlPathMatching('/v1/session/renew/.*'))
+                .willReturn(aResponse().withStatus(404)))
+        consul.stubFor(put(urlPathEqualTo('/v1/session/create'))
+                .willReturn(aResponse().withBody('{"ID": "session-2"}')))
+
+        then:
+        new PollingConditions(timeout: 5).eventually {
+            session.currentId() == 'session-2'
+            session.stats().ttlMillis == 1000
+        }
+
+        cleanup:
+        session.close()
+    }
+
+    def "should parse duration #duration returned by Consul"() {
+        expect:
+        Session.parseDurationMillis(duration) == millis
+
+        where:
+        duration | millis
+        '15s'    | 15000
+        '1m30s'  | 90000
+        '1.5s'   | 1500
+        '500ms'  | 500
+        'broken' | 0
+    }
+
+    def "should stop renewing closed session"() {
+        given:
+        def session = recipes.session("my-service")
+                .withSessionTTLSeconds(1)
+                .build()
+        session.start()
+
+        when:
+        session.close()
+        def renewals = consul.findAll(putRequestedFor(urlPathMatching('/v1/session/renew/.*'))).size()
+        sleep(2000)
+
+        then:
+        consul.findAll(putRequestedFor(urlPathMatching('/v1/session/renew/.*'))).size() == renewals
+        consul.verify(1, putRequestedFor(urlPathEqualTo('/v1/session/destroy/session-1')))
+    }
+}
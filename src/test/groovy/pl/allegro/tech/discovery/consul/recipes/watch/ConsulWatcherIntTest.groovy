@@ -62,4 +62,36 @@ class ConsulWatcherIntTest extends Specification {
         }
     }
 
+    def "should watch services of the agent blocking on content hash"() {
+        given: "agent services watcher"
+        Deque<WatchResult> latestState = new ArrayDeque<>()
+        watcher.watchEndpoint("/v1/agent/services",
+                { wr -> latestState.push(wr) },
+                { logger.error("Error while watching", it) })
+
+        expect: "watcher caught first state of agent services"
+        new PollingConditions(timeout: 10).eventually {
+            !latestState.empty
+        }
+
+        when: "new service is registered"
+        def serviceId = consulCluster.registerHealthyServiceInstance("my-service", "dc1", "node1-dc1")
+
+        then: "watcher caught state with new service instance"
+        new PollingConditions(timeout: 10).eventually {
+            latestState.head().body.contains("my-service")
+        }
+
+        and: "watcher is blocking rather than polling"
+        watcher.stats().indexMissingEvents == 0
+        watcher.stats().eventsTotal < 10
+
+        when: "service is unregistered"
+        consulCluster.deregisterService(serviceId, "dc1", "node1-dc1")
+
+        then: "watcher caught new services state without previously registered service"
+        new PollingConditions(timeout: 10).eventually {
+            !latestState.head().body.contains("my-service")
+        }
+    }
 }
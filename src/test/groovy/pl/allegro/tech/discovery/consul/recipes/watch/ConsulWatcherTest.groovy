@@ -3,6 +3,7 @@ package pl.allegro.tech.discovery.consul.recipes.watch
 import com.github.tomakehurst.wiremock.http.Fault
 import com.github.tomakehurst.wiremock.junit.WireMockRule
 import com.github.tomakehurst.wiremock.stubbing.Scenario
+import okhttp3.OkHttpClient
 import org.awaitility.Duration
 import org.junit.ClassRule
 import org.slf4j.Logger
@@ -332,6 +333,30 @@ class ConsulWatcherTest extends Specification {
         await().atMost(Duration.FIVE_SECONDS).until({ consumedMessages == ['success'] })
     }
 
+    def "should treat not found response with index as empty content"() {
+        given:
+        consul.stubFor(get(urlPathEqualTo('/v1/kv/missing'))
+                .withQueryParam('index', equalTo('0'))
+                .willReturn(aResponse()
+                        .withStatus(404)
+                        .withHeader('X-Consul-Index', '123')))
+
+        consul.stubFor(get(urlPathEqualTo('/v1/kv/missing'))
+                .withQueryParam('index', equalTo('123'))
+                .willReturn(aResponse().withFixedDelay(10000)
+                        .withHeader('X-Consul-Index', '124')
+                        .withBody('finalize')))
+
+        def consumedMessages = []
+        def consumer = { consumedMessages += it }
+
+        when:
+        watcher.watchEndpoint('/v1/kv/missing', consumer, { logger.error("Error while watching", it) })
+
+        then:
+        await().atMost(Duration.FIVE_SECONDS).until({ consumedMessages == [new WatchResult<>(123, '')] })
+    }
+
     @Unroll
     def "should reconnect with delay after receiving #errorCode http code"() {
         given: "error code is returned"
@@ -386,4 +411,123 @@ class ConsulWatcherTest extends Specification {
         })
     }
 
+    def "should block on content hash if endpoint returns no index"() {
+        given:
+        consul.stubFor(get(urlPathEqualTo('/v1/agent/services'))
+                .withQueryParam('index', equalTo('0'))
+                .withQueryParam('wait', equalTo('5m'))
+                .willReturn(aResponse()
+                        .withHeader('X-Consul-ContentHash', 'aaa')
+                        .withBody('first')))
+
+        consul.stubFor(get(urlPathEqualTo('/v1/agent/services'))
+                .withQueryParam('hash', equalTo('aaa'))
+                .withQueryParam('wait', equalTo('5m'))
+                .willReturn(aResponse()
+                        .withHeader('X-Consul-ContentHash', 'bbb')
+                        .withBody('second')))
+
+        consul.stubFor(get(urlPathEqualTo('/v1/agent/services'))
+                .withQueryParam('hash', equalTo('bbb'))
+                .withQueryParam('wait', equalTo('5m'))
+                .willReturn(aResponse().withFixedDelay(10000)
+                        .withHeader('X-Consul-ContentHash', 'bbb')
+                        .withBody('second')))
+
+        def consumedResults = []
+        def consumer = { consumedResults += it }
+
+        when:
+        watcher.watchEndpoint('/v1/agent/services', consumer, { logger.error("Error while watching", it) })
+
+        then:
+        await().atMost(Duration.FIVE_SECONDS).until({
+            consumedResults == [new WatchResult<>(0, 'first'), new WatchResult<>(0, 'second')]
+        })
+        watcher.stats().indexMissingEvents == 0
+    }
+
+    def "should back off if endpoint returns neither index nor content hash"() {
+        given:
+        consul.stubFor(get(urlPathEqualTo('/endpoint'))
+                .willReturn(aResponse()
+                        .withBody('no index')))
+
+        when:
+        watcher.watchEndpoint('/endpoint', {}, { logger.error("Error while watching", it) })
+        sleep(500)
+
+        then:
+        watcher.stats().indexMissingEvents > 0
+        watcher.stats().indexMissingEvents < 10
+    }
+
+    def "should abort in-flight call when watch is cancelled"() {
+        given:
+        def httpClient = new OkHttpClient()
+        def slowWatcher = ConsulRecipes.consulRecipes()
+                .withAgentUri(URI.create("http://localhost:${consul.port()}"))
+                .withWatchesHttpClient(httpClient)
+                .build()
+                .consulWatcher(Executors.newFixedThreadPool(1))
+                .build()
+
+        consul.stubFor(get(urlPathEqualTo('/slow'))
+                .willReturn(aResponse().withFixedDelay(10000)
+                        .withHeader('X-Consul-Index', '123')
+                        .withBody('slow')))
+
+        def canceller = slowWatcher.watchEndpoint('/slow', {}, {})
+        await().atMost(Duration.FIVE_SECONDS).until({ httpClient.dispatcher().runningCallsCount() == 1 })
+
+        when:
+        canceller.cancel()
+
+        then:
+        await().atMost(Duration.ONE_SECOND).until({ httpClient.dispatcher().runningCallsCount() == 0 })
+        slowWatcher.stats().activeWatches == 0
+        slowWatcher.stats().cancelledWatches == 1
+
+        cleanup:
+        slowWatcher.close()
+    }
+
+    def "should not reconnect after watch is cancelled during backoff"() {
+        given:
+        consul.stubFor(get(urlPathEqualTo('/failing'))
+                .willReturn(aResponse().withStatus(500)))
+
+        def canceller = watcher.watchEndpoint('/failing', {}, {})
+        await().atMost(Duration.FIVE_SECONDS).until({ watcher.stats().failures > 0 })
+
+        when:
+        canceller.cancel()
+        sleep(200)
+        def requestsAfterCancel = consul.findAll(getRequestedFor(urlPathEqualTo('/failing'))).size()
+        sleep(1500)
+
+        then:
+        consul.findAll(getRequestedFor(urlPathEqualTo('/failing'))).size() == requestsAfterCancel
+        watcher.stats().activeWatches == 0
+    }
+
+    def "should back off on not found response with index from non KV endpoint"() {
+        given:
+        consul.stubFor(get(urlPathEqualTo('/v1/session/info/missing'))
+                .willReturn(aResponse()
+                        .withStatus(404)
+                        .withHeader('X-Consul-Index', '123')))
+
+        def consumedMessages = []
+        def consumer = { consumedMessages += it }
+
+        when:
+        watcher.watchEndpoint('/v1/session/info/missing', consumer, { logger.error("Error while watching", it) })
+        sleep(500)
+
+        then:
+        consumedMessages.isEmpty()
+        def hits = consul.findAll(getRequestedFor(urlPathEqualTo('/v1/session/info/missing'))).size()
+        0 < hits && hits < 10
+    }
 }
@@ -0,0 +1,102 @@
+package pl.allegro.tech.discovery.consul.recipes.watch
+
+import spock.lang.Specification
+
+import static pl.allegro.tech.discovery.consul.recipes.watch.WatchPriority.BULK
+import static pl.allegro.tech.discovery.consul.recipes.watch.WatchPriority.CRITICAL
+import static pl.allegro.tech.discovery.consul.recipes.watch.WatchPriority.NORMAL
+
+class WatchAdmissionTest extends Specification {
+
+    def started = []
+
+    def "should start watches right away while there is capacity"() {
+        given:
+        def admission = WatchAdmission.watchAdmission(2).build()
+
+        when:
+        admission.admit(NORMAL, new Canceller(), { started << 'a' })
+        admission.admit(NORMAL, new Canceller(), { started << 'b' })
+        admission.admit(NORMAL, new Canceller(), { started << 'c' })
+
+        then:
+        started == ['a', 'b']
+        admission.stats().getActive(NORMAL) == 2
+        admission.stats().getQueued(NORMAL) == 1
+        admission.stats().exhausted == 1
+    }
+
+    def "should not let less important watches use capacity reserved for critical ones"() {
+        given:
+        def admission = WatchAdmission.watchAdmission(3)
+                .withReservedCapacity(CRITICAL, 1)
+                .build()
+
+        when:
+        3.times { i -> admission.admit(BULK, new Canceller(), { started << "bulk-$i".toString() }) }
+        admission.admit(CRITICAL, new Canceller(), { started << 'critical' })
+
+        then:
+        started == ['bulk-0', 'bulk-1', 'critical']
+        admission.stats().getQueued(BULK) == 1
+    }
+
+    def "should start queued watches in order of priority when capacity is released"() {
+        given:
+        def admission = WatchAdmission.watchAdmission(1).build()
+        def first = new Canceller()
+        admission.admit(NORMAL, first, { started << 'first' })
+        admission.admit(BULK, new Canceller(), { started << 'bulk' })
+        admission.admit(CRITICAL, new Canceller(), { started << 'critical' })
+
+        when:
+        first.cancel()
+
+        then:
+        started == ['first', 'critical']
+        admission.stats().getActive(CRITICAL) == 1
+        admission.stats().getQueued(BULK) == 1
+    }
+
+    def "should drop queued watch when it is cancelled"() {
+        given:
+        def admission = WatchAdmission.watchAdmission(1).build()
+        def first = new Canceller()
+        def queued = new Canceller()
+        admission.admit(NORMAL, first, { started << 'first' })
+        admission.admit(NORMAL, queued, { started << 'queued' })
+
+        when:
+        queued.cancel()
+        first.cancel()
+
+        then:
+        started == ['first']
+        admission.stats().activeTotal == 0
+        admission.stats().queuedTotal == 0
+    }
+
+    def "should reject watches over capacity if queueing is disabled"() {
+        given:
+        def exhausted = []
+        def admission = WatchAdmission.watchAdmission(1)
+                .withQueueing(false)
+                .withExhaustionListener({ exhausted << it })
+                .build()
+
+        expect:
+        admission.admit(NORMAL, new Canceller(), { started << 'a' })
+        !admission.admit(BULK, new Canceller(), { started << 'b' })
+        started == ['a']
+        exhausted == [BULK]
+        admission.stats().rejected == 1
+    }
+
+    def "should not allow reserving more than capacity"() {
+        when:
+        WatchAdmission.watchAdmission(1).withReservedCapacity(CRITICAL, 2).build()
+
+        then:
+        thrown(IllegalArgumentException)
+    }
+}
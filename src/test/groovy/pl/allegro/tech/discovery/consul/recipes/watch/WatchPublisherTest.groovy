@@ -0,0 +1,166 @@
+package pl.allegro.tech.discovery.consul.recipes.watch
+
+import com.github.tomakehurst.wiremock.junit.WireMockRule
+import org.awaitility.Duration
+import org.junit.ClassRule
+import org.reactivestreams.Subscriber
+import org.reactivestreams.Subscription
+import pl.allegro.tech.discovery.consul.recipes.ConsulRecipes
+import spock.lang.Shared
+import spock.lang.Specification
+
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.Executors
+
+import static com.github.tomakehurst.wiremock.client.WireMock.*
+import static org.awaitility.Awaitility.await
+
+class WatchPublisherTest extends Specification {
+
+    @ClassRule
+    @Shared
+    WireMockRule consul = new WireMockRule(0)
+
+    private ConsulWatcher watcher = ConsulRecipes.consulRecipes()
+            .withAgentUri(URI.create("http://localhost:${consul.port()}"))
+            .build()
+            .consulWatcher(Executors.newFixedThreadPool(1))
+            .withBackoff(100, 1000)
+            .build()
+
+    private WatchPublisher<String> publisher = new WatchPublisher<>(
+            new EndpointWatcher<String>('/endpoint', watcher, { it }))
+
+    private RecordingSubscriber subscriber = new RecordingSubscriber()
+
+    def setup() {
+        stubResult('0', '1', 'first')
+        stubResult('1', '2', 'second')
+        stubResult('2', '3', 'third')
+        consul.stubFor(get(urlPathEqualTo('/endpoint'))
+                .withQueryParam('index', equalTo('3'))
+                .willReturn(aResponse().withFixedDelay(10000)
+                        .withHeader('X-Consul-Index', '3')
+                        .withBody('third')))
+    }
+
+    def cleanup() {
+        publisher.close()
+        watcher.close()
+        consul.resetAll()
+    }
+
+    def "should deliver results only on demand"() {
+        when:
+        publisher.subscribe(subscriber)
+        subscriber.subscription.request(1)
+
+        then:
+        await().atMost(Duration.FIVE_SECONDS).until({ subscriber.results == ['first'] })
+
+        when:
+        subscriber.subscription.request(1)
+
+        then:
+        await().atMost(Duration.FIVE_SECONDS).until({ subscriber.results == ['first', 'second'] })
+    }
+
+    def "should not re-poll endpoint while there is no demand"() {
+        when:
+        publisher.subscribe(subscriber)
+        sleep(500)
+
+        then:
+        subscriber.results.empty
+        consul.findAll(getRequestedFor(urlPathEqualTo('/endpoint'))).size() == 1
+
+        when:
+        subscriber.subscription.request(1)
+
+        then:
+        await().atMost(Duration.FIVE_SECONDS).until({ subscriber.results == ['first'] })
+    }
+
+    def "should not poll for more results than requested"() {
+        when:
+        publisher.subscribe(subscriber)
+        subscriber.subscription.request(1)
+        await().atMost(Duration.FIVE_SECONDS).until({ subscriber.results == ['first'] })
+        sleep(500)
+
+        then:
+        consul.findAll(getRequestedFor(urlPathEqualTo('/endpoint'))).size() == 1
+    }
+
+    def "should cancel watch when subscription is cancelled"() {
+        given:
+        publisher.subscribe(subscriber)
+        subscriber.subscription.request(Long.MAX_VALUE)
+        await().atMost(Duration.FIVE_SECONDS).until({ subscriber.results == ['first', 'second', 'third'] })
+
+        when:
+        subscriber.subscription.cancel()
+
+        then:
+        await().atMost(Duration.FIVE_SECONDS).until({ watcher.stats().activeWatches == 0 })
+        !subscriber.completed
+    }
+
+    def "should complete subscribers when publisher is closed"() {
+        given:
+        publisher.subscribe(subscriber)
+
+        when:
+        publisher.close()
+
+        then:
+        subscriber.completed
+        watcher.stats().activeWatches == 0
+    }
+
+    def "should signal error on non-positive request"() {
+        given:
+        publisher.subscribe(subscriber)
+
+        when:
+        subscriber.subscription.request(0)
+
+        then:
+        subscriber.error instanceof IllegalArgumentException
+    }
+
+    private void stubResult(String index, String nextIndex, String body) {
+        consul.stubFor(get(urlPathEqualTo('/endpoint'))
+                .withQueryParam('index', equalTo(index))
+                .willReturn(aResponse()
+                        .withHeader('X-Consul-Index', nextIndex)
+                        .withBody(body)))
+    }
+
+    static class RecordingSubscriber implements Subscriber<WatchResult<String>> {
+        volatile Subscription subscription
+        final List<String> results = new CopyOnWriteArrayList<>()
+        volatile boolean completed = false
+        volatile Throwable error = null
+
+        @Override
+        void onSubscribe(Subscription subscription) {
+            this.subscription = subscription
+        }
+
+        @Override
+        void onNext(WatchResult<String> result) {
+            results << result.body
+        }
+
+        @Override
+        void onError(Throwable throwable) {
+            error = throwable
+        }
+
+        @Override
+        void onComplete() {
+            completed = true
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package pl.allegro.tech.discovery.consul.recipes.watch.catalog
+
+import com.fasterxml.jackson.databind.ObjectMapper
+import pl.allegro.tech.discovery.consul.recipes.json.JacksonJsonDeserializer
+import spock.lang.Specification
+
+class ColumnarServiceInstancesTest extends Specification {
+
+    def "should store the same instances as the ones it was built from"() {
+        given:
+        def instances = [
+                new ServiceInstance("a", ["http", "canary"], "10.0.0.1", 8080),
+                new ServiceInstance("b", ["http"], "::1", 8081),
+                new ServiceInstance("c", [], "host.example.com", null),
+                new ServiceInstance("d", null, null, 0)
+        ]
+
+        when:
+        def columnar = ColumnarServiceInstances.of(new ServiceInstances("my-service", instances))
+
+        then:
+        columnar.serviceName == "my-service"
+        columnar.instances == instances
+        columnar.size() == 4
+    }
+
+    def "should read columns of an instance"() {
+        given:
+        def columnar = ColumnarServiceInstances.builder("my-service", 2)
+                .add("a", ["http", "canary"], "10.0.0.1", 8080)
+                .add("b", ["http"], "host.example.com", null)
+                .build()
+
+        expect:
+        columnar.serviceId(0) == "a"
+        columnar.address(0) == "10.0.0.1"
+        columnar.port(0) == 8080
+        columnar.hasTag(0, "canary")
+        columnar.tagCount(0) == 2
+        columnar.tag(0, 1) == "canary"
+
+        and:
+        columnar.address(1) == "host.example.com"
+        !columnar.hasPort(1)
+        columnar.port(1) == -1
+        !columnar.hasTag(1, "canary")
+    }
+
+    def "should find instances with a tag"() {
+        given:
+        def columnar = ColumnarServiceInstances.builder("my-service", 3)
+                .add("a", ["http", "canary"], "10.0.0.1", 8080)
+                .add("b", ["grpc"], "10.0.0.2", 8080)
+                .add("c", ["http"], "10.0.0.3", 8080)
+                .build()
+        def found = []
+
+        when:
+        columnar.forEachWithTag("http", { found << columnar.serviceId(it) })
+
+        then:
+        found == ["a", "c"]
+        columnar.countWithTag("http") == 2
+        columnar.countWithTag("unknown") == 0
+        columnar.tags() == ["http", "canary", "grpc"]
+    }
+
+    def "should visit all instances with a single view"() {
+        given:
+        def columnar = ColumnarServiceInstances.builder("my-service", 2)
+                .add("a", [], "10.0.0.1", 8080)
+                .add("b", [], "10.0.0.2", 8081)
+                .build()
+        def views = [] as Set
+        def ports = []
+
+        when:
+        columnar.forEach { views << System.identityHashCode(it); ports << it.servicePort }
+
+        then:
+        views.size() == 1
+        ports == [8080, 8081]
+    }
+
+    def "should pack only IPv4 addresses that format back to the same text"() {
+        expect:
+        ColumnarServiceInstances.parseIpv4(address)?.with { ColumnarServiceInstances.formatIpv4(it) } == packed
+
+        where:
+        address           || packed
+        "10.0.0.1"        || "10.0.0.1"
+        "255.255.255.255" || "255.255.255.255"
+        "0.0.0.0"         || "0.0.0.0"
+        "10.0.0.01"       || null
+        "256.0.0.1"       || null
+        "10.0.0"          || null
+        "10.0.0.1.2"      || null
+        "10..0.1"         || null
+        "::1"             || null
+        "host"            || null
+    }
+
+    def "should decode JSON into columns"() {
+        given:
+        def decoder = new ColumnarServiceInstancesDecoder("my-service", new JacksonJsonDeserializer(new ObjectMapper()), {
+            new ServiceInstance(it.ServiceID as String, it.ServiceTags as List, it.ServiceAddress as String, it.ServicePort as Integer)
+        })
+
+        when:
+        def instances = decoder.decode('''[
+            {"ServiceID": "a", "ServiceTags": ["http"], "ServiceAddress": "10.0.0.1", "ServicePort": 8080},
+            {"ServiceID": "b", "ServiceTags": [], "ServiceAddress": "10.0.0.2", "ServicePort": 8081}
+        ]''')
+
+        then:
+        instances instanceof ColumnarServiceInstances
+        instances.instances*.serviceId == ["a", "b"]
+        decoder.decode("").instances.isEmpty()
+    }
+}
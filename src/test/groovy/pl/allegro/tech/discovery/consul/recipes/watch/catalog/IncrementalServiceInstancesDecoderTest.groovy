@@ -0,0 +1,113 @@
+package pl.allegro.tech.discovery.consul.recipes.watch.catalog
+
+import com.fasterxml.jackson.databind.ObjectMapper
+import pl.allegro.tech.discovery.consul.recipes.json.IncrementalJsonArrayDecoder
+import pl.allegro.tech.discovery.consul.recipes.json.JacksonJsonDeserializer
+import pl.allegro.tech.discovery.consul.recipes.json.JsonDecoder
+import spock.lang.Specification
+
+import java.util.function.BiFunction
+
+class IncrementalServiceInstancesDecoderTest extends Specification {
+
+    private IncrementalServiceInstancesDecoder decoder = new IncrementalServiceInstancesDecoder(
+            "my-service",
+            new JacksonJsonDeserializer(new ObjectMapper()),
+            { props -> new ServiceInstance(props['ID'] as String, props['Tags'] as List, props['Address'] as String, props['Port'] as Integer) }
+    )
+
+    def "should decode all instances"() {
+        when:
+        def instances = decoder.decode('''[
+            {"ID": "a", "Tags": ["x"], "Address": "10.0.0.1", "Port": 1},
+            {"ID": "b", "Tags": [], "Address": "10.0.0.2", "Port": 2}
+        ]''')
+
+        then:
+        instances.serviceName == "my-service"
+        instances.instances == [
+                new ServiceInstance("a", ["x"], "10.0.0.1", 1),
+                new ServiceInstance("b", [], "10.0.0.2", 2)
+        ]
+    }
+
+    def "should reuse instances which did not change since previous decoding"() {
+        given:
+        def previous = decoder.decode('[{"ID": "a", "Port": 1}, {"ID": "b", "Port": 2}]')
+
+        when:
+        def current = decoder.decode('[{"ID": "a", "Port": 1}, {"ID": "b", "Port": 3}, {"ID": "c", "Port": 4}]')
+
+        then:
+        current.instances[0].is(previous.instances[0])
+        !current.instances[1].is(previous.instances[1])
+        current.instances*.servicePort == [Optional.of(1), Optional.of(3), Optional.of(4)]
+    }
+
+    def "should not be confused by brackets and commas inside strings"() {
+        when:
+        def instances = decoder.decode('[{"ID": "a,]}\\"[", "Port": 1}]')
+
+        then:
+        instances.instances*.serviceId == ['a,]}"[']
+    }
+
+    def "should decode empty array"() {
+        expect:
+        decoder.decode(' [ ] ').instances.empty
+    }
+
+    def "should fail on malformed array"() {
+        when:
+        decoder.decode('[{"ID": "a"}')
+
+        then:
+        thrown(JsonDecoder.JsonDecodeException)
+    }
+
+    def "should decode details of an instance from its JSON only when asked for them"() {
+        given:
+        def jsonDeserializer = new JacksonJsonDeserializer(new ObjectMapper())
+        def detailsDecodings = 0
+        def detailsDecoder = InstanceDetails.decoder(jsonDeserializer, { props ->
+            detailsDecodings++
+            new InstanceDetails(props['Node'] as String, props['Datacenter'] as String, props['Meta'] as Map,
+                    ServiceWeights.fromMap(props['Weights'] as Map), null)
+        })
+        def detailsDecodingDecoder = new IncrementalServiceInstancesDecoder("my-service",
+                new IncrementalJsonArrayDecoder<ServiceInstance>(jsonDeserializer, { json, props ->
+                    new ServiceInstance(props['ID'] as String, [], null, props['Port'] as Integer, json, detailsDecoder)
+                } as BiFunction))
+
+        when:
+        def instance = detailsDecodingDecoder.decode('''[
+            {"ID": "a", "Port": 1, "Node": "node1", "Datacenter": "dc1", "Meta": {"zone": "dc1-a"},
+             "Weights": {"Passing": 10, "Warning": 1}}
+        ]''').instances.first()
+
+        then:
+        instance.serviceId == "a"
+        detailsDecodings == 0
+
+        when:
+        def meta = instance.meta
+
+        then:
+        meta == [zone: "dc1-a"]
+        instance.node == Optional.of("node1")
+        instance.datacenter == Optional.of("dc1")
+        instance.weights == Optional.of(new ServiceWeights(10, 1))
+        instance.checks.empty
+        detailsDecodings == 1
+    }
+
+    def "should have no details if created without JSON"() {
+        expect:
+        with(new ServiceInstance("a", [], "10.0.0.1", 1)) {
+            !node.present
+            meta.isEmpty()
+            !weights.present
+            checks.empty
+        }
+    }
+}
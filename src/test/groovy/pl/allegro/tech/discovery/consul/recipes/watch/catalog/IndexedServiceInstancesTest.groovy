@@ -0,0 +1,63 @@
+package pl.allegro.tech.discovery.consul.recipes.watch.catalog
+
+import spock.lang.Specification
+
+class IndexedServiceInstancesTest extends Specification {
+
+    def "should find instances by tag"() {
+        given:
+        def indexed = IndexedServiceInstances.of(instances(
+                instance("a", ["http", "canary"]),
+                instance("b", ["http"]),
+                instance("c", ["grpc"])))
+
+        expect:
+        indexed.withTag("http")*.serviceId == ["a", "b"]
+        indexed.withTag("canary")*.serviceId == ["a"]
+        indexed.withTag("unknown").isEmpty()
+        indexed.tags() == ["http", "canary", "grpc"] as Set
+        indexed.instances()*.serviceId == ["a", "b", "c"]
+        indexed.size() == 3
+    }
+
+    def "should find instances by metadata read from tags"() {
+        given:
+        def indexed = IndexedServiceInstances.of(instances(
+                instance("a", ["zone=dc1-a", "http"]),
+                instance("b", ["zone=dc1-b"]),
+                instance("c", ["zone=dc1-a"])), InstanceMetadataExtractor.keyValueTags("="))
+
+        expect:
+        indexed.withMeta("zone", "dc1-a")*.serviceId == ["a", "c"]
+        indexed.withMeta("zone", "dc1-c").isEmpty()
+        indexed.withMeta("rack", "1").isEmpty()
+        indexed.metaValues("zone") == ["dc1-a", "dc1-b"] as Set
+    }
+
+    def "should return the same list on every lookup"() {
+        given:
+        def indexed = IndexedServiceInstances.of(instances(instance("a", ["http"])))
+
+        expect:
+        indexed.withTag("http").is(indexed.withTag("http"))
+    }
+
+    def "should not allow modifying results"() {
+        given:
+        def indexed = IndexedServiceInstances.of(instances(instance("a", ["http"])))
+
+        when:
+        indexed.withTag("http").add(instance("b", []))
+
+        then:
+        thrown(UnsupportedOperationException)
+    }
+
+    private static ServiceInstances instances(ServiceInstance... instances) {
+        return new ServiceInstances("my-service", instances.toList())
+    }
+
+    private static ServiceInstance instance(String id, List<String> tags) {
+        return new ServiceInstance(id, tags, "localhost", 8080)
+    }
+}
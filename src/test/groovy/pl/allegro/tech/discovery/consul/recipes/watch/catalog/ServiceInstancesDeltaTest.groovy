@@ -0,0 +1,85 @@
+package pl.allegro.tech.discovery.consul.recipes.watch.catalog
+
+import spock.lang.Specification
+
+class ServiceInstancesDeltaTest extends Specification {
+
+    def "should report all instances as added when there is no previous state"() {
+        when:
+        def delta = ServiceInstancesDelta.between(null, instances(instance("a", 1), instance("b", 2)))
+
+        then:
+        delta.added.keySet() == ["a", "b"] as Set
+        delta.removed.isEmpty()
+        delta.modified.isEmpty()
+    }
+
+    def "should report added, removed and modified instances keyed by service id"() {
+        given:
+        def previous = ServiceInstancesDelta.between(null, instances(instance("a", 1), instance("b", 2), instance("c", 3)))
+
+        when:
+        def delta = ServiceInstancesDelta.between(previous, instances(instance("a", 1), instance("b", 20), instance("d", 4)))
+
+        then:
+        delta.added == [d: instance("d", 4)]
+        delta.removed == [c: instance("c", 3)]
+        delta.modified == [b: instance("b", 20)]
+        delta.instancesById.keySet() == ["a", "b", "d"] as Set
+        !delta.empty
+    }
+
+    def "should report no changes for equal snapshots"() {
+        given:
+        def previous = ServiceInstancesDelta.between(null, instances(instance("a", 1)))
+
+        expect:
+        ServiceInstancesDelta.between(previous, instances(instance("a", 1))).empty
+    }
+
+    def "should not report re-decoded instance with unchanged port above small integer cache as modified"() {
+        given:
+        def previous = ServiceInstancesDelta.between(null, instances(instance("a", 8080)))
+
+        expect:
+        ServiceInstancesDelta.between(previous, instances(instance("a", 8080))).empty
+    }
+
+    def "should report instance whose only change is in its details"() {
+        given:
+        def previous = ServiceInstancesDelta.between(null, instances(
+                instanceWithDetails("a", [zone: "dc1-a"], new ServiceWeights(1, 1)),
+                instanceWithDetails("b", [:], new ServiceWeights(1, 1))))
+
+        when:
+        def delta = ServiceInstancesDelta.between(previous, instances(
+                instanceWithDetails("a", [zone: "dc1-b"], new ServiceWeights(1, 1)),
+                instanceWithDetails("b", [:], new ServiceWeights(10, 1))))
+
+        then:
+        delta.modified.keySet() == ["a", "b"] as Set
+    }
+
+    def "should not report instance with unchanged details as modified"() {
+        given:
+        def previous = ServiceInstancesDelta.between(null, instances(
+                instanceWithDetails("a", [zone: "dc1-a"], new ServiceWeights(1, 1))))
+
+        expect:
+        ServiceInstancesDelta.between(previous, instances(
+                instanceWithDetails("a", [zone: "dc1-a"], new ServiceWeights(1, 1)))).empty
+    }
+
+    private static ServiceInstances instances(ServiceInstance... instances) {
+        return new ServiceInstances("my-service", instances.toList())
+    }
+
+    private static ServiceInstance instance(String id, int port) {
+        return new ServiceInstance(id, ["tag"], "localhost", new Integer(port))
+    }
+
+    private static ServiceInstance instanceWithDetails(String id, Map<String, String> meta, ServiceWeights weights) {
+        def details = new InstanceDetails("node1", "dc1", meta, weights, [])
+        return new ServiceInstance(id, ["tag"], "localhost", 8080, "{}", { details })
+    }
+}
@@ -0,0 +1,24 @@
+package pl.allegro.tech.discovery.consul.recipes.watch.catalog
+
+import spock.lang.Specification
+
+class ServicesDeltaTest extends Specification {
+
+    def "should report added and removed services and changed tags"() {
+        given:
+        def previous = ServicesDelta.between(null, new Services([a: ["x"], b: ["y"], c: []]))
+
+        when:
+        def delta = ServicesDelta.between(previous, new Services([a: ["x"], b: ["y", "z"], d: []]))
+
+        then:
+        delta.added == ["d"] as Set
+        delta.removed == ["c"] as Set
+        delta.tagsChanged == [b: ["y", "z"]]
+    }
+
+    def "should report all services as added when there is no previous state"() {
+        expect:
+        ServicesDelta.between(null, new Services([a: [], b: []])).added == ["a", "b"] as Set
+    }
+}
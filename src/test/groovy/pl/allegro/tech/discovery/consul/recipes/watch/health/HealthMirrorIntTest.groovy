@@ -0,0 +1,90 @@
+package pl.allegro.tech.discovery.consul.recipes.watch.health
+
+import com.fasterxml.jackson.databind.ObjectMapper
+import org.junit.ClassRule
+import pl.allegro.tech.discovery.consul.recipes.ConsulCluster
+import pl.allegro.tech.discovery.consul.recipes.ConsulRecipes
+import pl.allegro.tech.discovery.consul.recipes.json.JacksonJsonDeserializer
+import spock.lang.Shared
+import spock.lang.Specification
+import spock.util.concurrent.PollingConditions
+
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.Executors
+
+class HealthMirrorIntTest extends Specification {
+
+    public static final String GIVEN_DC = "dc1"
+    public static final String GIVEN_NODE = "node1-dc1"
+
+    @Shared
+    @ClassRule
+    ConsulCluster consulCluster = new ConsulCluster.Builder()
+            .withNode(GIVEN_DC, GIVEN_NODE)
+            .build()
+
+    private ConsulRecipes recipes = ConsulRecipes.consulRecipes()
+            .withAgentUri(URI.create("http://localhost:${consulCluster.getHttpPort(GIVEN_DC, GIVEN_NODE)}"))
+            .withJsonDeserializer(new JacksonJsonDeserializer(new ObjectMapper()))
+            .build()
+
+    private HealthMirror mirror = recipes.healthMirror(recipes.consulWatcher(Executors.newFixedThreadPool(2)).build())
+
+    def cleanup() {
+        mirror.close()
+        consulCluster.deregisterAllServices(GIVEN_DC, GIVEN_NODE)
+    }
+
+    def "should mirror checks of instances of all services"() {
+        given:
+        mirror.start()
+
+        when:
+        String instanceId = consulCluster.registerUnhealthyServiceInstance("my-service", GIVEN_DC, GIVEN_NODE)
+        consulCluster.registerHealthyServiceInstance("other-service", GIVEN_DC, GIVEN_NODE, ["tag1"])
+
+        then:
+        new PollingConditions(timeout: 10).eventually {
+            def health = mirror.serviceHealth("my-service").get()
+            health.instances.size() == 1
+            def instance = health.instances().first()
+            instance.serviceId == instanceId
+            instance.status == HealthCheck.CRITICAL
+            !instance.passing
+            health.passingInstances().isEmpty()
+        }
+
+        and:
+        new PollingConditions(timeout: 10).eventually {
+            mirror.serviceHealth("other-service").get().tags == ["tag1"]
+        }
+    }
+
+    def "should notify subscribers only about changes of their service"() {
+        given:
+        List<ServiceHealth> myServiceUpdates = new CopyOnWriteArrayList<>()
+        List<ServiceHealth> otherServiceUpdates = new CopyOnWriteArrayList<>()
+        mirror.subscribe("my-service", { myServiceUpdates << it })
+        mirror.subscribe("other-service", { otherServiceUpdates << it })
+        mirror.start()
+
+        when:
+        String instanceId = consulCluster.registerUnhealthyServiceInstance("my-service", GIVEN_DC, GIVEN_NODE)
+
+        then:
+        new PollingConditions(timeout: 10).eventually {
+            !myServiceUpdates.isEmpty()
+            myServiceUpdates.last().instances.size() == 1
+        }
+        otherServiceUpdates.isEmpty()
+
+        when:
+        consulCluster.deregisterService(instanceId, GIVEN_DC, GIVEN_NODE)
+
+        then:
+        new PollingConditions(timeout: 10).eventually {
+            myServiceUpdates.last().instances.isEmpty()
+        }
+        otherServiceUpdates.isEmpty()
+    }
+}
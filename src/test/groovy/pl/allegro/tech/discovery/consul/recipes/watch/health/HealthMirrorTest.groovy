@@ -0,0 +1,37 @@
+package pl.allegro.tech.discovery.consul.recipes.watch.health
+
+import pl.allegro.tech.discovery.consul.recipes.watch.catalog.Services
+import spock.lang.Specification
+
+class HealthMirrorTest extends Specification {
+
+    def "should index checks by service and instance, including checks of their nodes"() {
+        given:
+        def services = new Services(["api": ["http"], "db": []])
+        def checks = [
+                new HealthCheck("node-1", "serfHealth", HealthCheck.PASSING, "", ""),
+                new HealthCheck("node-2", "serfHealth", HealthCheck.CRITICAL, "", ""),
+                new HealthCheck("node-1", "service:api-1", HealthCheck.PASSING, "api-1", "api"),
+                new HealthCheck("node-2", "service:api-2", HealthCheck.PASSING, "api-2", "api"),
+                new HealthCheck("node-1", "service:api-1-disk", HealthCheck.WARNING, "api-1", "api")
+        ]
+
+        when:
+        def indexed = HealthMirror.index(services, checks)
+
+        then:
+        indexed.keySet() == ["api", "db"] as Set
+        indexed["db"].instances.isEmpty()
+        indexed["api"].tags == ["http"]
+
+        and:
+        def api1 = indexed["api"].instances["node-1/api-1"]
+        api1.checks*.checkId == ["serfHealth", "service:api-1", "service:api-1-disk"]
+        api1.status == HealthCheck.WARNING
+
+        and:
+        def api2 = indexed["api"].instances["node-2/api-2"]
+        api2.status == HealthCheck.CRITICAL
+        indexed["api"].passingInstances().isEmpty()
+    }
+}
@@ -70,6 +70,9 @@ class HealthServiceInstancesWatcherIntTest extends Specification {
             instance.serviceAddress == Optional.of("localhost")
             instance.servicePort == Optional.of(1234)
             instance.serviceTags == ["tag1", "tag2"]
+            instance.node == Optional.of(GIVEN_NODE)
+            instance.datacenter == Optional.of(GIVEN_DC)
+            !instance.checks.empty
         }
     }
 
@@ -0,0 +1,65 @@
+package pl.allegro.tech.discovery.consul.recipes.watch.health
+
+import com.fasterxml.jackson.databind.ObjectMapper
+import org.junit.ClassRule
+import org.slf4j.Logger
+import org.slf4j.LoggerFactory
+import pl.allegro.tech.discovery.consul.recipes.ConsulCluster
+import pl.allegro.tech.discovery.consul.recipes.ConsulRecipes
+import pl.allegro.tech.discovery.consul.recipes.json.JacksonJsonDeserializer
+import pl.allegro.tech.discovery.consul.recipes.watch.WatchResult
+import pl.allegro.tech.discovery.consul.recipes.watch.catalog.DatacenterServiceInstances
+import spock.lang.Shared
+import spock.lang.Specification
+import spock.util.concurrent.PollingConditions
+
+import java.util.concurrent.Executors
+
+class MultiDatacenterServiceInstancesWatcherIntTest extends Specification {
+
+    static Logger logger = LoggerFactory.getLogger(MultiDatacenterServiceInstancesWatcherIntTest)
+
+    @Shared
+    @ClassRule
+    ConsulCluster consulCluster = new ConsulCluster.Builder()
+            .withNode("dc1", "node1-dc1")
+            .withNode("dc2", "node1-dc2")
+            .build()
+
+    private ConsulRecipes recipes = ConsulRecipes.consulRecipes()
+            .withAgentUri(URI.create("http://localhost:${consulCluster.getHttpPort("dc1", "node1-dc1")}"))
+            .withJsonDeserializer(new JacksonJsonDeserializer(new ObjectMapper()))
+            .build()
+
+    def cleanup() {
+        consulCluster.deregisterAllServices("dc1", "node1-dc1")
+        consulCluster.deregisterAllServices("dc2", "node1-dc2")
+    }
+
+    def "should publish instances from all datacenters tagged with their datacenter"() {
+        given:
+        def watcher = recipes.multiDatacenterHealthServiceInstancesWatcher("my-service", ["dc1", "dc2"],
+                recipes.consulWatcher(Executors.newFixedThreadPool(1)).withBackoff(100, 1000).build())
+        WatchResult<DatacenterServiceInstances> latest = null
+        def canceller = watcher.watch(
+                { result -> if (latest == null || latest.index < result.index) latest = result },
+                { logger.error("Error while watching", it) })
+
+        when:
+        def dc1Instance = consulCluster.registerHealthyServiceInstance("my-service", "dc1", "node1-dc1")
+        def dc2Instance = consulCluster.registerHealthyServiceInstance("my-service", "dc2", "node1-dc2")
+
+        then:
+        new PollingConditions(timeout: 10).eventually {
+            latest.body.datacenters == ["dc1", "dc2"] as Set
+            latest.body.getInstances("dc1")*.serviceId == [dc1Instance]
+            latest.body.getInstances("dc2")*.serviceId == [dc2Instance]
+            latest.body.merged().instances*.serviceId as Set == [dc1Instance, dc2Instance] as Set
+            latest.body.mergedWithDatacenters().collect { [it.datacenter, it.instance.serviceId] } as Set ==
+                    [["dc1", dc1Instance], ["dc2", dc2Instance]] as Set
+        }
+
+        cleanup:
+        canceller?.cancel()
+    }
+}